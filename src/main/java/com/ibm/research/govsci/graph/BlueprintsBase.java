@@ -26,12 +26,34 @@
 
 package com.ibm.research.govsci.graph;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.configuration.BaseConfiguration;
 import org.apache.commons.configuration.Configuration;
@@ -41,6 +63,7 @@ import org.slf4j.LoggerFactory;
 import com.thinkaurelius.titan.core.TitanFactory;
 import com.thinkaurelius.titan.core.TitanGraph;
 import com.thinkaurelius.titan.core.TitanTransaction;
+import com.tinkerpop.blueprints.CloseableIterable;
 import com.tinkerpop.blueprints.Direction;
 import com.tinkerpop.blueprints.Edge;
 import com.tinkerpop.blueprints.Element;
@@ -65,13 +88,64 @@ public class BlueprintsBase implements Shutdownable {
     protected KeyIndexableGraph kigraph = null;
     protected TransactionalGraph tgraph = null;
     protected String dbengine = null;
+    protected String dburl = null;
     protected SimpleDateFormat dateFormatter = null;
     private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ssZ";
 
-    private static final String INDEX_TYPE = "type-idx";
-    private static final String PROPERTY_TYPE = "_type";
+    static final String INDEX_TYPE = "type-idx";
+    static final String PROPERTY_TYPE = "_type";
+    static final String PROPERTY_CREATED_AT = "sys_created_at";
+    private static final String DEFAULT_OPERATION = "default";
 
     protected Index<Vertex> typeidx = null;
+    protected IndexRegistry indexes = new IndexRegistry();
+    protected DeferredIndexBuilder deferredIndexes = null;
+    private final List<String> deferredKeys = new ArrayList<String>();
+    protected int indexBuildParallelism = Runtime.getRuntime().availableProcessors();
+    protected EngineProfile profile = null;
+    protected StringInterner interner = null;
+    protected SlowOperationLog slowOps = null;
+    protected LookupCache lookupCache = null;
+    private File hotSetFile = null;
+    private int hotSetSize = GraphWarmer.DEFAULT_HOT_SET_SIZE;
+    private final Set<String> warmTypes = Collections.synchronizedSet(new LinkedHashSet<String>());
+    private Set<String> vertexKeyIndexes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    protected TimeIndex timeidx = null;
+    protected OperationJournal journal = null;
+    protected GraphEventStream events = null;
+    private final List<GraphEvent> transactionEvents = new ArrayList<GraphEvent>();
+    private final OperationJournal.Batch transactionJournal = new OperationJournal.Batch();
+    private final TimeIndex.Changes transactionTimeChanges = new TimeIndex.Changes();
+    private final ThreadLocal<TimeIndex.Changes> timeChanges = new ThreadLocal<TimeIndex.Changes>() {
+        @Override
+        protected TimeIndex.Changes initialValue() {
+            return new TimeIndex.Changes();
+        }
+    };
+    private final ThreadLocal<OperationJournal.Batch> journalBatches = new ThreadLocal<OperationJournal.Batch>() {
+        @Override
+        protected OperationJournal.Batch initialValue() {
+            return new OperationJournal.Batch();
+        }
+    };
+
+    protected BlueprintsBase parent = null;
+    protected RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+    protected final ConflictMetrics conflictMetrics = new ConflictMetrics();
+    private final Random retryRandom = new Random();
+    protected int commitParallelism = Runtime.getRuntime().availableProcessors();
+    private int transactionDepth = 0;
+    private boolean rollbackOnly = false;
+    private volatile boolean closed = false;
+    private final ThreadLocal<BlueprintsBase> threadTransaction = new ThreadLocal<BlueprintsBase>();
+    private final Set<BlueprintsBase> openTransactions =
+            Collections.newSetFromMap(new ConcurrentHashMap<BlueprintsBase, Boolean>());
+    private final ThreadLocal<int[]> workDepth = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
     
     /**
      * Full constructor that takes an engine, a url, and a map for a configuration
@@ -88,6 +162,7 @@ public class BlueprintsBase implements Shutdownable {
         startConstructor();
         String eng = engine.toLowerCase().trim();
         dbengine = eng;
+        this.dburl = dburl;
         log.debug("Requested database: {} url: {}", eng, dburl);
         if (eng.equals(Engine.NEO4J)) {
             log.info("Opening neo4j graph at: {}", dburl);
@@ -166,19 +241,34 @@ public class BlueprintsBase implements Shutdownable {
     }
 
     /**
-     * A simple constructor used when creating a new graph
+     * Constructor used for a Titan transaction started from another graph
      * 
-     * @param graph - the TitanGraph from StartTransaction
+     * The transaction shares the engine and the optional indexes of its parent.
+     * Titan does not support manual indexes, so there is nothing else to set up.
+     * Settings such as the profile, the lookup cache, the journal and the event
+     * stream stay on the parent and are read through {@link #root()}, so
+     * changes made after the transaction started are seen.
+     * 
+     * @param parent the graph that started the transaction
+     * @param graph the TitanTransaction from startTransaction
      */
-    private BlueprintsBase(TitanTransaction graph) {
+    private BlueprintsBase(BlueprintsBase parent, TitanTransaction graph) {
         startConstructor();
-        log.warn("XXXXXXXX:");
-        log.warn("XXXXXXXX:");
-        log.warn("XXXXXXXX:");
-        log.warn("XXXXXXXX: new graph for transaction....");
+        this.parent = parent;
+        dbengine = parent.dbengine;
+        dburl = parent.dburl;
+        indexes = parent.indexes;
+        vertexKeyIndexes = parent.vertexKeyIndexes;
         kigraph = (KeyIndexableGraph) graph;
         tgraph = (TransactionalGraph) graph;
-        // finishConstructor();
+        transactionDepth = 1;
+    }
+
+    /**
+     * @return the graph that started this transaction, or this graph if it is not a transaction
+     */
+    private BlueprintsBase root() {
+        return parent != null ? parent : this;
     }
 
     /**
@@ -194,12 +284,15 @@ public class BlueprintsBase implements Shutdownable {
     
     private void finishConstructor() {
         if (this.supportsIndexes()) {
+            loadIndexes();
             log.debug("attempting to fetch index: {}", INDEX_TYPE);
             typeidx = getOrCreateIndex(INDEX_TYPE);
         }
         if (this.supportsKeyIndexes()) {
+            vertexKeyIndexes.addAll(kigraph.getIndexedKeys(Vertex.class));
             createKeyIndex(PROPERTY_TYPE);
         }
+        root().profile = EngineProfile.defaults(this);
     }
 
     public void dropKeyIndex(String key) {
@@ -219,6 +312,12 @@ public class BlueprintsBase implements Shutdownable {
             log.warn("engine {} does not support dropKeyIndex", this.dbengine);
         } else {
             kigraph.dropKeyIndex(key, elementClass);
+            if (Vertex.class.isAssignableFrom(elementClass)) {
+                vertexKeyIndexes.remove(key);
+            }
+            if (root().lookupCache != null) {
+                root().lookupCache.clear();
+            }
         }
     }
     
@@ -231,40 +330,78 @@ public class BlueprintsBase implements Shutdownable {
         if (!this.supportsIndexes()) {
             log.error("dropIndex - graph is not IndexableGraph");
         } else {
+            indexes.invalidate(idxname);
             igraph.dropIndex(idxname);
+            if (root().lookupCache != null) {
+                root().lookupCache.clear();
+            }
+        }
+    }
+
+    /**
+     * Adds every existing manual index to the index registry
+     * 
+     * This is done once when the graph is opened so that the common case of
+     * {@link #getOrCreateIndex(String, Class)} never has to ask the database.
+     */
+    private void loadIndexes() {
+        try {
+            for (Index<? extends Element> idx : igraph.getIndices()) {
+                indexes.register(idx);
+            }
+        } catch (RuntimeException e) {
+            log.debug("Unable to list indexes for engine {}, indexes will be loaded on demand", dbengine);
         }
     }
 
     /**
      * Gets a reference to the specified index, creating it if it doesn't exist.
      * 
-     * This probably could be better written if it used generics or something like that
+     * Handles are cached in the {@link IndexRegistry}, so only the first
+     * request for an index goes to the database.
      * 
      * @param idxname the name of the index to load/create
      * @param indexClass the class the index should use, either Vertex or Edge
      * @return a reference to the loaded/created index
      */
     public <T extends Element> Index<T> getOrCreateIndex(String idxname, Class<T> idxClass) {
-        Index<T> idx = null;
         if (!this.supportsIndexes()) {
             log.error("getOrCreateIndex - graph is not IndexableGraph");
             return null;
         }
-        log.trace("Getting index: {} type: {}", idxname, idxClass.toString());
-        try {
-            idx = igraph.getIndex(idxname, idxClass);
-        } catch (NullPointerException e) {
-            log.error("Null pointer exception fetching index: {} {}", idxname, e);
-        } catch (RuntimeException e) {
-            log.debug("Runtime exception encountered getting index {}. Upgrade to newer version of blueprints.", idxname);
+        Index<T> idx = indexes.get(idxname, idxClass);
+        if (idx != null) {
+            return idx;
         }
-        if (idx == null) {
-            log.warn("Creating index {} for class {}", idxname, idxClass.toString());
-            idx = igraph.createIndex(idxname, idxClass);
+        synchronized (indexes) {
+            if (indexes.contains(idxname, idxClass)) {
+                return indexes.get(idxname, idxClass);
+            }
+            indexes.recordMiss(idxname, idxClass);
+            log.trace("Getting index: {} type: {}", idxname, idxClass);
+            try {
+                idx = igraph.getIndex(idxname, idxClass);
+            } catch (NullPointerException e) {
+                log.error("Null pointer exception fetching index: {} {}", idxname, e);
+            } catch (RuntimeException e) {
+                log.debug("Runtime exception encountered getting index {}. Upgrade to newer version of blueprints.", idxname);
+            }
+            if (idx == null) {
+                log.warn("Creating index {} for class {}", idxname, idxClass.toString());
+                idx = igraph.createIndex(idxname, idxClass);
+            }
+            indexes.register(idx);
         }
         return idx;
     }
 
+    /**
+     * @return the registry of index handles and their usage counters
+     */
+    public IndexRegistry getIndexRegistry() {
+        return indexes;
+    }
+
     /**
      * Helper function to get Vertex indexes
      * 
@@ -298,6 +435,65 @@ public class BlueprintsBase implements Shutdownable {
     
     public <T extends Element> void createKeyIndex(String idxname, Class <T> idxClass) {
         kigraph.createKeyIndex(idxname, idxClass);
+        if (Vertex.class.isAssignableFrom(idxClass)) {
+            vertexKeyIndexes.add(idxname);
+        }
+    }
+
+    /**
+     * @return the strategies currently used for this engine
+     */
+    public EngineProfile getEngineProfile() {
+        return root().profile;
+    }
+
+    /**
+     * Overrides the strategies used for this engine
+     * 
+     * @param profile the profile to use, or null to go back to the defaults
+     */
+    public void setEngineProfile(EngineProfile profile) {
+        root().profile = profile != null ? profile : EngineProfile.defaults(this);
+        log.info("Using {}", root().profile);
+    }
+
+    /**
+     * Measures the engine and switches to the strategies that were fastest
+     * 
+     * @return the new profile
+     * @see EngineCalibrator
+     */
+    public EngineProfile calibrateEngine() {
+        if (parent != null) {
+            log.error("calibrateEngine called on a transaction - ignored");
+            return root().profile;
+        }
+        setEngineProfile(new EngineCalibrator(this).calibrate());
+        return root().profile;
+    }
+
+    /**
+     * Loads the profile for this database from a cache directory, calibrating
+     * the engine and saving the result if there is no cached profile
+     * 
+     * @param cacheDir directory holding cached profiles
+     * @return the new profile
+     */
+    public EngineProfile calibrateEngine(File cacheDir) {
+        File f = EngineProfile.cacheFile(cacheDir, dbengine, dburl);
+        EngineProfile cached = EngineProfile.load(f, dbengine, dburl);
+        if (cached != null) {
+            log.debug("Loaded engine profile from {}", f);
+            setEngineProfile(cached);
+            return root().profile;
+        }
+        calibrateEngine();
+        try {
+            root().profile.store(f);
+        } catch (IOException e) {
+            log.error("Unable to save engine profile to {}", f, e);
+        }
+        return root().profile;
     }
 
     /**
@@ -309,7 +505,183 @@ public class BlueprintsBase implements Shutdownable {
      * @param elem Element to set creation date of
      */
     protected void setElementCreateTime(Element elem) {
-        setProperty(elem, "sys_created_at", new Date());
+        setProperty(elem, PROPERTY_CREATED_AT, new Date());
+    }
+
+    /**
+     * Enables the time index for sys_created_at and any additional date properties
+     * 
+     * Only elements written after this is called are indexed. Use
+     * {@link #rebuildTimeIndex()} to add elements that already exist in the graph.
+     * 
+     * @param dateProperties additional date properties to index
+     */
+    public void enableTimeIndex(String... dateProperties) {
+        if (root().timeidx == null) {
+            root().timeidx = new TimeIndex();
+            root().timeidx.declareProperty(PROPERTY_CREATED_AT);
+        }
+        for (String prop : dateProperties) {
+            root().timeidx.declareProperty(prop);
+        }
+    }
+
+    /**
+     * Adds a date property to the time index, enabling the index if needed
+     * 
+     * @param property name of the date property
+     */
+    public void declareTimeIndexProperty(String property) {
+        enableTimeIndex(property);
+    }
+
+    /**
+     * Scans the entire graph and adds every indexed date property to the time index
+     * 
+     * This is not supported on neo4jbatch as it cannot iterate the graph.
+     */
+    public void rebuildTimeIndex() {
+        if (root().timeidx == null) {
+            log.warn("rebuildTimeIndex called without enabling time index");
+            return;
+        }
+        root().timeidx.clear();
+        for (Vertex v : kigraph.getVertices()) {
+            addToTimeIndex(v);
+        }
+        for (Edge e : kigraph.getEdges()) {
+            addToTimeIndex(e);
+        }
+    }
+
+    /**
+     * Returns the edges with a given label whose date property falls in [start, end)
+     * 
+     * @param edgeLabel label of the edges
+     * @param property indexed date property, such as sys_created_at
+     * @param start inclusive start of the range
+     * @param end exclusive end of the range
+     * @return the matching edges, in order of the property value
+     */
+    public Iterable<Edge> getEdgesByTime(String edgeLabel, String property, Date start, Date end) {
+        return ElementIdIterable.edges(kigraph, timeRange(Edge.class, edgeLabel, property, start, end),
+                timeFilter(edgeLabel, property, start, end));
+    }
+
+    /**
+     * Returns the edges with a given label that were created in [start, end)
+     * 
+     * @param edgeLabel label of the edges
+     * @param start inclusive start of the range
+     * @param end exclusive end of the range
+     * @return the matching edges, in order of creation
+     */
+    public Iterable<Edge> getEdgesCreatedBetween(String edgeLabel, Date start, Date end) {
+        return getEdgesByTime(edgeLabel, PROPERTY_CREATED_AT, start, end);
+    }
+
+    /**
+     * Returns the vertices of a given type whose date property falls in [start, end)
+     * 
+     * @param vertexType type of the vertices
+     * @param property indexed date property, such as sys_created_at
+     * @param start inclusive start of the range
+     * @param end exclusive end of the range
+     * @return the matching vertices, in order of the property value
+     */
+    public Iterable<Vertex> getVerticesByTime(String vertexType, String property, Date start, Date end) {
+        return ElementIdIterable.vertices(kigraph, timeRange(Vertex.class, vertexType, property, start, end),
+                timeFilter(vertexType, property, start, end));
+    }
+
+    private Iterable<Object> timeRange(Class<? extends Element> elementClass, String group, String property, Date start, Date end) {
+        if (root().timeidx == null || !root().timeidx.isIndexed(property)) {
+            log.error("property {} is not in the time index", property);
+            return new ArrayList<Object>();
+        }
+        return root().timeidx.range(elementClass, group, property, start.getTime()/1000L, end.getTime()/1000L);
+    }
+
+    /**
+     * Checks that an element found through the time index still has the
+     * group and time it was recorded with, as its id may have been reused
+     */
+    private ElementFilter<Element> timeFilter(final String group, final String property, Date start, Date end) {
+        final long from = start.getTime()/1000L;
+        final long to = end.getTime()/1000L;
+        return new ElementFilter<Element>() {
+            public boolean accept(Element elem) {
+                if (!timeIndexGroup(elem).equals(group == null ? "" : group)) {
+                    return false;
+                }
+                Long seconds = storedSeconds(elem.getProperty(property));
+                return seconds != null && seconds >= from && seconds < to;
+            }
+        };
+    }
+
+    /**
+     * @return the time index changes of the current transaction, or null if
+     *          changes should be applied immediately
+     */
+    private TimeIndex.Changes timeChanges() {
+        if (parent != null) {
+            return transactionTimeChanges;
+        }
+        return this.supportsTransactions() ? timeChanges.get() : null;
+    }
+
+    /**
+     * @param elem the element
+     * @return the label of an edge or the type of a vertex
+     */
+    private String timeIndexGroup(Element elem) {
+        if (elem instanceof Edge) {
+            return ((Edge) elem).getLabel();
+        }
+        Object type = elem.getProperty(PROPERTY_TYPE);
+        return type == null ? "" : type.toString();
+    }
+
+    private Class<? extends Element> elementClass(Element elem) {
+        return elem instanceof Edge ? Edge.class : Vertex.class;
+    }
+
+    /**
+     * @param value a stored date property
+     * @return the time in seconds since the epoch, or null if there is none
+     */
+    private Long storedSeconds(Object value) {
+        if (value instanceof Number) {
+            // dates are written in seconds, see writeTime
+            return ((Number) value).longValue();
+        } else if (value instanceof String) {
+            Date d = propertyToDate((String) value);
+            return d == null ? null : d.getTime()/1000L;
+        }
+        return null;
+    }
+
+    private void addToTimeIndex(Element elem) {
+        for (String prop : root().timeidx.getProperties()) {
+            Long seconds = storedSeconds(elem.getProperty(prop));
+            if (seconds != null) {
+                root().timeidx.add(elementClass(elem), timeIndexGroup(elem), prop, seconds, elem.getId());
+            }
+        }
+    }
+
+    private void removeFromTimeIndex(Element elem, String prop) {
+        Long seconds = storedSeconds(elem.getProperty(prop));
+        if (seconds != null) {
+            root().timeidx.remove(timeChanges(), elementClass(elem), timeIndexGroup(elem), prop, seconds, elem.getId());
+        }
+    }
+
+    private void removeFromTimeIndex(Element elem) {
+        for (String prop : root().timeidx.getProperties()) {
+            removeFromTimeIndex(elem, prop);
+        }
     }
 
     /**
@@ -322,14 +694,148 @@ public class BlueprintsBase implements Shutdownable {
      * @return newly created edge
      */
     public Edge createEdgeIfNotExist(Object id, Vertex outVertex, Vertex inVertex, String edgeLabel) {
+        long start = root().slowOps != null ? System.nanoTime() : 0L;
         for (Edge e : outVertex.getEdges(Direction.OUT, edgeLabel)) {
-            if (e.getVertex(Direction.IN).equals(inVertex)) return e;
+            if (e.getVertex(Direction.IN).equals(inVertex)) {
+                if (root().slowOps != null) {
+                    root().slowOps.record("createEdgeIfNotExist", start);
+                }
+                return e;
+            }
+        }
+        Edge re = createEdge(id, outVertex, inVertex, edgeLabel);
+        if (root().slowOps != null) {
+            root().slowOps.record("createEdgeIfNotExist", start);
         }
+        return re;
+    }
+
+    /**
+     * Creates an edge and records its creation
+     */
+    Edge createEdge(Object id, Vertex outVertex, Vertex inVertex, String edgeLabel) {
         Edge re = kigraph.addEdge(id,  outVertex, inVertex, edgeLabel);
+        if (root().journal != null) {
+            root().journal.createEdge(journalBatch(), re, outVertex, inVertex, edgeLabel);
+        }
+        if (root().events != null) {
+            emit(GraphEvent.edgeCreated(re.getId(), edgeLabel, outVertex.getId(), inVertex.getId()));
+        }
         setElementCreateTime(re);
         return re;
     }
 
+    /**
+     * Creates or updates an edge identified by its endpoints, label and key properties
+     * 
+     * @param outVertex source vertex
+     * @param inVertex target vertex
+     * @param edgeLabel label for the edge
+     * @param keyProps properties that distinguish this edge from other edges
+     *          between the same vertices, may be null
+     * @param props other properties to merge into the edge, may be null
+     * @return the new or updated edge
+     */
+    public Edge upsertEdge(Vertex outVertex, Vertex inVertex, String edgeLabel,
+            Map<String, Object> keyProps, Map<String, Object> props) {
+        EdgeSpec spec = new EdgeSpec(outVertex, inVertex, edgeLabel, keyProps, props);
+        Map<String, Object> key = normalize(spec.getKeyProps());
+        for (Edge e : outVertex.getEdges(Direction.OUT, edgeLabel)) {
+            if (e.getVertex(Direction.IN).equals(inVertex) && matches(e, key)) {
+                mergeProperties(e, spec.getProps(), spec.getPolicy());
+                return e;
+            }
+        }
+        Edge e = createEdge(null, outVertex, inVertex, edgeLabel);
+        mergeProperties(e, key, MergePolicy.OVERWRITE);
+        mergeProperties(e, spec.getProps(), spec.getPolicy());
+        return e;
+    }
+
+    /**
+     * Creates or updates many edges
+     * 
+     * The specs are grouped by source vertex so the outgoing edges of each
+     * vertex are read only once. Matching against those edges, and against edges
+     * created earlier in the same call, is done in memory. On transactional
+     * graphs the changes are committed every
+     * {@link EngineProfile#getCommitBatchSize()} edges and at the end.
+     * 
+     * @param specs the edges to create or update
+     * @return the number of edges created or changed
+     */
+    public int upsertEdges(Iterable<EdgeSpec> specs) {
+        Map<Object, List<EdgeSpec>> byOut = new LinkedHashMap<Object, List<EdgeSpec>>();
+        for (EdgeSpec spec : specs) {
+            List<EdgeSpec> group = byOut.get(spec.getOut().getId());
+            if (group == null) {
+                group = new ArrayList<EdgeSpec>();
+                byOut.put(spec.getOut().getId(), group);
+            }
+            group.add(spec);
+        }
+        boolean commit = this.supportsTransactions();
+        int changed = 0;
+        int sinceCommit = 0;
+        for (List<EdgeSpec> group : byOut.values()) {
+            Vertex out = group.get(0).getOut();
+            Map<List<Object>, List<Edge>> adjacency = new HashMap<List<Object>, List<Edge>>();
+            for (Edge e : out.getEdges(Direction.OUT)) {
+                adjacencyList(adjacency, e.getVertex(Direction.IN).getId(), e.getLabel()).add(e);
+            }
+            for (EdgeSpec spec : group) {
+                Map<String, Object> key = normalize(spec.getKeyProps());
+                List<Edge> candidates = adjacencyList(adjacency, spec.getIn().getId(), spec.getLabel());
+                Edge match = null;
+                for (Edge e : candidates) {
+                    if (matches(e, key)) {
+                        match = e;
+                        break;
+                    }
+                }
+                if (match == null) {
+                    match = createEdge(null, out, spec.getIn(), spec.getLabel());
+                    mergeProperties(match, key, MergePolicy.OVERWRITE);
+                    mergeProperties(match, spec.getProps(), spec.getPolicy());
+                    candidates.add(match);
+                    changed++;
+                } else if (mergeProperties(match, spec.getProps(), spec.getPolicy()) > 0) {
+                    changed++;
+                }
+                if (commit && ++sinceCommit >= root().profile.getCommitBatchSize()) {
+                    stopTransaction();
+                    sinceCommit = 0;
+                }
+            }
+        }
+        if (commit && sinceCommit > 0) {
+            stopTransaction();
+        }
+        return changed;
+    }
+
+    private static List<Edge> adjacencyList(Map<List<Object>, List<Edge>> adjacency, Object inId, String label) {
+        List<Object> key = Arrays.asList(inId, label);
+        List<Edge> edges = adjacency.get(key);
+        if (edges == null) {
+            edges = new ArrayList<Edge>(1);
+            adjacency.put(key, edges);
+        }
+        return edges;
+    }
+
+    /**
+     * @return true if the element has every one of the properties
+     */
+    private static boolean matches(Element elem, Map<String, Object> props) {
+        for (Entry<String, Object> e : props.entrySet()) {
+            if (!e.getValue().equals(elem.getProperty(e.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
 
     /**
      * Helper function for {@link #createEdgeIfNotExist(Object, Vertex, Vertex, String)} that ignores the first argument
@@ -348,229 +854,1325 @@ public class BlueprintsBase implements Shutdownable {
     /**
      * Wrapper function for removing edges.
      * 
-     * This really doesn't do much other than abstract away the actual graph,
-     * which may allow us to integrate with other databases in the future.
-     * Likewise it may also work for removing edges from indices if they exist.
+     * Besides removing the edge from the graph this removes it from the time
+     * index and from any manual edge indexes that have been loaded.
      * 
      * @param e
      */
     public void removeEdge(Edge e) {
+        if (root().timeidx != null) {
+            removeFromTimeIndex(e);
+        }
+        if (root().lookupCache != null) {
+            invalidateLookups(e, Edge.class);
+        }
+        if (this.supportsIndexes()) {
+            removeFromIndexes(e, Edge.class);
+        }
+        if (root().journal != null) {
+            root().journal.removeEdge(journalBatch(), e);
+        }
+        if (root().events != null) {
+            emit(GraphEvent.edgeRemoved(e.getId(), e.getLabel(),
+                    e.getVertex(Direction.OUT).getId(), e.getVertex(Direction.IN).getId()));
+        }
         kigraph.removeEdge(e);
     }
 
-
     /**
-     * Method that creates an vertex with no properties other than
-     * the type and created_at.
-     * 
-     * Entries are also placed into the type index, but that's it.
+     * Removes a vertex along with its edges
      * 
-     * This function does not handle specific ids for nodes
+     * The edges are removed with {@link #removeEdge(Edge)}, and the vertex is
+     * removed from the time index and from the type index and every other manual
+     * vertex index that has been loaded.
      * 
-     * @param vertexType type of vertex to create
-     * @return
+     * @param v the vertex to remove
      */
-    protected Vertex createNakedVertex(String vertexType) {
-        Vertex node = kigraph.addVertex(null);
-        if (vertexType != null) {
-            node.setProperty(PROPERTY_TYPE, vertexType);
-            if (this.supportsIndexes()) {
-                typeidx.put(PROPERTY_TYPE, vertexType, node);
+    public void removeVertex(Vertex v) {
+        Set<Object> seen = new HashSet<Object>();
+        List<Edge> edges = new ArrayList<Edge>();
+        for (Edge e : v.getEdges(Direction.BOTH)) {
+            if (seen.add(e.getId())) {
+                edges.add(e);
             }
         }
-        setElementCreateTime(node);
-        return node;
+        for (Edge e : edges) {
+            removeEdge(e);
+        }
+        if (root().timeidx != null) {
+            removeFromTimeIndex(v);
+        }
+        if (root().lookupCache != null) {
+            invalidateLookups(v, Vertex.class);
+        }
+        if (this.supportsIndexes()) {
+            removeFromIndexes(v, Vertex.class);
+        }
+        if (root().journal != null) {
+            root().journal.removeVertex(journalBatch(), v);
+        }
+        if (root().events != null) {
+            emit(GraphEvent.vertexRemoved(v.getId(), (String) v.getProperty(PROPERTY_TYPE)));
+        }
+        kigraph.removeVertex(v);
     }
 
     /**
-     * Checks an index for an element, if found, returns it. If not, create the element and add it to the index.
+     * Removes an element from every loaded manual index for its class
      * 
-     * @param idcol the name of the column which contains the id
-     * @param idval the value of the id to look up in the index
-     * @param vertexType the type of vertex to create
-     * @param index the index containing the elements
-     * @return the existing vertex or a new vertex
+     * Blueprints cannot list the entries for an element, so each property of the
+     * element is removed from each index; entries that are not there are ignored.
      */
-    protected Vertex getOrCreateVertexHelper(String idcol, Object idval, String vertexType, Index <Vertex> index) {
-        Vertex node = null;
-        if (this.supportsIndexes() && index != null) {
-            Iterable<Vertex> results = index.get(idcol, idval);
-            for (Vertex v : results) {
-                node = v;
-                break;
-            }
-        } else if (this.supportsKeyIndexes()) {
-            for (Vertex v : kigraph.getVertices(idcol, idval)) {
-                log.warn("type: {}", v.getProperty(PROPERTY_TYPE));
-                if (v.getProperty(PROPERTY_TYPE).equals(vertexType)) {
-                    node = v;
-                    break;
-                }
-            }
+    private <T extends Element> void removeFromIndexes(T elem, Class<T> elementClass) {
+        List<Index<T>> idxs = indexes.getIndexes(elementClass);
+        if (idxs.isEmpty()) {
+            return;
         }
-        if (node == null) {
-            node = createNakedVertex(vertexType);
-            node.setProperty(idcol, idval);
-            if (this.supportsIndexes() && index != null) {
-                index.put(idcol, idval, node);
+        for (String key : elem.getPropertyKeys()) {
+            Object value = elem.getProperty(key);
+            for (Index<T> idx : idxs) {
+                try {
+                    idx.remove(key, value, elem);
+                } catch (RuntimeException e) {
+                    log.debug("Error removing {} from index {}", elem, idx.getIndexName());
+                }
             }
         }
-        return node;
     }
 
-
-
     /**
-     * Converts an int (aka unix timestamp) to a java.util.Date object
-     * 
-     * This function is trivial, but useful when used in conjunction with
-     * {@link #propertyToDate(Object)}
+     * Drops the cached lookups that could return an element that is being removed
      * 
-     * @param i the time in seconds since the beginning of the epoch
-     * @return a java.util.Date object
+     * Ids can be reused once an element is removed, so the entries are dropped
+     * rather than left to be filtered out when they are resolved.
      */
-    private Date propertyToDate(int i) {
-        return new Date(i*1000L);
+    private <T extends Element> void invalidateLookups(T elem, Class<T> elementClass) {
+        List<Index<T>> idxs = indexes.getIndexes(elementClass);
+        for (String key : elem.getPropertyKeys()) {
+            Object value = elem.getProperty(key);
+            root().lookupCache.invalidate(null, elementClass, key, value);
+            for (Index<T> idx : idxs) {
+                root().lookupCache.invalidate(idx.getIndexName(), elementClass, key, value);
+            }
+        }
     }
 
     /**
-     * Converts a long to a java.util.Date object
+     * Removes all vertices of a type that match a filter
      * 
-     * This function is trivial, but useful when used in conjunction with
-     * {@link #propertyToDate(Object)}
-     * 
-     * @param l the time in milliseconds since the beginning of the epoch
-     * @return a java.util.Date object
+     * @see #removeVertices(String, ElementFilter, ProgressListener)
      */
-    private Date propertyToDate(long l) {
-        return new Date(l);
+    public long removeVertices(String vertexType, ElementFilter<Vertex> filter) {
+        return removeVertices(vertexType, filter, null);
     }
 
     /**
-     * Converts a formatted date stringto a date object
+     * Removes all vertices of a type that match a filter
      * 
-     * @deprecated handles older cases
-     * @param s a string such as 2012-02-10T19:22:10+0000
-     * @return a java.util.Date object
+     * The matching vertices are found in one pass that only keeps their ids,
+     * then removed with {@link #removeVertex(Vertex)} in batches of
+     * {@link EngineProfile#getCommitBatchSize()}, committing after each batch on
+     * transactional graphs. Ids beyond the first batch are written to a
+     * temporary file rather than held in memory, so any number of vertices
+     * can be removed.
+     * 
+     * @param vertexType the type of vertex to remove
+     * @param filter selects the vertices to remove, or null for all of them
+     * @param progress told about each batch, may be null
+     * @return the number of vertices removed
      */
-    private Date propertyToDate(String s) {
+    public long removeVertices(String vertexType, ElementFilter<Vertex> filter, ProgressListener progress) {
+        IdSpool ids = new IdSpool(root().profile.getCommitBatchSize());
         try {
-            return dateFormatter.parse(s);
-        } catch (ParseException e) {
-            log.error("Parse exception parsing \"{}\" into Date object", s, e);
-            return null;
+            for (Vertex v : getVerticesByType(vertexType)) {
+                if (filter == null || filter.accept(v)) {
+                    ids.add(v.getId());
+                }
+            }
+            return removeBatched("removeVertices", ids, true, progress);
+        } catch (IOException e) {
+            throw new IllegalStateException("Error spooling ids of " + vertexType + " vertices", e);
+        } finally {
+            ids.delete();
         }
     }
 
     /**
-     * Generic helper function for converting a property to a date.
+     * Removes all edges with a label that match a filter
+     * 
+     * @see #removeEdges(String, ElementFilter, ProgressListener)
+     */
+    public long removeEdges(String edgeLabel, ElementFilter<Edge> filter) {
+        return removeEdges(edgeLabel, filter, null);
+    }
+
+    /**
+     * Removes all edges with a label that match a filter
+     * 
+     * Works the same way as {@link #removeVertices(String, ElementFilter, ProgressListener)},
+     * except that edges are not indexed by label, so finding them requires a
+     * scan of every edge in the graph. The scan only reads each edge's label
+     * and keeps the ids of the matching edges.
+     * 
+     * @param edgeLabel the label of the edges to remove, or null for any label
+     * @param filter selects the edges to remove, or null for all of them
+     * @param progress told about each batch, may be null
+     * @return the number of edges removed
+     */
+    public long removeEdges(String edgeLabel, ElementFilter<Edge> filter, ProgressListener progress) {
+        IdSpool ids = new IdSpool(root().profile.getCommitBatchSize());
+        try {
+            for (Edge e : kigraph.getEdges()) {
+                if ((edgeLabel == null || edgeLabel.equals(e.getLabel())) && (filter == null || filter.accept(e))) {
+                    ids.add(e.getId());
+                }
+            }
+            return removeBatched("removeEdges", ids, false, progress);
+        } catch (IOException e) {
+            throw new IllegalStateException("Error spooling ids of " + edgeLabel + " edges", e);
+        } finally {
+            ids.delete();
+        }
+    }
+
+    private long removeBatched(String operation, IdSpool ids, boolean vertices, ProgressListener progress)
+            throws IOException {
+        boolean commit = this.supportsTransactions();
+        int batchSize = root().profile.getCommitBatchSize();
+        long total = ids.size();
+        long removed = 0;
+        long done = 0;
+        Object id;
+        while ((id = ids.next()) != null) {
+            if (vertices) {
+                Vertex v = kigraph.getVertex(id);
+                if (v != null) {
+                    removeVertex(v);
+                    removed++;
+                }
+            } else {
+                Edge e = kigraph.getEdge(id);
+                if (e != null) {
+                    removeEdge(e);
+                    removed++;
+                }
+            }
+            done++;
+            if (done % batchSize == 0 || done == total) {
+                if (commit) {
+                    stopTransaction();
+                }
+                if (progress != null) {
+                    progress.progress(operation, done, total);
+                }
+                log.debug("{}: {} of {}", new Object[] {operation, done, total});
+            }
+        }
+        log.info("{} removed {} elements", operation, removed);
+        return removed;
+    }
+
+    /**
+     * Expands an entire frontier of vertices at once
+     *
+     * The frontier is deduplicated by id, so each vertex's edges are read
+     * once even if it appears several times. Blueprints has no way to fetch
+     * many elements in one call, so the edges of each frontier vertex are
+     * still read separately. The result is deduplicated and may include
+     * members of the frontier if they are adjacent to each other.
+     *
+     * @param frontier the vertices to expand
+     * @param direction which edges to follow
+     * @param labels labels of the edges to follow, all labels if empty
+     * @return the distinct adjacent vertices
+     */
+    public Collection<Vertex> neighbors(Collection<Vertex> frontier, Direction direction, String... labels) {
+        return expandNeighbors(frontier, direction, null, labels).keySet();
+    }
+
+    /**
+     * Expands an entire frontier of vertices and prefetches properties of the neighbors
+     *
+     * Each neighbor has its properties read exactly once, even if it is reached
+     * from several vertices of the frontier.
+     *
+     * @param frontier the vertices to expand
+     * @param direction which edges to follow
+     * @param prefetch names of properties to load for each neighbor
+     * @param labels labels of the edges to follow, all labels if empty
+     * @return map from each distinct adjacent vertex to its prefetched properties
+     */
+    public Map<Vertex, Map<String, Object>> neighborsWithProperties(Collection<Vertex> frontier, Direction direction,
+            Collection<String> prefetch, String... labels) {
+        return expandNeighbors(frontier, direction, prefetch, labels);
+    }
+
+    private Map<Vertex, Map<String, Object>> expandNeighbors(Collection<Vertex> frontier, Direction direction,
+            Collection<String> prefetch, String... labels) {
+        LinkedHashMap<Object, Vertex> sources = new LinkedHashMap<Object, Vertex>();
+        for (Vertex v : frontier) {
+            sources.put(v.getId(), v);
+        }
+
+        LinkedHashMap<Vertex, Map<String, Object>> result = new LinkedHashMap<Vertex, Map<String, Object>>();
+        HashSet<Object> seen = new HashSet<Object>();
+        for (Vertex v : sources.values()) {
+            for (Edge e : v.getEdges(direction, labels)) {
+                Vertex other = otherEnd(e, v, direction);
+                if (!seen.add(other.getId())) {
+                    continue;
+                }
+                Map<String, Object> props = null;
+                if (prefetch != null) {
+                    props = new HashMap<String, Object>();
+                    for (String key : prefetch) {
+                        Object value = other.getProperty(key);
+                        if (value != null) {
+                            props.put(key, value);
+                        }
+                    }
+                }
+                result.put(other, props);
+            }
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("expanded {} frontier vertices to {} neighbors", sources.size(), result.size());
+        }
+        return result;
+    }
+
+    private Vertex otherEnd(Edge e, Vertex v, Direction direction) {
+        if (direction == Direction.OUT) {
+            return e.getVertex(Direction.IN);
+        } else if (direction == Direction.IN) {
+            return e.getVertex(Direction.OUT);
+        }
+        Vertex in = e.getVertex(Direction.IN);
+        return in.getId().equals(v.getId()) ? e.getVertex(Direction.OUT) : in;
+    }
+
+    /**
+     * Method that creates an vertex with no properties other than
+     * the type and created_at.
+     * 
+     * Entries are also placed into the type index, but that's it.
+     * 
+     * This function does not handle specific ids for nodes
+     * 
+     * @param vertexType type of vertex to create
+     * @return
+     */
+    protected Vertex createNakedVertex(String vertexType) {
+        Vertex node = kigraph.addVertex(null);
+        if (vertexType != null) {
+            node.setProperty(PROPERTY_TYPE, vertexType);
+            if (this.supportsIndexes()) {
+                if (root().deferredIndexes != null) {
+                    root().deferredIndexes.add(typeidx, PROPERTY_TYPE, vertexType, node);
+                } else {
+                    typeidx.put(PROPERTY_TYPE, vertexType, node);
+                }
+            }
+            if (root().lookupCache != null) {
+                root().lookupCache.invalidate(null, Vertex.class, PROPERTY_TYPE, vertexType);
+                root().lookupCache.invalidate(INDEX_TYPE, Vertex.class, PROPERTY_TYPE, vertexType);
+            }
+        }
+        if (root().journal != null) {
+            root().journal.createVertex(journalBatch(), node, vertexType);
+        }
+        if (root().events != null) {
+            emit(GraphEvent.vertexCreated(node.getId(), vertexType));
+        }
+        setElementCreateTime(node);
+        return node;
+    }
+
+    /**
+     * Gets all of the vertices of a given type
+     * 
+     * @param vertexType the type of vertex
+     * @return the vertices, from the type index if the engine has manual indexes
+     */
+    public Iterable<Vertex> getVerticesByType(String vertexType) {
+        if (this.supportsIndexes()) {
+            return typeidx.get(PROPERTY_TYPE, vertexType);
+        }
+        return kigraph.getVertices(PROPERTY_TYPE, vertexType);
+    }
+
+    /**
+     * Gets the elements stored in a manual index under a key and value
+     * 
+     * If a {@link LookupCache} is enabled the ids of the result are cached and
+     * later calls resolve them with {@link KeyIndexableGraph#getVertex(Object)}
+     * or {@link KeyIndexableGraph#getEdge(Object)} instead of querying the index.
+     * 
+     * @param index the index to query
+     * @param key the key in the index
+     * @param value the value to look up
+     * @return the matching elements
+     */
+    public <T extends Element> List<T> lookup(final Index<T> index, final String key, final Object value) {
+        if (root().lookupCache == null) {
+            return toList(index.get(key, value));
+        }
+        return cachedLookup(new LookupCache.Key(index.getIndexName(), index.getIndexClass(), key, value),
+                index.getIndexClass(), new LookupQuery<T>() {
+                    public Iterable<T> run() {
+                        return index.get(key, value);
+                    }
+                });
+    }
+
+    /**
+     * Gets the vertices with a property value, using the key index if there is one
+     * 
+     * Results are cached the same way as {@link #lookup(Index, String, Object)}.
+     * 
+     * @param key the name of the property
+     * @param value the value to look up
+     * @return the matching vertices
+     */
+    public List<Vertex> lookupVertices(final String key, final Object value) {
+        if (root().lookupCache == null) {
+            return toList(kigraph.getVertices(key, value));
+        }
+        return cachedLookup(new LookupCache.Key(null, Vertex.class, key, value),
+                Vertex.class, new LookupQuery<Vertex>() {
+                    public Iterable<Vertex> run() {
+                        return kigraph.getVertices(key, value);
+                    }
+                });
+    }
+
+    /**
+     * A store query that {@link #cachedLookup} only runs when the cache misses
+     */
+    private interface LookupQuery<T extends Element> {
+        Iterable<T> run();
+    }
+
+    /**
+     * Resolves a cached lookup, or runs the query and caches the ids of the result
+     * 
+     * The stamp is taken before the cache is checked and the query is run, so
+     * a write that lands while the query runs keeps the result out of the cache.
+     */
+    private <T extends Element> List<T> cachedLookup(LookupCache.Key ck, Class<T> elementClass, LookupQuery<T> query) {
+        long stamp = root().lookupCache.stamp(ck);
+        Object[] ids = root().lookupCache.get(ck);
+        if (ids == null) {
+            List<T> rv = toList(query.run());
+            ids = new Object[rv.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = rv.get(i).getId();
+            }
+            root().lookupCache.put(ck, ids, stamp);
+            return rv;
+        }
+        List<T> rv = new ArrayList<T>(ids.length);
+        for (Object id : ids) {
+            Element elem = Vertex.class.isAssignableFrom(elementClass) ? kigraph.getVertex(id) : kigraph.getEdge(id);
+            if (elem == null) {
+                root().lookupCache.invalidate(ck);
+            } else {
+                rv.add(elementClass.cast(elem));
+            }
+        }
+        return rv;
+    }
+
+    /**
+     * Copies the results of a query into a list, closing the results if they
+     * hold store resources such as Neo4j index hits
+     */
+    private static <T> List<T> toList(Iterable<T> results) {
+        List<T> rv = new ArrayList<T>();
+        try {
+            for (T elem : results) {
+                rv.add(elem);
+            }
+        } finally {
+            if (results instanceof CloseableIterable) {
+                ((CloseableIterable<T>) results).close();
+            }
+        }
+        return rv;
+    }
+
+    /**
+     * Checks an index for an element, if found, returns it. If not, create the element and add it to the index.
+     * 
+     * @param idcol the name of the column which contains the id
+     * @param idval the value of the id to look up in the index
+     * @param vertexType the type of vertex to create
+     * @param index the index containing the elements
+     * @return the existing vertex or a new vertex
+     */
+    protected Vertex getOrCreateVertexHelper(String idcol, Object idval, String vertexType, Index <Vertex> index) {
+        return getOrCreateVertexHelper(idcol, idval, vertexType, index, null);
+    }
+
+    /**
+     * @param created if not null, its first element is set to whether the
+     *          vertex was created
+     */
+    private Vertex getOrCreateVertexHelper(String idcol, Object idval, String vertexType, Index <Vertex> index,
+            boolean[] created) {
+        if (root().deferredIndexes != null) {
+            return getOrCreateVertexDeferred(idcol, idval, vertexType, index, created);
+        }
+        long start = root().slowOps != null ? System.nanoTime() : 0L;
+        Vertex node = findVertex(idcol, idval, vertexType, index);
+        if (node == null) {
+            node = createVertexWithId(idcol, idval, vertexType, index);
+            if (created != null) {
+                created[0] = true;
+            }
+        }
+        if (root().slowOps != null) {
+            root().slowOps.record("getOrCreateVertex", start);
+        }
+        return node;
+    }
+
+    /**
+     * Version of {@link #getOrCreateVertexHelper(String, Object, String, Index)} used
+     * while index maintenance is deferred
+     * 
+     * Vertices created during the load are not in the indexes yet, so they are
+     * found through the in-memory table kept by the {@link DeferredIndexBuilder}.
+     */
+    private Vertex getOrCreateVertexDeferred(String idcol, Object idval, String vertexType, Index<Vertex> index,
+            boolean[] created) {
+        String scope = index != null ? "idx:" + index.getIndexName() : "type:" + vertexType;
+        synchronized (root().deferredIndexes.lockFor(scope, idcol, idval)) {
+            Vertex node = root().deferredIndexes.getUnique(scope, idcol, idval);
+            if (node != null) {
+                if (index != null) {
+                    indexes.recordLookup(index, true);
+                }
+                return node;
+            }
+            if (root().deferredIndexes.isCheckExisting()) {
+                node = findVertex(idcol, idval, vertexType, index);
+            }
+            if (node == null) {
+                node = createVertexWithId(idcol, idval, vertexType, index);
+                if (created != null) {
+                    created[0] = true;
+                }
+            }
+            root().deferredIndexes.putUnique(scope, idcol, idval, node);
+            return node;
+        }
+    }
+
+    /**
+     * Looks up a vertex by its id column in an index or key index
+     * 
+     * @param idcol the name of the column which contains the id
+     * @param idval the value of the id to look up in the index
+     * @param vertexType the type of vertex, used for key index lookups
+     * @param index the index containing the elements
+     * @return the vertex, or null if it was not found
+     */
+    protected Vertex findVertex(String idcol, Object idval, String vertexType, Index<Vertex> index) {
+        Vertex node = null;
+        boolean useKeyIndex = root().profile.getLookupStrategy() == EngineProfile.LookupStrategy.KEY_INDEX
+                && vertexKeyIndexes.contains(idcol);
+        if (this.supportsIndexes() && index != null && !useKeyIndex) {
+            Iterable<Vertex> results = root().lookupCache != null ? lookup(index, idcol, idval) : index.get(idcol, idval);
+            for (Vertex v : results) {
+                node = v;
+                break;
+            }
+            indexes.recordLookup(index, node != null);
+        } else if (this.supportsKeyIndexes()) {
+            Iterable<Vertex> results = root().lookupCache != null ? lookupVertices(idcol, idval) : kigraph.getVertices(idcol, idval);
+            for (Vertex v : results) {
+                if (v.getProperty(PROPERTY_TYPE).equals(vertexType)) {
+                    node = v;
+                    break;
+                }
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Creates a vertex with the given id and adds it to the index
+     */
+    private Vertex createVertexWithId(String idcol, Object idval, String vertexType, Index<Vertex> index) {
+        Vertex node = createNakedVertex(vertexType);
+        writeProperty(node, idcol, idval);
+        if (this.supportsIndexes() && index != null) {
+            indexPut(index, idcol, idval, node);
+        }
+        return node;
+    }
+
+
+
+    /**
+     * Converts an int (aka unix timestamp) to a java.util.Date object
+     * 
+     * This function is trivial, but useful when used in conjunction with
+     * {@link #propertyToDate(Object)}
+     * 
+     * @param i the time in seconds since the beginning of the epoch
+     * @return a java.util.Date object
+     */
+    private Date propertyToDate(int i) {
+        return new Date(i*1000L);
+    }
+
+    /**
+     * Converts a long to a java.util.Date object
+     * 
+     * This function is trivial, but useful when used in conjunction with
+     * {@link #propertyToDate(Object)}
+     * 
+     * @param l the time in milliseconds since the beginning of the epoch
+     * @return a java.util.Date object
+     */
+    private Date propertyToDate(long l) {
+        return new Date(l);
+    }
+
+    /**
+     * Converts a formatted date stringto a date object
+     * 
+     * @deprecated handles older cases
+     * @param s a string such as 2012-02-10T19:22:10+0000
+     * @return a java.util.Date object
+     */
+    private Date propertyToDate(String s) {
+        try {
+            return dateFormatter.parse(s);
+        } catch (ParseException e) {
+            log.error("Parse exception parsing \"{}\" into Date object", s, e);
+            return null;
+        }
+    }
+
+    /**
+     * Generic helper function for converting a property to a date.
      * 
      * This should do the proper detection of the format of the object
      * and make it into a java.util.Date object as required
      * 
-     * @param o
-     * @return a java.util.Date object
+     * @param o
+     * @return a java.util.Date object
+     */
+    public Date propertyToDate(Object o) {
+        if (o instanceof Integer)
+            return propertyToDate(((Integer) o).intValue());
+        else if (o instanceof Long)
+            return propertyToDate(((Long) o).longValue());
+        else if (o instanceof String)
+            return propertyToDate((String) o);
+        log.error("Unable to process object of class: {}", o.getClass());
+        return null;
+    }
+
+    /**
+     * Simple helper function that subtracts d2 from d1
+     * 
+     * @deprecated
+     * @param d1
+     * @param d2
+     * @return difference in days as a double
+     */
+    public double dateDifference(Date d1, Date d2) {
+        double diff = (d1.getTime() - d2.getTime())/1000/86400;
+        log.info("Date1: " + d1.getTime());
+        log.info("Date2: " + d2.getTime());
+        log.info("Difference: " + diff);
+        return diff;
+    }
+
+    
+    /**
+     * Starts a new transaction. As of right now this is only needed for Titan.
+     * 
+     * For Titan each thread gets its own transaction. Calling this again on
+     * the same thread, or on the returned transaction, before it is stopped
+     * opens a nested scope in that transaction. Only stopping the outermost
+     * scope commits. Titan has no savepoints, so rolling back a nested scope
+     * marks the whole transaction for rollback.
+     * 
+     * Other transactional engines already bind their transactions to the
+     * calling thread, so this graph is returned.
+     * 
+     * @return the graph to use for the transaction, or null if the graph
+     *         is not transactional
+     */
+    public BlueprintsBase startTransaction() {
+        if (!this.supportsTransactions()) {
+            log.warn("Attempt to start transaction on non-transactional graph: {}", this.dbengine);
+            return null;
+        }
+        if (!getDbengine().equals(Engine.TITAN)) {
+            return this;
+        }
+        if (parent != null) {
+            synchronized (this) {
+                if (closed) {
+                    log.error("Attempt to start transaction scope on a closed transaction");
+                    return null;
+                }
+                transactionDepth++;
+                return this;
+            }
+        }
+        BlueprintsBase tx = threadTransaction.get();
+        if (tx != null && !tx.closed) {
+            return tx.startTransaction();
+        }
+        tx = new BlueprintsBase(this, ((TitanGraph) tgraph).startTransaction());
+        threadTransaction.set(tx);
+        openTransactions.add(tx);
+        return tx;
+    }
+
+    /**
+     * Returns the transaction currently open on this thread
+     * 
+     * @return the open Titan transaction for this thread, otherwise this graph
+     */
+    public BlueprintsBase currentTransaction() {
+        if (parent != null) {
+            return this;
+        }
+        BlueprintsBase tx = threadTransaction.get();
+        return (tx != null && !tx.closed) ? tx : this;
+    }
+
+    /**
+     * Safety wrapper function for concluding a transaction
+     * 
+     * a logging warning is raised if the graph is not transactional
+     * 
+     * @throws IllegalStateException if a nested scope of this Titan transaction
+     *         was rolled back, in which case the transaction is rolled back
+     */
+    public void stopTransaction() {
+        if (!this.supportsTransactions()) {
+            log.warn("Attempt to stop transaction on non-transactional graph");
+            return;
+        }
+        if (parent == null) {
+            long start = root().slowOps != null ? System.nanoTime() : 0L;
+            boolean committed = false;
+            try {
+                tgraph.stopTransaction(TransactionalGraph.Conclusion.SUCCESS);
+                committed = true;
+            } finally {
+                if (root().slowOps != null) {
+                    root().slowOps.record("commit", start);
+                }
+                if (root().lookupCache != null) {
+                    root().lookupCache.settle();
+                }
+                if (!committed) {
+                    discardStaged();
+                    try {
+                        tgraph.stopTransaction(TransactionalGraph.Conclusion.FAILURE);
+                    } catch (RuntimeException e) {
+                        log.trace("Error aborting failed transaction", e);
+                    }
+                }
+            }
+            if (root().timeidx != null) {
+                root().timeidx.apply(timeChanges.get());
+            }
+            if (root().journal != null) {
+                root().journal.commit(journalBatches.get(), null, false);
+            }
+            if (root().events != null) {
+                root().events.commitStaged();
+            }
+            return;
+        }
+        synchronized (this) {
+            if (closed) {
+                log.warn("Attempt to stop a closed transaction");
+                return;
+            }
+            if (--transactionDepth > 0) {
+                return;
+            }
+            if (rollbackOnly) {
+                concludeTransaction(TransactionalGraph.Conclusion.FAILURE);
+                throw new IllegalStateException("Nested transaction scope was rolled back");
+            }
+            concludeTransaction(TransactionalGraph.Conclusion.SUCCESS);
+        }
+    }
+
+    /**
+     * Safety wrapper function for rolling back a transaction
+     * 
+     * a logging warning is raised if the graph is not transactional
+     */
+    public void rollbackTransaction() {
+        if (!this.supportsTransactions()) {
+            log.warn("Attempt to rollback transaction on non-transactional graph");
+            return;
+        }
+        if (parent == null) {
+            discardStaged();
+            try {
+                tgraph.stopTransaction(TransactionalGraph.Conclusion.FAILURE);
+            } finally {
+                if (root().lookupCache != null) {
+                    root().lookupCache.settle();
+                }
+            }
+            return;
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (--transactionDepth > 0) {
+                rollbackOnly = true;
+                return;
+            }
+            concludeTransaction(TransactionalGraph.Conclusion.FAILURE);
+        }
+    }
+
+    /**
+     * Drops the events, journal records and time index changes held for the
+     * current transaction on this thread
+     */
+    private void discardStaged() {
+        if (root().events != null) {
+            root().events.discardStaged();
+        }
+        journalBatches.get().clear();
+        timeChanges.get().clear();
+    }
+
+    /**
+     * Commits or aborts a Titan transaction and releases it from its parent
+     * 
+     * @param conclusion whether to commit or abort
+     */
+    private void concludeTransaction(TransactionalGraph.Conclusion conclusion) {
+        try {
+            long start = root().slowOps != null ? System.nanoTime() : 0L;
+            tgraph.stopTransaction(conclusion);
+            if (root().slowOps != null) {
+                root().slowOps.record("commit", start);
+            }
+            if (root().timeidx != null && conclusion == TransactionalGraph.Conclusion.SUCCESS) {
+                root().timeidx.apply(transactionTimeChanges);
+            }
+            if (root().journal != null && conclusion == TransactionalGraph.Conclusion.SUCCESS) {
+                root().journal.commit(transactionJournal, null, false);
+            }
+            if (root().events != null && conclusion == TransactionalGraph.Conclusion.SUCCESS) {
+                root().events.publishAll(transactionEvents);
+            }
+        } catch (RuntimeException e) {
+            if (conclusion == TransactionalGraph.Conclusion.SUCCESS) {
+                try {
+                    tgraph.stopTransaction(TransactionalGraph.Conclusion.FAILURE);
+                } catch (RuntimeException e2) {
+                    log.trace("Error aborting failed transaction", e2);
+                }
+            }
+            throw e;
+        } finally {
+            if (root().lookupCache != null) {
+                root().lookupCache.settle();
+            }
+            transactionEvents.clear();
+            transactionJournal.clear();
+            transactionTimeChanges.clear();
+            closed = true;
+            transactionDepth = 0;
+            parent.openTransactions.remove(this);
+            if (parent.threadTransaction.get() == this) {
+                parent.threadTransaction.remove();
+            }
+        }
+    }
+
+    /**
+     * Commits the outermost scope of a Titan transaction regardless of nesting
+     * 
+     * @return true if the transaction was committed, false if it was rolled back
+     */
+    private boolean forceCommit() {
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            if (rollbackOnly) {
+                concludeTransaction(TransactionalGraph.Conclusion.FAILURE);
+                return false;
+            }
+            concludeTransaction(TransactionalGraph.Conclusion.SUCCESS);
+            return true;
+        }
+    }
+
+    /**
+     * Commits every Titan transaction started from this graph in parallel
+     * 
+     * This is intended to be called at the end of a load phase once the
+     * threads that own the transactions are no longer writing to them.
+     * Transactions that fail to commit are rolled back and logged.
+     * 
+     * @return the number of transactions committed
+     */
+    public int commitAllTransactions() {
+        if (parent != null) {
+            return parent.commitAllTransactions();
+        }
+        List<BlueprintsBase> txs = new ArrayList<BlueprintsBase>(openTransactions);
+        if (txs.isEmpty()) {
+            return 0;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(commitParallelism, txs.size())));
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(txs.size());
+        for (final BlueprintsBase tx : txs) {
+            results.add(pool.submit(new Callable<Boolean>() {
+                public Boolean call() {
+                    return tx.forceCommit();
+                }
+            }));
+        }
+        int committed = 0;
+        try {
+            for (Future<Boolean> f : results) {
+                try {
+                    if (f.get()) {
+                        committed++;
+                    }
+                } catch (ExecutionException e) {
+                    log.error("Error committing transaction", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while committing transactions");
+        } finally {
+            pool.shutdown();
+        }
+        log.debug("Committed {} of {} transactions", committed, txs.size());
+        return committed;
+    }
+
+    /**
+     * Runs a unit of work in a transaction, retrying it if it conflicts with another writer
+     * 
+     * @param work the work to run
+     * @return the result of the work
+     * @see #runInTransaction(String, TransactionalWork)
+     */
+    public <T> T runInTransaction(TransactionalWork<T> work) {
+        return runInTransaction(DEFAULT_OPERATION, work);
+    }
+
+    /**
+     * Runs a unit of work in a transaction, retrying it if it conflicts with another writer
+     * 
+     * The transaction is rolled back and the work is run again from the start
+     * when the engine reports a locking or concurrent modification error, as
+     * decided by the {@link RetryPolicy}. Retries wait using exponential backoff
+     * with jitter. Attempts and conflicts are counted under the operation name
+     * in {@link #getConflictMetrics()}.
+     * 
+     * When called from inside another unit of work on the same thread the work
+     * joins the enclosing transaction and is not committed or retried separately.
+     * On graphs without transactions the work is simply run once.
+     * 
+     * @param operation name of the operation type, used for metrics
+     * @param work the work to run
+     * @return the result of the work
+     */
+    public <T> T runInTransaction(String operation, TransactionalWork<T> work) {
+        return runInTransaction(operation, work, null);
+    }
+
+    /**
+     * Runs a unit of work in a transaction that is rolled back if it is cancelled
+     * 
+     * The flag is checked before each attempt and again before committing, so
+     * work that is cancelled while running is rolled back even if it returns
+     * normally. On graphs without transactions its changes remain.
+     * 
+     * @param operation name of the operation type, used for metrics
+     * @param work the work to run
+     * @param cancelled set when the work should be abandoned, may be null
+     * @return the result of the work
+     * @throws CancellationException if the flag was set
+     */
+    <T> T runInTransaction(String operation, TransactionalWork<T> work, AtomicBoolean cancelled) {
+        BlueprintsBase root = parent != null ? parent : this;
+        int[] depth = root.workDepth.get();
+        if (depth[0] > 0 || !supportsTransactions()) {
+            checkCancelled(operation, cancelled);
+            T rv = work.execute(root.currentTransaction());
+            checkCancelled(operation, cancelled);
+            return rv;
+        }
+        RetryPolicy policy = root.retryPolicy;
+        ConflictMetrics metrics = root.conflictMetrics;
+        depth[0]++;
+        try {
+            for (int attempt = 0; ; attempt++) {
+                checkCancelled(operation, cancelled);
+                metrics.recordAttempt(operation);
+                BlueprintsBase tx = root.startTransaction();
+                boolean nested = tx.parent != null && tx.transactionDepth > 1;
+                try {
+                    T rv = work.execute(tx);
+                    checkCancelled(operation, cancelled);
+                    tx.stopTransaction();
+                    metrics.recordSuccess(operation);
+                    return rv;
+                } catch (RuntimeException e) {
+                    tx.rollbackQuietly();
+                    if (nested || e instanceof CancellationException || !policy.isRetryable(e)) {
+                        throw e;
+                    }
+                    if (attempt >= policy.getMaxRetries()) {
+                        metrics.recordExhausted(operation);
+                        log.warn("Giving up on {} after {} conflicts", operation, attempt + 1);
+                        throw e;
+                    }
+                    long backoff;
+                    synchronized (root.retryRandom) {
+                        backoff = policy.backoffMillis(attempt, root.retryRandom);
+                    }
+                    metrics.recordConflict(operation, backoff);
+                    log.debug("Conflict in {} on attempt {}, retrying in {}ms",
+                            new Object[] {operation, attempt + 1, backoff});
+                    if (backoff > 0) {
+                        try {
+                            Thread.sleep(backoff);
+                        } catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                            throw e;
+                        }
+                    }
+                }
+            }
+        } finally {
+            depth[0]--;
+        }
+    }
+
+    private static void checkCancelled(String operation, AtomicBoolean cancelled) {
+        if (cancelled != null && cancelled.get()) {
+            throw new CancellationException(operation + " was cancelled");
+        }
+    }
+
+    /**
+     * Transactional version of {@link #getOrCreateVertexHelper(String, Object, String, Index)}
+     * 
+     * The lookup and creation are retried together after a conflict, so a
+     * vertex created by a concurrent writer is found on the next attempt rather
+     * than duplicated. With Titan the vertex belongs to a committed transaction
+     * and should be looked up again by id before further use.
+     * 
+     * @param idcol the name of the column which contains the id
+     * @param idval the value of the id to look up in the index
+     * @param vertexType the type of vertex to create
+     * @param index the index containing the elements
+     * @return the existing vertex or a new vertex
+     */
+    public Vertex getOrCreateVertexWithRetry(final String idcol, final Object idval, final String vertexType,
+            final Index<Vertex> index) {
+        return runInTransaction("getOrCreateVertex", new TransactionalWork<Vertex>() {
+            public Vertex execute(BlueprintsBase graph) {
+                return graph.getOrCreateVertexHelper(idcol, idval, vertexType, index);
+            }
+        });
+    }
+
+    /**
+     * Rolls back the transaction, logging rather than throwing any errors
+     */
+    private void rollbackQuietly() {
+        if (parent != null && closed) {
+            return;
+        }
+        try {
+            rollbackTransaction();
+        } catch (RuntimeException e) {
+            log.trace("Error rolling back transaction", e);
+        }
+    }
+
+    /**
+     * Checks whether an exception was caused by conflicting concurrent writers
+     * 
+     * This is checked by name so that it works regardless of which engines
+     * are on the classpath.
+     * 
+     * @param t the exception to examine
+     * @return true if the exception or any of its causes is a locking conflict
+     */
+    static boolean isConflict(Throwable t) {
+        while (t != null) {
+            String name = t.getClass().getSimpleName();
+            if (name.equals("OConcurrentModificationException") || name.endsWith("LockingException")
+                    || name.equals("DeadlockDetectedException")) {
+                return true;
+            }
+            t = t.getCause();
+        }
+        return false;
+    }
+
+    /**
+     * @param retries number of times a conflicting unit of work is retried
+     */
+    public void setTransactionRetries(int retries) {
+        root().retryPolicy = root().retryPolicy.withMaxRetries(retries);
+    }
+
+    /**
+     * @param policy how conflicting units of work are retried
+     */
+    public void setRetryPolicy(RetryPolicy policy) {
+        root().retryPolicy = policy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return root().retryPolicy;
+    }
+
+    /**
+     * @return counters of attempts and conflicts for each operation type
+     */
+    public ConflictMetrics getConflictMetrics() {
+        return parent != null ? parent.conflictMetrics : conflictMetrics;
+    }
+
+    /**
+     * @param threads number of threads used by {@link #commitAllTransactions()}
+     */
+    public void setCommitParallelism(int threads) {
+        root().commitParallelism = threads;
+    }
+
+    /**
+     * Adds the object to the index only if it isn't already there
+     * 
+     * @param idcol the column of the index to reference
+     * @param idval the value of the index to search for
+     * @param object the object we want to make sure isn't there
+     * @param index the index to operate on
+     * @return false if the object is in the index already, true if not
+     */
+    protected <T extends Element> boolean addToIndexIfNotPresent(String idcol, Object idval, T object, Index<T> index) {
+        if (root().profile.getDedupeStrategy() == EngineProfile.DedupeStrategy.COUNT && index.count(idcol, idval) == 0) {
+            indexPut(index, idcol, idval, object);
+            return true;
+        }
+        for (T obj : index.get(idcol, idval)) {
+            if (obj.equals(object)) return false;
+        }
+        indexPut(index, idcol, idval, object);
+        return true;
+    }
+
+    /**
+     * Sets a property on an element and records the change
+     * 
+     * All of the setProperty methods go through here so that the journal
+     * and other listeners see every property written through this class.
+     * 
+     * @param elem Element to set the property
+     * @param propname name of the property
+     * @param value the value of the property
+     */
+    protected void writeProperty(Element elem, String propname, Object value) {
+        long start = root().slowOps != null ? System.nanoTime() : 0L;
+        if (root().journal != null) {
+            OperationJournal.checkValue(value);
+        }
+        if (root().lookupCache != null) {
+            Object old = elem.getProperty(propname);
+            if (old != null) {
+                root().lookupCache.invalidate(null, elementClass(elem), propname, old);
+            }
+            root().lookupCache.invalidate(null, elementClass(elem), propname, value);
+        }
+        elem.setProperty(propname, value);
+        if (root().journal != null) {
+            root().journal.setProperty(journalBatch(), elem, propname, value);
+        }
+        if (root().events != null) {
+            emit(GraphEvent.propertySet(elem instanceof Edge, elem.getId(), propname, value));
+        }
+        if (root().slowOps != null) {
+            root().slowOps.record("setProperty", start);
+        }
+    }
+
+    /**
+     * Adds an element to a manual index and records the change
+     * 
+     * @param index the index to add to
+     * @param key the key in the index
+     * @param value the value for the key
+     * @param elem the element to add
+     */
+    protected <T extends Element> void indexPut(Index<T> index, String key, Object value, T elem) {
+        if (root().journal != null) {
+            OperationJournal.checkValue(value);
+        }
+        if (root().deferredIndexes != null) {
+            root().deferredIndexes.add(index, key, value, elem);
+        } else {
+            index.put(key, value, elem);
+        }
+        if (root().lookupCache != null) {
+            root().lookupCache.invalidate(index.getIndexName(), index.getIndexClass(), key, value);
+        }
+        indexes.recordPut(index);
+        if (root().journal != null) {
+            root().journal.indexPut(journalBatch(), index, key, value, elem);
+        }
+    }
+
+    /**
+     * Sets a string property on an element, ensures it is not null first
+     * 
+     * NOTE: this automatically trims, and if a {@link StringInterner} is set
+     * repeated values share a single copy
+     * @param elem Element to set the property
+     * @param propname name of the property
+     * @param property the value of the property
+     */
+    public void setProperty(Element elem, String propname, String property) {
+        if (property != null) {
+            String value = property.trim();
+            if (value.length() > 0) {
+                writeProperty(elem, propname, root().interner != null ? root().interner.intern(value) : value);
+            }
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("{} = {}", propname, property);
+        }
+    }
+
+    /**
+     * Logs calls to the common write operations and commits that are slower than
+     * a threshold
+     * 
+     * @param slowOps the log to record to, or null to stop timing operations
      */
-    public Date propertyToDate(Object o) {
-        if (o instanceof Integer)
-            return propertyToDate(((Integer) o).intValue());
-        else if (o instanceof Long)
-            return propertyToDate(((Long) o).longValue());
-        else if (o instanceof String)
-            return propertyToDate((String) o);
-        log.error("Unable to process object of class: {}", o.getClass());
-        return null;
+    public void setSlowOperationLog(SlowOperationLog slowOps) {
+        root().slowOps = slowOps;
+    }
+
+    public SlowOperationLog getSlowOperationLog() {
+        return root().slowOps;
     }
 
     /**
-     * Simple helper function that subtracts d2 from d1
+     * Caches the results of {@link #lookup(Index, String, Object)},
+     * {@link #lookupVertices(String, Object)} and the lookups done by
+     * {@link #getOrCreateVertexHelper(String, Object, String, Index)}
      * 
-     * @deprecated
-     * @param d1
-     * @param d2
-     * @return difference in days as a double
+     * @param maxEntries number of lookups to keep
+     * @param ttlMillis how long a result is kept, or 0 for no limit
      */
-    public double dateDifference(Date d1, Date d2) {
-        double diff = (d1.getTime() - d2.getTime())/1000/86400;
-        log.info("Date1: " + d1.getTime());
-        log.info("Date2: " + d2.getTime());
-        log.info("Difference: " + diff);
-        return diff;
+    public void enableLookupCache(int maxEntries, long ttlMillis) {
+        setLookupCache(new LookupCache(maxEntries, ttlMillis, this.supportsTransactions()));
     }
 
-    
     /**
-     * Starts a new transaction. As of right now this is only needed for Titan.
+     * Uses a lookup cache, which may be shared with other instances opened on
+     * the same graph
      * 
-     * It is automatically called after stopping or rolling back a transaction
+     * @param cache the cache to use, or null to stop caching
      */
-    public BlueprintsBase startTransaction() {
-        if (this.supportsTransactions()) {
-            if (getDbengine().equals(Engine.TITAN)) {
-                return new BlueprintsBase(((TitanGraph) tgraph).startTransaction());
-            } else {
-                return this;
-            }
-        } else {
-            log.warn("Attempt to start transaction on non-transactional graph: {}", this.dbengine);
-        }
-        return null;
+    public void setLookupCache(LookupCache cache) {
+        root().lookupCache = cache;
     }
-    
+
+    public LookupCache getLookupCache() {
+        return root().lookupCache;
+    }
+
     /**
-     * Safety wrapper function for concluding a transaction
+     * Sets the file the hot set is read from by {@link #warmUp(ProgressListener, String...)}
+     * and written to by {@link #shutdown()}
      * 
-     * a logging warning is raised if the graph is not transactional
+     * @param f the hot set file, or null to not keep a hot set
+     * @param size the maximum number of lookups saved
      */
-    public void stopTransaction() {
-        if (this.supportsTransactions()) {
-            tgraph.stopTransaction(TransactionalGraph.Conclusion.SUCCESS);
-        } else {
-            log.warn("Attempt to stop transaction on non-transactional graph");
-        }
+    public void setHotSetFile(File f, int size) {
+        this.hotSetFile = f;
+        this.hotSetSize = size;
+    }
+
+    public File getHotSetFile() {
+        return hotSetFile;
     }
 
     /**
-     * Safety wrapper function for rolling back a transaction
+     * Warms up the store, type index and lookups after the graph is opened
      * 
-     * a logging warning is raised if the graph is not transactional
+     * See {@link GraphWarmer} for what each phase does. The types given here
+     * are saved in the hot set along with those already in it, so later
+     * warm-ups read them without being asked.
+     * 
+     * @param progress told about the progress of each phase, may be null
+     * @param vertexTypes vertex types to read from the type index
+     * @return what the warm-up did and how long it took
      */
-    public void rollbackTransaction() {
-        if (this.supportsTransactions()) {
-            tgraph.stopTransaction(TransactionalGraph.Conclusion.FAILURE);
-        } else {
-            log.warn("Attempt to rollback transaction on non-transactional graph");
-        }
+    public GraphWarmer.Report warmUp(ProgressListener progress, String... vertexTypes) {
+        warmTypes.addAll(Arrays.asList(vertexTypes));
+        GraphWarmer warmer = new GraphWarmer(this);
+        GraphWarmer.Report report = warmer.warmUp(storeDirectory(), hotSetFile,
+                new ArrayList<String>(warmTypes), progress);
+        warmTypes.addAll(warmer.getWarmedTypes());
+        return report;
     }
 
     /**
-     * Adds the object to the index only if it isn't already there
-     * 
-     * @param idcol the column of the index to reference
-     * @param idval the value of the index to search for
-     * @param object the object we want to make sure isn't there
-     * @param index the index to operate on
-     * @return false if the object is in the index already, true if not
+     * @return the directory holding an embedded store, or null if there is none
      */
-    protected <T extends Element> boolean addToIndexIfNotPresent(String idcol, Object idval, T object, Index<T> index) {
-        for (T obj : index.get(idcol, idval)) {
-            if (obj.equals(object)) return false;
+    private File storeDirectory() {
+        if (dburl == null || dbengine.equals(Engine.REXSTER) || dbengine.equals(Engine.NEO4JBATCH)) {
+            return null;
         }
-        index.put(idcol, idval, object);
-        return true;
+        String path = dburl;
+        if (dbengine.equals(Engine.ORIENTDB)) {
+            if (!dburl.startsWith("local:")) {
+                return null;
+            }
+            path = dburl.substring("local:".length());
+        }
+        File dir = new File(path);
+        return dir.isDirectory() ? dir : null;
     }
 
     /**
-     * Sets a string property on an element, ensures it is not null first
+     * Shares repeated string property values through an interning table
      * 
-     * NOTE: this automatically trims 
-     * @param elem Element to set the property
-     * @param propname name of the property
-     * @param property the value of the property
+     * @param interner the table to use, or null to stop interning
      */
-    public void setProperty(Element elem, String propname, String property) {
-        if (property != null && !property.trim().equals("")) elem.setProperty(propname, property.trim());
-        log.trace("{} = {}", propname, property);
+    public void setStringInterner(StringInterner interner) {
+        root().interner = interner;
+    }
+
+    public StringInterner getStringInterner() {
+        return root().interner;
     }
 
     /**
@@ -586,12 +2188,186 @@ public class BlueprintsBase implements Shutdownable {
      */
     public void setProperty(Element elem, String propname, Date propdate) {
         if (propdate != null) {
-            elem.setProperty(propname, propdate.getTime()/1000L);
-        } else {
+            writeTime(elem, propname, propdate.getTime()/1000L);
+        } else if (log.isTraceEnabled()) {
             log.trace("{} = null (not setting property)", propname);
         }
     }
 
+    /**
+     * Copies every property of one element to another as stored, including
+     * the creation time, keeping the time index up to date
+     * 
+     * @param from the element to copy from
+     * @param to the element to copy to
+     */
+    void copyProperties(Element from, Element to) {
+        for (String key : from.getPropertyKeys()) {
+            Object value = from.getProperty(key);
+            if (root().timeidx != null && root().timeidx.isIndexed(key) && value instanceof Number) {
+                writeTime(to, key, ((Number) value).longValue());
+            } else {
+                writeProperty(to, key, value);
+            }
+        }
+    }
+
+    /**
+     * Writes a date property, stored in seconds, keeping the time index up to date
+     */
+    private void writeTime(Element elem, String propname, long seconds) {
+        boolean indexed = root().timeidx != null && root().timeidx.isIndexed(propname);
+        if (indexed) {
+            removeFromTimeIndex(elem, propname);
+        }
+        writeProperty(elem, propname, seconds);
+        if (indexed) {
+            root().timeidx.add(timeChanges(), elementClass(elem), timeIndexGroup(elem), propname, seconds, elem.getId());
+        }
+    }
+
+    /**
+     * Gets or creates a vertex and merges a set of properties into it
+     * 
+     * The vertex is looked up by key index or by scanning; see
+     * {@link #upsertVertex(String, String, Object, Map, MergePolicy, Index)} to
+     * use a manual index.
+     * 
+     * @param vertexType the type of vertex
+     * @param idcol the name of the column which contains the id
+     * @param idval the value of the id
+     * @param props the properties to merge into the vertex
+     * @param policy how to merge the properties with existing values
+     * @return the vertex
+     */
+    public Vertex upsertVertex(String vertexType, String idcol, Object idval,
+            Map<String, Object> props, MergePolicy policy) {
+        return upsertVertex(vertexType, idcol, idval, props, policy, null);
+    }
+
+    /**
+     * Gets or creates a vertex and merges a set of properties into it
+     * 
+     * The requested values are normalized the same way as the setProperty
+     * methods: strings are trimmed and empty strings ignored, dates are stored
+     * as seconds, and null values are ignored. Each value is passed through the
+     * merge policy and only written if the result differs from the value
+     * already on the vertex, so upserting an unchanged row writes nothing.
+     * 
+     * @param vertexType the type of vertex
+     * @param idcol the name of the column which contains the id
+     * @param idval the value of the id
+     * @param props the properties to merge into the vertex
+     * @param policy how to merge the properties with existing values
+     * @param index the index containing the vertices, may be null
+     * @return the vertex
+     */
+    public Vertex upsertVertex(String vertexType, String idcol, Object idval,
+            Map<String, Object> props, MergePolicy policy, Index<Vertex> index) {
+        Vertex v = getOrCreateVertexHelper(idcol, idval, vertexType, index);
+        mergeProperties(v, props, policy);
+        return v;
+    }
+
+    /**
+     * Upserts a batch of rows, committing periodically on transactional graphs
+     * 
+     * Each row must contain the id column. Commits happen after every
+     * {@link EngineProfile#getCommitBatchSize()} rows and at the end.
+     * 
+     * @param vertexType the type of vertex
+     * @param idcol the name of the column which contains the id
+     * @param rows the rows to upsert
+     * @param policy how to merge the properties with existing values
+     * @param index the index containing the vertices, may be null
+     * @return the number of rows that created a vertex or changed a property
+     */
+    public int upsertVertices(String vertexType, String idcol, Collection<Map<String, Object>> rows,
+            MergePolicy policy, Index<Vertex> index) {
+        int changed = 0;
+        int sinceCommit = 0;
+        boolean commit = this.supportsTransactions();
+        boolean[] created = new boolean[1];
+        for (Map<String, Object> row : rows) {
+            Object idval = row.get(idcol);
+            if (idval == null) {
+                log.warn("Row without {} skipped: {}", idcol, row);
+                continue;
+            }
+            created[0] = false;
+            Vertex v = getOrCreateVertexHelper(idcol, idval, vertexType, index, created);
+            if (mergeProperties(v, row, policy) > 0 || created[0]) {
+                changed++;
+            }
+            if (commit && ++sinceCommit >= root().profile.getCommitBatchSize()) {
+                stopTransaction();
+                sinceCommit = 0;
+            }
+        }
+        if (commit && sinceCommit > 0) {
+            stopTransaction();
+        }
+        return changed;
+    }
+
+    /**
+     * Converts a requested property value to the form it is stored in
+     * 
+     * @return the stored form, or null if the value should not be written
+     */
+    private Object normalize(Object value) {
+        if (value instanceof String) {
+            String trimmed = ((String) value).trim();
+            if (trimmed.length() == 0) {
+                return null;
+            }
+            return root().interner != null ? root().interner.intern(trimmed) : trimmed;
+        } else if (value instanceof Date) {
+            return ((Date) value).getTime()/1000L;
+        }
+        return value;
+    }
+
+    private Map<String, Object> normalize(Map<String, Object> props) {
+        Map<String, Object> rv = new HashMap<String, Object>(props.size() * 2);
+        for (Entry<String, Object> e : props.entrySet()) {
+            Object value = normalize(e.getValue());
+            if (value != null) {
+                rv.put(e.getKey(), value);
+            }
+        }
+        return rv;
+    }
+
+    /**
+     * Merges properties into an element, writing only those that change
+     * 
+     * @return the number of properties written
+     */
+    private int mergeProperties(Element elem, Map<String, Object> props, MergePolicy policy) {
+        int written = 0;
+        for (Entry<String, Object> e : props.entrySet()) {
+            String key = e.getKey();
+            boolean time = e.getValue() instanceof Date;
+            Object value = normalize(e.getValue());
+            if (value == null) {
+                continue;
+            }
+            Object existing = elem.getProperty(key);
+            Object merged = policy.merge(key, existing, value);
+            if (merged == null || merged.equals(existing)) {
+                continue;
+            }
+            if (time && merged instanceof Long) {
+                writeTime(elem, key, (Long) merged);
+            } else {
+                writeProperty(elem, key, merged);
+            }
+            written++;
+        }
+        return written;
+    }
+
     /**
      * Sets an integer property of an element
      * 
@@ -600,8 +2376,10 @@ public class BlueprintsBase implements Shutdownable {
      * @param propvalue int value to set
      */
     public void setProperty(Element elem, String propname, int propvalue) {
-        elem.setProperty(propname, propvalue);
-        log.trace("{} = {}", propname, propvalue);
+        writeProperty(elem, propname, propvalue);
+        if (log.isTraceEnabled()) {
+            log.trace("{} = {}", propname, propvalue);
+        }
     }
 
     /**
@@ -612,8 +2390,10 @@ public class BlueprintsBase implements Shutdownable {
      * @param propvalue long value to set
      */
     public void setProperty(Element elem, String propname, long propvalue) {
-        elem.setProperty(propname, propvalue);
-        log.trace("{} = {}", propname, propvalue);
+        writeProperty(elem, propname, propvalue);
+        if (log.isTraceEnabled()) {
+            log.trace("{} = {}", propname, propvalue);
+        }
     }	
 
     /**
@@ -624,8 +2404,10 @@ public class BlueprintsBase implements Shutdownable {
      * @param propvalue double value to set
      */
     public void setProperty(Element elem, String propname, double propvalue) {
-        elem.setProperty(propname, propvalue);
-        log.trace("{} = {}", propname, propvalue);
+        writeProperty(elem, propname, propvalue);
+        if (log.isTraceEnabled()) {
+            log.trace("{} = {}", propname, propvalue);
+        }
     }
 
     /**
@@ -636,8 +2418,10 @@ public class BlueprintsBase implements Shutdownable {
      * @param propvalue boolean value to set
      */
     public void setProperty(Element elem, String propname, boolean propvalue) {
-        elem.setProperty(propname, propvalue);
-        log.trace("{} = {}", propname, propvalue);
+        writeProperty(elem, propname, propvalue);
+        if (log.isTraceEnabled()) {
+            log.trace("{} = {}", propname, propvalue);
+        }
     }
 
     /**
@@ -653,8 +2437,10 @@ public class BlueprintsBase implements Shutdownable {
      */
     public void setProperty(Element elem, String propname, Object propvalue) {
         if (propvalue != null) {
-            elem.setProperty(propname, propvalue);
-            log.trace("{} = {}", propname, propvalue);
+            writeProperty(elem, propname, propvalue);
+            if (log.isTraceEnabled()) {
+                log.trace("{} = {}", propname, propvalue);
+            }
         }
     }
 
@@ -672,8 +2458,10 @@ public class BlueprintsBase implements Shutdownable {
      */
     protected <T extends Element> boolean setPropertyIfNull(T elem, String key, Object value) {
         if (elem.getProperty(key) != null) return false;
-        elem.setProperty(key, value);
-        log.trace("Setting key: {} = {}", key, value.toString());
+        writeProperty(elem, key, value);
+        if (log.isTraceEnabled()) {
+            log.trace("Setting key: {} = {}", key, value);
+        }
         return true;
     }
 
@@ -681,11 +2469,273 @@ public class BlueprintsBase implements Shutdownable {
      * @see com.ibm.research.govsci.graph.Shutdownable#shutdown()
      */
     public void shutdown() {
+        if (parent != null) {
+            log.warn("shutdown called on a transaction - ignored");
+            return;
+        }
         log.info("Shutting down graph database engine");
+        if (hotSetFile != null) {
+            new GraphWarmer(this).saveHotSet(hotSetFile, new ArrayList<String>(warmTypes), hotSetSize);
+        }
         kigraph.shutdown();
+        if (root().journal != null) {
+            root().journal.shutdown();
+        }
+        if (root().events != null) {
+            root().events.shutdown();
+        }
         log.trace("Graph shutdown complete");
     }
     
+    /**
+     * Starts a bulk load during which index maintenance is deferred
+     * 
+     * See {@link #beginDeferredIndexing(boolean, String...)}. Lookups still
+     * check the indexes for vertices that existed before the load.
+     * 
+     * @param keyIndexes vertex key indexes to drop for the load and rebuild afterwards
+     */
+    public void beginDeferredIndexing(String... keyIndexes) {
+        beginDeferredIndexing(true, keyIndexes);
+    }
+
+    /**
+     * Starts a bulk load during which index maintenance is deferred
+     * 
+     * Manual index entries are queued instead of written, and vertices created by
+     * {@link #getOrCreateVertexHelper(String, Object, String, Index)} are kept in
+     * memory so they are not duplicated. The named vertex key indexes are dropped
+     * and recreated by {@link #finishDeferredIndexing()}. Lookups on a dropped key
+     * index scan the graph, so pass <code>checkExisting</code> as false when loading
+     * into an empty graph. Titan cannot drop key indexes, so they are left alone.
+     * 
+     * Call this before starting any transactions, and do not read the indexes
+     * until the load is finished.
+     * 
+     * @param checkExisting whether lookups should consult the indexes for vertices
+     *          that existed before the load
+     * @param keyIndexes vertex key indexes to drop for the load and rebuild afterwards
+     */
+    public void beginDeferredIndexing(boolean checkExisting, String... keyIndexes) {
+        if (parent != null) {
+            log.error("beginDeferredIndexing called on a transaction - ignored");
+            return;
+        }
+        if (root().deferredIndexes != null) {
+            log.warn("Index maintenance is already deferred");
+            return;
+        }
+        if (keyIndexes.length > 0) {
+            if (!this.supportsKeyIndexes() || this.dbengine.equals(Engine.TITAN)) {
+                log.warn("engine {} cannot drop key indexes, they will be maintained during the load", this.dbengine);
+            } else {
+                Set<String> indexed = kigraph.getIndexedKeys(Vertex.class);
+                for (String key : keyIndexes) {
+                    if (indexed.contains(key)) {
+                        dropKeyIndex(key, Vertex.class);
+                        deferredKeys.add(key);
+                    }
+                }
+            }
+        }
+        root().deferredIndexes = new DeferredIndexBuilder(checkExisting);
+    }
+
+    /**
+     * Ends a bulk load started by {@link #beginDeferredIndexing(boolean, String...)}
+     * 
+     * Any open transaction is committed, then the queued index entries are written
+     * in parallel where the engine allows it and the dropped key indexes are
+     * recreated.
+     * 
+     * @return the number of manual index entries written
+     */
+    public long finishDeferredIndexing() {
+        if (parent != null) {
+            log.error("finishDeferredIndexing called on a transaction - ignored");
+            return 0;
+        }
+        if (root().deferredIndexes == null) {
+            log.warn("finishDeferredIndexing called without beginDeferredIndexing");
+            return 0;
+        }
+        DeferredIndexBuilder builder = root().deferredIndexes;
+        root().deferredIndexes = null;
+        if (this.supportsTransactions()) {
+            stopTransaction();
+        }
+
+        long start = System.currentTimeMillis();
+        long written;
+        if (this.dbengine.equals(Engine.NEO4J)) {
+            written = builder.build(root().indexBuildParallelism, true, tgraph, root().profile.getCommitBatchSize());
+        } else if (this.dbengine.equals(Engine.TINKERGRAPH) || this.dbengine.equals(Engine.REXSTER)) {
+            written = builder.build(root().indexBuildParallelism, false, null, root().profile.getCommitBatchSize());
+        } else {
+            written = builder.build(1, false, tgraph, root().profile.getCommitBatchSize());
+        }
+        for (String key : deferredKeys) {
+            createKeyIndex(key, Vertex.class);
+        }
+        deferredKeys.clear();
+        if (root().lookupCache != null) {
+            root().lookupCache.clear();
+        }
+        if (builder.getFailures() > 0) {
+            log.error("{} index entries could not be written", builder.getFailures());
+        }
+        log.info("Wrote {} deferred index entries in {}ms", written, System.currentTimeMillis() - start);
+        return written;
+    }
+
+    /**
+     * @return true if index maintenance is currently deferred
+     */
+    public boolean isDeferringIndexes() {
+        return root().deferredIndexes != null;
+    }
+
+    /**
+     * @param threads number of threads used by {@link #finishDeferredIndexing()}
+     */
+    public void setIndexBuildParallelism(int threads) {
+        root().indexBuildParallelism = threads;
+    }
+
+    /**
+     * Records every mutation made through this class in a journal
+     * 
+     * On transactional graphs the records of a transaction are only written
+     * when it commits, and are dropped if it rolls back. The journal is shut
+     * down along with this graph.
+     * 
+     * @param journal the journal to write to, or null to stop journaling
+     */
+    public void setJournal(OperationJournal journal) {
+        root().journal = journal;
+    }
+
+    public OperationJournal getJournal() {
+        return root().journal;
+    }
+
+    /**
+     * @return the batch holding journal records of the current transaction,
+     *          or null if records should be written immediately
+     */
+    private OperationJournal.Batch journalBatch() {
+        if (parent != null) {
+            return transactionJournal;
+        }
+        return this.supportsTransactions() ? journalBatches.get() : null;
+    }
+
+    /**
+     * Attaches a sink that receives an event for every committed change
+     * 
+     * Vertex and edge creation, property writes and edge removal made through
+     * this class are delivered in commit order once the transaction that made
+     * them commits. On non-transactional graphs events are delivered right
+     * away. Until the first sink is attached no events are created at all.
+     * 
+     * @param sink the sink to attach
+     */
+    public void addEventSink(GraphEventSink sink) {
+        if (parent != null) {
+            parent.addEventSink(sink);
+            return;
+        }
+        if (root().events == null) {
+            root().events = new GraphEventStream();
+        }
+        root().events.addSink(sink);
+    }
+
+    /**
+     * @param sink the sink to detach
+     */
+    public void removeEventSink(GraphEventSink sink) {
+        if (root().events != null) {
+            root().events.removeSink(sink);
+        }
+    }
+
+    /**
+     * @return the change event stream, or null if no sink was ever attached
+     */
+    public GraphEventStream getEventStream() {
+        return root().events;
+    }
+
+    /**
+     * Sends an event now, or holds it until the transaction commits
+     * 
+     * @param event the event
+     */
+    private void emit(GraphEvent event) {
+        if (!this.supportsTransactions()) {
+            root().events.publish(event);
+        } else if (parent != null) {
+            transactionEvents.add(event);
+        } else {
+            root().events.stage(event);
+        }
+    }
+
+    /**
+     * Commits the current transaction and durably records a checkpoint in the journal
+     * 
+     * After a crash {@link OperationJournal#lastCheckpoint(java.io.File)} returns
+     * the marker of the last checkpoint, so a load can skip the input it has
+     * already processed.
+     * 
+     * @param marker description of how far the load has progressed, such as a line number
+     */
+    public void checkpoint(String marker) {
+        if (parent != null) {
+            forceCommit();
+        } else if (this.supportsTransactions()) {
+            stopTransaction();
+        }
+        if (root().journal != null) {
+            root().journal.checkpoint(marker, true);
+        } else {
+            log.warn("checkpoint called without a journal");
+        }
+    }
+
+    /**
+     * Creates a writer that sends buffered mutations to a Rexster server in batches
+     * 
+     * This is only valid when the engine is rexster. The writer bypasses
+     * RexsterGraph and should be shut down before this graph.
+     * 
+     * @param batchSize number of operations sent in each request
+     * @param maxInFlight maximum number of requests outstanding at once
+     * @return a new batch writer, or null if the engine is not rexster
+     */
+    public RexsterBatchWriter createRexsterBatchWriter(int batchSize, int maxInFlight) {
+        if (!Engine.REXSTER.equals(dbengine)) {
+            log.error("createRexsterBatchWriter - engine {} is not rexster", dbengine);
+            return null;
+        }
+        return new RexsterBatchWriter(dburl, batchSize, maxInFlight);
+    }
+
+    /**
+     * Creates an executor that runs units of work against this graph concurrently
+     *
+     * Each unit of work runs in its own transaction on its own thread, virtual
+     * threads when the JVM has them. The number of units using the graph at
+     * once is limited according to the engine. The executor should be shut
+     * down before this graph.
+     *
+     * @return a new task executor
+     */
+    public GraphTaskExecutor createTaskExecutor() {
+        return new GraphTaskExecutor(this);
+    }
+
     /**
      * Boolean if this graph database supports transactions
      * 
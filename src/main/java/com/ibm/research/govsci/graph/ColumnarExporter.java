@@ -0,0 +1,523 @@
+/**
+ * ColumnarExporter.java
+ *
+ * Exports vertex properties as compressed column files.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+
+package com.ibm.research.govsci.graph;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tinkerpop.blueprints.Vertex;
+
+/**
+ * Exports selected properties of all vertices of a type in a column
+ * oriented format for analysis tools.
+ *
+ * One thread walks the vertices of the type and hands them out in batches
+ * through a bounded queue to the partition threads, which read the
+ * properties and each write their own file, <code>part-NNNNN.gcol</code>.
+ * Every partition keeps at most one row group of values in memory, in
+ * primitive arrays, so memory use does not depend on the number of
+ * vertices. The files can be read back with {@link ColumnarReader}.
+ *
+ * A file starts with the magic bytes <code>GSGCOL1\n</code>, the number of
+ * columns and the name and {@link ColumnType} of each. Row groups follow,
+ * each being the row count and then, for each column, the length of a
+ * deflated block holding a null bitmap followed by the values: eight byte
+ * longs for {@link ColumnType#LONG} and {@link ColumnType#DATE}, eight byte
+ * doubles, one byte booleans and length prefixed UTF-8 strings. A row count
+ * of zero ends the file. The first column is always <code>_id</code>, the
+ * vertex id as a string.
+ *
+ * Date columns are read the way {@link BlueprintsBase} stores dates: an
+ * Integer or Long is seconds since the epoch, and a string is parsed with
+ * the graph's date format. Either way the date is exported as milliseconds
+ * since the epoch. Values that cannot be converted to the type of their
+ * column are exported as null.
+ *
+ * OrientDB and Titan elements are bound to the thread that read them, so
+ * for those engines the vertices are read and written by the calling thread
+ * into a single partition.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class ColumnarExporter {
+    private static final Logger log = LoggerFactory.getLogger(ColumnarExporter.class);
+    static final byte[] MAGIC = new byte[] {'G', 'S', 'G', 'C', 'O', 'L', '1', '\n'};
+    static final String ID_COLUMN = "_id";
+    public static final int DEFAULT_ROW_GROUP_SIZE = 65536;
+    private static final int BATCH_SIZE = 1000;
+    private static final List<Vertex> END = Collections.emptyList();
+
+    /**
+     * Types a column can be exported as
+     */
+    public enum ColumnType {
+        LONG, DOUBLE, BOOLEAN, STRING, DATE
+    }
+
+    private final BlueprintsBase graph;
+    private final List<String> names = new ArrayList<String>();
+    private final List<ColumnType> types = new ArrayList<ColumnType>();
+    private int partitions = Runtime.getRuntime().availableProcessors();
+    private int rowGroupSize = DEFAULT_ROW_GROUP_SIZE;
+    private ProgressListener progress = null;
+    private final Object dateLock = new Object();
+
+    public ColumnarExporter(BlueprintsBase graph) {
+        this.graph = graph;
+        names.add(ID_COLUMN);
+        types.add(ColumnType.STRING);
+    }
+
+    /**
+     * Adds a property to export
+     *
+     * @param property the name of the property
+     * @param type the type to export it as
+     */
+    public void addColumn(String property, ColumnType type) {
+        names.add(property);
+        types.add(type);
+    }
+
+    /**
+     * @param partitions number of files written in parallel
+     */
+    public void setPartitions(int partitions) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("partitions must be positive");
+        }
+        this.partitions = partitions;
+    }
+
+    /**
+     * @param rows rows buffered by each partition before they are written
+     */
+    public void setRowGroupSize(int rows) {
+        if (rows < 1) {
+            throw new IllegalArgumentException("rows must be positive");
+        }
+        this.rowGroupSize = rows;
+    }
+
+    /**
+     * @param progress told about the number of rows read, may be null
+     */
+    public void setProgressListener(ProgressListener progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Exports every vertex of a type
+     *
+     * @param vertexType the type of vertex to export
+     * @param dir the directory to write the partition files to
+     * @return the number of rows written, or -1 if the export failed
+     */
+    public long export(String vertexType, File dir) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            log.error("Unable to create export directory {}", dir);
+            return -1;
+        }
+        if (Engine.ORIENTDB.equals(graph.getDbengine()) || Engine.TITAN.equals(graph.getDbengine())) {
+            return exportOnCallingThread(vertexType, dir);
+        }
+        int nparts = partitions;
+        long start = System.currentTimeMillis();
+        final BlockingQueue<List<Vertex>> queue = new ArrayBlockingQueue<List<Vertex>>(nparts * 2);
+        final AtomicLong rows = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(nparts);
+        List<Future<Long>> futures = new ArrayList<Future<Long>>();
+        boolean failed = false;
+        try {
+            for (int i = 0; i < nparts; i++) {
+                final File f = new File(dir, String.format("part-%05d.gcol", i));
+                futures.add(pool.submit(new Callable<Long>() {
+                    public Long call() throws IOException, InterruptedException {
+                        return writePartition(f, queue, rows);
+                    }
+                }));
+            }
+            List<Vertex> batch = new ArrayList<Vertex>(BATCH_SIZE);
+            for (Vertex v : graph.getVerticesByType(vertexType)) {
+                batch.add(v);
+                if (batch.size() == BATCH_SIZE) {
+                    if (!offer(queue, batch, futures)) {
+                        failed = true;
+                        break;
+                    }
+                    batch = new ArrayList<Vertex>(BATCH_SIZE);
+                }
+            }
+            if (!failed && !batch.isEmpty()) {
+                failed = !offer(queue, batch, futures);
+            }
+            for (int i = 0; i < nparts && !failed; i++) {
+                failed = !offer(queue, END, futures);
+            }
+            if (failed) {
+                // the other partitions would wait for batches that never come
+                for (Future<Long> f : futures) {
+                    f.cancel(true);
+                }
+            }
+            long written = 0;
+            for (Future<Long> f : futures) {
+                try {
+                    written += f.get();
+                } catch (ExecutionException e) {
+                    log.error("Error writing export partition", e.getCause());
+                    failed = true;
+                } catch (CancellationException e) {
+                    failed = true;
+                }
+            }
+            if (failed) {
+                return -1;
+            }
+            log.info("Exported {} {} vertices in {}ms",
+                    new Object[] {written, vertexType, System.currentTimeMillis() - start});
+            return written;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted exporting {}", vertexType);
+            return -1;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Exports into a single partition, reading each vertex on this thread
+     */
+    private long exportOnCallingThread(String vertexType, File dir) {
+        long start = System.currentTimeMillis();
+        File f = new File(dir, String.format("part-%05d.gcol", 0));
+        PartitionWriter writer = null;
+        try {
+            writer = new PartitionWriter(f);
+            long rows = 0;
+            for (Vertex v : graph.getVerticesByType(vertexType)) {
+                writer.add(v);
+                if (++rows % BATCH_SIZE == 0 && progress != null) {
+                    progress.progress("export", rows, -1);
+                }
+            }
+            long written = writer.finish();
+            writer = null;
+            if (progress != null) {
+                progress.progress("export", rows, -1);
+            }
+            log.info("Exported {} {} vertices in {}ms",
+                    new Object[] {written, vertexType, System.currentTimeMillis() - start});
+            return written;
+        } catch (IOException e) {
+            log.error("Error writing export partition {}", f, e);
+            return -1;
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    /**
+     * Hands a batch to the partitions, giving up if one of them has failed
+     */
+    private boolean offer(BlockingQueue<List<Vertex>> queue, List<Vertex> batch, List<Future<Long>> futures)
+            throws InterruptedException {
+        while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+            for (Future<Long> f : futures) {
+                if (f.isDone()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Converts a property to a date
+     *
+     * Integers and longs are epoch seconds, as {@link BlueprintsBase} stores
+     * dates. Strings are parsed by the graph, whose date format is not thread
+     * safe, so the partitions take turns.
+     */
+    private Date toDate(Object value) {
+        if (value instanceof Integer || value instanceof Long) {
+            return new Date(((Number) value).longValue() * 1000L);
+        } else if (value instanceof Date) {
+            return (Date) value;
+        } else if (value instanceof String) {
+            synchronized (dateLock) {
+                return graph.propertyToDate(value);
+            }
+        }
+        return null;
+    }
+
+    private long writePartition(File f, BlockingQueue<List<Vertex>> queue, AtomicLong rows)
+            throws IOException, InterruptedException {
+        PartitionWriter writer = new PartitionWriter(f);
+        try {
+            while (true) {
+                List<Vertex> batch = queue.take();
+                if (batch == END) {
+                    break;
+                }
+                for (Vertex v : batch) {
+                    writer.add(v);
+                }
+                long total = rows.addAndGet(batch.size());
+                if (progress != null) {
+                    progress.progress("export", total, -1);
+                }
+            }
+            long written = writer.finish();
+            writer = null;
+            return written;
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    /**
+     * Writes the rows of one partition file
+     */
+    private class PartitionWriter {
+        private final File file;
+        private final DataOutputStream out;
+        private final RowGroup group = new RowGroup();
+        private long written = 0;
+
+        PartitionWriter(File file) throws IOException {
+            this.file = file;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+            try {
+                out.write(MAGIC);
+                out.writeInt(names.size());
+                for (int c = 0; c < names.size(); c++) {
+                    out.writeUTF(names.get(c));
+                    out.writeByte(types.get(c).ordinal());
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        void add(Vertex v) throws IOException {
+            group.add(v);
+            if (group.size == rowGroupSize) {
+                written += group.write(out);
+            }
+        }
+
+        /**
+         * Writes the last row group and the end marker and closes the file
+         *
+         * @return the number of rows written
+         */
+        long finish() throws IOException {
+            if (group.size > 0) {
+                written += group.write(out);
+            }
+            out.writeInt(0);
+            out.close();
+            return written;
+        }
+
+        /**
+         * Closes the file without finishing it, after an error
+         */
+        void close() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                log.warn("Error closing {}", file, e);
+            }
+        }
+    }
+
+    /**
+     * The buffered values of one row group, one primitive array per column
+     */
+    private class RowGroup {
+        private final long[][] longs = new long[names.size()][];
+        private final double[][] doubles = new double[names.size()][];
+        private final String[][] strings = new String[names.size()][];
+        private final byte[][] nulls = new byte[names.size()][];
+        private int size = 0;
+
+        RowGroup() {
+            for (int c = 0; c < names.size(); c++) {
+                switch (types.get(c)) {
+                case LONG:
+                case DATE:
+                case BOOLEAN:
+                    longs[c] = new long[rowGroupSize];
+                    break;
+                case DOUBLE:
+                    doubles[c] = new double[rowGroupSize];
+                    break;
+                default:
+                    strings[c] = new String[rowGroupSize];
+                }
+                nulls[c] = new byte[(rowGroupSize + 7) / 8];
+            }
+        }
+
+        void add(Vertex v) {
+            strings[0][size] = v.getId().toString();
+            for (int c = 1; c < names.size(); c++) {
+                Object value = v.getProperty(names.get(c));
+                if (!set(c, value)) {
+                    nulls[c][size >> 3] |= 1 << (size & 7);
+                    if (longs[c] != null) {
+                        longs[c][size] = 0;
+                    } else if (doubles[c] != null) {
+                        doubles[c][size] = 0;
+                    }
+                }
+            }
+            size++;
+        }
+
+        /**
+         * Stores a value in the current row
+         *
+         * @return false if the value is null or cannot be converted
+         */
+        private boolean set(int c, Object value) {
+            if (value == null) {
+                return false;
+            }
+            try {
+                switch (types.get(c)) {
+                case LONG:
+                    longs[c][size] = value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString());
+                    return true;
+                case DOUBLE:
+                    doubles[c][size] = value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString());
+                    return true;
+                case BOOLEAN:
+                    if (!(value instanceof Boolean) && !"true".equals(value) && !"false".equals(value)) {
+                        return false;
+                    }
+                    longs[c][size] = Boolean.valueOf(value.toString()) ? 1 : 0;
+                    return true;
+                case DATE:
+                    Date d = toDate(value);
+                    if (d == null) {
+                        return false;
+                    }
+                    longs[c][size] = d.getTime();
+                    return true;
+                default:
+                    strings[c][size] = value.toString();
+                    return true;
+                }
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Writes the row group and clears it
+         *
+         * @return the number of rows written
+         */
+        int write(DataOutputStream out) throws IOException {
+            int rows = size;
+            out.writeInt(rows);
+            ByteArrayOutputStream block = new ByteArrayOutputStream(rows * 8 + 64);
+            for (int c = 0; c < names.size(); c++) {
+                block.reset();
+                Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                DataOutputStream col = new DataOutputStream(new DeflaterOutputStream(block, deflater, 65536));
+                col.write(nulls[c], 0, (rows + 7) / 8);
+                for (int r = 0; r < rows; r++) {
+                    switch (types.get(c)) {
+                    case LONG:
+                    case DATE:
+                        col.writeLong(longs[c][r]);
+                        break;
+                    case BOOLEAN:
+                        col.writeByte((int) longs[c][r]);
+                        break;
+                    case DOUBLE:
+                        col.writeDouble(doubles[c][r]);
+                        break;
+                    default:
+                        String s = strings[c][r];
+                        if (s == null) {
+                            col.writeInt(0);
+                        } else {
+                            byte[] b = s.getBytes("UTF-8");
+                            col.writeInt(b.length);
+                            col.write(b);
+                        }
+                        strings[c][r] = null;
+                    }
+                }
+                col.close();
+                deflater.end();
+                out.writeInt(block.size());
+                block.writeTo(out);
+                Arrays.fill(nulls[c], (byte) 0);
+            }
+            size = 0;
+            return rows;
+        }
+    }
+}
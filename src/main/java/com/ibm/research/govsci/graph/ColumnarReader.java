@@ -0,0 +1,227 @@
+/**
+ * ColumnarReader.java
+ *
+ * Reads column files written by ColumnarExporter.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+
+package com.ibm.research.govsci.graph;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.InflaterInputStream;
+
+import com.ibm.research.govsci.graph.ColumnarExporter.ColumnType;
+
+/**
+ * Reads a file written by {@link ColumnarExporter} one row group at a time.
+ *
+ * <pre>
+ * ColumnarReader r = new ColumnarReader(file);
+ * int login = r.getColumn("login");
+ * while (r.nextRowGroup()) {
+ *     for (int row = 0; row &lt; r.getRowCount(); row++) {
+ *         String s = r.isNull(login, row) ? null : r.getString(login, row);
+ *     }
+ * }
+ * r.close();
+ * </pre>
+ *
+ * Only the current row group is held in memory.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class ColumnarReader {
+    private final File file;
+    private final DataInputStream in;
+    private final List<String> names = new ArrayList<String>();
+    private final List<ColumnType> types = new ArrayList<ColumnType>();
+    private long[][] longs;
+    private double[][] doubles;
+    private String[][] strings;
+    private byte[][] nulls;
+    private int rows = 0;
+    private boolean finished = false;
+
+    /**
+     * Opens a file and reads its column list
+     *
+     * @param file the file to read
+     * @throws IOException if the file cannot be read or is not a column file
+     */
+    public ColumnarReader(File file) throws IOException {
+        this.file = file;
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+        byte[] magic = new byte[ColumnarExporter.MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, ColumnarExporter.MAGIC)) {
+            in.close();
+            throw new IOException(file + " is not a column file");
+        }
+        int columns = in.readInt();
+        for (int c = 0; c < columns; c++) {
+            names.add(in.readUTF());
+            types.add(ColumnType.values()[in.readByte()]);
+        }
+        longs = new long[columns][];
+        doubles = new double[columns][];
+        strings = new String[columns][];
+        nulls = new byte[columns][];
+    }
+
+    /**
+     * @return the partition files in an export directory, in order
+     */
+    public static List<File> partitions(File dir) {
+        List<File> rv = new ArrayList<File>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().startsWith("part-") && f.getName().endsWith(".gcol")) {
+                    rv.add(f);
+                }
+            }
+        }
+        Collections.sort(rv);
+        return rv;
+    }
+
+    public List<String> getColumnNames() {
+        return Collections.unmodifiableList(names);
+    }
+
+    public ColumnType getColumnType(int column) {
+        return types.get(column);
+    }
+
+    /**
+     * @return the index of a column, or -1 if there is no such column
+     */
+    public int getColumn(String name) {
+        return names.indexOf(name);
+    }
+
+    /**
+     * Reads the next row group
+     *
+     * @return false if there are no more row groups
+     * @throws IOException if the file cannot be read
+     */
+    public boolean nextRowGroup() throws IOException {
+        if (finished) {
+            return false;
+        }
+        rows = in.readInt();
+        if (rows == 0) {
+            finished = true;
+            return false;
+        }
+        for (int c = 0; c < names.size(); c++) {
+            byte[] block = new byte[in.readInt()];
+            in.readFully(block);
+            DataInputStream col = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(block)));
+            nulls[c] = new byte[(rows + 7) / 8];
+            col.readFully(nulls[c]);
+            ColumnType type = types.get(c);
+            if (type == ColumnType.DOUBLE) {
+                doubles[c] = new double[rows];
+            } else if (type == ColumnType.STRING) {
+                strings[c] = new String[rows];
+            } else {
+                longs[c] = new long[rows];
+            }
+            for (int r = 0; r < rows; r++) {
+                switch (type) {
+                case LONG:
+                case DATE:
+                    longs[c][r] = col.readLong();
+                    break;
+                case BOOLEAN:
+                    longs[c][r] = col.readByte();
+                    break;
+                case DOUBLE:
+                    doubles[c][r] = col.readDouble();
+                    break;
+                default:
+                    byte[] b = new byte[col.readInt()];
+                    col.readFully(b);
+                    strings[c][r] = isNull(c, r) ? null : new String(b, "UTF-8");
+                }
+            }
+            col.close();
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of rows in the current row group
+     */
+    public int getRowCount() {
+        return rows;
+    }
+
+    public boolean isNull(int column, int row) {
+        return (nulls[column][row >> 3] & (1 << (row & 7))) != 0;
+    }
+
+    public long getLong(int column, int row) {
+        return longs[column][row];
+    }
+
+    public double getDouble(int column, int row) {
+        return doubles[column][row];
+    }
+
+    public boolean getBoolean(int column, int row) {
+        return longs[column][row] != 0;
+    }
+
+    public String getString(int column, int row) {
+        return strings[column][row];
+    }
+
+    /**
+     * @return the date in a {@link ColumnType#DATE} column, or null if it is null
+     */
+    public Date getDate(int column, int row) {
+        return isNull(column, row) ? null : new Date(longs[column][row]);
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    @Override
+    public String toString() {
+        return "ColumnarReader[" + file + "]";
+    }
+}
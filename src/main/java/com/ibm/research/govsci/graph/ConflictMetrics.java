@@ -0,0 +1,140 @@
+/**
+ * ConflictMetrics.java
+ *
+ * Counts attempts, conflicts and retries of transactional work.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+package com.ibm.research.govsci.graph;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe counters of transaction conflicts, kept per operation type.
+ *
+ * The operation type is the name passed to
+ * {@link BlueprintsBase#runInTransaction(String, TransactionalWork)}.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class ConflictMetrics {
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+    /**
+     * Counters for a single operation type
+     */
+    public static class Stats {
+        private final AtomicLong attempts = new AtomicLong();
+        private final AtomicLong successes = new AtomicLong();
+        private final AtomicLong conflicts = new AtomicLong();
+        private final AtomicLong exhausted = new AtomicLong();
+        private final AtomicLong backoffMillis = new AtomicLong();
+
+        /** @return number of times the work was started */
+        public long getAttempts() {
+            return attempts.get();
+        }
+
+        /** @return number of times the work committed */
+        public long getSuccesses() {
+            return successes.get();
+        }
+
+        /** @return number of attempts that ended in a conflict */
+        public long getConflicts() {
+            return conflicts.get();
+        }
+
+        /** @return number of times the work gave up after running out of retries */
+        public long getExhausted() {
+            return exhausted.get();
+        }
+
+        /** @return total time spent waiting between retries */
+        public long getBackoffMillis() {
+            return backoffMillis.get();
+        }
+
+        @Override
+        public String toString() {
+            return "attempts=" + attempts + " successes=" + successes + " conflicts=" + conflicts
+                    + " exhausted=" + exhausted + " backoff=" + backoffMillis + "ms";
+        }
+    }
+
+    /**
+     * @param operation the operation type
+     * @return the counters for the operation, created if needed
+     */
+    public Stats getStats(String operation) {
+        Stats s = stats.get(operation);
+        if (s == null) {
+            s = new Stats();
+            Stats existing = stats.putIfAbsent(operation, s);
+            if (existing != null) {
+                s = existing;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * @return the counters for every operation type seen so far
+     */
+    public Map<String, Stats> getAllStats() {
+        return Collections.unmodifiableMap(stats);
+    }
+
+    void recordAttempt(String operation) {
+        getStats(operation).attempts.incrementAndGet();
+    }
+
+    void recordSuccess(String operation) {
+        getStats(operation).successes.incrementAndGet();
+    }
+
+    void recordConflict(String operation, long backoff) {
+        Stats s = getStats(operation);
+        s.conflicts.incrementAndGet();
+        s.backoffMillis.addAndGet(backoff);
+    }
+
+    void recordExhausted(String operation) {
+        getStats(operation).exhausted.incrementAndGet();
+    }
+
+    /**
+     * Clears all of the counters
+     */
+    public void reset() {
+        stats.clear();
+    }
+
+    @Override
+    public String toString() {
+        return stats.toString();
+    }
+}
@@ -0,0 +1,308 @@
+/**
+ * DeferredIndexBuilder.java
+ *
+ * Holds index updates during a bulk load and writes them afterwards.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+package com.ibm.research.govsci.graph;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.blueprints.Index;
+import com.tinkerpop.blueprints.TransactionalGraph;
+import com.tinkerpop.blueprints.TransactionalGraph.Conclusion;
+import com.tinkerpop.blueprints.Vertex;
+
+/**
+ * Side structure used by {@link BlueprintsBase} while index maintenance is deferred.
+ *
+ * Index entries are queued instead of being written, and the vertices created
+ * by get-or-create lookups are remembered in memory so that uniqueness holds
+ * even though the indexes are not yet up to date. When the load is finished
+ * {@link #build(int, boolean, TransactionalGraph, int)} sorts the entries for
+ * each index and writes them with a pool of threads.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class DeferredIndexBuilder {
+    private static final Logger log = LoggerFactory.getLogger(DeferredIndexBuilder.class);
+    private static final int LOCK_STRIPES = 64;
+
+    private final ConcurrentMap<String, Pending> pending = new ConcurrentHashMap<String, Pending>();
+    private final ConcurrentMap<UniqueKey, Vertex> unique = new ConcurrentHashMap<UniqueKey, Vertex>();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final boolean checkExisting;
+
+    private static class Entry {
+        final String key;
+        final Object value;
+        final Element elem;
+
+        Entry(String key, Object value, Element elem) {
+            this.key = key;
+            this.value = value;
+            this.elem = elem;
+        }
+    }
+
+    private static class Pending {
+        final Index<? extends Element> index;
+        final Queue<Entry> entries = new ConcurrentLinkedQueue<Entry>();
+
+        Pending(Index<? extends Element> index) {
+            this.index = index;
+        }
+    }
+
+    private static class UniqueKey {
+        final String scope;
+        final String key;
+        final Object value;
+
+        UniqueKey(String scope, String key, Object value) {
+            this.scope = scope;
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public int hashCode() {
+            return (scope.hashCode() * 31 + key.hashCode()) * 31 + value.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof UniqueKey)) {
+                return false;
+            }
+            UniqueKey k = (UniqueKey) o;
+            return scope.equals(k.scope) && key.equals(k.key) && value.equals(k.value);
+        }
+    }
+
+    /**
+     * Orders entries so that each index receives its keys and values in sorted order
+     */
+    private static final Comparator<Entry> ENTRY_ORDER = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            int c = a.key.compareTo(b.key);
+            if (c != 0) {
+                return c;
+            }
+            c = a.value.getClass().getName().compareTo(b.value.getClass().getName());
+            if (c != 0) {
+                return c;
+            }
+            if (a.value instanceof Comparable) {
+                @SuppressWarnings("unchecked")
+                Comparable<Object> av = (Comparable<Object>) a.value;
+                return av.compareTo(b.value);
+            }
+            return a.value.toString().compareTo(b.value.toString());
+        }
+    };
+
+    /**
+     * @param checkExisting whether get-or-create lookups should still consult the
+     *          indexes for elements that existed before the load began
+     */
+    public DeferredIndexBuilder(boolean checkExisting) {
+        this.checkExisting = checkExisting;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * @return true if lookups should fall back to the indexes for existing elements
+     */
+    public boolean isCheckExisting() {
+        return checkExisting;
+    }
+
+    /**
+     * Queues an index entry to be written by {@link #build(int, boolean, TransactionalGraph, int)}
+     *
+     * @param index the index to add to
+     * @param key the key in the index
+     * @param value the value for the key
+     * @param elem the element to add
+     */
+    public <T extends Element> void add(Index<T> index, String key, Object value, T elem) {
+        String name = index.getIndexClass().getSimpleName() + ":" + index.getIndexName();
+        Pending p = pending.get(name);
+        if (p == null) {
+            p = new Pending(index);
+            Pending existing = pending.putIfAbsent(name, p);
+            if (existing != null) {
+                p = existing;
+            }
+        }
+        p.entries.add(new Entry(key, value, elem));
+        queued.incrementAndGet();
+    }
+
+    /**
+     * Gets the lock that must be held while checking and creating a unique vertex
+     */
+    Object lockFor(String scope, String key, Object value) {
+        int h = (scope.hashCode() * 31 + key.hashCode()) * 31 + value.hashCode();
+        return locks[(h ^ (h >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+
+    Vertex getUnique(String scope, String key, Object value) {
+        return unique.get(new UniqueKey(scope, key, value));
+    }
+
+    void putUnique(String scope, String key, Object value, Vertex v) {
+        unique.put(new UniqueKey(scope, key, value), v);
+    }
+
+    /**
+     * @return number of index entries waiting to be written
+     */
+    public long getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * @return number of entries that could not be written by the last build
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Writes every queued entry to its index
+     *
+     * Entries for each index are sorted by key and value. With a single thread
+     * everything is written on the calling thread, which is required by engines
+     * that bind their database to a thread. Otherwise each index is written by
+     * its own task, and if <code>splitIndexes</code> is set large indexes are
+     * further divided into contiguous sorted ranges written concurrently.
+     *
+     * @param threads number of threads to write with
+     * @param splitIndexes whether a single index may be written by several threads
+     * @param tgraph if not null, each task commits on this graph after every batch
+     * @param batchSize number of entries to write between commits
+     * @return the number of entries written
+     */
+    public long build(int threads, boolean splitIndexes, final TransactionalGraph tgraph, final int batchSize) {
+        List<List<Entry>> chunks = new ArrayList<List<Entry>>();
+        List<Index<? extends Element>> targets = new ArrayList<Index<? extends Element>>();
+        for (Pending p : pending.values()) {
+            List<Entry> entries = new ArrayList<Entry>(p.entries);
+            if (entries.isEmpty()) {
+                continue;
+            }
+            Collections.sort(entries, ENTRY_ORDER);
+            int parts = splitIndexes ? Math.max(1, Math.min(threads, entries.size() / batchSize)) : 1;
+            int step = (entries.size() + parts - 1) / parts;
+            for (int i = 0; i < entries.size(); i += step) {
+                chunks.add(entries.subList(i, Math.min(entries.size(), i + step)));
+                targets.add(p.index);
+            }
+        }
+        pending.clear();
+        unique.clear();
+        queued.set(0);
+        failures.set(0);
+
+        long written = 0;
+        if (threads <= 1 || chunks.size() <= 1) {
+            for (int i = 0; i < chunks.size(); i++) {
+                written += write(targets.get(i), chunks.get(i), tgraph, batchSize);
+            }
+            return written;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, chunks.size()));
+        List<Future<Long>> results = new ArrayList<Future<Long>>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            final Index<? extends Element> index = targets.get(i);
+            final List<Entry> chunk = chunks.get(i);
+            results.add(pool.submit(new Callable<Long>() {
+                public Long call() {
+                    return write(index, chunk, tgraph, batchSize);
+                }
+            }));
+        }
+        try {
+            for (Future<Long> f : results) {
+                try {
+                    written += f.get();
+                } catch (ExecutionException e) {
+                    log.error("Error building index", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while building indexes");
+        } finally {
+            pool.shutdown();
+        }
+        return written;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private long write(Index index, List<Entry> entries, TransactionalGraph tgraph, int batchSize) {
+        long written = 0;
+        int sinceCommit = 0;
+        for (Entry e : entries) {
+            try {
+                index.put(e.key, e.value, e.elem);
+                written++;
+            } catch (RuntimeException ex) {
+                if (failures.incrementAndGet() == 1) {
+                    log.error("Unable to add {}={} to index {}", new Object[] {e.key, e.value, index.getIndexName(), ex});
+                }
+            }
+            if (tgraph != null && ++sinceCommit >= batchSize) {
+                tgraph.stopTransaction(Conclusion.SUCCESS);
+                sinceCommit = 0;
+            }
+        }
+        if (tgraph != null && sinceCommit > 0) {
+            tgraph.stopTransaction(Conclusion.SUCCESS);
+        }
+        return written;
+    }
+}
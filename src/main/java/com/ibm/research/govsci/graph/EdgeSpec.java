@@ -0,0 +1,101 @@
+/**
+ * EdgeSpec.java
+ *
+ * Describes an edge to be created or updated in bulk.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+package com.ibm.research.govsci.graph;
+
+import java.util.Collections;
+import java.util.Map;
+
+import com.tinkerpop.blueprints.Vertex;
+
+/**
+ * An edge for {@link BlueprintsBase#upsertEdges(Iterable)}.
+ *
+ * Two edges with the same endpoints and label are the same edge if they
+ * have equal values for every key property; the other properties are merged
+ * into the edge using the merge policy.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class EdgeSpec {
+    private final Vertex out;
+    private final Vertex in;
+    private final String label;
+    private final Map<String, Object> keyProps;
+    private final Map<String, Object> props;
+    private final MergePolicy policy;
+
+    /**
+     * @param out source vertex
+     * @param in target vertex
+     * @param label label for the edge
+     * @param keyProps properties that identify the edge, may be null
+     * @param props other properties of the edge, may be null
+     * @param policy how to merge the properties into an existing edge
+     */
+    public EdgeSpec(Vertex out, Vertex in, String label, Map<String, Object> keyProps,
+            Map<String, Object> props, MergePolicy policy) {
+        this.out = out;
+        this.in = in;
+        this.label = label;
+        this.keyProps = keyProps != null ? keyProps : Collections.<String, Object>emptyMap();
+        this.props = props != null ? props : Collections.<String, Object>emptyMap();
+        this.policy = policy;
+    }
+
+    public EdgeSpec(Vertex out, Vertex in, String label, Map<String, Object> keyProps, Map<String, Object> props) {
+        this(out, in, label, keyProps, props, MergePolicy.OVERWRITE);
+    }
+
+    public Vertex getOut() {
+        return out;
+    }
+
+    public Vertex getIn() {
+        return in;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public Map<String, Object> getKeyProps() {
+        return keyProps;
+    }
+
+    public Map<String, Object> getProps() {
+        return props;
+    }
+
+    public MergePolicy getPolicy() {
+        return policy;
+    }
+
+    @Override
+    public String toString() {
+        return out.getId() + "-[" + label + " " + keyProps + "]->" + in.getId();
+    }
+}
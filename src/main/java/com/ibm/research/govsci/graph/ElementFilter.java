@@ -0,0 +1,44 @@
+/**
+ * ElementFilter.java
+ *
+ * Selects graph elements for bulk operations.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+package com.ibm.research.govsci.graph;
+
+import com.tinkerpop.blueprints.Element;
+
+/**
+ * Chooses which elements a bulk operation such as
+ * {@link BlueprintsBase#removeVertices(String, ElementFilter, ProgressListener)}
+ * applies to.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public interface ElementFilter<T extends Element> {
+    /**
+     * @param elem the element to check
+     * @return true if the operation should apply to the element
+     */
+    boolean accept(T elem);
+}
@@ -0,0 +1,126 @@
+/**
+ * ElementIdIterable.java
+ *
+ * Lazily turns a sequence of element ids into elements.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+package com.ibm.research.govsci.graph;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.blueprints.Graph;
+import com.tinkerpop.blueprints.Vertex;
+
+/**
+ * An iterable that looks up each id in the graph as it is iterated.
+ *
+ * Ids that no longer resolve to an element (for example because the element
+ * was removed or its transaction was rolled back) are silently skipped, as
+ * are elements rejected by the filter. Engines that reuse ids may resolve an
+ * old id to a different element, so the filter should check that the
+ * element is still the one that was recorded.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+class ElementIdIterable<T extends Element> implements Iterable<T> {
+    private final Graph graph;
+    private final Iterable<Object> ids;
+    private final Class<T> elementClass;
+    private final ElementFilter<? super T> filter;
+
+    ElementIdIterable(Graph graph, Iterable<Object> ids, Class<T> elementClass, ElementFilter<? super T> filter) {
+        this.graph = graph;
+        this.ids = ids;
+        this.elementClass = elementClass;
+        this.filter = filter;
+    }
+
+    public Iterator<T> iterator() {
+        final Iterator<Object> it = ids.iterator();
+        return new Iterator<T>() {
+            private T nextElem = null;
+
+            public boolean hasNext() {
+                while (nextElem == null && it.hasNext()) {
+                    nextElem = lookup(it.next());
+                }
+                return nextElem != null;
+            }
+
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                T rv = nextElem;
+                nextElem = null;
+                return rv;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private T lookup(Object id) {
+        Element elem;
+        try {
+            if (Edge.class.isAssignableFrom(elementClass)) {
+                elem = graph.getEdge(id);
+            } else {
+                elem = graph.getVertex(id);
+            }
+        } catch (RuntimeException e) {
+            // some engines throw rather than return null for removed elements
+            return null;
+        }
+        T rv = elementClass.cast(elem);
+        if (rv != null && filter != null && !filter.accept(rv)) {
+            return null;
+        }
+        return rv;
+    }
+
+    /**
+     * @param graph the graph to resolve the ids against
+     * @param ids the ids of the vertices
+     * @param filter check of each vertex, may be null
+     * @return an iterable over the vertices that still exist
+     */
+    static Iterable<Vertex> vertices(Graph graph, Iterable<Object> ids, ElementFilter<? super Vertex> filter) {
+        return new ElementIdIterable<Vertex>(graph, ids, Vertex.class, filter);
+    }
+
+    /**
+     * @param graph the graph to resolve the ids against
+     * @param ids the ids of the edges
+     * @param filter check of each edge, may be null
+     * @return an iterable over the edges that still exist
+     */
+    static Iterable<Edge> edges(Graph graph, Iterable<Object> ids, ElementFilter<? super Edge> filter) {
+        return new ElementIdIterable<Edge>(graph, ids, Edge.class, filter);
+    }
+}
@@ -0,0 +1,280 @@
+/**
+ * EngineCalibrator.java
+ *
+ * Measures a graph engine to choose its engine profile.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+package com.ibm.research.govsci.graph;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tinkerpop.blueprints.Index;
+import com.tinkerpop.blueprints.TransactionalGraph.Conclusion;
+import com.tinkerpop.blueprints.Vertex;
+
+/**
+ * Micro-benchmarks a graph's engine to build an {@link EngineProfile}.
+ *
+ * The calibration opens a scratch store of the same engine, either in
+ * memory or in a temporary directory next to the graph's store so that it
+ * is on the same disk. It creates a few thousand vertices, a manual index
+ * and a key index there, times lookups, existence checks and commits, and
+ * then deletes the scratch store. The graph itself is never written to,
+ * which matters for Titan where a property key cannot be removed once
+ * created. The scratch store starts empty, so the profile reflects the
+ * engine and the disk rather than the size of the graph. Remote engines
+ * cannot be given a scratch store and keep the default profile. Each
+ * measurement is run once to warm up and once to measure.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class EngineCalibrator {
+    private static final Logger log = LoggerFactory.getLogger(EngineCalibrator.class);
+    private static final String CALIBRATION_INDEX = "sys-calibration-idx";
+    private static final String CALIBRATION_KEY = "sys_calibration_id";
+    private static final String ORIENT_MEMORY = "memory:";
+    private static final String ORIENT_LOCAL = "local:";
+    private static final int[] BATCH_SIZES = new int[] {10, 100, 1000};
+    private static final double BATCH_TOLERANCE = 1.1;
+
+    private final BlueprintsBase graph;
+    private final int samples;
+    private BlueprintsBase scratch;
+
+    /**
+     * @param graph the graph to calibrate
+     * @param samples number of operations timed for each measurement
+     */
+    public EngineCalibrator(BlueprintsBase graph, int samples) {
+        this.graph = graph;
+        this.samples = samples;
+    }
+
+    public EngineCalibrator(BlueprintsBase graph) {
+        this(graph, 1000);
+    }
+
+    /**
+     * Runs the calibration
+     *
+     * @return the measured profile, or the default profile if the engine cannot be measured
+     */
+    public EngineProfile calibrate() {
+        EngineProfile profile = EngineProfile.defaults(graph);
+        String engine = graph.getDbengine();
+        if (engine.equals(Engine.NEO4JBATCH) || engine.equals(Engine.REXSTER)) {
+            log.warn("engine {} cannot be calibrated, using defaults", engine);
+            return profile;
+        }
+        File dir = null;
+        String url;
+        try {
+            if (engine.equals(Engine.ORIENTDB)) {
+                if (graph.dburl.startsWith(ORIENT_MEMORY)) {
+                    url = ORIENT_MEMORY + "calibration-" + System.nanoTime();
+                } else if (graph.dburl.startsWith(ORIENT_LOCAL)) {
+                    dir = scratchDirectory(graph.dburl.substring(ORIENT_LOCAL.length()));
+                    url = ORIENT_LOCAL + dir.getAbsolutePath();
+                } else {
+                    log.warn("remote orientdb database {} cannot be calibrated, using defaults", graph.dburl);
+                    return profile;
+                }
+            } else if (engine.equals(Engine.TINKERGRAPH) && graph.dburl == null) {
+                url = null;
+            } else {
+                dir = scratchDirectory(graph.dburl);
+                url = dir.getAbsolutePath();
+            }
+        } catch (IOException e) {
+            log.error("Unable to create a scratch store for calibration, using defaults", e);
+            return profile;
+        }
+
+        scratch = new BlueprintsBase(engine, url);
+        try {
+            profile = measure(profile);
+        } finally {
+            try {
+                scratch.shutdown();
+            } catch (RuntimeException e) {
+                log.error("Error closing calibration store", e);
+            }
+            scratch = null;
+            deleteTree(dir);
+        }
+        profile = new EngineProfile(profile.getEngine(), profile.getDburl(), profile.getLookupStrategy(),
+                profile.getCommitBatchSize(), profile.getDedupeStrategy(), true);
+        log.info("Calibrated {}", profile);
+        return profile;
+    }
+
+    private EngineProfile measure(EngineProfile profile) {
+        boolean manual = scratch.supportsIndexes();
+        boolean keyed = scratch.supportsKeyIndexes() && !scratch.getDbengine().equals(Engine.TITAN);
+        Index<Vertex> idx = null;
+        if (keyed) {
+            scratch.kigraph.createKeyIndex(CALIBRATION_KEY, Vertex.class);
+        }
+        if (manual) {
+            idx = scratch.igraph.createIndex(CALIBRATION_INDEX, Vertex.class);
+        }
+        for (int i = 0; i < samples; i++) {
+            Vertex v = scratch.kigraph.addVertex(null);
+            v.setProperty(CALIBRATION_KEY, "c" + i);
+            if (idx != null) {
+                idx.put(CALIBRATION_KEY, "c" + i, v);
+            }
+        }
+        commit();
+
+        if (manual && keyed) {
+            timeManualLookups(idx);
+            long manualNanos = timeManualLookups(idx);
+            timeKeyLookups();
+            long keyNanos = timeKeyLookups();
+            log.debug("lookup: manual index {}ns, key index {}ns", manualNanos / samples, keyNanos / samples);
+            profile = profile.withLookupStrategy(keyNanos < manualNanos
+                    ? EngineProfile.LookupStrategy.KEY_INDEX : EngineProfile.LookupStrategy.MANUAL_INDEX);
+        }
+        if (manual) {
+            timeMissingIterate(idx);
+            long iterateNanos = timeMissingIterate(idx);
+            timeMissingCount(idx);
+            long countNanos = timeMissingCount(idx);
+            log.debug("dedupe: iterate {}ns, count {}ns", iterateNanos / samples, countNanos / samples);
+            profile = profile.withDedupeStrategy(countNanos < iterateNanos
+                    ? EngineProfile.DedupeStrategy.COUNT : EngineProfile.DedupeStrategy.ITERATE);
+        }
+        if (scratch.supportsTransactions()) {
+            profile = profile.withCommitBatchSize(chooseBatchSize());
+        }
+        return profile;
+    }
+
+    /**
+     * Creates an empty directory beside a store, on the same disk
+     */
+    private static File scratchDirectory(String store) throws IOException {
+        File parent = new File(store).getAbsoluteFile().getParentFile();
+        File dir = File.createTempFile("calibration", "", parent);
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+        return dir;
+    }
+
+    private static void deleteTree(File f) {
+        if (f == null) {
+            return;
+        }
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        ExternalSorter.delete(f);
+    }
+
+    private long timeManualLookups(Index<Vertex> idx) {
+        long start = System.nanoTime();
+        for (int i = 0; i < samples; i++) {
+            consume(idx.get(CALIBRATION_KEY, "c" + i).iterator());
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long timeKeyLookups() {
+        long start = System.nanoTime();
+        for (int i = 0; i < samples; i++) {
+            consume(scratch.kigraph.getVertices(CALIBRATION_KEY, "c" + i).iterator());
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long timeMissingIterate(Index<Vertex> idx) {
+        long start = System.nanoTime();
+        for (int i = 0; i < samples; i++) {
+            idx.get(CALIBRATION_KEY, "m" + i).iterator().hasNext();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long timeMissingCount(Index<Vertex> idx) {
+        long start = System.nanoTime();
+        for (int i = 0; i < samples; i++) {
+            idx.count(CALIBRATION_KEY, "m" + i);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Finds the smallest commit batch whose cost per write is close to the best
+     */
+    private int chooseBatchSize() {
+        long[] nanos = new long[BATCH_SIZES.length];
+        long best = Long.MAX_VALUE;
+        for (int b = 0; b < BATCH_SIZES.length; b++) {
+            timeInserts(BATCH_SIZES[b]);
+            nanos[b] = timeInserts(BATCH_SIZES[b]);
+            log.debug("commit every {}: {}ns per write", BATCH_SIZES[b], nanos[b] / samples);
+            best = Math.min(best, nanos[b]);
+        }
+        for (int b = 0; b < BATCH_SIZES.length; b++) {
+            if (nanos[b] <= best * BATCH_TOLERANCE) {
+                return BATCH_SIZES[b];
+            }
+        }
+        return EngineProfile.DEFAULT_COMMIT_BATCH_SIZE;
+    }
+
+    private long timeInserts(int batchSize) {
+        long start = System.nanoTime();
+        for (int i = 0; i < samples; i++) {
+            Vertex v = scratch.kigraph.addVertex(null);
+            v.setProperty(CALIBRATION_KEY, "b" + i);
+            if ((i + 1) % batchSize == 0) {
+                commit();
+            }
+        }
+        commit();
+        return System.nanoTime() - start;
+    }
+
+    private void consume(Iterator<Vertex> it) {
+        while (it.hasNext()) {
+            it.next();
+        }
+    }
+
+    private void commit() {
+        if (scratch.supportsTransactions()) {
+            scratch.tgraph.stopTransaction(Conclusion.SUCCESS);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/**
+ * EngineProfile.java
+ *
+ * Describes which strategies work best for a graph engine.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+package com.ibm.research.govsci.graph;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Strategies {@link BlueprintsBase} uses for a particular engine.
+ *
+ * The default profile is derived from the features the engine supports.
+ * {@link EngineCalibrator} measures the engine and picks the faster option
+ * for each strategy, and profiles can be saved to and loaded from disk so
+ * the measurement only has to be made once per database. Instances are
+ * immutable.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class EngineProfile {
+    private static final Logger log = LoggerFactory.getLogger(EngineProfile.class);
+    public static final int DEFAULT_COMMIT_BATCH_SIZE = 1000;
+
+    /**
+     * How get-or-create lookups find existing vertices
+     */
+    public enum LookupStrategy {
+        /** use the manual index passed to the lookup */
+        MANUAL_INDEX,
+        /** use a vertex key index on the id column when one exists, matching on vertex type */
+        KEY_INDEX
+    }
+
+    /**
+     * How {@link BlueprintsBase#addToIndexIfNotPresent}
+     * checks for existing entries
+     */
+    public enum DedupeStrategy {
+        /** iterate over the matching entries */
+        ITERATE,
+        /** count the matching entries first and only iterate if there are any */
+        COUNT
+    }
+
+    private final String engine;
+    private final String dburl;
+    private final LookupStrategy lookupStrategy;
+    private final int commitBatchSize;
+    private final DedupeStrategy dedupeStrategy;
+    private final boolean calibrated;
+
+    /**
+     * @param engine the engine the profile applies to
+     * @param dburl the database the profile applies to
+     * @param lookupStrategy how to find existing vertices
+     * @param commitBatchSize number of writes between commits for bulk operations
+     * @param dedupeStrategy how to check for existing index entries
+     * @param calibrated true if the profile was measured rather than assumed
+     */
+    public EngineProfile(String engine, String dburl, LookupStrategy lookupStrategy,
+            int commitBatchSize, DedupeStrategy dedupeStrategy, boolean calibrated) {
+        if (lookupStrategy == null || dedupeStrategy == null || commitBatchSize < 1) {
+            throw new IllegalArgumentException("Invalid engine profile parameters");
+        }
+        this.engine = engine;
+        this.dburl = dburl;
+        this.lookupStrategy = lookupStrategy;
+        this.commitBatchSize = commitBatchSize;
+        this.dedupeStrategy = dedupeStrategy;
+        this.calibrated = calibrated;
+    }
+
+    /**
+     * Builds the profile used when no calibration has been done
+     *
+     * @param graph the graph to build a profile for
+     * @return a profile based on the features of the engine
+     */
+    public static EngineProfile defaults(BlueprintsBase graph) {
+        LookupStrategy lookup = graph.supportsIndexes() ? LookupStrategy.MANUAL_INDEX : LookupStrategy.KEY_INDEX;
+        return new EngineProfile(graph.getDbengine(), graph.dburl, lookup,
+                DEFAULT_COMMIT_BATCH_SIZE, DedupeStrategy.ITERATE, false);
+    }
+
+    public EngineProfile withLookupStrategy(LookupStrategy strategy) {
+        return new EngineProfile(engine, dburl, strategy, commitBatchSize, dedupeStrategy, calibrated);
+    }
+
+    public EngineProfile withCommitBatchSize(int batchSize) {
+        return new EngineProfile(engine, dburl, lookupStrategy, batchSize, dedupeStrategy, calibrated);
+    }
+
+    public EngineProfile withDedupeStrategy(DedupeStrategy strategy) {
+        return new EngineProfile(engine, dburl, lookupStrategy, commitBatchSize, strategy, calibrated);
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+
+    public String getDburl() {
+        return dburl;
+    }
+
+    public LookupStrategy getLookupStrategy() {
+        return lookupStrategy;
+    }
+
+    public int getCommitBatchSize() {
+        return commitBatchSize;
+    }
+
+    public DedupeStrategy getDedupeStrategy() {
+        return dedupeStrategy;
+    }
+
+    /**
+     * @return true if the profile was produced by {@link EngineCalibrator}
+     */
+    public boolean isCalibrated() {
+        return calibrated;
+    }
+
+    /**
+     * Gets the file a profile for a database is cached in
+     *
+     * @param dir the directory holding cached profiles
+     * @param engine the engine of the database
+     * @param dburl the url of the database
+     * @return the file for the profile
+     */
+    public static File cacheFile(File dir, String engine, String dburl) {
+        return new File(dir, engine + "-" + Integer.toHexString(String.valueOf(dburl).hashCode()) + ".properties");
+    }
+
+    /**
+     * Saves the profile to a file
+     *
+     * @param f the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void store(File f) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("engine", engine);
+        props.setProperty("dburl", String.valueOf(dburl));
+        props.setProperty("lookupStrategy", lookupStrategy.name());
+        props.setProperty("commitBatchSize", Integer.toString(commitBatchSize));
+        props.setProperty("dedupeStrategy", dedupeStrategy.name());
+        props.setProperty("calibrated", Boolean.toString(calibrated));
+        File dir = f.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+        OutputStream out = new FileOutputStream(f);
+        try {
+            props.store(out, "govscigraph engine profile");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Loads a profile saved by {@link #store(File)}
+     *
+     * @param f the file to read
+     * @param engine the engine the profile must be for
+     * @param dburl the database the profile must be for
+     * @return the profile, or null if the file is missing, invalid or for another database
+     */
+    public static EngineProfile load(File f, String engine, String dburl) {
+        if (!f.isFile()) {
+            return null;
+        }
+        Properties props = new Properties();
+        try {
+            InputStream in = new FileInputStream(f);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+            if (!engine.equals(props.getProperty("engine"))
+                    || !String.valueOf(dburl).equals(props.getProperty("dburl"))) {
+                log.debug("Engine profile {} is for a different database", f);
+                return null;
+            }
+            return new EngineProfile(engine, dburl,
+                    LookupStrategy.valueOf(props.getProperty("lookupStrategy")),
+                    Integer.parseInt(props.getProperty("commitBatchSize")),
+                    DedupeStrategy.valueOf(props.getProperty("dedupeStrategy")),
+                    Boolean.parseBoolean(props.getProperty("calibrated")));
+        } catch (IOException e) {
+            log.error("Error reading engine profile {}", f, e);
+        } catch (RuntimeException e) {
+            log.error("Invalid engine profile {}", f, e);
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "EngineProfile[engine=" + engine + ", lookup=" + lookupStrategy + ", commitBatchSize="
+                + commitBatchSize + ", dedupe=" + dedupeStrategy + ", calibrated=" + calibrated + "]";
+    }
+}
@@ -0,0 +1,274 @@
+/**
+ * ExternalSorter.java
+ *
+ * Sorts text files that are too large to sort in memory.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+
+package com.ibm.research.govsci.graph;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sorts the lines of a text file using a bounded amount of memory.
+ *
+ * The input is read in chunks of at most <code>maxLines</code> lines, each
+ * chunk is sorted in memory and written to a run file, and the runs are then
+ * merged. At most <code>maxFanIn</code> runs are open at once, so a large
+ * input is merged in several rounds, each merging groups of runs into
+ * longer ones until one is left. Temporary files are deleted as soon as they
+ * have been merged, or when the sort fails. Lines are compared with
+ * {@link String#compareTo(String)} and files are read and written as UTF-8.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class ExternalSorter {
+    private static final Logger log = LoggerFactory.getLogger(ExternalSorter.class);
+    public static final int DEFAULT_MAX_LINES = 100000;
+    public static final int DEFAULT_MAX_FAN_IN = 64;
+    private static final int BUFFER_SIZE = 65536;
+
+    private final File tempDir;
+    private final int maxLines;
+    private final int maxFanIn;
+
+    /**
+     * @param tempDir directory for run files, or null for the system default
+     * @param maxLines number of lines sorted in memory at a time
+     * @param maxFanIn number of runs merged at a time
+     */
+    public ExternalSorter(File tempDir, int maxLines, int maxFanIn) {
+        if (maxLines < 1) {
+            throw new IllegalArgumentException("maxLines must be positive");
+        }
+        if (maxFanIn < 2) {
+            throw new IllegalArgumentException("maxFanIn must be at least 2");
+        }
+        this.tempDir = tempDir;
+        this.maxLines = maxLines;
+        this.maxFanIn = maxFanIn;
+    }
+
+    public ExternalSorter(File tempDir, int maxLines) {
+        this(tempDir, maxLines, DEFAULT_MAX_FAN_IN);
+    }
+
+    public ExternalSorter(File tempDir) {
+        this(tempDir, DEFAULT_MAX_LINES);
+    }
+
+    /**
+     * Sorts a file into a new temporary file
+     *
+     * @param input the file to sort, left unchanged
+     * @return a new file with the sorted lines, to be deleted by the caller
+     * @throws IOException if the files cannot be read or written
+     */
+    public File sort(File input) throws IOException {
+        LinkedList<File> runs = new LinkedList<File>();
+        boolean sorted = false;
+        try {
+            BufferedReader in = reader(input);
+            try {
+                List<String> chunk = new ArrayList<String>(Math.min(maxLines, 1024));
+                String line;
+                while ((line = in.readLine()) != null) {
+                    chunk.add(line);
+                    if (chunk.size() >= maxLines) {
+                        runs.add(writeRun(chunk));
+                        chunk.clear();
+                    }
+                }
+                if (!chunk.isEmpty() || runs.isEmpty()) {
+                    runs.add(writeRun(chunk));
+                }
+            } finally {
+                in.close();
+            }
+            if (runs.size() > 1) {
+                log.debug("Merging {} runs of {}", runs.size(), input);
+            }
+            // merged runs go to the back, so each round merges the output of the last
+            while (runs.size() > 1) {
+                List<File> group = new ArrayList<File>(Math.min(maxFanIn, runs.size()));
+                while (group.size() < maxFanIn && !runs.isEmpty()) {
+                    group.add(runs.removeFirst());
+                }
+                try {
+                    runs.addLast(merge(group));
+                } finally {
+                    for (File run : group) {
+                        delete(run);
+                    }
+                }
+            }
+            sorted = true;
+            return runs.getFirst();
+        } finally {
+            if (!sorted) {
+                for (File run : runs) {
+                    delete(run);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a new empty temporary file in the sorter's directory, to be deleted by the caller
+     * @throws IOException if the file cannot be created
+     */
+    public File createTempFile(String prefix) throws IOException {
+        return File.createTempFile(prefix, ".txt", tempDir);
+    }
+
+    /**
+     * Opens a UTF-8 reader on a file
+     */
+    public static BufferedReader reader(File f) throws IOException {
+        Reader r = new InputStreamReader(new FileInputStream(f), "UTF-8");
+        return new BufferedReader(r, BUFFER_SIZE);
+    }
+
+    /**
+     * Opens a UTF-8 writer on a file, replacing its contents
+     */
+    public static BufferedWriter writer(File f) throws IOException {
+        Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+        return new BufferedWriter(w, BUFFER_SIZE);
+    }
+
+    /**
+     * Deletes a file, logging if it cannot be deleted
+     */
+    public static void delete(File f) {
+        if (f != null && f.exists() && !f.delete()) {
+            log.warn("Unable to delete {}", f);
+        }
+    }
+
+    private File writeRun(List<String> chunk) throws IOException {
+        Collections.sort(chunk);
+        File run = createTempFile("sort-run");
+        boolean written = false;
+        try {
+            BufferedWriter out = writer(run);
+            try {
+                for (String line : chunk) {
+                    out.write(line);
+                    out.write('\n');
+                }
+            } finally {
+                out.close();
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                delete(run);
+            }
+        }
+        return run;
+    }
+
+    private File merge(List<File> runs) throws IOException {
+        File output = createTempFile("sorted");
+        PriorityQueue<Run> queue = new PriorityQueue<Run>(runs.size());
+        boolean merged = false;
+        BufferedWriter out = writer(output);
+        try {
+            for (File f : runs) {
+                Run run = new Run(reader(f));
+                if (run.advance()) {
+                    queue.add(run);
+                } else {
+                    run.close();
+                }
+            }
+            while (!queue.isEmpty()) {
+                Run run = queue.poll();
+                out.write(run.line);
+                out.write('\n');
+                if (run.advance()) {
+                    queue.add(run);
+                } else {
+                    run.close();
+                }
+            }
+            merged = true;
+        } finally {
+            out.close();
+            for (Run run : queue) {
+                run.close();
+            }
+            if (!merged) {
+                delete(output);
+            }
+        }
+        return output;
+    }
+
+    /**
+     * The current line of one run file during the merge
+     */
+    private static class Run implements Comparable<Run> {
+        private final BufferedReader in;
+        private String line;
+
+        Run(BufferedReader in) {
+            this.in = in;
+        }
+
+        boolean advance() throws IOException {
+            line = in.readLine();
+            return line != null;
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                log.debug("Error closing run file", e);
+            }
+        }
+
+        public int compareTo(Run o) {
+            return line.compareTo(o.line);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * GraphEvent.java
+ *
+ * Describes a single change made to the graph through BlueprintsBase.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+package com.ibm.research.govsci.graph;
+
+/**
+ * An immutable change data capture event.
+ *
+ * Only the fields that make sense for the type of event are set; the rest
+ * are null. Element ids are the ids assigned by the underlying store.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class GraphEvent {
+    public enum Type {
+        VERTEX_CREATED, EDGE_CREATED, PROPERTY_SET, EDGE_REMOVED, VERTEX_REMOVED
+    }
+
+    private final Type type;
+    private final long timestamp;
+    private final boolean edge;
+    private final Object elementId;
+    private final String label;
+    private final String key;
+    private final Object value;
+    private final Object outId;
+    private final Object inId;
+
+    GraphEvent(Type type, boolean edge, Object elementId, String label, String key, Object value,
+            Object outId, Object inId) {
+        this.type = type;
+        this.timestamp = System.currentTimeMillis();
+        this.edge = edge;
+        this.elementId = elementId;
+        this.label = label;
+        this.key = key;
+        this.value = value;
+        this.outId = outId;
+        this.inId = inId;
+    }
+
+    static GraphEvent vertexCreated(Object id, String vertexType) {
+        return new GraphEvent(Type.VERTEX_CREATED, false, id, vertexType, null, null, null, null);
+    }
+
+    static GraphEvent vertexRemoved(Object id, String vertexType) {
+        return new GraphEvent(Type.VERTEX_REMOVED, false, id, vertexType, null, null, null, null);
+    }
+
+    static GraphEvent edgeCreated(Object id, String label, Object outId, Object inId) {
+        return new GraphEvent(Type.EDGE_CREATED, true, id, label, null, null, outId, inId);
+    }
+
+    static GraphEvent edgeRemoved(Object id, String label, Object outId, Object inId) {
+        return new GraphEvent(Type.EDGE_REMOVED, true, id, label, null, null, outId, inId);
+    }
+
+    static GraphEvent propertySet(boolean edge, Object id, String key, Object value) {
+        return new GraphEvent(Type.PROPERTY_SET, edge, id, null, key, value, null, null);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /** @return time the change was made, in milliseconds since the epoch */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /** @return true if the element is an edge, false if it is a vertex */
+    public boolean isEdge() {
+        return edge;
+    }
+
+    public Object getElementId() {
+        return elementId;
+    }
+
+    /** @return the vertex type or edge label, if known */
+    public String getLabel() {
+        return label;
+    }
+
+    /** @return the property name for PROPERTY_SET events */
+    public String getKey() {
+        return key;
+    }
+
+    /** @return the property value for PROPERTY_SET events */
+    public Object getValue() {
+        return value;
+    }
+
+    /** @return the id of the source vertex for edge events */
+    public Object getOutId() {
+        return outId;
+    }
+
+    /** @return the id of the target vertex for edge events */
+    public Object getInId() {
+        return inId;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(type).append(edge ? " edge " : " vertex ").append(elementId);
+        if (label != null) {
+            sb.append(" label=").append(label);
+        }
+        if (key != null) {
+            sb.append(' ').append(key).append('=').append(value);
+        }
+        if (outId != null) {
+            sb.append(' ').append(outId).append("->").append(inId);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * GraphEventSink.java
+ * 
+ * Receives change events from a GraphEventStream.
+ * 
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+package com.ibm.research.govsci.graph;
+
+/**
+ * A destination for change events. In-process callbacks implement this
+ * directly.
+ * 
+ * All methods are called from the single delivery thread of the stream, so
+ * implementations do not need to be thread safe but should not block for
+ * long. Sinks that also implement {@link Shutdownable} are shut down with
+ * the stream.
+ */
+public interface GraphEventSink {
+    /**
+     * @param event a change that has been committed
+     */
+    public void onEvent(GraphEvent event);
+
+    /**
+     * Called when the stream has no more events waiting, so buffered
+     * output can be written
+     */
+    public void flush();
+}
@@ -0,0 +1,264 @@
+/**
+ * GraphEventStream.java
+ *
+ * Delivers committed change events to sinks through a ring buffer.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+package com.ibm.research.govsci.graph;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Change data capture stream for {@link BlueprintsBase}.
+ *
+ * Writers publish events into a fixed size ring buffer without taking locks:
+ * each producer claims a slot with an atomic increment and fills it in, and a
+ * single delivery thread hands the events to every sink in order. The
+ * delivery thread sleeps while the buffer is empty and is woken by the next
+ * producer. When the buffer is full producers wait, with a growing pause,
+ * for the delivery thread to catch up rather than dropping events.
+ *
+ * Events for transactional graphs are staged per thread by
+ * {@link #stage(GraphEvent)} and only published once the transaction
+ * commits, so sinks never see changes that were rolled back.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class GraphEventStream implements Shutdownable {
+    private static final Logger log = LoggerFactory.getLogger(GraphEventStream.class);
+    public static final int DEFAULT_CAPACITY = 65536;
+    private static final int SPINS_BEFORE_PARK = 100;
+    private static final long MIN_PARK_NANOS = 50000L;
+    private static final long MAX_PARK_NANOS = 1000000L;
+
+    private final int mask;
+    private final AtomicReferenceArray<GraphEvent> ring;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private final List<GraphEventSink> sinks = new CopyOnWriteArrayList<GraphEventSink>();
+    private final ThreadLocal<List<GraphEvent>> staged = new ThreadLocal<List<GraphEvent>>() {
+        @Override
+        protected List<GraphEvent> initialValue() {
+            return new ArrayList<GraphEvent>();
+        }
+    };
+    private final AtomicLong delivered = new AtomicLong();
+    private final Thread consumer;
+    private volatile boolean running = true;
+    private volatile boolean sleeping = false;
+
+    /**
+     * @param capacity size of the ring buffer, rounded up to a power of two
+     */
+    public GraphEventStream(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mask = size - 1;
+        ring = new AtomicReferenceArray<GraphEvent>(size);
+        consumer = new Thread(new Runnable() {
+            public void run() {
+                deliver();
+            }
+        }, "graph-event-stream");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    public GraphEventStream() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public void addSink(GraphEventSink sink) {
+        sinks.add(sink);
+    }
+
+    public void removeSink(GraphEventSink sink) {
+        sinks.remove(sink);
+    }
+
+    /**
+     * @return true if there are sinks attached to the stream
+     */
+    public boolean hasSinks() {
+        return !sinks.isEmpty();
+    }
+
+    /**
+     * @return the number of events handed to the sinks so far
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * Publishes an event for delivery, waiting if the buffer is full
+     *
+     * @param event the event to publish
+     */
+    public void publish(GraphEvent event) {
+        long seq = claimed.getAndIncrement();
+        int spins = 0;
+        long park = MIN_PARK_NANOS;
+        while (seq - consumed.get() > mask) {
+            if (!running) {
+                log.warn("Event published after stream shutdown: {}", event);
+                return;
+            }
+            if (++spins > SPINS_BEFORE_PARK) {
+                LockSupport.parkNanos(park);
+                park = Math.min(MAX_PARK_NANOS, park * 2);
+            }
+        }
+        ring.set((int) seq & mask, event);
+        // the consumer sets sleeping before its last look at the ring
+        if (sleeping) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Holds an event until the current thread commits its transaction
+     *
+     * @param event the event to stage
+     */
+    public void stage(GraphEvent event) {
+        staged.get().add(event);
+    }
+
+    /**
+     * Publishes the events staged by the current thread
+     */
+    public void commitStaged() {
+        List<GraphEvent> events = staged.get();
+        try {
+            publishAll(events);
+        } finally {
+            events.clear();
+        }
+    }
+
+    /**
+     * Discards the events staged by the current thread
+     */
+    public void discardStaged() {
+        staged.get().clear();
+    }
+
+    /**
+     * @param events events to publish in order
+     */
+    public void publishAll(List<GraphEvent> events) {
+        for (int i = 0; i < events.size(); i++) {
+            publish(events.get(i));
+        }
+    }
+
+    /**
+     * Waits until every event published so far has been delivered
+     */
+    public void drain() {
+        long target = claimed.get();
+        long park = MIN_PARK_NANOS;
+        while (consumed.get() < target && consumer.isAlive()) {
+            LockSupport.parkNanos(park);
+            park = Math.min(MAX_PARK_NANOS, park * 2);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.ibm.research.govsci.graph.Shutdownable#shutdown()
+     */
+    public void shutdown() {
+        drain();
+        running = false;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join(10000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (GraphEventSink sink : sinks) {
+            if (sink instanceof Shutdownable) {
+                ((Shutdownable) sink).shutdown();
+            }
+        }
+        log.debug("Event stream delivered {} events", delivered.get());
+    }
+
+    private void deliver() {
+        long cursor = 0;
+        int idle = 0;
+        boolean unflushed = false;
+        while (true) {
+            int idx = (int) cursor & mask;
+            GraphEvent event = ring.get(idx);
+            if (event == null) {
+                if (unflushed) {
+                    flushSinks();
+                    unflushed = false;
+                }
+                if (!running && cursor >= claimed.get()) {
+                    return;
+                }
+                if (++idle > SPINS_BEFORE_PARK) {
+                    sleeping = true;
+                    if (running && ring.get(idx) == null) {
+                        LockSupport.park(this);
+                    }
+                    sleeping = false;
+                }
+                continue;
+            }
+            idle = 0;
+            for (GraphEventSink sink : sinks) {
+                try {
+                    sink.onEvent(event);
+                } catch (RuntimeException e) {
+                    log.error("Error delivering event {} to sink {}", new Object[] {event, sink, e});
+                }
+            }
+            ring.set(idx, null);
+            cursor++;
+            consumed.lazySet(cursor);
+            delivered.lazySet(cursor);
+            unflushed = true;
+        }
+    }
+
+    private void flushSinks() {
+        for (GraphEventSink sink : sinks) {
+            try {
+                sink.flush();
+            } catch (RuntimeException e) {
+                log.error("Error flushing sink {}", sink, e);
+            }
+        }
+    }
+}
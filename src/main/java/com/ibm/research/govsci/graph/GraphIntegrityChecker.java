@@ -0,0 +1,916 @@
+/**
+ * GraphIntegrityChecker.java
+ *
+ * Finds and repairs duplicate vertices and stale index entries.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+
+package com.ibm.research.govsci.graph;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tinkerpop.blueprints.CloseableIterable;
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Index;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jElement;
+import com.tinkerpop.blueprints.impls.neo4j.Neo4jIndex;
+
+/**
+ * Checks a graph created through {@link BlueprintsBase} for damage and
+ * optionally repairs it.
+ *
+ * The checker looks for:
+ * <ul>
+ * <li>vertices of the same type that share a key registered with
+ * {@link #addKey(String, String, String)}</li>
+ * <li>vertices missing from <code>type-idx</code>, and entries in
+ * <code>type-idx</code> for vertices that no longer have that type</li>
+ * <li>the same two problems for the manual index of each key</li>
+ * <li>vertices without <code>sys_created_at</code></li>
+ * <li>entries in <code>type-idx</code> and the key indexes for vertices that
+ * were removed</li>
+ * </ul>
+ *
+ * Entries for removed vertices can only be found by listing every entry of
+ * an index, which Blueprints only offers through a wildcard
+ * {@link Index#query(String, Object)}, supported by the Lucene indexes of
+ * Neo4j. For other engines only entries under the types and key values of
+ * vertices that still exist are checked, so an entry for a removed vertex
+ * whose key no other vertex has is not found; the indexes that could not be
+ * listed are named in {@link Report#getIndexesNotListed()}. Such entries
+ * are removed through the raw Neo4j index, as the value they were stored
+ * under is no longer known.
+ *
+ * The graph is read in a single pass that writes vertex ids and keys to
+ * temporary files, one set per vertex type, so memory use does not grow with
+ * the size of the graph. Each type is then checked on its own thread: the
+ * files are sorted with an {@link ExternalSorter}, duplicates are found as
+ * runs of equal keys and missing index entries by merging the sorted vertex
+ * ids with the sorted ids from the index.
+ *
+ * {@link #repair()} fixes what it finds. Duplicate vertices are merged into
+ * the oldest one: properties it lacks are copied over, each edge is copied
+ * to it with all of its properties, including its creation time, and the
+ * duplicates are removed with
+ * {@link BlueprintsBase#removeVertex(Vertex)}. Index entries are added or
+ * removed and missing creation times are set to the current time. Changes
+ * are committed every {@link EngineProfile#getCommitBatchSize()} repairs on
+ * transactional graphs; if a batch fails it is rolled back and running the
+ * repair again picks up whatever is left. Repairs on non-transactional
+ * graphs, and all work on OrientDB, run on a single thread.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class GraphIntegrityChecker {
+    private static final Logger log = LoggerFactory.getLogger(GraphIntegrityChecker.class);
+    private static final int MAX_SAMPLES = 100;
+
+    /**
+     * The kinds of problem the checker looks for
+     */
+    public enum Problem {
+        /** more than one vertex of a type has the same key */
+        DUPLICATE_KEY,
+        /** a vertex is not in <code>type-idx</code> under its type */
+        MISSING_TYPE_INDEX,
+        /** <code>type-idx</code> has an entry for a vertex of another type, or a removed vertex */
+        ORPHAN_TYPE_INDEX,
+        /** a vertex is not in the manual index for its key */
+        MISSING_INDEX_ENTRY,
+        /** a manual index has an entry for a vertex without that key, or a removed vertex */
+        ORPHAN_INDEX_ENTRY,
+        /** a vertex has no <code>sys_created_at</code> */
+        MISSING_CREATED_AT
+    }
+
+    /**
+     * Counts of the problems found and repaired, with a sample of the details
+     */
+    public static class Report {
+        private final Map<Problem, AtomicLong> found = new EnumMap<Problem, AtomicLong>(Problem.class);
+        private final Map<Problem, AtomicLong> repaired = new EnumMap<Problem, AtomicLong>(Problem.class);
+        private final List<String> samples = new ArrayList<String>();
+        private final List<String> notListed = new ArrayList<String>();
+        private final AtomicLong verticesScanned = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+
+        Report() {
+            for (Problem p : Problem.values()) {
+                found.put(p, new AtomicLong());
+                repaired.put(p, new AtomicLong());
+            }
+        }
+
+        void found(Problem problem, String detail) {
+            found.get(problem).incrementAndGet();
+            synchronized (samples) {
+                if (samples.size() < MAX_SAMPLES) {
+                    samples.add(problem + ": " + detail);
+                }
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("{}: {}", problem, detail);
+            }
+        }
+
+        void repaired(Problem problem) {
+            repaired.get(problem).incrementAndGet();
+        }
+
+        /** @return the number of times a problem was found */
+        public long getFound(Problem problem) {
+            return found.get(problem).get();
+        }
+
+        /** @return the number of times a problem was repaired */
+        public long getRepaired(Problem problem) {
+            return repaired.get(problem).get();
+        }
+
+        /** @return the total number of problems found */
+        public long getTotalFound() {
+            long total = 0;
+            for (AtomicLong count : found.values()) {
+                total += count.get();
+            }
+            return total;
+        }
+
+        /** @return descriptions of the first problems found */
+        public List<String> getSamples() {
+            synchronized (samples) {
+                return new ArrayList<String>(samples);
+            }
+        }
+
+        public long getVerticesScanned() {
+            return verticesScanned.get();
+        }
+
+        /**
+         * @return the indexes and keys whose entries could not be listed, so
+         *          entries for removed vertices were only looked for under
+         *          the keys of existing vertices
+         */
+        public List<String> getIndexesNotListed() {
+            synchronized (notListed) {
+                return new ArrayList<String>(notListed);
+            }
+        }
+
+        /** @return the number of vertex types that could not be fully checked */
+        public long getErrors() {
+            return errors.get();
+        }
+
+        /** @return true if no problems were found and nothing failed */
+        public boolean isClean() {
+            return getTotalFound() == 0 && errors.get() == 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("scanned=").append(verticesScanned.get());
+            for (Problem p : Problem.values()) {
+                sb.append(' ').append(p).append('=').append(found.get(p).get());
+                sb.append('/').append(repaired.get(p).get());
+            }
+            sb.append(" errors=").append(errors.get());
+            if (!notListed.isEmpty()) {
+                sb.append(" notListed=").append(getIndexesNotListed());
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * A key that should be unique within a vertex type
+     */
+    private static class Key {
+        private final String idcol;
+        private final String idxname;
+
+        Key(String idcol, String idxname) {
+            this.idcol = idcol;
+            this.idxname = idxname;
+        }
+    }
+
+    /**
+     * The temporary files written for one vertex type during the scan
+     */
+    private class TypeFiles {
+        private final File ids;
+        private final BufferedWriter idsOut;
+        private final File keys;
+        private final BufferedWriter keysOut;
+        private final File missingCreated;
+        private final BufferedWriter missingCreatedOut;
+
+        TypeFiles(boolean keyed) throws IOException {
+            ids = sorter.createTempFile("integrity-ids");
+            idsOut = ExternalSorter.writer(ids);
+            keys = keyed ? sorter.createTempFile("integrity-keys") : null;
+            keysOut = keyed ? ExternalSorter.writer(keys) : null;
+            missingCreated = sorter.createTempFile("integrity-created");
+            missingCreatedOut = ExternalSorter.writer(missingCreated);
+        }
+
+        void close() throws IOException {
+            idsOut.close();
+            if (keysOut != null) {
+                keysOut.close();
+            }
+            missingCreatedOut.close();
+        }
+
+        void delete() {
+            ExternalSorter.delete(ids);
+            ExternalSorter.delete(keys);
+            ExternalSorter.delete(missingCreated);
+        }
+    }
+
+    private final BlueprintsBase graph;
+    private final Map<String, Key> keys = new HashMap<String, Key>();
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private File tempDir = null;
+    private int maxLinesInMemory = ExternalSorter.DEFAULT_MAX_LINES;
+    private ExternalSorter sorter;
+    private Report report;
+    private boolean repair;
+    private Map<String, Index<Vertex>> listable;
+
+    public GraphIntegrityChecker(BlueprintsBase graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * Registers a key that should be unique among the vertices of a type
+     *
+     * @param vertexType the type of vertex
+     * @param idcol the property holding the key
+     * @param idxname the manual index the vertices are stored in under the
+     *          key, or null if there is none
+     */
+    public void addKey(String vertexType, String idcol, String idxname) {
+        keys.put(vertexType, new Key(idcol, idxname));
+    }
+
+    /**
+     * @param threads number of vertex types checked at the same time
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @param tempDir directory for the temporary files, or null for the system default
+     */
+    public void setTempDir(File tempDir) {
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * @param maxLines number of lines sorted in memory at a time
+     */
+    public void setMaxLinesInMemory(int maxLines) {
+        this.maxLinesInMemory = maxLines;
+    }
+
+    /**
+     * Checks the graph without changing it
+     *
+     * @return the problems found, or null if the temporary files could not be written
+     */
+    public Report check() {
+        return run(false);
+    }
+
+    /**
+     * Checks the graph and repairs the problems found
+     *
+     * @return the problems found and repaired, or null if the temporary files
+     *          could not be written
+     */
+    public Report repair() {
+        return run(true);
+    }
+
+    private synchronized Report run(boolean repair) {
+        this.repair = repair;
+        this.report = new Report();
+        this.sorter = new ExternalSorter(tempDir, maxLinesInMemory);
+        long start = System.currentTimeMillis();
+        Map<String, TypeFiles> files;
+        try {
+            files = scan();
+        } catch (IOException e) {
+            log.error("Error writing integrity check files", e);
+            return null;
+        }
+        findListableIndexes();
+        int nthreads = threads;
+        if (Engine.ORIENTDB.equals(graph.getDbengine()) || (repair && !graph.supportsTransactions())) {
+            nthreads = 1;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(nthreads, files.size())));
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (Map.Entry<String, TypeFiles> e : files.entrySet()) {
+                futures.add(pool.submit(new TypeCheck(e.getKey(), e.getValue())));
+            }
+            for (Future<Void> f : futures) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    log.error("Error checking vertex type", e.getCause());
+                    report.errors.incrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    report.errors.incrementAndGet();
+                    break;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            for (TypeFiles tf : files.values()) {
+                tf.delete();
+            }
+        }
+        for (Map.Entry<String, Index<Vertex>> e : listable.entrySet()) {
+            String key = e.getKey().substring(e.getKey().indexOf('\t') + 1);
+            try {
+                checkRemovedEntries(e.getValue(), key);
+            } catch (RuntimeException ex) {
+                log.error("Error checking index {} for removed vertices", e.getValue().getIndexName(), ex);
+                report.errors.incrementAndGet();
+                if (repair && graph.supportsTransactions()) {
+                    graph.rollbackTransaction();
+                }
+            }
+        }
+        if (repair && graph.getLookupCache() != null) {
+            // index entries are repaired directly, so cached results may be stale
+            graph.getLookupCache().clear();
+        }
+        log.info("Integrity {} finished in {}ms: {}",
+                new Object[] {repair ? "repair" : "check", System.currentTimeMillis() - start, report});
+        return report;
+    }
+
+    /**
+     * Finds which of the indexes to check can list all of their entries
+     */
+    private void findListableIndexes() {
+        listable = new HashMap<String, Index<Vertex>>();
+        if (!graph.supportsIndexes()) {
+            return;
+        }
+        probe(graph.typeidx, BlueprintsBase.PROPERTY_TYPE);
+        for (Key key : keys.values()) {
+            if (key.idxname != null) {
+                probe(graph.getOrCreateIndex(key.idxname), key.idcol);
+            }
+        }
+    }
+
+    private void probe(Index<Vertex> index, String key) {
+        String name = index.getIndexName() + "\t" + key;
+        if (listable.containsKey(name)) {
+            return;
+        }
+        try {
+            index.query(key, "*").close();
+            listable.put(name, index);
+        } catch (RuntimeException e) {
+            synchronized (report.notListed) {
+                String desc = index.getIndexName() + " " + key;
+                if (!report.notListed.contains(desc)) {
+                    report.notListed.add(desc);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if entries in the index under the key are listed by
+     *          {@link #checkRemovedEntries(Index, String)}
+     */
+    private boolean listable(Index<Vertex> index, String key) {
+        return listable.containsKey(index.getIndexName() + "\t" + key);
+    }
+
+    private boolean isRemoved(Vertex v) {
+        try {
+            return graph.kigraph.getVertex(v.getId()) == null;
+        } catch (RuntimeException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Lists every entry of an index under a key and finds those for removed vertices
+     */
+    private void checkRemovedEntries(Index<Vertex> index, String key) {
+        Problem problem = index == graph.typeidx ? Problem.ORPHAN_TYPE_INDEX : Problem.ORPHAN_INDEX_ENTRY;
+        List<Vertex> removed = new ArrayList<Vertex>();
+        CloseableIterable<Vertex> hits = index.query(key, "*");
+        try {
+            for (Vertex v : hits) {
+                if (isRemoved(v)) {
+                    report.found(problem, index.getIndexName() + " " + key + " removed vertex " + v.getId());
+                    if (repair) {
+                        removed.add(v);
+                    }
+                }
+            }
+        } finally {
+            hits.close();
+        }
+        int pending = 0;
+        for (Vertex v : removed) {
+            if (removeEntries(index, v, key)) {
+                report.repaired(problem);
+                if (graph.supportsTransactions() && ++pending >= graph.getEngineProfile().getCommitBatchSize()) {
+                    graph.stopTransaction();
+                    pending = 0;
+                }
+            }
+        }
+        if (repair && graph.supportsTransactions()) {
+            graph.stopTransaction();
+        }
+    }
+
+    /**
+     * Removes the entries for a vertex under a key without knowing their values
+     *
+     * @return true if the entries were removed
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static boolean removeEntries(Index<Vertex> index, Vertex v, String key) {
+        if (index instanceof Neo4jIndex && v instanceof Neo4jElement) {
+            ((Neo4jIndex) index).getRawIndex().remove(((Neo4jElement) v).getRawElement(), key);
+            return true;
+        }
+        log.warn("Unable to remove entries for {} from index {}", v.getId(), index.getIndexName());
+        return false;
+    }
+
+    /**
+     * Reads every vertex once and writes its id, key and creation time status
+     * to the files for its type
+     */
+    private Map<String, TypeFiles> scan() throws IOException {
+        Map<String, TypeFiles> files = new HashMap<String, TypeFiles>();
+        try {
+            for (Vertex v : graph.kigraph.getVertices()) {
+                report.verticesScanned.incrementAndGet();
+                Object type = v.getProperty(BlueprintsBase.PROPERTY_TYPE);
+                if (!(type instanceof String)) {
+                    continue;
+                }
+                TypeFiles tf = files.get(type);
+                if (tf == null) {
+                    tf = new TypeFiles(keys.containsKey(type));
+                    files.put((String) type, tf);
+                }
+                String id = encode(v.getId());
+                tf.idsOut.write(id);
+                tf.idsOut.write('\n');
+                if (tf.keysOut != null) {
+                    Object idval = v.getProperty(keys.get(type).idcol);
+                    if (idval != null) {
+                        tf.keysOut.write(encode(idval));
+                        tf.keysOut.write('\t');
+                        tf.keysOut.write(id);
+                        tf.keysOut.write('\n');
+                    }
+                }
+                if (v.getProperty(BlueprintsBase.PROPERTY_CREATED_AT) == null) {
+                    tf.missingCreatedOut.write(id);
+                    tf.missingCreatedOut.write('\n');
+                }
+            }
+        } finally {
+            for (TypeFiles tf : files.values()) {
+                tf.close();
+            }
+        }
+        log.debug("Scanned {} vertices of {} types", report.verticesScanned.get(), files.size());
+        return files;
+    }
+
+    /**
+     * Checks and repairs the vertices of one type
+     */
+    private class TypeCheck implements Callable<Void> {
+        private final String type;
+        private final TypeFiles files;
+        private int pending = 0;
+
+        TypeCheck(String type, TypeFiles files) {
+            this.type = type;
+            this.files = files;
+        }
+
+        public Void call() throws IOException {
+            try {
+                checkCreatedAt();
+                if (graph.supportsIndexes()) {
+                    checkTypeIndex();
+                }
+                Key key = keys.get(type);
+                if (key != null) {
+                    checkKeys(key);
+                }
+                if (repair && graph.supportsTransactions()) {
+                    graph.stopTransaction();
+                }
+            } catch (RuntimeException e) {
+                if (repair && graph.supportsTransactions()) {
+                    graph.rollbackTransaction();
+                }
+                throw e;
+            }
+            return null;
+        }
+
+        private void checkCreatedAt() throws IOException {
+            BufferedReader in = ExternalSorter.reader(files.missingCreated);
+            try {
+                String id;
+                while ((id = in.readLine()) != null) {
+                    report.found(Problem.MISSING_CREATED_AT, type + " " + decode(id));
+                    if (repair) {
+                        Vertex v = graph.kigraph.getVertex(decode(id));
+                        if (v != null) {
+                            graph.setElementCreateTime(v);
+                            repaired(Problem.MISSING_CREATED_AT);
+                        }
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        /**
+         * Finds orphans while reading the type index, then merges the sorted
+         * index ids with the sorted vertex ids to find the missing entries
+         */
+        private void checkTypeIndex() throws IOException {
+            File indexed = sorter.createTempFile("integrity-idx");
+            File sortedIndexed = null;
+            File sortedIds = null;
+            try {
+                List<Vertex> orphans = new ArrayList<Vertex>();
+                boolean typeListable = listable(graph.typeidx, BlueprintsBase.PROPERTY_TYPE);
+                BufferedWriter out = ExternalSorter.writer(indexed);
+                try {
+                    for (Vertex v : graph.typeidx.get(BlueprintsBase.PROPERTY_TYPE, type)) {
+                        if (hasProperty(v, BlueprintsBase.PROPERTY_TYPE, type)) {
+                            out.write(encode(v.getId()));
+                            out.write('\n');
+                        } else if (typeListable && isRemoved(v)) {
+                            // found by checkRemovedEntries
+                            continue;
+                        } else {
+                            report.found(Problem.ORPHAN_TYPE_INDEX, type + " " + v.getId());
+                            orphans.add(v);
+                        }
+                    }
+                } finally {
+                    out.close();
+                }
+                if (repair) {
+                    for (Vertex v : orphans) {
+                        graph.typeidx.remove(BlueprintsBase.PROPERTY_TYPE, type, v);
+                        repaired(Problem.ORPHAN_TYPE_INDEX);
+                    }
+                }
+                sortedIds = sorter.sort(files.ids);
+                sortedIndexed = sorter.sort(indexed);
+                BufferedReader ids = ExternalSorter.reader(sortedIds);
+                BufferedReader idx = ExternalSorter.reader(sortedIndexed);
+                try {
+                    String id = ids.readLine();
+                    String entry = idx.readLine();
+                    while (id != null) {
+                        int c = entry == null ? -1 : id.compareTo(entry);
+                        if (c == 0) {
+                            id = ids.readLine();
+                        } else if (c < 0) {
+                            missingTypeIndex(decode(id));
+                            id = ids.readLine();
+                        } else {
+                            entry = idx.readLine();
+                        }
+                    }
+                } finally {
+                    ids.close();
+                    idx.close();
+                }
+            } finally {
+                ExternalSorter.delete(indexed);
+                ExternalSorter.delete(sortedIndexed);
+                ExternalSorter.delete(sortedIds);
+            }
+        }
+
+        private void missingTypeIndex(Object id) {
+            report.found(Problem.MISSING_TYPE_INDEX, type + " " + id);
+            if (repair) {
+                Vertex v = graph.kigraph.getVertex(id);
+                if (v != null) {
+                    graph.typeidx.put(BlueprintsBase.PROPERTY_TYPE, type, v);
+                    repaired(Problem.MISSING_TYPE_INDEX);
+                }
+            }
+        }
+
+        /**
+         * Sorts the keys so that vertices sharing a key are next to each
+         * other and checks each key in turn
+         */
+        private void checkKeys(Key key) throws IOException {
+            Index<Vertex> index = null;
+            if (key.idxname != null && graph.supportsIndexes()) {
+                index = graph.getOrCreateIndex(key.idxname);
+            }
+            File sorted = sorter.sort(files.keys);
+            BufferedReader in = ExternalSorter.reader(sorted);
+            try {
+                String current = null;
+                List<String> group = new ArrayList<String>();
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int tab = line.indexOf('\t');
+                    String value = line.substring(0, tab);
+                    if (!value.equals(current)) {
+                        if (current != null) {
+                            checkKey(key, index, current, group);
+                        }
+                        current = value;
+                        group.clear();
+                    }
+                    group.add(line.substring(tab + 1));
+                }
+                if (current != null) {
+                    checkKey(key, index, current, group);
+                }
+            } finally {
+                in.close();
+                ExternalSorter.delete(sorted);
+            }
+        }
+
+        private void checkKey(Key key, Index<Vertex> index, String encodedValue, List<String> ids) {
+            Object idval = decode(encodedValue);
+            List<Vertex> vertices = new ArrayList<Vertex>(ids.size());
+            for (String id : ids) {
+                Vertex v = graph.kigraph.getVertex(decode(id));
+                if (v != null) {
+                    vertices.add(v);
+                }
+            }
+            if (vertices.size() > 1) {
+                report.found(Problem.DUPLICATE_KEY, type + " " + key.idcol + "=" + idval + " " + ids);
+                if (repair) {
+                    vertices = Collections.singletonList(merge(vertices));
+                    repaired(Problem.DUPLICATE_KEY);
+                }
+            }
+            if (index == null) {
+                return;
+            }
+            Set<Object> unindexed = new HashSet<Object>();
+            for (Vertex v : vertices) {
+                unindexed.add(v.getId());
+            }
+            List<Vertex> orphans = new ArrayList<Vertex>();
+            boolean keyListable = listable(index, key.idcol);
+            for (Vertex v : index.get(key.idcol, idval)) {
+                if (!unindexed.remove(v.getId()) && !hasKey(v, key, encodedValue)
+                        && !(keyListable && isRemoved(v))) {
+                    report.found(Problem.ORPHAN_INDEX_ENTRY, key.idxname + " " + key.idcol + "=" + idval + " " + v.getId());
+                    orphans.add(v);
+                }
+            }
+            for (Vertex v : vertices) {
+                if (unindexed.contains(v.getId())) {
+                    report.found(Problem.MISSING_INDEX_ENTRY, key.idxname + " " + key.idcol + "=" + idval + " " + v.getId());
+                    if (repair) {
+                        graph.indexPut(index, key.idcol, idval, v);
+                        repaired(Problem.MISSING_INDEX_ENTRY);
+                    }
+                }
+            }
+            if (repair) {
+                for (Vertex v : orphans) {
+                    index.remove(key.idcol, idval, v);
+                    repaired(Problem.ORPHAN_INDEX_ENTRY);
+                }
+            }
+        }
+
+        private boolean hasKey(Vertex v, Key key, String encodedValue) {
+            try {
+                Object value = v.getProperty(key.idcol);
+                return value != null && type.equals(v.getProperty(BlueprintsBase.PROPERTY_TYPE))
+                        && encode(value).equals(encodedValue);
+            } catch (RuntimeException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Merges duplicate vertices into the one created first
+         *
+         * @return the remaining vertex
+         */
+        private Vertex merge(List<Vertex> vertices) {
+            Vertex keeper = vertices.get(0);
+            for (Vertex v : vertices) {
+                if (createdAt(v) < createdAt(keeper)) {
+                    keeper = v;
+                }
+            }
+            for (Vertex v : vertices) {
+                if (!v.equals(keeper)) {
+                    mergeInto(keeper, v);
+                }
+            }
+            return keeper;
+        }
+
+        private void mergeInto(Vertex keeper, Vertex dup) {
+            for (String key : dup.getPropertyKeys()) {
+                graph.setPropertyIfNull(keeper, key, dup.getProperty(key));
+            }
+            Set<Object> seen = new HashSet<Object>();
+            List<Edge> edges = new ArrayList<Edge>();
+            for (Edge e : dup.getEdges(Direction.BOTH)) {
+                if (seen.add(e.getId())) {
+                    edges.add(e);
+                }
+            }
+            for (Edge e : edges) {
+                Vertex out = e.getVertex(Direction.OUT);
+                Vertex in = e.getVertex(Direction.IN);
+                if (out.equals(keeper) || in.equals(keeper)) {
+                    // an edge between the duplicates would become a loop
+                    continue;
+                }
+                // parallel edges with the same label are distinct, so each is copied
+                Edge moved = graph.createEdge(null, out.equals(dup) ? keeper : out,
+                        in.equals(dup) ? keeper : in, e.getLabel());
+                graph.copyProperties(e, moved);
+            }
+            graph.removeVertex(dup);
+        }
+
+        private long createdAt(Vertex v) {
+            Object created = v.getProperty(BlueprintsBase.PROPERTY_CREATED_AT);
+            return created instanceof Number ? ((Number) created).longValue() : Long.MAX_VALUE;
+        }
+
+        /**
+         * Counts a repair and commits when a batch is complete
+         */
+        private void repaired(Problem problem) {
+            report.repaired(problem);
+            if (graph.supportsTransactions() && ++pending >= graph.getEngineProfile().getCommitBatchSize()) {
+                graph.stopTransaction();
+                pending = 0;
+            }
+        }
+    }
+
+    private static boolean hasProperty(Vertex v, String key, Object value) {
+        try {
+            return value.equals(v.getProperty(key));
+        } catch (RuntimeException e) {
+            // neo4j throws for vertices that were deleted
+            return false;
+        }
+    }
+
+    /**
+     * Encodes a value as a single line of text that keeps its type
+     */
+    static String encode(Object value) {
+        char tag;
+        if (value instanceof String) {
+            tag = 's';
+        } else if (value instanceof Long) {
+            tag = 'l';
+        } else if (value instanceof Integer) {
+            tag = 'i';
+        } else if (value instanceof Double) {
+            tag = 'd';
+        } else if (value instanceof Float) {
+            tag = 'f';
+        } else if (value instanceof Boolean) {
+            tag = 'b';
+        } else {
+            tag = 'o';
+        }
+        String s = value.toString();
+        StringBuilder sb = new StringBuilder(s.length() + 1);
+        sb.append(tag);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\t') {
+                sb.append("\\t");
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else if (c == '\r') {
+                sb.append("\\r");
+            } else if (c == '\\') {
+                sb.append("\\\\");
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reverses {@link #encode(Object)}; values of other types come back as strings
+     */
+    static Object decode(String encoded) {
+        StringBuilder sb = new StringBuilder(encoded.length());
+        for (int i = 1; i < encoded.length(); i++) {
+            char c = encoded.charAt(i);
+            if (c == '\\' && i + 1 < encoded.length()) {
+                char n = encoded.charAt(++i);
+                sb.append(n == 't' ? '\t' : n == 'n' ? '\n' : n == 'r' ? '\r' : n);
+            } else {
+                sb.append(c);
+            }
+        }
+        String s = sb.toString();
+        switch (encoded.charAt(0)) {
+        case 'l':
+            return Long.valueOf(s);
+        case 'i':
+            return Integer.valueOf(s);
+        case 'd':
+            return Double.valueOf(s);
+        case 'f':
+            return Float.valueOf(s);
+        case 'b':
+            return Boolean.valueOf(s);
+        default:
+            return s;
+        }
+    }
+}
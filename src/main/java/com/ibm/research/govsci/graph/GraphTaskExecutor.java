@@ -0,0 +1,406 @@
+/**
+ * GraphTaskExecutor.java
+ *
+ * Runs units of graph work concurrently with per-engine limits.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+
+package com.ibm.research.govsci.graph;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs many small units of graph work concurrently.
+ *
+ * Each task is a {@link TransactionalWork} run with
+ * {@link BlueprintsBase#runInTransaction(String, TransactionalWork)} on its
+ * own thread, so the transaction is started, committed or rolled back and
+ * retried on the thread that does the work, which is what engines that bind
+ * transactions to threads require. A semaphore limits how many tasks use the
+ * graph at once; the default limit depends on the engine, see
+ * {@link #defaultConcurrency(String)}.
+ *
+ * When the JVM supports virtual threads (Java 21 and later) tasks run on
+ * them, found through reflection so the library still builds for older
+ * JVMs. Tasks then wait for a permit without holding a platform thread, and
+ * thousands of them can be submitted at once. On older JVMs a fixed pool of
+ * platform threads the size of the limit is used instead.
+ *
+ * Tasks can be grouped in a {@link Scope}: if a task in a scope fails the
+ * other tasks in the scope are cancelled, and {@link Scope#join()} reports
+ * the failure. Cancelling never interrupts a running task, because an
+ * interrupt during store I/O can close Neo4j's store files; the task's
+ * transaction is rolled back when it finishes instead.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class GraphTaskExecutor implements Shutdownable {
+    private static final Logger log = LoggerFactory.getLogger(GraphTaskExecutor.class);
+    private static final String DEFAULT_OPERATION = "task";
+    private static final long PERMIT_POLL_MILLIS = 100;
+    private static final ThreadFactory VIRTUAL_THREAD_FACTORY = findVirtualThreadFactory();
+
+    private final BlueprintsBase graph;
+    private final Semaphore permits;
+    private final int maxConcurrent;
+    private final ExecutorService pool;
+    private final boolean virtual;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger peak = new AtomicInteger();
+
+    /**
+     * Creates an executor with the default limit for the graph's engine
+     *
+     * @param graph the graph tasks are run against
+     */
+    public GraphTaskExecutor(BlueprintsBase graph) {
+        this(graph, defaultConcurrency(graph.getDbengine()), VIRTUAL_THREAD_FACTORY);
+    }
+
+    /**
+     * @param graph the graph tasks are run against
+     * @param maxConcurrent number of tasks that may use the graph at once
+     * @param factory factory for the threads that run tasks; each task gets a
+     *          thread of its own, so this should make cheap threads such as
+     *          virtual threads. If null a fixed pool of
+     *          <code>maxConcurrent</code> platform threads is used.
+     */
+    public GraphTaskExecutor(BlueprintsBase graph, int maxConcurrent, ThreadFactory factory) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("maxConcurrent must be positive");
+        }
+        this.graph = graph;
+        this.maxConcurrent = maxConcurrent;
+        this.permits = new Semaphore(maxConcurrent, true);
+        this.virtual = factory != null;
+        if (factory != null) {
+            pool = Executors.newCachedThreadPool(factory);
+        } else {
+            pool = Executors.newFixedThreadPool(maxConcurrent, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "graph-task-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        log.debug("Task executor for {} allows {} concurrent tasks on {} threads",
+                new Object[] {graph.getDbengine(), maxConcurrent, virtual ? "virtual" : "platform"});
+    }
+
+    /**
+     * Number of tasks that can use an engine at once by default
+     *
+     * TinkerGraph is not thread safe and OrientDB databases are bound to a
+     * single thread, so both allow one task at a time. Neo4j and Titan tasks
+     * spend much of their time waiting on store I/O and allow several tasks
+     * per processor. Rexster tasks wait on the network.
+     *
+     * @param engine the engine name
+     * @return the number of tasks that may use the graph at once
+     */
+    public static int defaultConcurrency(String engine) {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        if (Engine.NEO4J.equals(engine)) {
+            return 4 * cpus;
+        } else if (Engine.TITAN.equals(engine)) {
+            return 2 * cpus;
+        } else if (Engine.REXSTER.equals(engine)) {
+            return 64;
+        } else if (Engine.TINKERGRAPH.equals(engine) || Engine.ORIENTDB.equals(engine)
+                || Engine.NEO4JBATCH.equals(engine)) {
+            return 1;
+        }
+        return cpus;
+    }
+
+    /**
+     * @return true if this JVM can create virtual threads
+     */
+    public static boolean isVirtualThreadsAvailable() {
+        return VIRTUAL_THREAD_FACTORY != null;
+    }
+
+    /**
+     * @return a factory for virtual threads, or null if this JVM has none
+     */
+    public static ThreadFactory virtualThreadFactory() {
+        return VIRTUAL_THREAD_FACTORY;
+    }
+
+    /**
+     * Looks up <code>Thread.ofVirtual().factory()</code>
+     */
+    private static ThreadFactory findVirtualThreadFactory() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (Exception e) {
+            log.debug("Virtual threads are not available", e);
+            return null;
+        }
+    }
+
+    /**
+     * Submits a unit of work
+     *
+     * @param operation name of the operation, used for the conflict metrics
+     * @param work the work to run in a transaction
+     * @return the result of the work
+     */
+    public <T> Future<T> submit(String operation, TransactionalWork<T> work) {
+        return pool.submit(task(operation, work, null));
+    }
+
+    public <T> Future<T> submit(TransactionalWork<T> work) {
+        return submit(DEFAULT_OPERATION, work);
+    }
+
+    /**
+     * @return a new scope for a group of related tasks
+     */
+    public Scope openScope() {
+        return new Scope();
+    }
+
+    private <T> Callable<T> task(final String operation, final TransactionalWork<T> work, final Scope scope) {
+        return new Callable<T>() {
+            public T call() throws InterruptedException {
+                acquirePermit(scope);
+                int now = active.incrementAndGet();
+                int max = peak.get();
+                while (now > max && !peak.compareAndSet(max, now)) {
+                    max = peak.get();
+                }
+                try {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedException();
+                    }
+                    return graph.runInTransaction(operation, work, scope == null ? null : scope.cancelled);
+                } catch (CancellationException e) {
+                    throw e;
+                } catch (RuntimeException e) {
+                    if (scope != null) {
+                        scope.fail(e);
+                    }
+                    throw e;
+                } catch (Error e) {
+                    if (scope != null) {
+                        scope.fail(e);
+                    }
+                    throw e;
+                } finally {
+                    active.decrementAndGet();
+                    permits.release();
+                }
+            }
+        };
+    }
+
+    /**
+     * Waits for a permit, giving up if the task's scope is cancelled
+     */
+    private void acquirePermit(Scope scope) throws InterruptedException {
+        if (scope == null) {
+            permits.acquire();
+            return;
+        }
+        while (!permits.tryAcquire(PERMIT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            scope.checkCancelled();
+        }
+        try {
+            scope.checkCancelled();
+        } catch (CancellationException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /** @return number of tasks using the graph right now */
+    public int getActive() {
+        return active.get();
+    }
+
+    /** @return the most tasks that have used the graph at once */
+    public int getPeakActive() {
+        return peak.get();
+    }
+
+    /** @return number of tasks waiting for a permit */
+    public int getWaiting() {
+        return permits.getQueueLength();
+    }
+
+    /** @return true if tasks run on virtual threads */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Stops accepting tasks and waits for the submitted tasks to finish
+     */
+    public void shutdown() {
+        pool.shutdown();
+        try {
+            while (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.info("Waiting for {} graph tasks to finish", active.get() + permits.getQueueLength());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * A group of tasks that succeed or fail together.
+     *
+     * The first task to fail cancels every other task in the scope. Tasks
+     * that have not started, or are waiting for a permit, do not run. Running
+     * tasks are not interrupted, but their transactions are rolled back when
+     * they finish, even if they return normally. The futures of cancelled
+     * tasks fail with a {@link CancellationException} as the cause, only once
+     * the task has stopped using the graph. Long running work can check
+     * {@link #isCancelled()} to stop early. Tasks may submit more tasks to
+     * their own scope.
+     */
+    public class Scope {
+        private final List<Future<?>> futures = new CopyOnWriteArrayList<Future<?>>();
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private volatile boolean closed = false;
+
+        Scope() {
+        }
+
+        /**
+         * Submits a unit of work to the scope
+         *
+         * @throws IllegalStateException if the scope has failed or was closed
+         */
+        public <T> Future<T> submit(String operation, TransactionalWork<T> work) {
+            if (closed || failure.get() != null) {
+                throw new IllegalStateException("Scope is closed");
+            }
+            Future<T> f = pool.submit(task(operation, work, this));
+            futures.add(f);
+            return f;
+        }
+
+        public <T> Future<T> submit(TransactionalWork<T> work) {
+            return submit(DEFAULT_OPERATION, work);
+        }
+
+        void fail(Throwable t) {
+            if (failure.compareAndSet(null, t)) {
+                log.debug("Task failed, cancelling {} tasks in scope", futures.size(), t);
+                cancel();
+            }
+        }
+
+        /**
+         * Cancels every unfinished task in the scope
+         */
+        public void cancel() {
+            cancelled.set(true);
+        }
+
+        /**
+         * @return true if the scope was cancelled or a task in it failed
+         */
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+
+        void checkCancelled() {
+            if (cancelled.get()) {
+                throw new CancellationException("Scope was cancelled");
+            }
+        }
+
+        /**
+         * Waits for every task in the scope, including tasks submitted while waiting
+         *
+         * @throws ExecutionException wrapping the first failure if a task failed
+         * @throws InterruptedException if the waiting thread is interrupted
+         */
+        public void join() throws InterruptedException, ExecutionException {
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (CancellationException e) {
+                    // cancelled because another task failed or the scope was cancelled
+                } catch (ExecutionException e) {
+                    if (!(e.getCause() instanceof CancellationException)) {
+                        failure.compareAndSet(null, e.getCause());
+                    }
+                }
+            }
+            Throwable t = failure.get();
+            if (t != null) {
+                throw new ExecutionException(t);
+            }
+        }
+
+        /**
+         * @return the first failure in the scope, or null
+         */
+        public Throwable getFailure() {
+            return failure.get();
+        }
+
+        /**
+         * Cancels any unfinished tasks and stops the scope accepting more
+         */
+        public void close() {
+            closed = true;
+            cancel();
+        }
+    }
+}
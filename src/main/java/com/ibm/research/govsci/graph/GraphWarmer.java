@@ -0,0 +1,389 @@
+/**
+ * GraphWarmer.java
+ *
+ * Warms the store, indexes and lookup cache after a graph is opened.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+
+package com.ibm.research.govsci.graph;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.blueprints.Index;
+import com.tinkerpop.blueprints.Vertex;
+
+/**
+ * Warms up a graph that was just opened so a load runs at full speed from
+ * the start.
+ *
+ * The warm-up has three phases, each reported to a {@link ProgressListener}:
+ * <ol>
+ * <li><code>warmup-store</code> reads every file in the store directory
+ * through memory mapped buffers, a chunk at a time, so the operating system
+ * has the store in its page cache</li>
+ * <li><code>warmup-types</code> iterates <code>type-idx</code> for each
+ * vertex type asked for</li>
+ * <li><code>warmup-lookups</code> replays the lookups in the hot set through
+ * {@link BlueprintsBase#lookup(Index, String, Object)} and
+ * {@link BlueprintsBase#lookupVertices(String, Object)}, which loads their
+ * index pages and, if there is one, fills the {@link LookupCache}</li>
+ * </ol>
+ *
+ * The hot set is a text file written by {@link #saveHotSet(File, Collection, int)}, which
+ * {@link BlueprintsBase#shutdown()} calls when a hot set file is set. It
+ * lists the vertex types that were warmed and the lookups with the most hits
+ * in the lookup cache. The lookups are run twice and the difference between
+ * the first and second pass is reported as an estimate of the time the
+ * warm-up saved later queries. The second pass goes straight to the indexes,
+ * bypassing the lookup cache, so the estimate measures the warmed store
+ * rather than the cache.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class GraphWarmer {
+    private static final Logger log = LoggerFactory.getLogger(GraphWarmer.class);
+    public static final int DEFAULT_HOT_SET_SIZE = 10000;
+    private static final long MAP_CHUNK = 64L * 1024 * 1024;
+    private static final String TYPE_RECORD = "T";
+    private static final String LOOKUP_RECORD = "L";
+
+    /**
+     * What a warm-up did and how long it took
+     */
+    public static class Report {
+        private int files;
+        private long storeBytes;
+        private long storeMillis;
+        private int types;
+        private long vertices;
+        private long typesMillis;
+        private int lookups;
+        private long lookupsMillis;
+        private long savedMillis;
+
+        public int getFiles() {
+            return files;
+        }
+
+        /** @return bytes of the store read into the page cache */
+        public long getStoreBytes() {
+            return storeBytes;
+        }
+
+        public long getStoreMillis() {
+            return storeMillis;
+        }
+
+        public int getTypes() {
+            return types;
+        }
+
+        /** @return vertices read from <code>type-idx</code> */
+        public long getVertices() {
+            return vertices;
+        }
+
+        public long getTypesMillis() {
+            return typesMillis;
+        }
+
+        /** @return lookups replayed from the hot set */
+        public int getLookups() {
+            return lookups;
+        }
+
+        public long getLookupsMillis() {
+            return lookupsMillis;
+        }
+
+        /**
+         * @return how much longer the hot set lookups took cold than warm, an
+         *          estimate of the time saved by warming them
+         */
+        public long getSavedMillis() {
+            return savedMillis;
+        }
+
+        public long getTotalMillis() {
+            return storeMillis + typesMillis + lookupsMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("store: %d files %d bytes in %dms, types: %d types %d vertices in %dms, "
+                    + "lookups: %d in %dms, saved %dms",
+                    files, storeBytes, storeMillis, types, vertices, typesMillis, lookups, lookupsMillis, savedMillis);
+        }
+    }
+
+    private final BlueprintsBase graph;
+    private final List<String> warmedTypes = new ArrayList<String>();
+
+    public GraphWarmer(BlueprintsBase graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * Runs the warm-up
+     *
+     * @param store the store directory, or null to skip reading the store
+     * @param hotSet the hot set file, or null if there is none
+     * @param types vertex types to read from <code>type-idx</code> as well as
+     *          the types listed in the hot set
+     * @param progress told about each phase, may be null
+     * @return what the warm-up did
+     */
+    public Report warmUp(File store, File hotSet, Collection<String> types, ProgressListener progress) {
+        Report report = new Report();
+        List<String> warmTypes = new ArrayList<String>(types);
+        List<LookupCache.Key> lookups = new ArrayList<LookupCache.Key>();
+        if (hotSet != null && hotSet.isFile()) {
+            readHotSet(hotSet, warmTypes, lookups);
+        }
+        warmedTypes.clear();
+        warmedTypes.addAll(warmTypes);
+        if (store != null) {
+            long start = System.currentTimeMillis();
+            warmStore(store, report, progress);
+            report.storeMillis = System.currentTimeMillis() - start;
+        }
+        if (graph.supportsIndexes()) {
+            long start = System.currentTimeMillis();
+            warmTypes(warmTypes, report, progress);
+            report.typesMillis = System.currentTimeMillis() - start;
+        }
+        if (!lookups.isEmpty()) {
+            long start = System.currentTimeMillis();
+            long cold = replay(lookups, true, progress);
+            long warm = replay(lookups, false, null);
+            report.lookups = lookups.size();
+            report.savedMillis = Math.max(0, cold - warm);
+            report.lookupsMillis = System.currentTimeMillis() - start;
+        }
+        log.info("Warm-up finished in {}ms - {}", report.getTotalMillis(), report);
+        return report;
+    }
+
+    /**
+     * @return the vertex types read by the last warm-up, including those from the hot set
+     */
+    public List<String> getWarmedTypes() {
+        return warmedTypes;
+    }
+
+    /**
+     * Writes the hot set for the next warm-up
+     *
+     * @param f the file to write
+     * @param types the vertex types to warm next time
+     * @param size the maximum number of lookups to save
+     */
+    public void saveHotSet(File f, Collection<String> types, int size) {
+        LookupCache cache = graph.getLookupCache();
+        List<LookupCache.Key> keys = cache != null ? cache.hottest(size) : new ArrayList<LookupCache.Key>();
+        try {
+            BufferedWriter out = ExternalSorter.writer(f);
+            try {
+                for (String type : types) {
+                    out.write(TYPE_RECORD + "\t" + GraphIntegrityChecker.encode(type) + "\n");
+                }
+                for (LookupCache.Key key : keys) {
+                    out.write(LOOKUP_RECORD);
+                    out.write('\t');
+                    out.write(key.getIndexName() != null ? GraphIntegrityChecker.encode(key.getIndexName()) : "");
+                    out.write('\t');
+                    out.write(Edge.class.equals(key.getElementClass()) ? "E" : "V");
+                    out.write('\t');
+                    out.write(GraphIntegrityChecker.encode(key.getKey()));
+                    out.write('\t');
+                    out.write(GraphIntegrityChecker.encode(key.getValue()));
+                    out.write('\n');
+                }
+            } finally {
+                out.close();
+            }
+            log.info("Saved hot set of {} types and {} lookups to {}", new Object[] {types.size(), keys.size(), f});
+        } catch (IOException e) {
+            log.error("Error writing hot set {}", f, e);
+        }
+    }
+
+    private void readHotSet(File f, List<String> types, List<LookupCache.Key> lookups) {
+        try {
+            BufferedReader in = ExternalSorter.reader(f);
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split("\t", -1);
+                    if (fields[0].equals(TYPE_RECORD) && fields.length == 2) {
+                        String type = (String) GraphIntegrityChecker.decode(fields[1]);
+                        if (!types.contains(type)) {
+                            types.add(type);
+                        }
+                    } else if (fields[0].equals(LOOKUP_RECORD) && fields.length == 5) {
+                        String indexName = fields[1].length() > 0 ? (String) GraphIntegrityChecker.decode(fields[1]) : null;
+                        Class<? extends Element> elementClass = fields[2].equals("E") ? Edge.class : Vertex.class;
+                        lookups.add(new LookupCache.Key(indexName, elementClass,
+                                (String) GraphIntegrityChecker.decode(fields[3]), GraphIntegrityChecker.decode(fields[4])));
+                    } else {
+                        log.warn("Ignoring malformed hot set line: {}", line);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.error("Error reading hot set {}", f, e);
+        }
+    }
+
+    /**
+     * Maps each file of the store and loads it into memory
+     */
+    private void warmStore(File store, Report report, ProgressListener progress) {
+        List<File> files = new ArrayList<File>();
+        listFiles(store, files);
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        for (File f : files) {
+            try {
+                FileInputStream in = new FileInputStream(f);
+                try {
+                    FileChannel channel = in.getChannel();
+                    long size = channel.size();
+                    for (long pos = 0; pos < size; pos += MAP_CHUNK) {
+                        channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_CHUNK, size - pos)).load();
+                        report.storeBytes += Math.min(MAP_CHUNK, size - pos);
+                        if (progress != null) {
+                            progress.progress("warmup-store", report.storeBytes, total);
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+                report.files++;
+            } catch (IOException e) {
+                log.warn("Unable to read store file {}: {}", f, e.getMessage());
+            }
+        }
+        log.debug("Read {} bytes in {} store files", report.storeBytes, report.files);
+    }
+
+    private static void listFiles(File f, List<File> files) {
+        if (f.isFile()) {
+            if (f.length() > 0) {
+                files.add(f);
+            }
+            return;
+        }
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                listFiles(c, files);
+            }
+        }
+    }
+
+    private void warmTypes(List<String> types, Report report, ProgressListener progress) {
+        for (String type : types) {
+            for (Vertex v : graph.getVerticesByType(type)) {
+                v.getId();
+                report.vertices++;
+            }
+            report.types++;
+            if (progress != null) {
+                progress.progress("warmup-types", report.types, types.size());
+            }
+        }
+    }
+
+    /**
+     * Runs each lookup once
+     *
+     * @param cached true to go through the lookup cache, false to query the indexes directly
+     * @return the time taken in milliseconds
+     */
+    private long replay(List<LookupCache.Key> lookups, boolean cached, ProgressListener progress) {
+        long start = System.nanoTime();
+        int done = 0;
+        for (LookupCache.Key key : lookups) {
+            try {
+                if (key.getIndexName() == null) {
+                    if (cached) {
+                        graph.lookupVertices(key.getKey(), key.getValue());
+                    } else {
+                        consume(graph.kigraph.getVertices(key.getKey(), key.getValue()));
+                    }
+                } else {
+                    replayIndex(key.getIndexName(), key.getElementClass(), key.getKey(), key.getValue(), cached);
+                }
+            } catch (RuntimeException e) {
+                log.debug("Error replaying lookup {}", key, e);
+            }
+            done++;
+            if (progress != null && (done % 1000 == 0 || done == lookups.size())) {
+                progress.progress("warmup-lookups", done, lookups.size());
+            }
+        }
+        return (System.nanoTime() - start) / 1000000L;
+    }
+
+    private <T extends Element> void replayIndex(String indexName, Class<T> elementClass, String key, Object value,
+            boolean cached) {
+        if (!graph.supportsIndexes()) {
+            return;
+        }
+        Index<T> index = graph.getIndexRegistry().get(indexName, elementClass);
+        if (index == null) {
+            return;
+        }
+        if (cached) {
+            graph.lookup(index, key, value);
+        } else {
+            consume(index.get(key, value));
+        }
+    }
+
+    private static void consume(Iterable<? extends Element> elements) {
+        Iterator<? extends Element> it = elements.iterator();
+        while (it.hasNext()) {
+            it.next();
+        }
+    }
+}
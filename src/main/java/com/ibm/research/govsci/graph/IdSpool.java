@@ -0,0 +1,121 @@
+/**
+ * IdSpool.java
+ *
+ * Holds a sequence of element ids, spilling them to disk when there are many.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+package com.ibm.research.govsci.graph;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A list of element ids that is written once and then read back once.
+ *
+ * The first ids are kept in memory. Once there are more than fit, all of
+ * them are written to a temporary file in the format used by
+ * {@link GraphIntegrityChecker}, so the list can be longer than the heap
+ * allows. Call {@link #delete()} when done to remove the file.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+class IdSpool {
+    private final int memoryLimit;
+    private final List<Object> ids = new ArrayList<Object>();
+    private long size = 0;
+    private int position = 0;
+    private File file = null;
+    private BufferedWriter out = null;
+    private BufferedReader in = null;
+
+    /**
+     * @param memoryLimit number of ids kept in memory before spilling to disk
+     */
+    IdSpool(int memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    void add(Object id) throws IOException {
+        size++;
+        if (out == null && ids.size() < memoryLimit) {
+            ids.add(id);
+            return;
+        }
+        if (out == null) {
+            file = new ExternalSorter(null).createTempFile("spool-ids");
+            out = ExternalSorter.writer(file);
+            for (Object o : ids) {
+                write(o);
+            }
+            ids.clear();
+        }
+        write(id);
+    }
+
+    /**
+     * @return the number of ids added
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return the next id in the order they were added, or null at the end
+     */
+    Object next() throws IOException {
+        if (file == null) {
+            return position < ids.size() ? ids.get(position++) : null;
+        }
+        if (in == null) {
+            out.close();
+            in = ExternalSorter.reader(file);
+        }
+        String line = in.readLine();
+        return line == null ? null : GraphIntegrityChecker.decode(line);
+    }
+
+    /**
+     * Closes and removes the temporary file, if one was written
+     */
+    void delete() {
+        try {
+            if (in != null) {
+                in.close();
+            } else if (out != null) {
+                out.close();
+            }
+        } catch (IOException e) {
+            // the file is being removed anyway
+        }
+        ExternalSorter.delete(file);
+    }
+
+    private void write(Object id) throws IOException {
+        out.write(GraphIntegrityChecker.encode(id));
+        out.newLine();
+    }
+}
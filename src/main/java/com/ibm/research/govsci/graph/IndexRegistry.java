@@ -0,0 +1,259 @@
+/**
+ * IndexRegistry.java
+ *
+ * Caches resolved index handles and keeps usage counters for each index.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+package com.ibm.research.govsci.graph;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.blueprints.Index;
+import com.tinkerpop.blueprints.Vertex;
+
+/**
+ * Concurrent registry of manual index handles, keyed by name and element class.
+ *
+ * {@link BlueprintsBase} fills the registry from the list of existing indexes
+ * when the graph is opened and adds indexes as they are created, so repeated
+ * calls to {@link BlueprintsBase#getOrCreateIndex(String, Class)} do not go
+ * back to the database. Entries are removed when the index is dropped.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class IndexRegistry {
+    private final ConcurrentMap<String, Entry> vertexIndexes = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentMap<String, Entry> edgeIndexes = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Usage counters for a single index
+     */
+    public static class IndexStats {
+        private final String name;
+        private final Class<? extends Element> elementClass;
+        private final AtomicLong handleHits = new AtomicLong();
+        private final AtomicLong handleMisses = new AtomicLong();
+        private final AtomicLong lookups = new AtomicLong();
+        private final AtomicLong lookupHits = new AtomicLong();
+        private final AtomicLong entriesAdded = new AtomicLong();
+
+        IndexStats(String name, Class<? extends Element> elementClass) {
+            this.name = name;
+            this.elementClass = elementClass;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Class<? extends Element> getElementClass() {
+            return elementClass;
+        }
+
+        /** @return number of times the handle was served from the registry */
+        public long getHandleHits() {
+            return handleHits.get();
+        }
+
+        /** @return number of times the handle had to be fetched or created */
+        public long getHandleMisses() {
+            return handleMisses.get();
+        }
+
+        /** @return number of get-or-create lookups against the index */
+        public long getLookups() {
+            return lookups.get();
+        }
+
+        /** @return number of lookups that found an existing element */
+        public long getLookupHits() {
+            return lookupHits.get();
+        }
+
+        /**
+         * Blueprints does not report the size of a manual index, so this only
+         * counts entries added through {@link BlueprintsBase} since the graph
+         * was opened.
+         *
+         * @return number of entries added to the index
+         */
+        public long getEntriesAdded() {
+            return entriesAdded.get();
+        }
+
+        @Override
+        public String toString() {
+            return name + "[" + elementClass.getSimpleName() + "] handleHits=" + handleHits
+                    + " handleMisses=" + handleMisses + " lookups=" + lookups
+                    + " lookupHits=" + lookupHits + " entriesAdded=" + entriesAdded;
+        }
+    }
+
+    private static class Entry {
+        final IndexStats stats;
+        volatile Index<? extends Element> handle;
+
+        Entry(String name, Class<? extends Element> elementClass) {
+            stats = new IndexStats(name, elementClass);
+        }
+    }
+
+    private ConcurrentMap<String, Entry> entries(Class<?> elementClass) {
+        return Vertex.class.isAssignableFrom(elementClass) ? vertexIndexes : edgeIndexes;
+    }
+
+    private Entry entry(String name, Class<? extends Element> elementClass) {
+        ConcurrentMap<String, Entry> map = entries(elementClass);
+        Entry e = map.get(name);
+        if (e == null) {
+            e = new Entry(name, elementClass);
+            Entry existing = map.putIfAbsent(name, e);
+            if (existing != null) {
+                e = existing;
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Gets a cached index handle
+     *
+     * @param name the name of the index
+     * @param elementClass the class of element in the index
+     * @return the cached handle, or null if the index has not been resolved
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Element> Index<T> get(String name, Class<T> elementClass) {
+        Entry e = entries(elementClass).get(name);
+        if (e == null || e.handle == null) {
+            return null;
+        }
+        e.stats.handleHits.incrementAndGet();
+        return (Index<T>) e.handle;
+    }
+
+    /**
+     * Adds a resolved index handle to the registry
+     *
+     * @param index the index
+     */
+    public void register(Index<? extends Element> index) {
+        entry(index.getIndexName(), index.getIndexClass()).handle = index;
+    }
+
+    /**
+     * Records that a handle was not in the registry and had to be resolved
+     */
+    void recordMiss(String name, Class<? extends Element> elementClass) {
+        entry(name, elementClass).stats.handleMisses.incrementAndGet();
+    }
+
+    void recordLookup(Index<? extends Element> index, boolean found) {
+        IndexStats s = entry(index.getIndexName(), index.getIndexClass()).stats;
+        s.lookups.incrementAndGet();
+        if (found) {
+            s.lookupHits.incrementAndGet();
+        }
+    }
+
+    void recordPut(Index<? extends Element> index) {
+        entry(index.getIndexName(), index.getIndexClass()).stats.entriesAdded.incrementAndGet();
+    }
+
+    /**
+     * Removes an index from the registry, along with its counters
+     *
+     * @param name the name of the index
+     */
+    public void invalidate(String name) {
+        vertexIndexes.remove(name);
+        edgeIndexes.remove(name);
+    }
+
+    /**
+     * Removes every index from the registry
+     */
+    public void clear() {
+        vertexIndexes.clear();
+        edgeIndexes.clear();
+    }
+
+    /**
+     * @param name the name of the index
+     * @param elementClass the class of element in the index
+     * @return true if the handle is in the registry
+     */
+    public boolean contains(String name, Class<? extends Element> elementClass) {
+        Entry e = entries(elementClass).get(name);
+        return e != null && e.handle != null;
+    }
+
+    /**
+     * @param elementClass the class of element in the indexes
+     * @return the handles of every resolved index for the class
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Element> List<Index<T>> getIndexes(Class<T> elementClass) {
+        List<Index<T>> rv = new ArrayList<Index<T>>();
+        for (Entry e : entries(elementClass).values()) {
+            if (e.handle != null) {
+                rv.add((Index<T>) e.handle);
+            }
+        }
+        return rv;
+    }
+
+    /**
+     * @param name the name of the index
+     * @param elementClass the class of element in the index
+     * @return the counters for the index, or null if it has never been used
+     */
+    public IndexStats getStats(String name, Class<? extends Element> elementClass) {
+        Entry e = entries(elementClass).get(name);
+        return e == null ? null : e.stats;
+    }
+
+    /**
+     * @return the counters for every index in the registry
+     */
+    public List<IndexStats> getAllStats() {
+        List<IndexStats> rv = new ArrayList<IndexStats>();
+        for (Entry e : vertexIndexes.values()) {
+            rv.add(e.stats);
+        }
+        for (Entry e : edgeIndexes.values()) {
+            rv.add(e.stats);
+        }
+        return rv;
+    }
+
+    @Override
+    public String toString() {
+        return getAllStats().toString();
+    }
+}
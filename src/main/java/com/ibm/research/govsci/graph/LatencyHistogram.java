@@ -0,0 +1,137 @@
+/**
+ * LatencyHistogram.java
+ *
+ * Concurrent histogram of operation latencies.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+
+package com.ibm.research.govsci.graph;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies in nanoseconds.
+ *
+ * Values are counted in buckets that split each power of two into eight, so
+ * a percentile read from the histogram is within 12.5% of the true value.
+ * {@link #snapshot()} copies the counts; subtracting an earlier snapshot with
+ * {@link #difference(long[], long[])} gives the latencies recorded in between
+ * without stopping the threads that are recording.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * @param nanos the latency to record
+     */
+    public void record(long nanos) {
+        counts.incrementAndGet(bucket(nanos));
+    }
+
+    /**
+     * Records the time since a start time from {@link System#nanoTime()}
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return a copy of the current counts
+     */
+    public long[] snapshot() {
+        long[] rv = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            rv[i] = counts.get(i);
+        }
+        return rv;
+    }
+
+    /**
+     * @return the counts recorded between two snapshots
+     */
+    public static long[] difference(long[] later, long[] earlier) {
+        long[] rv = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            rv[i] = later[i] - earlier[i];
+        }
+        return rv;
+    }
+
+    /**
+     * @return the number of values in a snapshot
+     */
+    public static long count(long[] snapshot) {
+        long total = 0;
+        for (long c : snapshot) {
+            total += c;
+        }
+        return total;
+    }
+
+    /**
+     * @param snapshot counts from {@link #snapshot()}
+     * @param percentile the percentile to find, between 0 and 100
+     * @return the upper bound of the bucket holding the percentile in
+     *          nanoseconds, or 0 if the snapshot is empty
+     */
+    public static long percentile(long[] snapshot, double percentile) {
+        long total = count(snapshot);
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= Math.max(1, rank)) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(0, nanos);
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        long lower = (1L << exp) + ((long) sub << (exp - SUB_BITS));
+        return lower + (1L << (exp - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,533 @@
+/**
+ * LoadTestDriver.java
+ *
+ * Drives a synthetic workload against a graph and records how it behaves.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+
+package com.ibm.research.govsci.graph;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a {@link WorkloadGenerator} against a graph on several threads and
+ * samples throughput, latency, heap use and store size while it runs.
+ *
+ * Each worker thread commits after every <code>commitEvery</code> of its own
+ * operations. Operations on a transactional graph are only counted as
+ * finished once their batch commits. If an operation or a commit fails the
+ * batch is rolled back and every operation in it is counted as an error. A
+ * sample is taken every sample interval and once more at the end; the
+ * throughput and latency percentiles in a sample cover only the operations
+ * finished since the previous sample, so the samples show how the engine
+ * slows down as the graph grows. The results can be written as CSV or JSON.
+ *
+ * TinkerGraph is not thread safe and OrientDB databases are bound to the
+ * thread that opened them, so both are always driven by a single thread.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class LoadTestDriver {
+    private static final Logger log = LoggerFactory.getLogger(LoadTestDriver.class);
+
+    /**
+     * Measurements taken at one point during a run
+     */
+    public static class Sample {
+        private final long elapsedMillis;
+        private final long operations;
+        private final double throughput;
+        private final long p50Micros;
+        private final long p99Micros;
+        private final long commitP99Micros;
+        private final long heapUsedBytes;
+        private final long storeBytes;
+        private final long errors;
+
+        Sample(long elapsedMillis, long operations, double throughput, long p50Micros, long p99Micros,
+                long commitP99Micros, long heapUsedBytes, long storeBytes, long errors) {
+            this.elapsedMillis = elapsedMillis;
+            this.operations = operations;
+            this.throughput = throughput;
+            this.p50Micros = p50Micros;
+            this.p99Micros = p99Micros;
+            this.commitP99Micros = commitP99Micros;
+            this.heapUsedBytes = heapUsedBytes;
+            this.storeBytes = storeBytes;
+            this.errors = errors;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        /** @return operations finished since the start of the run */
+        public long getOperations() {
+            return operations;
+        }
+
+        /** @return operations per second since the previous sample */
+        public double getThroughput() {
+            return throughput;
+        }
+
+        public long getP50Micros() {
+            return p50Micros;
+        }
+
+        public long getP99Micros() {
+            return p99Micros;
+        }
+
+        public long getCommitP99Micros() {
+            return commitP99Micros;
+        }
+
+        public long getHeapUsedBytes() {
+            return heapUsedBytes;
+        }
+
+        /** @return size of the store directory, or -1 if there is none */
+        public long getStoreBytes() {
+            return storeBytes;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> rv = new LinkedHashMap<String, Object>();
+            rv.put("elapsed_ms", elapsedMillis);
+            rv.put("operations", operations);
+            rv.put("ops_per_sec", Math.round(throughput * 10) / 10.0);
+            rv.put("p50_us", p50Micros);
+            rv.put("p99_us", p99Micros);
+            rv.put("commit_p99_us", commitP99Micros);
+            rv.put("heap_used_bytes", heapUsedBytes);
+            rv.put("store_bytes", storeBytes);
+            rv.put("errors", errors);
+            return rv;
+        }
+    }
+
+    /**
+     * The outcome of a run
+     */
+    public static class Result {
+        private final String engine;
+        private final int threads;
+        private final long operations;
+        private final long errors;
+        private final long durationMillis;
+        private final long p50Micros;
+        private final long p99Micros;
+        private final List<Sample> samples;
+
+        Result(String engine, int threads, long operations, long errors, long durationMillis,
+                long p50Micros, long p99Micros, List<Sample> samples) {
+            this.engine = engine;
+            this.threads = threads;
+            this.operations = operations;
+            this.errors = errors;
+            this.durationMillis = durationMillis;
+            this.p50Micros = p50Micros;
+            this.p99Micros = p99Micros;
+            this.samples = samples;
+        }
+
+        public String getEngine() {
+            return engine;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public long getOperations() {
+            return operations;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        /** @return operations per second over the whole run */
+        public double getThroughput() {
+            return durationMillis > 0 ? operations * 1000.0 / durationMillis : 0;
+        }
+
+        public long getP50Micros() {
+            return p50Micros;
+        }
+
+        public long getP99Micros() {
+            return p99Micros;
+        }
+
+        public List<Sample> getSamples() {
+            return samples;
+        }
+
+        /**
+         * Writes one line per sample with a header line
+         *
+         * @param f the file to write
+         * @throws IOException if the file cannot be written
+         */
+        public void writeCsv(File f) throws IOException {
+            BufferedWriter out = ExternalSorter.writer(f);
+            try {
+                out.write("engine,threads");
+                for (String key : new Sample(0, 0, 0, 0, 0, 0, 0, 0, 0).toMap().keySet()) {
+                    out.write(',');
+                    out.write(key);
+                }
+                out.write('\n');
+                for (Sample s : samples) {
+                    out.write(engine);
+                    out.write(',');
+                    out.write(Integer.toString(threads));
+                    for (Object value : s.toMap().values()) {
+                        out.write(',');
+                        out.write(value.toString());
+                    }
+                    out.write('\n');
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        /**
+         * Writes the summary and the samples as a JSON object
+         *
+         * @param f the file to write
+         * @throws IOException if the file cannot be written
+         */
+        public void writeJson(File f) throws IOException {
+            Map<String, Object> json = new LinkedHashMap<String, Object>();
+            json.put("engine", engine);
+            json.put("threads", threads);
+            json.put("operations", operations);
+            json.put("errors", errors);
+            json.put("duration_ms", durationMillis);
+            json.put("ops_per_sec", Math.round(getThroughput() * 10) / 10.0);
+            json.put("p50_us", p50Micros);
+            json.put("p99_us", p99Micros);
+            List<Object> rows = new ArrayList<Object>(samples.size());
+            for (Sample s : samples) {
+                rows.add(s.toMap());
+            }
+            json.put("samples", rows);
+            StringBuilder sb = new StringBuilder();
+            RexsterBatchWriter.appendJson(sb, json);
+            BufferedWriter out = ExternalSorter.writer(f);
+            try {
+                out.write(sb.toString());
+                out.write('\n');
+            } finally {
+                out.close();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s threads=%d ops=%d errors=%d %.1f ops/s p50=%dus p99=%dus",
+                    engine, threads, operations, errors, getThroughput(), p50Micros, p99Micros);
+        }
+    }
+
+    private final BlueprintsBase graph;
+    private final WorkloadGenerator workload;
+    private int threads = 1;
+    private long operations = 100000;
+    private int commitEvery = 1000;
+    private long sampleIntervalMillis = 5000;
+    private long seed = 42;
+    private File storeDirectory = null;
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final LatencyHistogram commits = new LatencyHistogram();
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong finished = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    public LoadTestDriver(BlueprintsBase graph, WorkloadGenerator workload) {
+        this.graph = graph;
+        this.workload = workload;
+    }
+
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @param operations total number of operations to run across all threads
+     */
+    public void setOperations(long operations) {
+        this.operations = operations;
+    }
+
+    /**
+     * @param commitEvery operations each thread runs between commits
+     */
+    public void setCommitEvery(int commitEvery) {
+        this.commitEvery = Math.max(1, commitEvery);
+    }
+
+    public void setSampleInterval(long millis) {
+        this.sampleIntervalMillis = Math.max(1, millis);
+    }
+
+    /**
+     * @param seed seed for the random number generators, thread n uses seed + n
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @param dir directory holding the store, measured in each sample
+     */
+    public void setStoreDirectory(File dir) {
+        this.storeDirectory = dir;
+    }
+
+    /**
+     * Runs the workload
+     *
+     * @return the samples and summary of the run
+     */
+    public Result run() {
+        final int nthreads = Engine.TINKERGRAPH.equals(graph.getDbengine())
+                || Engine.ORIENTDB.equals(graph.getDbengine()) ? 1 : threads;
+        if (nthreads != threads) {
+            log.warn("Engine {} does not support concurrent writers - using 1 thread", graph.getDbengine());
+        }
+        workload.prepare(graph);
+        if (graph.supportsTransactions()) {
+            graph.stopTransaction();
+        }
+        final List<Sample> samples = new ArrayList<Sample>();
+        final long start = System.currentTimeMillis();
+        final long[][] previous = new long[][] {latencies.snapshot(), commits.snapshot(), new long[] {start, 0}};
+        Runnable sampler = new Runnable() {
+            public void run() {
+                synchronized (samples) {
+                    samples.add(sample(start, previous));
+                }
+            }
+        };
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleAtFixedRate(sampler, sampleIntervalMillis, sampleIntervalMillis, TimeUnit.MILLISECONDS);
+
+        final CountDownLatch done = new CountDownLatch(nthreads);
+        for (int i = 0; i < nthreads; i++) {
+            final Random random = new Random(seed + i);
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        work(random);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "load-test-" + i);
+            t.start();
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted waiting for load test workers");
+        }
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(sampleIntervalMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long duration = System.currentTimeMillis() - start;
+        synchronized (samples) {
+            samples.add(sample(start, previous));
+        }
+        long[] all = latencies.snapshot();
+        Result result = new Result(graph.getDbengine(), nthreads, finished.get(), errors.get(), duration,
+                LatencyHistogram.percentile(all, 50) / 1000, LatencyHistogram.percentile(all, 99) / 1000,
+                new ArrayList<Sample>(samples));
+        log.info("Load test finished: {}", result);
+        return result;
+    }
+
+    private void work(Random random) {
+        boolean transactional = graph.supportsTransactions();
+        int sinceCommit = 0;
+        while (claimed.incrementAndGet() <= operations) {
+            long opStart = System.nanoTime();
+            sinceCommit++;
+            try {
+                workload.apply(graph, random);
+                if (!transactional) {
+                    finished.incrementAndGet();
+                    sinceCommit = 0;
+                } else if (sinceCommit >= commitEvery) {
+                    long commitStart = System.nanoTime();
+                    graph.stopTransaction();
+                    commits.recordSince(commitStart);
+                    finished.addAndGet(sinceCommit);
+                    sinceCommit = 0;
+                }
+                latencies.recordSince(opStart);
+            } catch (RuntimeException e) {
+                log.debug("Load test operation failed", e);
+                if (transactional) {
+                    graph.rollbackTransaction();
+                }
+                // the rest of the uncommitted batch was rolled back with it
+                errors.addAndGet(sinceCommit);
+                sinceCommit = 0;
+            }
+        }
+        if (transactional && sinceCommit > 0) {
+            try {
+                graph.stopTransaction();
+                finished.addAndGet(sinceCommit);
+            } catch (RuntimeException e) {
+                errors.addAndGet(sinceCommit);
+                log.debug("Final load test commit failed", e);
+            }
+        }
+    }
+
+    /**
+     * Takes a sample covering the time since the previous one
+     *
+     * @param previous the latency and commit snapshots and the time and
+     *          operation count of the previous sample, updated in place
+     */
+    private Sample sample(long start, long[][] previous) {
+        long now = System.currentTimeMillis();
+        long ops = finished.get();
+        long[] lat = latencies.snapshot();
+        long[] com = commits.snapshot();
+        long[] interval = LatencyHistogram.difference(lat, previous[0]);
+        long[] commitInterval = LatencyHistogram.difference(com, previous[1]);
+        long millis = now - previous[2][0];
+        double throughput = millis > 0 ? (ops - previous[2][1]) * 1000.0 / millis : 0;
+        previous[0] = lat;
+        previous[1] = com;
+        previous[2] = new long[] {now, ops};
+        Runtime rt = Runtime.getRuntime();
+        Sample s = new Sample(now - start, ops, throughput,
+                LatencyHistogram.percentile(interval, 50) / 1000,
+                LatencyHistogram.percentile(interval, 99) / 1000,
+                LatencyHistogram.percentile(commitInterval, 99) / 1000,
+                rt.totalMemory() - rt.freeMemory(),
+                storeDirectory != null ? directorySize(storeDirectory) : -1,
+                errors.get());
+        log.debug("Load test sample: {}", s.toMap());
+        return s;
+    }
+
+    private static long directorySize(File f) {
+        if (f.isFile()) {
+            return f.length();
+        }
+        long total = 0;
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                total += directorySize(c);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Runs the workload against one or all of the embedded engines
+     *
+     * Usage: <code>LoadTestDriver engine|all outdir [operations] [threads]
+     * [developers] [projects] [exponent]</code>. Each engine gets a new store
+     * under <code>outdir</code> and its results are written to
+     * <code>outdir/engine.csv</code> and <code>outdir/engine.json</code>.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: LoadTestDriver engine|all outdir [operations] [threads] [developers] [projects] [exponent]");
+            System.exit(1);
+        }
+        String[] engines = args[0].equals("all")
+                ? new String[] {Engine.TINKERGRAPH, Engine.NEO4J, Engine.ORIENTDB, Engine.TITAN}
+                : new String[] {args[0]};
+        File outdir = new File(args[1]);
+        long operations = args.length > 2 ? Long.parseLong(args[2]) : 100000;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        int developers = args.length > 4 ? Integer.parseInt(args[4]) : 50000;
+        int projects = args.length > 5 ? Integer.parseInt(args[5]) : 10000;
+        double exponent = args.length > 6 ? Double.parseDouble(args[6]) : 1.0;
+        if (!outdir.isDirectory() && !outdir.mkdirs()) {
+            throw new IOException("Unable to create " + outdir);
+        }
+        WorkloadGenerator workload = new WorkloadGenerator(developers, projects, exponent);
+        for (String engine : engines) {
+            File store = new File(outdir, engine + "-store");
+            String dburl = engine.equals(Engine.ORIENTDB) ? "local:" + store.getAbsolutePath() : store.getAbsolutePath();
+            BlueprintsBase graph = new BlueprintsBase(engine, dburl);
+            try {
+                LoadTestDriver driver = new LoadTestDriver(graph, workload);
+                driver.setOperations(operations);
+                driver.setThreads(threads);
+                driver.setStoreDirectory(store);
+                Result result = driver.run();
+                result.writeCsv(new File(outdir, engine + ".csv"));
+                result.writeJson(new File(outdir, engine + ".json"));
+                System.out.println(result);
+            } finally {
+                graph.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,380 @@
+/**
+ * LookupCache.java
+ *
+ * Caches the ids returned by index and key index lookups.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+
+package com.ibm.research.govsci.graph;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.tinkerpop.blueprints.Element;
+
+/**
+ * Read-through cache for the results of index and key index lookups.
+ *
+ * Entries hold the ids of the matching elements rather than the elements, so
+ * they are not tied to a transaction and {@link BlueprintsBase} resolves them
+ * against the graph on every hit. Entries expire after a fixed time and the
+ * oldest entries are evicted once the cache is full.
+ *
+ * The cache is a {@link ConcurrentHashMap} and can be read and written by
+ * any number of threads. {@link BlueprintsBase} invalidates the entries for
+ * each key and value it writes. To keep a lookup that raced with a write from
+ * caching the old result, {@link #put(Key, Object[], long)} only stores a
+ * result if no invalidation touched its lock stripe since the lookup began.
+ * On transactional graphs the entries written by a thread are invalidated
+ * again when it commits or rolls back, since other threads may have cached
+ * the state from before the commit in between, and the thread does not cache
+ * its own lookups of them until then, since it sees its uncommitted writes.
+ *
+ * Writes made to the graph without going through {@link BlueprintsBase} are
+ * not seen, and results from those lookups may be stale until they expire.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class LookupCache {
+    public static final int DEFAULT_MAX_IDS_PER_ENTRY = 1000;
+    private static final int STRIPES = 64;
+
+    /**
+     * A lookup: an index name, or null for a key index, and a key and value
+     */
+    static final class Key {
+        private final String indexName;
+        private final Class<? extends Element> elementClass;
+        private final String key;
+        private final Object value;
+        private final int hash;
+
+        Key(String indexName, Class<? extends Element> elementClass, String key, Object value) {
+            this.indexName = indexName;
+            this.elementClass = elementClass;
+            this.key = key;
+            this.value = value;
+            int h = elementClass.hashCode();
+            h = 31 * h + (indexName != null ? indexName.hashCode() : 0);
+            h = 31 * h + key.hashCode();
+            h = 31 * h + (value != null ? value.hashCode() : 0);
+            this.hash = h;
+        }
+
+        String getIndexName() {
+            return indexName;
+        }
+
+        Class<? extends Element> getElementClass() {
+            return elementClass;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        Object getValue() {
+            return value;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return hash == k.hash && elementClass.equals(k.elementClass) && key.equals(k.key)
+                    && (indexName == null ? k.indexName == null : indexName.equals(k.indexName))
+                    && (value == null ? k.value == null : value.equals(k.value));
+        }
+
+        @Override
+        public String toString() {
+            return (indexName != null ? indexName : "key") + ":" + key + "=" + value;
+        }
+    }
+
+    private static final class Entry {
+        private final Key key;
+        private final Object[] ids;
+        private final long expires;
+        private final AtomicInteger hits = new AtomicInteger();
+
+        Entry(Key key, Object[] ids, long expires) {
+            this.key = key;
+            this.ids = ids;
+            this.expires = expires;
+        }
+    }
+
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+    private final ConcurrentLinkedQueue<Entry> order = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLongArray stamps = new AtomicLongArray(STRIPES);
+    private final ThreadLocal<Set<Key>> pending;
+    private final int maxEntries;
+    private final long ttlMillis;
+    private volatile int maxIdsPerEntry = DEFAULT_MAX_IDS_PER_ENTRY;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxEntries number of lookups to keep
+     * @param ttlMillis how long a result is kept, or 0 to keep results until
+     *          they are evicted or invalidated
+     * @param transactional true if writes should be invalidated again when the
+     *          writing thread commits or rolls back
+     */
+    public LookupCache(int maxEntries, long ttlMillis, boolean transactional) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.pending = transactional ? new ThreadLocal<Set<Key>>() {
+            @Override
+            protected Set<Key> initialValue() {
+                return new HashSet<Key>();
+            }
+        } : null;
+    }
+
+    /**
+     * @param maxIds results with more ids than this are returned but not cached
+     */
+    public void setMaxIdsPerEntry(int maxIds) {
+        this.maxIdsPerEntry = maxIds;
+    }
+
+    /**
+     * @return the cached ids for a lookup, or null if there is no live entry
+     */
+    Object[] get(Key key) {
+        Entry e = entries.get(key);
+        if (e != null && ttlMillis > 0 && e.expires < System.currentTimeMillis()) {
+            if (entries.remove(key, e)) {
+                size.decrementAndGet();
+            }
+            e = null;
+        }
+        if (e == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        e.hits.incrementAndGet();
+        return e.ids;
+    }
+
+    /**
+     * @return the stamp to pass to {@link #put(Key, Object[], long)} for a
+     *          lookup that is about to go to the graph
+     */
+    long stamp(Key key) {
+        return stamps.get(stripe(key));
+    }
+
+    /**
+     * Caches the result of a lookup unless an invalidation in the same lock
+     * stripe happened since the stamp was taken, or the current thread wrote
+     * the lookup's key and value in a transaction that is still open
+     */
+    void put(Key key, Object[] ids, long stamp) {
+        if (ids.length > maxIdsPerEntry) {
+            return;
+        }
+        if (pending != null && pending.get().contains(key)) {
+            return;
+        }
+        int stripe = stripe(key);
+        if (stamps.get(stripe) != stamp) {
+            return;
+        }
+        Entry e = new Entry(key, ids, ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0L);
+        if (entries.put(key, e) == null) {
+            size.incrementAndGet();
+        }
+        if (stamps.get(stripe) != stamp && entries.remove(key, e)) {
+            size.decrementAndGet();
+            return;
+        }
+        order.add(e);
+        queued.incrementAndGet();
+        evict();
+    }
+
+    /**
+     * Drops the entry for a lookup whose result may have changed
+     */
+    void invalidate(Key key) {
+        stamps.incrementAndGet(stripe(key));
+        if (entries.remove(key) != null) {
+            size.decrementAndGet();
+            invalidations.incrementAndGet();
+        }
+        if (pending != null) {
+            pending.get().add(key);
+        }
+    }
+
+    void invalidate(String indexName, Class<? extends Element> elementClass, String key, Object value) {
+        invalidate(new Key(indexName, elementClass, key, value));
+    }
+
+    /**
+     * Invalidates again every entry the current thread invalidated since its
+     * last call, called when a transaction commits or rolls back
+     */
+    void settle() {
+        if (pending == null) {
+            return;
+        }
+        Set<Key> keys = pending.get();
+        if (keys.isEmpty()) {
+            return;
+        }
+        for (Key key : keys) {
+            stamps.incrementAndGet(stripe(key));
+            if (entries.remove(key) != null) {
+                size.decrementAndGet();
+                invalidations.incrementAndGet();
+            }
+        }
+        keys.clear();
+    }
+
+    /**
+     * Drops every entry
+     */
+    public void clear() {
+        for (int i = 0; i < STRIPES; i++) {
+            stamps.incrementAndGet(i);
+        }
+        for (Key key : entries.keySet()) {
+            if (entries.remove(key) != null) {
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @param n the number of lookups to return
+     * @return the cached lookups with the most hits, most hits first
+     */
+    List<Key> hottest(int n) {
+        List<Entry> live = new ArrayList<Entry>(entries.values());
+        Collections.sort(live, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                int ha = a.hits.get();
+                int hb = b.hits.get();
+                return ha > hb ? -1 : ha < hb ? 1 : 0;
+            }
+        });
+        List<Key> rv = new ArrayList<Key>(Math.min(n, live.size()));
+        for (int i = 0; i < live.size() && i < n; i++) {
+            rv.add(live.get(i).key);
+        }
+        return rv;
+    }
+
+    /**
+     * Evicts the oldest entries while the cache is full, and drops queued
+     * entries that were already replaced or invalidated once they outnumber
+     * the live ones
+     */
+    private void evict() {
+        while (size.get() > maxEntries || queued.get() > 2 * maxEntries) {
+            Entry e = order.poll();
+            if (e == null) {
+                return;
+            }
+            queued.decrementAndGet();
+            if (entries.get(e.key) != e) {
+                continue;
+            }
+            if (size.get() <= maxEntries) {
+                order.add(e);
+                queued.incrementAndGet();
+            } else if (entries.remove(e.key, e)) {
+                size.decrementAndGet();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private static int stripe(Key key) {
+        int h = key.hash;
+        h ^= (h >>> 16);
+        return h & (STRIPES - 1);
+    }
+
+    /** @return number of cached lookups */
+    public int size() {
+        return size.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** @return number of entries dropped because of writes */
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    /** @return number of entries dropped because the cache was full */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "LookupCache[size=" + size.get() + " hits=" + hits.get() + " misses=" + misses.get()
+                + " invalidations=" + invalidations.get() + " evictions=" + evictions.get() + "]";
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * MergePolicy.java
+ *
+ * Decides how requested property values are merged with existing ones.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+package com.ibm.research.govsci.graph;
+
+/**
+ * Merge rule used by {@link BlueprintsBase#upsertVertex}.
+ *
+ * For each requested property the policy is given the value already on the
+ * vertex, which may be null, and the requested value, after strings have been
+ * trimmed and dates converted to seconds. It returns the value the property
+ * should have. A property is only written if that value differs from the
+ * existing one, and returning null leaves the property alone.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public abstract class MergePolicy {
+
+    /**
+     * Requested values replace existing values
+     */
+    public static final MergePolicy OVERWRITE = new MergePolicy() {
+        @Override
+        public Object merge(String key, Object existing, Object requested) {
+            return requested;
+        }
+
+        @Override
+        public String toString() {
+            return "OVERWRITE";
+        }
+    };
+
+    /**
+     * Properties are only set if they do not have a value yet, like
+     * {@link BlueprintsBase#setPropertyIfNull}
+     */
+    public static final MergePolicy KEEP_EXISTING = new MergePolicy() {
+        @Override
+        public Object merge(String key, Object existing, Object requested) {
+            return existing != null ? existing : requested;
+        }
+
+        @Override
+        public String toString() {
+            return "KEEP_EXISTING";
+        }
+    };
+
+    /**
+     * @param key name of the property
+     * @param existing the current value, or null if the property is not set
+     * @param requested the requested value, never null
+     * @return the value the property should have, or null to leave it alone
+     */
+    public abstract Object merge(String key, Object existing, Object requested);
+}
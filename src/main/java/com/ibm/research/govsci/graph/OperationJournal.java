@@ -0,0 +1,980 @@
+/**
+ * OperationJournal.java
+ *
+ * An append only log of the mutations made through BlueprintsBase.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+package com.ibm.research.govsci.graph;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.blueprints.Index;
+import com.tinkerpop.blueprints.Vertex;
+
+/**
+ * Journal of logical graph mutations for crash resumable imports.
+ *
+ * Mutations are recorded after they are made, as the ids of new elements
+ * are only known then. For transactional graphs the records of a
+ * transaction are held in a {@link Batch} and written along with a
+ * checkpoint only when the transaction commits, so rolled back work, such
+ * as a failed attempt of a retried transaction, never reaches the file and
+ * records of transactions still open on other threads are not covered by
+ * another thread's checkpoint. For graphs without transactions records are
+ * written as soon as they are made.
+ *
+ * Each record is written as <code>[length][body][crc32]</code> so that a torn
+ * write at the end of the file is detected and ignored. Records are buffered
+ * in memory and written to the file sequentially; the file is forced to disk
+ * once every <code>groupSize</code> records, on every checkpoint that asks for
+ * it, and periodically by a background thread.
+ *
+ * Checkpoints mark points where the caller's work is complete, such as a
+ * committed transaction. A checkpoint may carry a marker, such as the line
+ * number of the input file, that is handed back by {@link #lastCheckpoint(File)}
+ * so a load can resume from there. {@link #replay(File, BlueprintsBase)}
+ * reapplies every record up to the last checkpoint into a fresh graph, which
+ * recovers stores like TinkerGraph and neo4jbatch that lose data without a
+ * clean shutdown.
+ *
+ * Property and index values are recorded with their type. Strings, boxed
+ * primitives and null are written directly and any other
+ * {@link Serializable} value, such as an array, with Java serialization;
+ * values that are neither are rejected before they reach the graph.
+ *
+ * Element ids are recorded as the ids assigned by the original store, as
+ * strings when they are not strings or numbers. During
+ * replay they are mapped to the elements created in the new store. Up to a
+ * limit the mapping is kept in memory; for larger journals the original id
+ * is also stored on each new element in the {@link #PROPERTY_JOURNAL_ID}
+ * key index and looked up there, and the property is removed again once the
+ * replay completes.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class OperationJournal implements Shutdownable {
+    private static final Logger log = LoggerFactory.getLogger(OperationJournal.class);
+
+    public static final byte CREATE_VERTEX = 1;
+    public static final byte SET_PROPERTY = 2;
+    public static final byte CREATE_EDGE = 3;
+    public static final byte INDEX_PUT = 4;
+    public static final byte REMOVE_EDGE = 5;
+    public static final byte REMOVE_VERTEX = 6;
+    public static final byte CHECKPOINT = 7;
+
+    public static final int DEFAULT_GROUP_SIZE = 1000;
+    public static final int DEFAULT_REPLAY_IDS_IN_MEMORY = 1000000;
+    public static final String PROPERTY_JOURNAL_ID = "sys_journal_id";
+    public static final long DEFAULT_SYNC_INTERVAL = 1000L;
+
+    private static final byte KIND_VERTEX = 0;
+    private static final byte KIND_EDGE = 1;
+
+    private static final byte VALUE_NULL = 0;
+    private static final byte VALUE_STRING = 1;
+    private static final byte VALUE_INT = 2;
+    private static final byte VALUE_LONG = 3;
+    private static final byte VALUE_DOUBLE = 4;
+    private static final byte VALUE_FLOAT = 5;
+    private static final byte VALUE_BOOLEAN = 6;
+    private static final byte VALUE_SHORT = 7;
+    private static final byte VALUE_BYTE = 8;
+    private static final byte VALUE_SERIALIZED = 9;
+
+    private static final int FLUSH_THRESHOLD = 64 * 1024;
+    private static final int MAX_RECORD = 64 * 1024 * 1024;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final int groupSize;
+    private final ScheduledExecutorService syncer;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer buffer = ByteBuffer.allocate(FLUSH_THRESHOLD * 2);
+    private ByteBuffer record = ByteBuffer.allocate(1024);
+    private long sequence;
+    private int unsynced = 0;
+    private boolean dirty = false;
+    private boolean closed = false;
+
+    /**
+     * Opens a journal, appending to it if it already exists
+     *
+     * Any partial record left at the end of the file by a crash is truncated.
+     *
+     * @param file the journal file
+     * @param groupSize number of records between forced writes
+     * @param syncIntervalMillis time between background forced writes, 0 to disable
+     * @throws IOException if the journal cannot be opened
+     */
+    public OperationJournal(File file, int groupSize, long syncIntervalMillis) throws IOException {
+        this.file = file;
+        this.groupSize = groupSize;
+        long[] valid = scan(file, null);
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        if (channel.size() > valid[0]) {
+            log.warn("Truncating {} bytes of incomplete records from journal {}", channel.size() - valid[0], file);
+            channel.truncate(valid[0]);
+        }
+        channel.position(valid[0]);
+        sequence = valid[1];
+        if (syncIntervalMillis > 0) {
+            syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "journal-sync");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            syncer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        sync();
+                    } catch (IOException e) {
+                        log.error("Error syncing journal {}", OperationJournal.this.file, e);
+                    }
+                }
+            }, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+    }
+
+    /**
+     * @param file the journal file
+     * @throws IOException if the journal cannot be opened
+     */
+    public OperationJournal(File file) throws IOException {
+        this(file, DEFAULT_GROUP_SIZE, DEFAULT_SYNC_INTERVAL);
+    }
+
+    /**
+     * @return the file backing this journal
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the sequence number of the last record written
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Records held for one transaction until it commits
+     *
+     * A batch belongs to a single transaction and is not thread safe.
+     */
+    public static class Batch {
+        private final List<byte[]> records = new ArrayList<byte[]>();
+
+        /** @return number of records held */
+        public int size() {
+            return records.size();
+        }
+
+        /**
+         * Drops the held records, used when the transaction rolls back
+         */
+        public void clear() {
+            records.clear();
+        }
+    }
+
+    /*
+     * Each of the mutation methods takes the batch of the transaction that
+     * made the change, or null to write the record immediately.
+     */
+
+    public synchronized void createVertex(Batch batch, Vertex v, String vertexType) {
+        begin(CREATE_VERTEX);
+        putId(v.getId());
+        putValue(vertexType);
+        emit(batch);
+    }
+
+    public synchronized void setProperty(Batch batch, Element elem, String key, Object value) {
+        begin(SET_PROPERTY);
+        record.put(elem instanceof Edge ? KIND_EDGE : KIND_VERTEX);
+        putId(elem.getId());
+        putValue(key);
+        putValue(value);
+        emit(batch);
+    }
+
+    public synchronized void createEdge(Batch batch, Edge e, Vertex outVertex, Vertex inVertex, String label) {
+        begin(CREATE_EDGE);
+        putId(e.getId());
+        putId(outVertex.getId());
+        putId(inVertex.getId());
+        putValue(label);
+        emit(batch);
+    }
+
+    public synchronized <T extends Element> void indexPut(Batch batch, Index<T> index, String key, Object value, T elem) {
+        begin(INDEX_PUT);
+        record.put(elem instanceof Edge ? KIND_EDGE : KIND_VERTEX);
+        putValue(index.getIndexName());
+        putValue(key);
+        putValue(value);
+        putId(elem.getId());
+        emit(batch);
+    }
+
+    public synchronized void removeEdge(Batch batch, Edge e) {
+        begin(REMOVE_EDGE);
+        putId(e.getId());
+        emit(batch);
+    }
+
+    public synchronized void removeVertex(Batch batch, Vertex v) {
+        begin(REMOVE_VERTEX);
+        putId(v.getId());
+        emit(batch);
+    }
+
+    /**
+     * Writes the records of a committed transaction followed by a checkpoint
+     *
+     * The records and the checkpoint are written together, so records of
+     * transactions committed by other threads never fall between them.
+     *
+     * @param batch the records of the transaction, cleared once written
+     * @param marker an optional value describing how far the load got, may be null
+     * @param force whether to force the journal to disk before returning
+     */
+    public synchronized void commit(Batch batch, String marker, boolean force) {
+        if (closed) {
+            throw new IllegalStateException("Journal " + file + " is closed");
+        }
+        for (byte[] body : batch.records) {
+            ByteBuffer.wrap(body).putLong(1, sequence + 1);
+            write(body, body.length, false);
+        }
+        batch.clear();
+        checkpoint(marker, force);
+    }
+
+    /**
+     * Records that all previous operations are complete
+     *
+     * @param marker an optional value describing how far the load got, may be null
+     * @param force whether to force the journal to disk before returning
+     */
+    public synchronized void checkpoint(String marker, boolean force) {
+        begin(CHECKPOINT);
+        putValue(marker);
+        end(force);
+    }
+
+    /**
+     * Writes buffered records and forces them to disk
+     *
+     * @throws IOException on an error writing the journal
+     */
+    public synchronized void sync() throws IOException {
+        if (closed || !dirty) {
+            return;
+        }
+        flushBuffer();
+        channel.force(false);
+        unsynced = 0;
+        dirty = false;
+    }
+
+    /* (non-Javadoc)
+     * @see com.ibm.research.govsci.graph.Shutdownable#shutdown()
+     */
+    public void shutdown() {
+        if (syncer != null) {
+            syncer.shutdown();
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            try {
+                sync();
+                raf.close();
+            } catch (IOException e) {
+                log.error("Error closing journal {}", file, e);
+            }
+            closed = true;
+        }
+    }
+
+    private void begin(byte type) {
+        if (closed) {
+            throw new IllegalStateException("Journal " + file + " is closed");
+        }
+        record.clear();
+        record.put(type);
+        record.putLong(sequence + 1);
+    }
+
+    /**
+     * Writes the record being built, or holds it in a batch
+     */
+    private void emit(Batch batch) {
+        if (batch == null) {
+            end(false);
+            return;
+        }
+        byte[] body = new byte[record.position()];
+        System.arraycopy(record.array(), 0, body, 0, body.length);
+        batch.records.add(body);
+    }
+
+    private void end(boolean force) {
+        write(record.array(), record.position(), force);
+    }
+
+    /**
+     * Appends a record body, whose sequence number must already be set
+     */
+    private void write(byte[] body, int len, boolean force) {
+        crc.reset();
+        crc.update(body, 0, len);
+        ensureBuffer(len + 8);
+        buffer.putInt(len);
+        buffer.put(body, 0, len);
+        buffer.putInt((int) crc.getValue());
+        sequence++;
+        unsynced++;
+        dirty = true;
+        try {
+            if (force || unsynced >= groupSize) {
+                sync();
+            } else if (buffer.position() >= FLUSH_THRESHOLD) {
+                flushBuffer();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Error writing journal " + file, e);
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void ensureBuffer(int needed) {
+        if (buffer.remaining() < needed) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        }
+    }
+
+    private void ensureRecord(int needed) {
+        if (record.remaining() < needed) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(record.capacity() * 2, record.position() + needed));
+            record.flip();
+            bigger.put(record);
+            record = bigger;
+        }
+    }
+
+    /**
+     * Checks that a property or index value can be journalled
+     *
+     * @throws IllegalArgumentException if the value is neither a string, a
+     *          boxed primitive nor serializable
+     */
+    static void checkValue(Object value) {
+        if (value != null && !isPlain(value) && !(value instanceof Serializable)) {
+            throw new IllegalArgumentException("Value of type " + value.getClass().getName()
+                    + " cannot be journalled, it is not serializable");
+        }
+    }
+
+    private static boolean isPlain(Object value) {
+        return value instanceof String || value instanceof Integer || value instanceof Long
+                || value instanceof Double || value instanceof Float || value instanceof Boolean
+                || value instanceof Short || value instanceof Byte;
+    }
+
+    /**
+     * Writes an element id, which is only used to match records to each
+     * other, so ids of other types are written as strings
+     */
+    private void putId(Object id) {
+        putValue(id == null || isPlain(id) ? id : id.toString());
+    }
+
+    private void putValue(Object value) {
+        checkValue(value);
+        ensureRecord(9);
+        if (value == null) {
+            record.put(VALUE_NULL);
+        } else if (value instanceof Integer) {
+            record.put(VALUE_INT).putInt((Integer) value);
+        } else if (value instanceof Long) {
+            record.put(VALUE_LONG).putLong((Long) value);
+        } else if (value instanceof Double) {
+            record.put(VALUE_DOUBLE).putDouble((Double) value);
+        } else if (value instanceof Float) {
+            record.put(VALUE_FLOAT).putFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            record.put(VALUE_BOOLEAN).put((byte) (((Boolean) value) ? 1 : 0));
+        } else if (value instanceof Short) {
+            record.put(VALUE_SHORT).putShort((Short) value);
+        } else if (value instanceof Byte) {
+            record.put(VALUE_BYTE).put((Byte) value);
+        } else if (value instanceof String) {
+            byte[] bytes = utf8((String) value);
+            ensureRecord(bytes.length + 5);
+            record.put(VALUE_STRING).putInt(bytes.length).put(bytes);
+        } else {
+            byte[] bytes = serialize(value);
+            ensureRecord(bytes.length + 5);
+            record.put(VALUE_SERIALIZED).putInt(bytes.length).put(bytes);
+        }
+    }
+
+    private static byte[] serialize(Object value) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(value);
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Value of type " + value.getClass().getName()
+                    + " cannot be journalled", e);
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A single decoded journal record
+     */
+    public static class Record {
+        private final byte type;
+        private final long sequence;
+        private final boolean edge;
+        private final Object[] values;
+
+        Record(byte type, long sequence, boolean edge, Object[] values) {
+            this.type = type;
+            this.sequence = sequence;
+            this.edge = edge;
+            this.values = values;
+        }
+
+        /** @return one of the record type constants of OperationJournal */
+        public byte getType() {
+            return type;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /** @return for property and index records, whether the element is an edge */
+        public boolean isEdge() {
+            return edge;
+        }
+
+        /** @return the fields of the record, in the order they were written */
+        public Object[] getValues() {
+            return values;
+        }
+    }
+
+    /**
+     * Receives records as a journal is read
+     */
+    public interface RecordHandler {
+        public void handle(Record record);
+    }
+
+    /**
+     * Result of replaying a journal
+     */
+    public static class ReplayResult {
+        private long applied = 0;
+        private long skipped = 0;
+        private long lastSequence = 0;
+        private String lastMarker = null;
+
+        /** @return number of records applied to the graph */
+        public long getApplied() {
+            return applied;
+        }
+
+        /** @return number of records that referred to unknown elements */
+        public long getSkipped() {
+            return skipped;
+        }
+
+        /** @return sequence number of the last checkpoint replayed */
+        public long getLastSequence() {
+            return lastSequence;
+        }
+
+        /** @return marker of the last checkpoint replayed that had one */
+        public String getLastMarker() {
+            return lastMarker;
+        }
+    }
+
+    /**
+     * Reads every valid record in a journal
+     *
+     * @param file the journal file
+     * @param handler receives each record, may be null
+     * @return the length of the valid prefix of the file and the last sequence number
+     * @throws IOException on an error reading the file
+     */
+    static long[] scan(File file, RecordHandler handler) throws IOException {
+        long[] result = new long[] {0L, 0L};
+        if (!file.exists()) {
+            return result;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+        CRC32 check = new CRC32();
+        try {
+            while (true) {
+                int len;
+                byte[] body;
+                int sum;
+                try {
+                    len = in.readInt();
+                    if (len <= 0 || len > MAX_RECORD) {
+                        break;
+                    }
+                    body = new byte[len];
+                    in.readFully(body);
+                    sum = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                check.reset();
+                check.update(body, 0, len);
+                if ((int) check.getValue() != sum) {
+                    log.warn("Checksum mismatch in journal {} at offset {}", file, result[0]);
+                    break;
+                }
+                ByteBuffer bb = ByteBuffer.wrap(body);
+                byte type = bb.get();
+                long seq = bb.getLong();
+                if (handler != null) {
+                    handler.handle(decode(type, seq, bb));
+                }
+                result[0] += len + 8;
+                result[1] = seq;
+            }
+        } finally {
+            in.close();
+        }
+        return result;
+    }
+
+    private static Record decode(byte type, long seq, ByteBuffer bb) {
+        boolean edge = false;
+        int count;
+        switch (type) {
+        case CREATE_VERTEX:
+            count = 2;
+            break;
+        case SET_PROPERTY:
+            edge = bb.get() == KIND_EDGE;
+            count = 3;
+            break;
+        case CREATE_EDGE:
+            count = 4;
+            break;
+        case INDEX_PUT:
+            edge = bb.get() == KIND_EDGE;
+            count = 4;
+            break;
+        case REMOVE_EDGE:
+            edge = true;
+            count = 1;
+            break;
+        case REMOVE_VERTEX:
+        case CHECKPOINT:
+            count = 1;
+            break;
+        default:
+            throw new IllegalStateException("Unknown journal record type " + type);
+        }
+        Object[] values = new Object[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = readValue(bb);
+        }
+        return new Record(type, seq, edge, values);
+    }
+
+    private static Object readValue(ByteBuffer bb) {
+        byte tag = bb.get();
+        switch (tag) {
+        case VALUE_NULL:
+            return null;
+        case VALUE_INT:
+            return bb.getInt();
+        case VALUE_LONG:
+            return bb.getLong();
+        case VALUE_DOUBLE:
+            return bb.getDouble();
+        case VALUE_FLOAT:
+            return bb.getFloat();
+        case VALUE_BOOLEAN:
+            return bb.get() != 0;
+        case VALUE_SHORT:
+            return bb.getShort();
+        case VALUE_BYTE:
+            return bb.get();
+        case VALUE_STRING:
+            byte[] bytes = new byte[bb.getInt()];
+            bb.get(bytes);
+            try {
+                return new String(bytes, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        case VALUE_SERIALIZED:
+            byte[] serialized = new byte[bb.getInt()];
+            bb.get(serialized);
+            try {
+                return new ObjectInputStream(new ByteArrayInputStream(serialized)).readObject();
+            } catch (IOException e) {
+                throw new IllegalStateException("Unreadable journal value", e);
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException("Unreadable journal value", e);
+            }
+        default:
+            throw new IllegalStateException("Unknown journal value tag " + tag);
+        }
+    }
+
+    /**
+     * Finds the last checkpoint in a journal
+     *
+     * @param file the journal file
+     * @return the marker of the last checkpoint that had one, or null
+     * @throws IOException on an error reading the journal
+     */
+    public static String lastCheckpoint(File file) throws IOException {
+        final String[] marker = new String[1];
+        scan(file, new RecordHandler() {
+            public void handle(Record r) {
+                if (r.getType() == CHECKPOINT && r.getValues()[0] != null) {
+                    marker[0] = (String) r.getValues()[0];
+                }
+            }
+        });
+        return marker[0];
+    }
+
+    /**
+     * Replays a journal into a graph, stopping at the last checkpoint
+     *
+     * @param file the journal file
+     * @param target the graph to apply the operations to
+     * @return a summary of the replay
+     * @throws IOException on an error reading the journal
+     * @see #replay(File, BlueprintsBase, int)
+     */
+    public static ReplayResult replay(File file, BlueprintsBase target) throws IOException {
+        return replay(file, target, DEFAULT_REPLAY_IDS_IN_MEMORY);
+    }
+
+    /**
+     * Replays a journal into a graph, stopping at the last checkpoint
+     *
+     * The target graph should not have a journal of its own, and should
+     * normally be empty. Operations after the last checkpoint are not
+     * replayed, as the load will redo them when it resumes from the marker
+     * of that checkpoint. Transactional graphs are committed at each
+     * checkpoint.
+     *
+     * @param file the journal file
+     * @param target the graph to apply the operations to
+     * @param maxIdsInMemory number of element ids to map in memory; if the
+     *          journal creates more elements than this, the original ids are
+     *          stored on the new elements while replaying
+     * @return a summary of the replay
+     * @throws IOException on an error reading the journal
+     */
+    public static ReplayResult replay(File file, final BlueprintsBase target, int maxIdsInMemory) throws IOException {
+        final long[] lastCheckpoint = new long[] {0L, 0L};
+        scan(file, new RecordHandler() {
+            public void handle(Record r) {
+                if (r.getType() == CHECKPOINT) {
+                    lastCheckpoint[0] = r.getSequence();
+                } else if (r.getType() == CREATE_VERTEX || r.getType() == CREATE_EDGE) {
+                    lastCheckpoint[1]++;
+                }
+            }
+        });
+        final ReplayResult result = new ReplayResult();
+        final IdMap ids = new IdMap(target, maxIdsInMemory, lastCheckpoint[1] > maxIdsInMemory);
+        scan(file, new RecordHandler() {
+            public void handle(Record r) {
+                if (r.getSequence() > lastCheckpoint[0]) {
+                    return;
+                }
+                if (apply(target, r, ids)) {
+                    result.applied++;
+                } else {
+                    result.skipped++;
+                }
+                if (r.getType() == CHECKPOINT) {
+                    result.lastSequence = r.getSequence();
+                    if (r.getValues()[0] != null) {
+                        result.lastMarker = (String) r.getValues()[0];
+                    }
+                }
+            }
+        });
+        ids.finish();
+        log.info("Replayed {} records from journal {}, {} skipped", new Object[] {result.applied, file, result.skipped});
+        return result;
+    }
+
+    /**
+     * Maps element ids in the journal to the elements created by a replay
+     *
+     * When the journal has more elements than fit in memory the mapping is a
+     * bounded cache in front of a key index on {@link #PROPERTY_JOURNAL_ID}.
+     */
+    private static class IdMap {
+        private static final int CLEANUP_BATCH = 10000;
+
+        private final BlueprintsBase target;
+        private final boolean spill;
+        private final Map<Object, Object> vertices;
+        private final Map<Object, Object> edges;
+
+        IdMap(BlueprintsBase target, int maxInMemory, boolean spill) {
+            this.target = target;
+            this.spill = spill;
+            vertices = boundedMap(spill ? maxInMemory : 0);
+            edges = boundedMap(spill ? maxInMemory : 0);
+            if (spill) {
+                log.info("Journal has more than {} elements, storing ids in {}", maxInMemory, PROPERTY_JOURNAL_ID);
+                target.createKeyIndex(PROPERTY_JOURNAL_ID, Vertex.class);
+                target.createKeyIndex(PROPERTY_JOURNAL_ID, Edge.class);
+            }
+        }
+
+        private static Map<Object, Object> boundedMap(final int max) {
+            if (max <= 0) {
+                return new HashMap<Object, Object>();
+            }
+            return new LinkedHashMap<Object, Object>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+                    return size() > max;
+                }
+            };
+        }
+
+        void put(Object journalId, Element elem) {
+            if (spill) {
+                elem.setProperty(PROPERTY_JOURNAL_ID, journalId);
+            }
+            (elem instanceof Edge ? edges : vertices).put(journalId, elem.getId());
+        }
+
+        Vertex vertex(Object journalId) {
+            Object id = vertices.get(journalId);
+            if (id != null) {
+                return target.kigraph.getVertex(id);
+            }
+            if (!spill) {
+                return null;
+            }
+            Iterator<Vertex> it = target.kigraph.getVertices(PROPERTY_JOURNAL_ID, journalId).iterator();
+            if (!it.hasNext()) {
+                return null;
+            }
+            Vertex v = it.next();
+            vertices.put(journalId, v.getId());
+            return v;
+        }
+
+        Edge edge(Object journalId) {
+            Object id = edges.get(journalId);
+            if (id != null) {
+                return target.kigraph.getEdge(id);
+            }
+            if (!spill) {
+                return null;
+            }
+            Iterator<Edge> it = target.kigraph.getEdges(PROPERTY_JOURNAL_ID, journalId).iterator();
+            if (!it.hasNext()) {
+                return null;
+            }
+            Edge e = it.next();
+            edges.put(journalId, e.getId());
+            return e;
+        }
+
+        void remove(Object journalId, boolean edge) {
+            (edge ? edges : vertices).remove(journalId);
+        }
+
+        /**
+         * Removes the stored journal ids and their key indexes
+         */
+        void finish() {
+            if (!spill) {
+                return;
+            }
+            int n = 0;
+            for (Vertex v : target.kigraph.getVertices()) {
+                if (v.removeProperty(PROPERTY_JOURNAL_ID) != null && ++n % CLEANUP_BATCH == 0
+                        && target.supportsTransactions()) {
+                    target.stopTransaction();
+                }
+            }
+            for (Edge e : target.kigraph.getEdges()) {
+                if (e.removeProperty(PROPERTY_JOURNAL_ID) != null && ++n % CLEANUP_BATCH == 0
+                        && target.supportsTransactions()) {
+                    target.stopTransaction();
+                }
+            }
+            if (target.supportsTransactions()) {
+                target.stopTransaction();
+            }
+            target.dropKeyIndex(PROPERTY_JOURNAL_ID, Vertex.class);
+            target.dropKeyIndex(PROPERTY_JOURNAL_ID, Edge.class);
+        }
+    }
+
+    private static boolean apply(BlueprintsBase target, Record r, IdMap ids) {
+        Object[] v = r.getValues();
+        switch (r.getType()) {
+        case CREATE_VERTEX:
+            ids.put(v[0], target.createNakedVertex((String) v[1]));
+            return true;
+        case SET_PROPERTY: {
+            Element elem = r.isEdge() ? ids.edge(v[0]) : ids.vertex(v[0]);
+            if (elem == null) {
+                return false;
+            }
+            elem.setProperty((String) v[1], v[2]);
+            return true;
+        }
+        case CREATE_EDGE: {
+            Vertex out = ids.vertex(v[1]);
+            Vertex in = ids.vertex(v[2]);
+            if (out == null || in == null) {
+                return false;
+            }
+            ids.put(v[0], target.kigraph.addEdge(null, out, in, (String) v[3]));
+            return true;
+        }
+        case INDEX_PUT:
+            if (r.isEdge()) {
+                Edge e = ids.edge(v[3]);
+                if (e == null) {
+                    return false;
+                }
+                target.getOrCreateEdgeIndex((String) v[0]).put((String) v[1], v[2], e);
+            } else {
+                Vertex vx = ids.vertex(v[3]);
+                if (vx == null) {
+                    return false;
+                }
+                target.getOrCreateIndex((String) v[0]).put((String) v[1], v[2], vx);
+            }
+            return true;
+        case REMOVE_EDGE: {
+            Edge e = ids.edge(v[0]);
+            ids.remove(v[0], true);
+            if (e == null) {
+                return false;
+            }
+            target.kigraph.removeEdge(e);
+            return true;
+        }
+        case REMOVE_VERTEX: {
+            Vertex vx = ids.vertex(v[0]);
+            ids.remove(v[0], false);
+            if (vx == null) {
+                return false;
+            }
+            target.kigraph.removeVertex(vx);
+            return true;
+        }
+        case CHECKPOINT:
+            if (target.supportsTransactions()) {
+                target.stopTransaction();
+            }
+            return true;
+        default:
+            return false;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * ProgressListener.java
+ *
+ * Receives progress reports from long running bulk operations.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+package com.ibm.research.govsci.graph;
+
+/**
+ * Callback for the progress of bulk operations in {@link BlueprintsBase}.
+ *
+ * Reports are made on the calling thread after every committed batch.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public interface ProgressListener {
+    /**
+     * @param operation name of the operation
+     * @param done number of elements processed so far
+     * @param total number of elements the operation will process
+     */
+    void progress(String operation, long done, long total);
+}
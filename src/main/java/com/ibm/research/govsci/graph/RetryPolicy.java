@@ -0,0 +1,138 @@
+/**
+ * RetryPolicy.java
+ *
+ * Controls how transactional work is retried after a conflict.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+package com.ibm.research.govsci.graph;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter for conflicting transactions.
+ *
+ * The delay before retry <i>n</i> (starting at zero) is
+ * <code>min(maxBackoff, initialBackoff * multiplier^n)</code>, of which the
+ * jitter fraction is randomized so that writers that conflicted with each
+ * other do not retry in lock step. Instances are immutable; subclasses may
+ * override {@link #isRetryable(Throwable)} to retry additional errors, and
+ * {@link #withMaxRetries(int)} copies the subclass with its state.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class RetryPolicy implements Cloneable {
+    public static final RetryPolicy DEFAULT = new RetryPolicy(5, 10L, 2000L, 2.0, 0.5);
+    public static final RetryPolicy NONE = new RetryPolicy(0, 0L, 0L, 1.0, 0.0);
+
+    private int maxRetries;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final double multiplier;
+    private final double jitter;
+
+    /**
+     * @param maxRetries number of times to retry after the first attempt
+     * @param initialBackoffMillis delay before the first retry
+     * @param maxBackoffMillis upper bound for any delay
+     * @param multiplier growth of the delay between retries
+     * @param jitter fraction of each delay that is randomized, from 0 to 1
+     */
+    public RetryPolicy(int maxRetries, long initialBackoffMillis, long maxBackoffMillis,
+            double multiplier, double jitter) {
+        if (maxRetries < 0 || initialBackoffMillis < 0 || maxBackoffMillis < 0
+                || multiplier < 1.0 || jitter < 0.0 || jitter > 1.0) {
+            throw new IllegalArgumentException("Invalid retry policy parameters");
+        }
+        this.maxRetries = maxRetries;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+    }
+
+    /**
+     * @param retries new maximum number of retries
+     * @return a copy of this policy, of the same class, with a different
+     *          number of retries
+     */
+    public RetryPolicy withMaxRetries(int retries) {
+        if (retries < 0) {
+            throw new IllegalArgumentException("Invalid retry policy parameters");
+        }
+        RetryPolicy copy;
+        try {
+            copy = (RetryPolicy) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+        copy.maxRetries = retries;
+        return copy;
+    }
+
+    /**
+     * Computes the delay before a retry
+     *
+     * @param retry the number of the retry, starting at zero
+     * @param random source of randomness for the jitter
+     * @return the delay in milliseconds
+     */
+    public long backoffMillis(int retry, Random random) {
+        double base = Math.min((double) maxBackoffMillis, initialBackoffMillis * Math.pow(multiplier, retry));
+        double fixed = base * (1.0 - jitter);
+        return (long) (fixed + base * jitter * random.nextDouble());
+    }
+
+    /**
+     * @param t the exception that ended an attempt
+     * @return true if the attempt should be retried
+     */
+    public boolean isRetryable(Throwable t) {
+        return BlueprintsBase.isConflict(t);
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public long getInitialBackoffMillis() {
+        return initialBackoffMillis;
+    }
+
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy[retries=" + maxRetries + ", initial=" + initialBackoffMillis + "ms, max="
+                + maxBackoffMillis + "ms, multiplier=" + multiplier + ", jitter=" + jitter + "]";
+    }
+}
@@ -0,0 +1,1044 @@
+/**
+ * RexsterBatchWriter.java
+ *
+ * Buffers graph mutations and sends them to Rexster in batches.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+package com.ibm.research.govsci.graph;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remote write mode for Rexster.
+ *
+ * Going through RexsterGraph turns every Blueprints call into at least one
+ * HTTP request. This class instead buffers create, update and delete
+ * operations and sends each batch to the Rexster Gremlin extension
+ * (<code>/tp/gremlin</code>) as a single request, which runs one script
+ * over the whole batch in one transaction. Several batches may be in flight
+ * at once and connections are reused through the keep-alive support in
+ * {@link HttpURLConnection}. When using more than five requests in flight
+ * the <code>http.maxConnections</code> system property should be raised to
+ * match.
+ *
+ * The ids given to this class are the caller's own handles, not server ids.
+ * Neo4j, OrientDB and Titan ignore supplied ids, so the script returns the
+ * id the server gave each element and the writer keeps a map from the
+ * caller's id to the server's. Later operations that refer to the element
+ * are sent with the server id, or with its position in the batch when it is
+ * created in the same batch. Ids that this writer never created are sent
+ * unchanged and must be server ids. An id whose creation failed, or whose
+ * element was removed, is not sent at all; the batch that refers to it
+ * fails instead. The map holds one entry for every element created with an
+ * id, so ids should be left null for elements that are never referred to
+ * again. {@link #getServerId(Object)} returns the server id of a vertex.
+ *
+ * {@link #getOrCreateVertex(Object, String, Object, String, String, Map)}
+ * and {@link #createEdgeIfNotExist(Object, Object, Object, String, Map)}
+ * look for an existing element in the same script that would create it, so
+ * loads can be repeated without duplicating vertices or edges. The lookup
+ * is only as fast as the index behind it: vertices should be looked up
+ * through a manual index or, on Titan, a key index, and edges are found by
+ * scanning the edges of their source vertex with the label.
+ *
+ * When an operation refers to an element created by a batch that is still
+ * in flight, its batch is not sent until that batch has been written, so an
+ * edge never reaches the server before its vertices. If that batch failed,
+ * the dependent batch fails without being sent.
+ *
+ * Created elements get <code>sys_created_at</code> like those made through
+ * {@link BlueprintsBase}, and vertices created with a type get
+ * <code>_type</code> and are added to <code>type-idx</code> in the same
+ * transaction. The fields of a queued operation, such as <code>_type</code>
+ * and <code>_id</code>, share the namespace of the element's properties, so
+ * properties with those names are rejected. Requests that fail with an I/O
+ * error or a server error are retried with a backoff. The operations of
+ * batches that still fail are kept and can be sent again with
+ * {@link #retryFailed()}.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class RexsterBatchWriter implements Shutdownable {
+    private static final Logger log = LoggerFactory.getLogger(RexsterBatchWriter.class);
+    private static final String GREMLIN_PATH = "/tp/gremlin";
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    public static final int DEFAULT_MAX_RETRIES = 2;
+    private static final long RETRY_BACKOFF_MILLIS = 100;
+
+    static final String ADD_VERTEX = "addVertex";
+    static final String UPDATE_VERTEX = "updateVertex";
+    static final String REMOVE_VERTEX = "removeVertex";
+    static final String ADD_EDGE = "addEdge";
+    static final String REMOVE_EDGE = "removeEdge";
+    static final String GET_OR_CREATE_VERTEX = "getOrCreateVertex";
+    static final String CREATE_EDGE_IF_NOT_EXIST = "createEdgeIfNotExist";
+
+    /** fields of a queued operation that cannot be used as property names */
+    private static final Set<String> RESERVED_KEYS = new HashSet<String>(
+            Arrays.asList("_id", "_type", "_action", "_outV", "_inV", "_label", "_key", "_value", "_index"));
+
+    /** the server id of an element whose creation failed or that was removed */
+    private static final Object GONE = new Object();
+
+    /**
+     * Applies the operations in <code>ops</code> in order and returns the
+     * server id of the element each one created, found or changed. An
+     * element is referred to by its server id, or by <code>xRef</code>, the
+     * position of the operation that created it earlier in the batch. An
+     * element that is found rather than created keeps its properties.
+     */
+    static final String WRITE_SCRIPT =
+            "def ix = null;"
+            + "if (g instanceof IndexableGraph) { ix = g.idx('" + BlueprintsBase.INDEX_TYPE + "');"
+            + " if (ix == null) ix = g.createIndex('" + BlueprintsBase.INDEX_TYPE + "', Vertex.class) };"
+            + "def els = []; def res = [];"
+            + "def find = { o, f, edge -> def r = o[f + 'Ref'] != null ? els[o[f + 'Ref']]"
+            + " : (edge ? g.e(o[f]) : g.v(o[f]));"
+            + " if (r == null) throw new IllegalArgumentException('no element ' + o[f]); r };"
+            + "try {"
+            + " for (o in ops) { def x = null; def found = false;"
+            + "  switch (o.a) {"
+            + "   case '" + ADD_VERTEX + "': x = g.addVertex(null); break;"
+            + "   case '" + UPDATE_VERTEX + "': x = find(o, 'id', false); break;"
+            + "   case '" + REMOVE_VERTEX + "': g.removeVertex(find(o, 'id', false)); break;"
+            + "   case '" + ADD_EDGE + "': x = g.addEdge(null, find(o, 'out', false), find(o, 'in', false), o.label); break;"
+            + "   case '" + REMOVE_EDGE + "': g.removeEdge(find(o, 'id', true)); break;"
+            + "   case '" + GET_OR_CREATE_VERTEX + "': def vix = null;"
+            + "    if (o.index != null) { vix = g.idx(o.index); if (vix == null) vix = g.createIndex(o.index, Vertex.class) };"
+            + "    def vit = (vix != null ? vix.get(o.key, o.value) : g.getVertices(o.key, o.value)).iterator();"
+            + "    if (vit.hasNext()) { x = vit.next(); found = true }"
+            + "    else { x = g.addVertex(null); x.setProperty(o.key, o.value); if (vix != null) vix.put(o.key, o.value, x) };"
+            + "    break;"
+            + "   case '" + CREATE_EDGE_IF_NOT_EXIST + "': def ov = find(o, 'out', false); def iv = find(o, 'in', false);"
+            + "    x = ov.getEdges(Direction.OUT, o.label).find { it.getVertex(Direction.IN).getId() == iv.getId() };"
+            + "    if (x != null) found = true else x = g.addEdge(null, ov, iv, o.label);"
+            + "    break;"
+            + "   default: throw new IllegalArgumentException('unknown operation ' + o.a) };"
+            + "  if (x != null && !found) { for (p in o.props) x.setProperty(p.key, p.value);"
+            + "   if (o.type != null) { x.setProperty('" + BlueprintsBase.PROPERTY_TYPE + "', o.type);"
+            + "    if (ix != null) ix.put('" + BlueprintsBase.PROPERTY_TYPE + "', o.type, x) } };"
+            + "  els << x; res << (x == null ? null : x.getId()) };"
+            + " if (g instanceof TransactionalGraph) g.stopTransaction(TransactionalGraph.Conclusion.SUCCESS)"
+            + "} catch (err) {"
+            + " if (g instanceof TransactionalGraph) g.stopTransaction(TransactionalGraph.Conclusion.FAILURE);"
+            + " throw err };"
+            + "res";
+
+    private final URL gremlinUrl;
+    private final int batchSize;
+    private final int maxInFlight;
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+    private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+    private List<Map<String, Object>> pending;
+
+    /** batches in flight that create each vertex and edge id */
+    private final ConcurrentHashMap<Object, Batch> vertexCreators = new ConcurrentHashMap<Object, Batch>();
+    private final ConcurrentHashMap<Object, Batch> edgeCreators = new ConcurrentHashMap<Object, Batch>();
+    /** server ids of the vertices and edges written, by caller id */
+    private final ConcurrentHashMap<Object, Object> vertexIds = new ConcurrentHashMap<Object, Object>();
+    private final ConcurrentHashMap<Object, Object> edgeIds = new ConcurrentHashMap<Object, Object>();
+
+    private final AtomicLong batchSequence = new AtomicLong();
+    private final AtomicLong requestsSent = new AtomicLong();
+    private final AtomicLong operationsSent = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+    private final ConcurrentLinkedQueue<Exception> errors = new ConcurrentLinkedQueue<Exception>();
+    private final ConcurrentLinkedQueue<Batch> failed = new ConcurrentLinkedQueue<Batch>();
+
+    /**
+     * @param graphUrl url of the graph, such as http://localhost:8182/graphs/gratefulgraph
+     * @param batchSize number of operations sent in each request
+     * @param maxInFlight maximum number of requests outstanding at once
+     */
+    public RexsterBatchWriter(String graphUrl, int batchSize, int maxInFlight) {
+        String base = graphUrl.endsWith("/") ? graphUrl.substring(0, graphUrl.length() - 1) : graphUrl;
+        try {
+            gremlinUrl = new URL(base + GREMLIN_PATH);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid rexster graph url: " + graphUrl, e);
+        }
+        this.batchSize = batchSize;
+        this.maxInFlight = maxInFlight;
+        executor = Executors.newFixedThreadPool(maxInFlight);
+        inFlight = new Semaphore(maxInFlight);
+        pending = new ArrayList<Map<String, Object>>(batchSize);
+    }
+
+    /**
+     * @param graphUrl url of the graph, such as http://localhost:8182/graphs/gratefulgraph
+     */
+    public RexsterBatchWriter(String graphUrl) {
+        this(graphUrl, DEFAULT_BATCH_SIZE, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Sets how many times a request is retried after an I/O error or a
+     * server error before its batch is counted as failed
+     *
+     * @param maxRetries number of retries, 0 to send each request once
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Queues the creation of a vertex
+     *
+     * @param id caller's identifier for the vertex, referenced by later
+     *          operations, or null if it is not referenced
+     * @param properties properties of the new vertex, may be null
+     * @throws IllegalArgumentException if a property name is reserved
+     */
+    public void addVertex(Object id, Map<String, Object> properties) {
+        addVertex(id, null, properties);
+    }
+
+    /**
+     * Queues the creation of a vertex of the given type
+     *
+     * The vertex gets the type and is added to <code>type-idx</code> in the
+     * same transaction that creates it.
+     *
+     * @param id caller's identifier for the vertex, referenced by later
+     *          operations, or null if it is not referenced
+     * @param vertexType the type of the vertex, may be null
+     * @param properties properties of the new vertex, may be null
+     * @throws IllegalArgumentException if a property name is reserved
+     */
+    public void addVertex(Object id, String vertexType, Map<String, Object> properties) {
+        Map<String, Object> op = operation(ADD_VERTEX, id, properties);
+        if (vertexType != null) {
+            op.put("_type", vertexType);
+        }
+        enqueue(op);
+    }
+
+    /**
+     * Queues an update to the properties of a vertex
+     *
+     * @param id caller's identifier of a vertex created by this writer, or a server id
+     * @param properties properties to set
+     * @throws IllegalArgumentException if a property name is reserved
+     */
+    public void updateVertex(Object id, Map<String, Object> properties) {
+        enqueue(operation(UPDATE_VERTEX, id, properties));
+    }
+
+    /**
+     * Queues the removal of a vertex
+     *
+     * @param id caller's identifier of a vertex created by this writer, or a server id
+     */
+    public void removeVertex(Object id) {
+        enqueue(operation(REMOVE_VERTEX, id, null));
+    }
+
+    /**
+     * Queues the creation of an edge
+     *
+     * @param id caller's identifier for the edge, or null if it is not referenced
+     * @param outId identifier of the source vertex
+     * @param inId identifier of the target vertex
+     * @param label label for the edge
+     * @param properties properties of the new edge, may be null
+     * @throws IllegalArgumentException if a property name is reserved
+     */
+    public void addEdge(Object id, Object outId, Object inId, String label, Map<String, Object> properties) {
+        Map<String, Object> op = operation(ADD_EDGE, id, properties);
+        op.put("_outV", outId);
+        op.put("_inV", inId);
+        op.put("_label", label);
+        enqueue(op);
+    }
+
+    /**
+     * Queues a lookup of a vertex by a property, creating it if there is none
+     *
+     * The lookup and the creation run in the same transaction on the
+     * server. A vertex that is found is left as it is. A vertex that is
+     * created gets the property, the type and the other properties, and is
+     * added to the index when one is named. Either way later operations can
+     * refer to the vertex by <code>id</code>.
+     *
+     * @param id caller's identifier for the vertex, or null if it is not referenced
+     * @param key name of the property that identifies the vertex
+     * @param value value of the property
+     * @param vertexType the type of a new vertex, may be null
+     * @param indexName manual index to look the vertex up in, created if
+     *          missing, or null to look it up by key, as on Titan with a
+     *          key index
+     * @param properties properties of a new vertex, may be null
+     * @throws IllegalArgumentException if a property name is reserved
+     */
+    public void getOrCreateVertex(Object id, String key, Object value, String vertexType, String indexName,
+            Map<String, Object> properties) {
+        if (properties != null && properties.containsKey(key)) {
+            throw new IllegalArgumentException("Property " + key + " is given as both key and property");
+        }
+        Map<String, Object> op = operation(GET_OR_CREATE_VERTEX, id, properties);
+        op.put("_key", key);
+        op.put("_value", value);
+        if (indexName != null) {
+            op.put("_index", indexName);
+        }
+        if (vertexType != null) {
+            op.put("_type", vertexType);
+        }
+        enqueue(op);
+    }
+
+    /**
+     * Queues the creation of an edge unless the source vertex already has
+     * an edge with the label to the target vertex
+     *
+     * An edge that is found is left as it is.
+     *
+     * @param id caller's identifier for the edge, or null if it is not referenced
+     * @param outId identifier of the source vertex
+     * @param inId identifier of the target vertex
+     * @param label label for the edge
+     * @param properties properties of a new edge, may be null
+     * @throws IllegalArgumentException if a property name is reserved
+     */
+    public void createEdgeIfNotExist(Object id, Object outId, Object inId, String label,
+            Map<String, Object> properties) {
+        Map<String, Object> op = operation(CREATE_EDGE_IF_NOT_EXIST, id, properties);
+        op.put("_outV", outId);
+        op.put("_inV", inId);
+        op.put("_label", label);
+        enqueue(op);
+    }
+
+    /**
+     * Queues the removal of an edge
+     *
+     * @param id caller's identifier of an edge created by this writer, or a server id
+     */
+    public void removeEdge(Object id) {
+        enqueue(operation(REMOVE_EDGE, id, null));
+    }
+
+    /**
+     * Gets the id the server gave a vertex created by this writer
+     *
+     * @param id the caller's identifier of the vertex
+     * @return the server id, or null if the vertex has not been written, its
+     *          creation failed or it was removed
+     */
+    public Object getServerId(Object id) {
+        Object serverId = vertexIds.get(id);
+        return serverId == GONE ? null : serverId;
+    }
+
+    /**
+     * Sends any buffered operations without waiting for the response
+     */
+    public void flush() {
+        synchronized (this) {
+            if (!pending.isEmpty()) {
+                submit();
+            }
+        }
+    }
+
+    /**
+     * Sends any buffered operations and waits for every outstanding request
+     */
+    public void flushAndWait() {
+        flush();
+        try {
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted waiting for rexster batches to complete");
+        }
+    }
+
+    /**
+     * Queues the operations of every failed batch again, in the order they
+     * were first queued
+     *
+     * @return the number of operations queued
+     */
+    public int retryFailed() {
+        flushAndWait();
+        List<Batch> batches = new ArrayList<Batch>();
+        Batch b;
+        while ((b = failed.poll()) != null) {
+            batches.add(b);
+        }
+        Collections.sort(batches);
+        int count = 0;
+        synchronized (this) {
+            for (Batch batch : batches) {
+                for (Map<String, Object> op : batch.ops) {
+                    enqueue(op);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /* (non-Javadoc)
+     * @see com.ibm.research.govsci.graph.Shutdownable#shutdown()
+     */
+    public void shutdown() {
+        flushAndWait();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Rexster batch writer sent {} operations in {} requests", operationsSent.get(), requestsSent.get());
+        if (failedBatches.get() > 0) {
+            log.error("{} rexster batches failed", failedBatches.get());
+        }
+    }
+
+    /**
+     * @return number of HTTP requests that completed successfully
+     */
+    public long getRequestsSent() {
+        return requestsSent.get();
+    }
+
+    /**
+     * @return number of operations in successfully sent requests
+     */
+    public long getOperationsSent() {
+        return operationsSent.get();
+    }
+
+    /**
+     * @return number of batches that could not be sent
+     */
+    public long getFailedBatches() {
+        return failedBatches.get();
+    }
+
+    /**
+     * @return the exceptions raised by failed batches
+     */
+    public Collection<Exception> getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return the operations of the failed batches that have not been retried
+     */
+    public List<Map<String, Object>> getFailedOperations() {
+        List<Batch> batches = new ArrayList<Batch>(failed);
+        Collections.sort(batches);
+        List<Map<String, Object>> ops = new ArrayList<Map<String, Object>>();
+        for (Batch b : batches) {
+            ops.addAll(b.ops);
+        }
+        return ops;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a property has the name of a field
+     *          of the operation
+     */
+    private Map<String, Object> operation(String action, Object id, Map<String, Object> properties) {
+        if (properties != null) {
+            for (String key : properties.keySet()) {
+                if (RESERVED_KEYS.contains(key)) {
+                    throw new IllegalArgumentException("Property name " + key + " is reserved by the batch writer");
+                }
+            }
+        }
+        Map<String, Object> op = new LinkedHashMap<String, Object>();
+        if (id != null) {
+            op.put("_id", id);
+        }
+        op.put("_action", action);
+        if (properties != null) {
+            op.putAll(properties);
+        }
+        if (creates(op) && !op.containsKey(BlueprintsBase.PROPERTY_CREATED_AT)) {
+            op.put(BlueprintsBase.PROPERTY_CREATED_AT, System.currentTimeMillis()/1000L);
+        }
+        return op;
+    }
+
+    private static boolean creates(Map<String, Object> op) {
+        Object action = op.get("_action");
+        return ADD_VERTEX.equals(action) || ADD_EDGE.equals(action)
+                || GET_OR_CREATE_VERTEX.equals(action) || CREATE_EDGE_IF_NOT_EXIST.equals(action);
+    }
+
+    private static boolean isEdge(Map<String, Object> op) {
+        Object action = op.get("_action");
+        return ADD_EDGE.equals(action) || REMOVE_EDGE.equals(action) || CREATE_EDGE_IF_NOT_EXIST.equals(action);
+    }
+
+    private synchronized void enqueue(Map<String, Object> op) {
+        pending.add(op);
+        if (pending.size() >= batchSize) {
+            submit();
+        }
+    }
+
+    /**
+     * Hands the pending operations to the executor as a batch
+     *
+     * This is called with the lock held so batches are handed over in the
+     * order they were cut. A batch only waits for batches handed over before
+     * it, and there is a thread for every batch in flight, so it cannot wait
+     * on a batch that never runs.
+     */
+    private void submit() {
+        Batch batch = new Batch(pending);
+        pending = new ArrayList<Map<String, Object>>(batchSize);
+        submit(batch);
+    }
+
+    private void submit(Batch batch) {
+        for (Map<String, Object> op : batch.ops) {
+            boolean edge = isEdge(op);
+            Object id = op.get("_id");
+            if (edge && creates(op)) {
+                batch.dependOn(vertexCreators.get(op.get("_outV")));
+                batch.dependOn(vertexCreators.get(op.get("_inV")));
+            }
+            if (id == null) {
+                continue;
+            }
+            if (creates(op)) {
+                (edge ? edgeCreators : vertexCreators).put(id, batch);
+                batch.created.add(op);
+            } else {
+                batch.dependOn((edge ? edgeCreators : vertexCreators).get(id));
+            }
+        }
+        try {
+            // blocks the producer when too many requests are outstanding
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            batch.fail(e);
+            batch.finish();
+            return;
+        }
+        executor.execute(batch);
+    }
+
+    /**
+     * A batch of operations and the batches in flight that it must follow
+     */
+    private class Batch implements Runnable, Comparable<Batch> {
+        private final long seq = batchSequence.getAndIncrement();
+        private final List<Map<String, Object>> ops;
+        private final List<Map<String, Object>> created = new ArrayList<Map<String, Object>>();
+        private final Set<Batch> dependencies = new HashSet<Batch>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean written = false;
+
+        Batch(List<Map<String, Object>> ops) {
+            this.ops = ops;
+        }
+
+        void dependOn(Batch other) {
+            if (other != null && other != this) {
+                dependencies.add(other);
+            }
+        }
+
+        public void run() {
+            try {
+                for (Batch d : dependencies) {
+                    d.done.await();
+                    if (!d.written) {
+                        fail(new IOException("Batch depends on elements from a failed batch"));
+                        return;
+                    }
+                }
+                String response = post(gremlinUrl, scriptBody(ops), "batch of " + ops.size() + " operations");
+                Object results = parseJson(response);
+                if (results instanceof Map) {
+                    results = ((Map<?, ?>) results).get("results");
+                }
+                if (!(results instanceof List) || ((List<?>) results).size() != ops.size()) {
+                    throw new IOException("Unexpected response from " + gremlinUrl);
+                }
+                record((List<?>) results);
+                requestsSent.incrementAndGet();
+                operationsSent.addAndGet(ops.size());
+                written = true;
+            } catch (IOException e) {
+                log.error("Error sending batch of " + ops.size() + " operations to " + gremlinUrl, e);
+                fail(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(e);
+            } finally {
+                finish();
+                inFlight.release();
+            }
+        }
+
+        /**
+         * Builds the request, referring to each element by its position in
+         * the batch or by its server id
+         *
+         * @throws IOException if an operation refers to an element whose
+         *          creation failed or that was removed
+         */
+        private byte[] scriptBody(List<Map<String, Object>> ops) throws IOException {
+            Map<Object, Integer> localVertices = new HashMap<Object, Integer>();
+            Map<Object, Integer> localEdges = new HashMap<Object, Integer>();
+            List<Map<String, Object>> script = new ArrayList<Map<String, Object>>(ops.size());
+            for (int i = 0; i < ops.size(); i++) {
+                Map<String, Object> op = ops.get(i);
+                boolean edge = isEdge(op);
+                Map<String, Object> s = new LinkedHashMap<String, Object>();
+                Map<String, Object> props = new LinkedHashMap<String, Object>();
+                s.put("a", op.get("_action"));
+                for (Entry<String, Object> e : op.entrySet()) {
+                    String key = e.getKey();
+                    if (key.equals("_outV")) {
+                        reference(s, "out", e.getValue(), localVertices, vertexIds);
+                    } else if (key.equals("_inV")) {
+                        reference(s, "in", e.getValue(), localVertices, vertexIds);
+                    } else if (key.equals("_label")) {
+                        s.put("label", e.getValue());
+                    } else if (key.equals("_type")) {
+                        s.put("type", e.getValue());
+                    } else if (key.equals("_key")) {
+                        s.put("key", e.getValue());
+                    } else if (key.equals("_value")) {
+                        s.put("value", e.getValue());
+                    } else if (key.equals("_index")) {
+                        s.put("index", e.getValue());
+                    } else if (!RESERVED_KEYS.contains(key)) {
+                        props.put(key, e.getValue());
+                    }
+                }
+                Object id = op.get("_id");
+                if (creates(op)) {
+                    if (id != null) {
+                        (edge ? localEdges : localVertices).put(id, i);
+                    }
+                } else {
+                    reference(s, "id", id, edge ? localEdges : localVertices, edge ? edgeIds : vertexIds);
+                }
+                s.put("props", props);
+                script.add(s);
+            }
+            Map<String, Object> params = new LinkedHashMap<String, Object>();
+            params.put("ops", script);
+            Map<String, Object> request = new LinkedHashMap<String, Object>();
+            request.put("script", WRITE_SCRIPT);
+            request.put("params", params);
+            StringBuilder sb = new StringBuilder(ops.size() * 64 + WRITE_SCRIPT.length());
+            appendJson(sb, request);
+            return sb.toString().getBytes("UTF-8");
+        }
+
+        private void reference(Map<String, Object> s, String field, Object id, Map<Object, Integer> local,
+                Map<Object, Object> serverIds) throws IOException {
+            Integer position = local.get(id);
+            if (position != null) {
+                s.put(field + "Ref", position);
+                return;
+            }
+            Object serverId = serverIds.get(id);
+            if (serverId == GONE) {
+                throw new IOException("Element " + id + " was not created or has been removed");
+            }
+            s.put(field, serverId != null ? serverId : id);
+        }
+
+        /** keeps the server ids of the elements created or found and forgets those removed */
+        private void record(List<?> results) {
+            for (int i = 0; i < ops.size(); i++) {
+                Map<String, Object> op = ops.get(i);
+                Object id = op.get("_id");
+                if (id == null) {
+                    continue;
+                }
+                Map<Object, Object> serverIds = isEdge(op) ? edgeIds : vertexIds;
+                Object action = op.get("_action");
+                if (creates(op)) {
+                    serverIds.put(id, results.get(i));
+                } else if (REMOVE_VERTEX.equals(action) || REMOVE_EDGE.equals(action)) {
+                    serverIds.put(id, GONE);
+                }
+            }
+        }
+
+        void fail(Exception e) {
+            failedBatches.incrementAndGet();
+            errors.add(e);
+            failed.add(this);
+            for (Map<String, Object> op : created) {
+                (isEdge(op) ? edgeIds : vertexIds).putIfAbsent(op.get("_id"), GONE);
+            }
+        }
+
+        /** lets dependent batches run and forgets the elements this batch created */
+        void finish() {
+            for (Map<String, Object> op : created) {
+                (isEdge(op) ? edgeCreators : vertexCreators).remove(op.get("_id"), this);
+            }
+            done.countDown();
+        }
+
+        public int compareTo(Batch o) {
+            return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+        }
+    }
+
+    /**
+     * Posts a request, retrying after I/O errors and server errors
+     *
+     * @return the body of the response
+     */
+    private String post(URL url, byte[] body, String what) throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                String response = post(url, body);
+                log.trace("Sent {}", what);
+                return response;
+            } catch (StatusException e) {
+                if (e.status < 500 || attempt >= maxRetries) {
+                    throw e;
+                }
+                log.warn("Rexster returned status {} for {}, retrying", e.status, what);
+            } catch (IOException e) {
+                if (attempt >= maxRetries) {
+                    throw e;
+                }
+                log.warn("Error sending " + what + ", retrying", e);
+            }
+            Thread.sleep(RETRY_BACKOFF_MILLIS << attempt);
+        }
+    }
+
+    private String post(URL url, byte[] body) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setDoOutput(true);
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Content-Type", "application/json");
+        conn.setRequestProperty("Accept", "application/json");
+        conn.setFixedLengthStreamingMode(body.length);
+        OutputStream out = conn.getOutputStream();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+        int status = conn.getResponseCode();
+        InputStream in = status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+        // the response must be read fully for the connection to be reused
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        if (in != null) {
+            try {
+                byte[] buf = new byte[4096];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    response.write(buf, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        if (status != HttpURLConnection.HTTP_OK) {
+            throw new StatusException(status, url);
+        }
+        return response.toString("UTF-8");
+    }
+
+    private static class StatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+        final int status;
+
+        StatusException(int status, URL url) {
+            super("Rexster returned status " + status + " for " + url);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Parses a JSON document into maps, lists, strings, numbers and booleans
+     *
+     * Whole numbers are returned as Long and others as Double.
+     *
+     * @throws IOException if the text is not valid JSON
+     */
+    static Object parseJson(String text) throws IOException {
+        JsonParser parser = new JsonParser(text);
+        Object value = parser.value();
+        parser.skipSpace();
+        if (parser.pos != text.length()) {
+            throw new IOException("Unexpected text after JSON value at " + parser.pos);
+        }
+        return value;
+    }
+
+    private static class JsonParser {
+        private final String s;
+        private int pos = 0;
+
+        JsonParser(String s) {
+            this.s = s;
+        }
+
+        void skipSpace() {
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private char next() throws IOException {
+            skipSpace();
+            if (pos >= s.length()) {
+                throw new IOException("Unexpected end of JSON");
+            }
+            return s.charAt(pos);
+        }
+
+        private void expect(char c) throws IOException {
+            if (next() != c) {
+                throw new IOException("Expected '" + c + "' at " + pos);
+            }
+            pos++;
+        }
+
+        Object value() throws IOException {
+            char c = next();
+            if (c == '{') {
+                pos++;
+                Map<String, Object> map = new LinkedHashMap<String, Object>();
+                if (next() == '}') {
+                    pos++;
+                    return map;
+                }
+                while (true) {
+                    String key = string();
+                    expect(':');
+                    map.put(key, value());
+                    if (next() == ',') {
+                        pos++;
+                    } else {
+                        expect('}');
+                        return map;
+                    }
+                }
+            } else if (c == '[') {
+                pos++;
+                List<Object> list = new ArrayList<Object>();
+                if (next() == ']') {
+                    pos++;
+                    return list;
+                }
+                while (true) {
+                    list.add(value());
+                    if (next() == ',') {
+                        pos++;
+                    } else {
+                        expect(']');
+                        return list;
+                    }
+                }
+            } else if (c == '"') {
+                return string();
+            } else if (s.startsWith("true", pos)) {
+                pos += 4;
+                return Boolean.TRUE;
+            } else if (s.startsWith("false", pos)) {
+                pos += 5;
+                return Boolean.FALSE;
+            } else if (s.startsWith("null", pos)) {
+                pos += 4;
+                return null;
+            }
+            return number();
+        }
+
+        private String string() throws IOException {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (pos < s.length()) {
+                char c = s.charAt(pos++);
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (pos >= s.length()) {
+                    break;
+                }
+                char e = s.charAt(pos++);
+                switch (e) {
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'u':
+                    if (pos + 4 > s.length()) {
+                        throw new IOException("Bad unicode escape at " + pos);
+                    }
+                    try {
+                        sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                    } catch (NumberFormatException ex) {
+                        throw new IOException("Bad unicode escape at " + pos);
+                    }
+                    pos += 4;
+                    break;
+                default:
+                    sb.append(e);
+                }
+            }
+            throw new IOException("Unterminated JSON string");
+        }
+
+        private Object number() throws IOException {
+            int start = pos;
+            while (pos < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos)) >= 0) {
+                pos++;
+            }
+            String n = s.substring(start, pos);
+            try {
+                if (n.indexOf('.') < 0 && n.indexOf('e') < 0 && n.indexOf('E') < 0) {
+                    return Long.valueOf(n);
+                }
+                return Double.valueOf(n);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad JSON value at " + start);
+            }
+        }
+    }
+
+    static void appendJson(StringBuilder sb, Object value) {
+        if (value == null) {
+            sb.append("null");
+        } else if (value instanceof Number || value instanceof Boolean) {
+            sb.append(value.toString());
+        } else if (value instanceof Map) {
+            sb.append('{');
+            Iterator<? extends Entry<?, ?>> it = ((Map<?, ?>) value).entrySet().iterator();
+            while (it.hasNext()) {
+                Entry<?, ?> e = it.next();
+                appendJsonString(sb, e.getKey().toString());
+                sb.append(':');
+                appendJson(sb, e.getValue());
+                if (it.hasNext()) {
+                    sb.append(',');
+                }
+            }
+            sb.append('}');
+        } else if (value instanceof Collection) {
+            sb.append('[');
+            Iterator<?> it = ((Collection<?>) value).iterator();
+            while (it.hasNext()) {
+                appendJson(sb, it.next());
+                if (it.hasNext()) {
+                    sb.append(',');
+                }
+            }
+            sb.append(']');
+        } else {
+            appendJsonString(sb, value.toString());
+        }
+    }
+
+    private static void appendJsonString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        sb.append('"');
+    }
+}
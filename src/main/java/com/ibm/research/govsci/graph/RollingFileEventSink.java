@@ -0,0 +1,159 @@
+/**
+ * RollingFileEventSink.java
+ *
+ * Writes change events to a set of rolling text files.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+package com.ibm.research.govsci.graph;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Event sink that writes one tab separated line per event.
+ *
+ * The columns are timestamp, event type, element kind (V or E), element id,
+ * vertex type or edge label, property key, property value, source vertex id
+ * and target vertex id, with empty columns for fields that do not apply.
+ * When the current file grows past the size limit it is renamed to
+ * <code>name.1</code>, older files are shifted up, and files beyond the
+ * maximum count are deleted.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class RollingFileEventSink implements GraphEventSink, Shutdownable {
+    private static final Logger log = LoggerFactory.getLogger(RollingFileEventSink.class);
+
+    private final File file;
+    private final long maxBytes;
+    private final int maxFiles;
+    private Writer writer;
+    private long written;
+    private final StringBuilder line = new StringBuilder(256);
+
+    /**
+     * @param file the file to write to
+     * @param maxBytes approximate size at which the file is rolled over
+     * @param maxFiles number of rolled over files to keep
+     * @throws IOException if the file cannot be opened
+     */
+    public RollingFileEventSink(File file, long maxBytes, int maxFiles) throws IOException {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        open();
+    }
+
+    public void onEvent(GraphEvent event) {
+        line.setLength(0);
+        line.append(event.getTimestamp()).append('\t');
+        line.append(event.getType()).append('\t');
+        line.append(event.isEdge() ? 'E' : 'V').append('\t');
+        append(event.getElementId()).append('\t');
+        append(event.getLabel()).append('\t');
+        append(event.getKey()).append('\t');
+        append(event.getValue()).append('\t');
+        append(event.getOutId()).append('\t');
+        append(event.getInId()).append('\n');
+        try {
+            writer.write(line.toString());
+            written += line.length();
+            if (written >= maxBytes) {
+                roll();
+            }
+        } catch (IOException e) {
+            log.error("Error writing event to {}", file, e);
+        }
+    }
+
+    public void flush() {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            log.error("Error flushing {}", file, e);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.ibm.research.govsci.graph.Shutdownable#shutdown()
+     */
+    public void shutdown() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            log.error("Error closing {}", file, e);
+        }
+    }
+
+    private StringBuilder append(Object o) {
+        if (o == null) {
+            return line;
+        }
+        String s = o.toString();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\t') {
+                line.append("\\t");
+            } else if (c == '\n') {
+                line.append("\\n");
+            } else if (c == '\\') {
+                line.append("\\\\");
+            } else {
+                line.append(c);
+            }
+        }
+        return line;
+    }
+
+    private void open() throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"), 65536);
+        written = file.length();
+    }
+
+    private void roll() throws IOException {
+        writer.close();
+        File oldest = new File(file.getPath() + "." + maxFiles);
+        if (oldest.exists() && !oldest.delete()) {
+            log.warn("Unable to delete {}", oldest);
+        }
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            File f = new File(file.getPath() + "." + i);
+            if (f.exists() && !f.renameTo(new File(file.getPath() + "." + (i + 1)))) {
+                log.warn("Unable to rename {}", f);
+            }
+        }
+        if (maxFiles > 0 && !file.renameTo(new File(file.getPath() + ".1"))) {
+            log.warn("Unable to rename {}", file);
+        } else if (maxFiles == 0 && !file.delete()) {
+            log.warn("Unable to delete {}", file);
+        }
+        open();
+    }
+}
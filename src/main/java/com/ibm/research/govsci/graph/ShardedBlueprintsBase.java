@@ -0,0 +1,584 @@
+/**
+ * ShardedBlueprintsBase.java
+ *
+ * Partitions a graph across several BlueprintsBase stores.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+package com.ibm.research.govsci.graph;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Index;
+import com.tinkerpop.blueprints.Vertex;
+
+/**
+ * Hash partitions vertices across several {@link BlueprintsBase} shards.
+ *
+ * Each vertex lives in the shard chosen by hashing its type and id. An edge
+ * is stored in the shard of its source vertex. When the target lives in
+ * another shard the edge points at a ghost vertex standing in for the
+ * target, and a mirror edge from a ghost of the source is written to the
+ * target's shard so the edge can be followed in either direction. Ghosts are
+ * resolved back to the real vertices when traversing.
+ *
+ * Every shard has its own writer thread and all work on a shard runs on that
+ * thread, so engines that bind transactions to threads behave as they do
+ * unsharded while different shards are written in parallel. Queries that are
+ * not tied to a single vertex are sent to every shard and the results merged.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class ShardedBlueprintsBase implements Shutdownable {
+    private static final Logger log = LoggerFactory.getLogger(ShardedBlueprintsBase.class);
+
+    public static final String GHOST_TYPE = "sys_ghost";
+    private static final String PROPERTY_TYPE = "_type";
+    private static final String GHOST_INDEX = "sys-ghost-idx";
+    private static final String GHOST_KEY = "sys_ghost_key";
+    private static final String GHOST_SHARD = "sys_ghost_shard";
+    private static final String GHOST_INDEX_NAME = "sys_ghost_index";
+    private static final String GHOST_IDCOL = "sys_ghost_idcol";
+    private static final String GHOST_IDVAL = "sys_ghost_id";
+    private static final String GHOST_VERTEX_TYPE = "sys_ghost_type";
+    private static final String MIRROR = "sys_ghost_mirror";
+    private static final String SHARD_INDEX_NAME = "sys_shard_index";
+    private static final String SHARD_IDCOL = "sys_shard_idcol";
+
+    private final List<BlueprintsBase> shards;
+    private final ExecutorService[] writers;
+
+    /**
+     * Work that runs on the writer thread of a shard
+     */
+    public interface ShardWork<T> {
+        T execute(BlueprintsBase shard);
+    }
+
+    /**
+     * Opens one shard for each database url
+     *
+     * @param engine name of the engine used for every shard
+     * @param dburls url of the database for each shard
+     * @param config parameters for the engine
+     */
+    public ShardedBlueprintsBase(String engine, List<String> dburls, Map<String, String> config) {
+        this(openShards(engine, dburls, config));
+    }
+
+    /**
+     * @param shards the graphs to partition across, in a fixed order
+     */
+    public ShardedBlueprintsBase(List<BlueprintsBase> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<BlueprintsBase>(shards));
+        writers = new ExecutorService[shards.size()];
+        for (int i = 0; i < writers.length; i++) {
+            final String name = "shard-writer-" + i;
+            writers[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, name);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        executeOnAll(new ShardWork<Object>() {
+            public Object execute(BlueprintsBase shard) {
+                if (!shard.supportsIndexes() && shard.supportsKeyIndexes()) {
+                    shard.createKeyIndex(GHOST_KEY);
+                }
+                return null;
+            }
+        });
+    }
+
+    private static List<BlueprintsBase> openShards(String engine, List<String> dburls, Map<String, String> config) {
+        List<BlueprintsBase> rv = new ArrayList<BlueprintsBase>(dburls.size());
+        for (String url : dburls) {
+            rv.add(new BlueprintsBase(engine, url, config));
+        }
+        return rv;
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * @param shard the number of the shard
+     * @return the graph for the shard; work on it should go through {@link #execute(int, ShardWork)}
+     */
+    public BlueprintsBase getShard(int shard) {
+        return shards.get(shard);
+    }
+
+    /**
+     * Chooses the shard that owns a vertex
+     *
+     * The id is hashed with its own hashCode, so the same id must always be
+     * given as the same type (for example always Integer, never Long).
+     *
+     * @param vertexType the type of the vertex
+     * @param idval the id of the vertex
+     * @return the number of the shard
+     */
+    public int shardFor(String vertexType, Object idval) {
+        int h = vertexType.hashCode() * 31 + idval.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return (h & Integer.MAX_VALUE) % shards.size();
+    }
+
+    /**
+     * Runs work on the writer thread of a shard and waits for the result
+     *
+     * @param shard the number of the shard
+     * @param work the work to run
+     * @return the result of the work
+     */
+    public <T> T execute(int shard, ShardWork<T> work) {
+        return await(submit(shard, work));
+    }
+
+    /**
+     * Runs work on every shard in parallel
+     *
+     * @param work the work to run
+     * @return the result from each shard, in shard order
+     */
+    public <T> List<T> executeOnAll(ShardWork<T> work) {
+        List<Future<T>> futures = new ArrayList<Future<T>>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            futures.add(submit(i, work));
+        }
+        List<T> rv = new ArrayList<T>(shards.size());
+        for (Future<T> f : futures) {
+            rv.add(await(f));
+        }
+        return rv;
+    }
+
+    private <T> Future<T> submit(int shard, final ShardWork<T> work) {
+        final BlueprintsBase graph = shards.get(shard);
+        return writers[shard].submit(new Callable<T>() {
+            public T call() {
+                return work.execute(graph);
+            }
+        });
+    }
+
+    private <T> T await(Future<T> f) {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for shard", e);
+        }
+    }
+
+    /**
+     * Gets a vertex from its shard, creating it if it does not exist
+     *
+     * @param idxname name of the index in the shard holding the id, ignored by
+     *          engines without manual indexes; if null the vertex is found
+     *          without a manual index
+     * @param idcol the name of the column which contains the id
+     * @param idval the value of the id
+     * @param vertexType the type of vertex
+     * @return the vertex and its shard
+     */
+    public ShardedVertex getOrCreateVertex(final String idxname, final String idcol, final Object idval,
+            final String vertexType) {
+        int shard = shardFor(vertexType, idval);
+        Vertex v = execute(shard, new ShardWork<Vertex>() {
+            public Vertex execute(BlueprintsBase graph) {
+                return getOrCreateLocal(graph, idxname, idcol, idval, vertexType);
+            }
+        });
+        return new ShardedVertex(shard, v, idxname, idcol, idval, vertexType);
+    }
+
+    /**
+     * Gets or creates many vertices, writing to all of the shards in parallel
+     *
+     * @param idxname name of the index in each shard holding the id, may be null
+     * @param idcol the name of the column which contains the id
+     * @param idvals the ids of the vertices
+     * @param vertexType the type of vertex
+     * @return the vertices, in the same order as the ids
+     */
+    public List<ShardedVertex> getOrCreateVertices(final String idxname, final String idcol,
+            List<?> idvals, final String vertexType) {
+        List<List<Integer>> positions = new ArrayList<List<Integer>>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            positions.add(new ArrayList<Integer>());
+        }
+        for (int i = 0; i < idvals.size(); i++) {
+            positions.get(shardFor(vertexType, idvals.get(i))).add(i);
+        }
+        final List<?> ids = idvals;
+        List<Future<List<Vertex>>> futures = new ArrayList<Future<List<Vertex>>>(shards.size());
+        for (int s = 0; s < shards.size(); s++) {
+            final List<Integer> mine = positions.get(s);
+            futures.add(mine.isEmpty() ? null : submit(s, new ShardWork<List<Vertex>>() {
+                public List<Vertex> execute(BlueprintsBase graph) {
+                    List<Vertex> rv = new ArrayList<Vertex>(mine.size());
+                    for (Integer pos : mine) {
+                        rv.add(getOrCreateLocal(graph, idxname, idcol, ids.get(pos), vertexType));
+                    }
+                    return rv;
+                }
+            }));
+        }
+        ShardedVertex[] rv = new ShardedVertex[idvals.size()];
+        for (int s = 0; s < shards.size(); s++) {
+            if (futures.get(s) == null) {
+                continue;
+            }
+            List<Vertex> created = await(futures.get(s));
+            List<Integer> mine = positions.get(s);
+            for (int i = 0; i < mine.size(); i++) {
+                int pos = mine.get(i);
+                rv[pos] = new ShardedVertex(s, created.get(i), idxname, idcol, idvals.get(pos), vertexType);
+            }
+        }
+        List<ShardedVertex> result = new ArrayList<ShardedVertex>(rv.length);
+        Collections.addAll(result, rv);
+        return result;
+    }
+
+    private Vertex getOrCreateLocal(BlueprintsBase graph, String idxname, String idcol, Object idval,
+            String vertexType) {
+        Index<Vertex> index = idxname != null && graph.supportsIndexes() ? graph.getOrCreateIndex(idxname) : null;
+        Vertex v = graph.getOrCreateVertexHelper(idcol, idval, vertexType, index);
+        if (idxname != null) {
+            graph.setPropertyIfNull(v, SHARD_INDEX_NAME, idxname);
+        }
+        graph.setPropertyIfNull(v, SHARD_IDCOL, idcol);
+        return v;
+    }
+
+    /**
+     * Looks up a vertex in its shard without creating it
+     *
+     * @return the vertex, or null if it does not exist
+     */
+    public ShardedVertex getVertex(final String idxname, final String idcol, final Object idval,
+            final String vertexType) {
+        int shard = shardFor(vertexType, idval);
+        Vertex v = execute(shard, new ShardWork<Vertex>() {
+            public Vertex execute(BlueprintsBase graph) {
+                return findLocal(graph, idxname, idcol, idval, vertexType);
+            }
+        });
+        return v == null ? null : new ShardedVertex(shard, v, idxname, idcol, idval, vertexType);
+    }
+
+    private Vertex findLocal(BlueprintsBase graph, String idxname, String idcol, Object idval, String vertexType) {
+        Index<Vertex> index = idxname != null && graph.supportsIndexes() ? graph.getOrCreateIndex(idxname) : null;
+        return graph.findVertex(idcol, idval, vertexType, index);
+    }
+
+    /**
+     * Creates an edge between two vertices unless one already exists
+     *
+     * If the vertices are in different shards the edge and its mirror are
+     * written to both shards in parallel.
+     *
+     * @param out source vertex
+     * @param in target vertex
+     * @param edgeLabel label for the edge
+     * @return the edge in the shard of the source vertex
+     */
+    public Edge createEdgeIfNotExist(final ShardedVertex out, final ShardedVertex in, final String edgeLabel) {
+        if (out.getShard() == in.getShard()) {
+            return execute(out.getShard(), new ShardWork<Edge>() {
+                public Edge execute(BlueprintsBase graph) {
+                    return graph.createEdgeIfNotExist(out.getVertex(), in.getVertex(), edgeLabel);
+                }
+            });
+        }
+        Future<Edge> forward = submit(out.getShard(), new ShardWork<Edge>() {
+            public Edge execute(BlueprintsBase graph) {
+                return graph.createEdgeIfNotExist(out.getVertex(), ghostFor(graph, in), edgeLabel);
+            }
+        });
+        Future<Edge> mirror = submit(in.getShard(), new ShardWork<Edge>() {
+            public Edge execute(BlueprintsBase graph) {
+                Edge e = graph.createEdgeIfNotExist(ghostFor(graph, out), in.getVertex(), edgeLabel);
+                graph.setPropertyIfNull(e, MIRROR, Boolean.TRUE);
+                return e;
+            }
+        });
+        await(mirror);
+        return await(forward);
+    }
+
+    /**
+     * Gets the ghost standing in for a vertex from another shard, creating it if needed
+     */
+    private Vertex ghostFor(BlueprintsBase graph, ShardedVertex target) {
+        String key = target.getShard() + ":" + target.getVertexType() + ":" + target.getIdValue();
+        Index<Vertex> index = graph.supportsIndexes() ? graph.getOrCreateIndex(GHOST_INDEX) : null;
+        Vertex ghost = graph.getOrCreateVertexHelper(GHOST_KEY, key, GHOST_TYPE, index);
+        if (ghost.getProperty(GHOST_SHARD) == null) {
+            graph.setProperty(ghost, GHOST_SHARD, target.getShard());
+            graph.setPropertyIfNull(ghost, GHOST_INDEX_NAME, target.getIndexName());
+            graph.setPropertyIfNull(ghost, GHOST_IDCOL, target.getIdColumn());
+            graph.setPropertyIfNull(ghost, GHOST_IDVAL, target.getIdValue());
+            graph.setPropertyIfNull(ghost, GHOST_VERTEX_TYPE, target.getVertexType());
+        }
+        return ghost;
+    }
+
+    /**
+     * Follows the edges of a vertex, resolving ghosts to the real vertices in other shards
+     *
+     * @param v the vertex to start from
+     * @param direction direction of the edges to follow
+     * @param labels labels of the edges to follow, or none for all labels
+     * @return the neighboring vertices
+     */
+    public List<ShardedVertex> neighbors(final ShardedVertex v, final Direction direction, final String... labels) {
+        final List<ShardedVertex> rv = new ArrayList<ShardedVertex>();
+        final Map<Integer, List<Vertex>> ghosts = new HashMap<Integer, List<Vertex>>();
+        execute(v.getShard(), new ShardWork<Object>() {
+            public Object execute(BlueprintsBase graph) {
+                for (Edge e : v.getVertex().getEdges(direction, labels)) {
+                    Vertex other = otherEnd(e, v.getVertex(), direction);
+                    if (GHOST_TYPE.equals(other.getProperty(PROPERTY_TYPE))) {
+                        Integer shard = (Integer) other.getProperty(GHOST_SHARD);
+                        List<Vertex> list = ghosts.get(shard);
+                        if (list == null) {
+                            list = new ArrayList<Vertex>();
+                            ghosts.put(shard, list);
+                        }
+                        list.add(other);
+                    } else {
+                        rv.add(local(v.getShard(), other));
+                    }
+                }
+                return null;
+            }
+        });
+        List<Future<List<ShardedVertex>>> futures = new ArrayList<Future<List<ShardedVertex>>>();
+        for (Map.Entry<Integer, List<Vertex>> entry : ghosts.entrySet()) {
+            final int shard = entry.getKey();
+            final List<Vertex> refs = entry.getValue();
+            futures.add(submit(shard, new ShardWork<List<ShardedVertex>>() {
+                public List<ShardedVertex> execute(BlueprintsBase graph) {
+                    return resolveGhosts(graph, shard, refs);
+                }
+            }));
+        }
+        for (Future<List<ShardedVertex>> f : futures) {
+            rv.addAll(await(f));
+        }
+        return rv;
+    }
+
+    private List<ShardedVertex> resolveGhosts(BlueprintsBase graph, int shard, List<Vertex> refs) {
+        List<ShardedVertex> rv = new ArrayList<ShardedVertex>(refs.size());
+        for (Vertex ghost : refs) {
+            String idxname = (String) ghost.getProperty(GHOST_INDEX_NAME);
+            String idcol = (String) ghost.getProperty(GHOST_IDCOL);
+            Object idval = ghost.getProperty(GHOST_IDVAL);
+            String vertexType = (String) ghost.getProperty(GHOST_VERTEX_TYPE);
+            Vertex real = findLocal(graph, idxname, idcol, idval, vertexType);
+            if (real == null) {
+                log.debug("Ghost {} refers to a missing vertex in shard {}", ghost.getProperty(GHOST_KEY), shard);
+            } else {
+                rv.add(new ShardedVertex(shard, real, idxname, idcol, idval, vertexType));
+            }
+        }
+        return rv;
+    }
+
+    private ShardedVertex local(int shard, Vertex v) {
+        String idcol = (String) v.getProperty(SHARD_IDCOL);
+        return new ShardedVertex(shard, v, (String) v.getProperty(SHARD_INDEX_NAME), idcol,
+                idcol == null ? null : v.getProperty(idcol), (String) v.getProperty(PROPERTY_TYPE));
+    }
+
+    private static Vertex otherEnd(Edge e, Vertex v, Direction direction) {
+        if (direction == Direction.OUT) {
+            return e.getVertex(Direction.IN);
+        } else if (direction == Direction.IN) {
+            return e.getVertex(Direction.OUT);
+        }
+        Vertex in = e.getVertex(Direction.IN);
+        return in.getId().equals(v.getId()) ? e.getVertex(Direction.OUT) : in;
+    }
+
+    /**
+     * Gets every vertex of a type from all of the shards
+     *
+     * @param vertexType the type of vertex
+     * @return the vertices from every shard
+     */
+    public List<ShardedVertex> getVerticesByType(final String vertexType) {
+        return merge(new ShardQuery() {
+            Iterable<Vertex> query(BlueprintsBase graph) {
+                return graph.getVerticesByType(vertexType);
+            }
+        });
+    }
+
+    /**
+     * Gets the vertices with a property value from all of the shards
+     *
+     * @param key the property to match
+     * @param value the value to match
+     * @return the matching vertices, not including ghosts
+     */
+    public List<ShardedVertex> getVertices(final String key, final Object value) {
+        return merge(new ShardQuery() {
+            Iterable<Vertex> query(BlueprintsBase graph) {
+                return graph.kigraph.getVertices(key, value);
+            }
+        });
+    }
+
+    private abstract static class ShardQuery {
+        abstract Iterable<Vertex> query(BlueprintsBase graph);
+    }
+
+    private List<ShardedVertex> merge(final ShardQuery q) {
+        final List<List<ShardedVertex>> parts = new ArrayList<List<ShardedVertex>>();
+        for (int i = 0; i < shards.size(); i++) {
+            parts.add(new ArrayList<ShardedVertex>());
+        }
+        executeOnAll(new ShardWork<Object>() {
+            public Object execute(BlueprintsBase graph) {
+                int shard = shards.indexOf(graph);
+                List<ShardedVertex> part = parts.get(shard);
+                for (Vertex v : q.query(graph)) {
+                    if (!GHOST_TYPE.equals(v.getProperty(PROPERTY_TYPE))) {
+                        part.add(local(shard, v));
+                    }
+                }
+                return null;
+            }
+        });
+        List<ShardedVertex> rv = new ArrayList<ShardedVertex>();
+        for (List<ShardedVertex> part : parts) {
+            rv.addAll(part);
+        }
+        return rv;
+    }
+
+    /**
+     * Counts the edges in all of the shards, counting each cross-shard edge once
+     *
+     * @return the number of edges
+     */
+    public long countEdges() {
+        long total = 0;
+        for (Long n : executeOnAll(new ShardWork<Long>() {
+            public Long execute(BlueprintsBase graph) {
+                long n = 0;
+                for (Edge e : graph.kigraph.getEdges()) {
+                    if (e.getProperty(MIRROR) == null) {
+                        n++;
+                    }
+                }
+                return n;
+            }
+        })) {
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Commits the current transaction of every transactional shard
+     */
+    public void stopTransaction() {
+        executeOnAll(new ShardWork<Object>() {
+            public Object execute(BlueprintsBase graph) {
+                if (graph.supportsTransactions()) {
+                    graph.stopTransaction();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Rolls back the current transaction of every transactional shard
+     */
+    public void rollbackTransaction() {
+        executeOnAll(new ShardWork<Object>() {
+            public Object execute(BlueprintsBase graph) {
+                if (graph.supportsTransactions()) {
+                    graph.rollbackTransaction();
+                }
+                return null;
+            }
+        });
+    }
+
+    /* (non-Javadoc)
+     * @see com.ibm.research.govsci.graph.Shutdownable#shutdown()
+     */
+    public void shutdown() {
+        try {
+            executeOnAll(new ShardWork<Object>() {
+                public Object execute(BlueprintsBase graph) {
+                    graph.shutdown();
+                    return null;
+                }
+            });
+        } finally {
+            for (ExecutorService writer : writers) {
+                writer.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * ShardedVertex.java
+ *
+ * A vertex together with the shard that owns it.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+package com.ibm.research.govsci.graph;
+
+import com.tinkerpop.blueprints.Vertex;
+
+/**
+ * Handle for a vertex stored in a {@link ShardedBlueprintsBase}.
+ *
+ * Besides the vertex itself this records the shard that owns it and the
+ * index, id column, id and type it was created with, which is everything
+ * needed to refer to the vertex from another shard.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class ShardedVertex {
+    private final int shard;
+    private final Vertex vertex;
+    private final String idxname;
+    private final String idcol;
+    private final Object idval;
+    private final String vertexType;
+
+    ShardedVertex(int shard, Vertex vertex, String idxname, String idcol, Object idval, String vertexType) {
+        this.shard = shard;
+        this.vertex = vertex;
+        this.idxname = idxname;
+        this.idcol = idcol;
+        this.idval = idval;
+        this.vertexType = vertexType;
+    }
+
+    /** @return the number of the shard that owns the vertex */
+    public int getShard() {
+        return shard;
+    }
+
+    /** @return the vertex in its owning shard */
+    public Vertex getVertex() {
+        return vertex;
+    }
+
+    public String getIndexName() {
+        return idxname;
+    }
+
+    public String getIdColumn() {
+        return idcol;
+    }
+
+    public Object getIdValue() {
+        return idval;
+    }
+
+    public String getVertexType() {
+        return vertexType;
+    }
+
+    public Object getProperty(String key) {
+        return vertex.getProperty(key);
+    }
+
+    @Override
+    public int hashCode() {
+        return shard * 31 + vertex.getId().hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ShardedVertex)) {
+            return false;
+        }
+        ShardedVertex v = (ShardedVertex) o;
+        return shard == v.shard && vertex.getId().equals(v.vertex.getId());
+    }
+
+    @Override
+    public String toString() {
+        return vertexType + ":" + idval + "@" + shard;
+    }
+}
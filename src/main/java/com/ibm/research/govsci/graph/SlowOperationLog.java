@@ -0,0 +1,108 @@
+/**
+ * SlowOperationLog.java
+ *
+ * Logs graph operations that take longer than a threshold.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+package com.ibm.research.govsci.graph;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sampling log of slow operations.
+ *
+ * Callers take {@link System#nanoTime()} before an operation and pass it to
+ * {@link #record(String, long)} afterwards. Operations under the threshold
+ * cost one clock read and a comparison and allocate nothing. Slow operations
+ * are counted, and at most one of them is written to the log per sampling
+ * interval, together with how many were skipped since the last message, so a
+ * stall does not flood the log. Messages go to the
+ * <code>com.ibm.research.govsci.graph.slow</code> logger at WARN.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class SlowOperationLog {
+    private static final Logger log = LoggerFactory.getLogger("com.ibm.research.govsci.graph.slow");
+
+    private final long thresholdNanos;
+    private final long intervalNanos;
+    private final AtomicLong slow = new AtomicLong();
+    private final AtomicLong logged = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLong lastLog;
+
+    /**
+     * @param thresholdMillis operations taking at least this long are recorded
+     * @param intervalMillis minimum time between log messages
+     */
+    public SlowOperationLog(long thresholdMillis, long intervalMillis) {
+        thresholdNanos = thresholdMillis * 1000000L;
+        intervalNanos = intervalMillis * 1000000L;
+        lastLog = new AtomicLong(System.nanoTime() - intervalNanos);
+    }
+
+    /**
+     * Records an operation if it was slow
+     *
+     * @param operation name of the operation
+     * @param startNanos value of {@link System#nanoTime()} when the operation started
+     * @return true if the operation was over the threshold
+     */
+    public boolean record(String operation, long startNanos) {
+        long now = System.nanoTime();
+        long elapsed = now - startNanos;
+        if (elapsed < thresholdNanos) {
+            return false;
+        }
+        long count = slow.incrementAndGet();
+        long max = maxNanos.get();
+        while (elapsed > max && !maxNanos.compareAndSet(max, elapsed)) {
+            max = maxNanos.get();
+        }
+        long last = lastLog.get();
+        if (now - last >= intervalNanos && lastLog.compareAndSet(last, now)) {
+            long skipped = count - logged.get() - 1;
+            logged.set(count);
+            log.warn("Slow {}: {}ms ({} other slow operations since last report)",
+                    new Object[] {operation, elapsed / 1000000L, skipped});
+        }
+        return true;
+    }
+
+    /** @return number of operations over the threshold */
+    public long getSlowCount() {
+        return slow.get();
+    }
+
+    /** @return longest operation recorded, in milliseconds */
+    public long getMaxMillis() {
+        return maxNanos.get() / 1000000L;
+    }
+
+    public long getThresholdMillis() {
+        return thresholdNanos / 1000000L;
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * StringInterner.java
+ *
+ * Bounded table for sharing repeated string property values.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+package com.ibm.research.govsci.graph;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Canonicalizes repeated strings through a fixed size table.
+ *
+ * The table is a lock free, two-way set associative cache: a string is
+ * looked up in two adjacent slots chosen by its hash and, if it is not
+ * found, replaces whatever was in the first slot. Memory use is therefore
+ * bounded by the table size no matter how many distinct values are seen,
+ * and values that stop recurring are simply overwritten rather than
+ * needing weak references. Unlike {@link String#intern()} nothing is kept in
+ * the permanent generation.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class StringInterner {
+    public static final int DEFAULT_SIZE = 65536;
+    public static final int DEFAULT_MAX_LENGTH = 256;
+
+    private final AtomicReferenceArray<String> table;
+    private final int mask;
+    private final int maxLength;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong savedChars = new AtomicLong();
+
+    /**
+     * @param size number of slots in the table, rounded up to a power of two
+     * @param maxLength longer strings are returned without being interned
+     */
+    public StringInterner(int size, int maxLength) {
+        int slots = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+        table = new AtomicReferenceArray<String>(slots);
+        mask = slots - 1;
+        this.maxLength = maxLength;
+    }
+
+    public StringInterner() {
+        this(DEFAULT_SIZE, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * @param s the string to canonicalize
+     * @return an equal string from the table, or <code>s</code> if there is none
+     */
+    public String intern(String s) {
+        if (s == null || s.length() > maxLength) {
+            return s;
+        }
+        int h = s.hashCode();
+        h ^= (h >>> 16);
+        int idx = h & mask;
+        String cur = table.get(idx);
+        if (cur == null || !cur.equals(s)) {
+            String other = table.get(idx ^ 1);
+            if (other != null && other.equals(s)) {
+                cur = other;
+            } else {
+                table.set(idx, s);
+                misses.incrementAndGet();
+                return s;
+            }
+        }
+        hits.incrementAndGet();
+        if (cur != s) {
+            savedChars.addAndGet(s.length());
+        }
+        return cur;
+    }
+
+    /** @return number of strings that were found in the table */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** @return number of strings that were added to the table */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return total length of the duplicate strings replaced by a shared copy
+     */
+    public long getSavedChars() {
+        return savedChars.get();
+    }
+
+    /**
+     * Empties the table and resets the counters
+     */
+    public void clear() {
+        for (int i = 0; i < table.length(); i++) {
+            table.set(i, null);
+        }
+        hits.set(0);
+        misses.set(0);
+        savedChars.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "StringInterner[slots=" + table.length() + ", hits=" + hits + ", misses=" + misses
+                + ", savedChars=" + savedChars + "]";
+    }
+}
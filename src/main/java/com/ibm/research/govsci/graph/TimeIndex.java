@@ -0,0 +1,307 @@
+/**
+ * TimeIndex.java
+ *
+ * A sorted, range queryable side index for date properties.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+package com.ibm.research.govsci.graph;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Element;
+
+/**
+ * Keeps element ids sorted by the value of a date property so that
+ * questions like "edges with label X created between t1 and t2" can be
+ * answered without scanning the whole graph.
+ *
+ * Blueprints does not expose range queries on its indexes, so this is kept
+ * on the side in a skip list and updated by {@link BlueprintsBase} as
+ * properties are written. Vertices are grouped by their type and edges by
+ * their label. All times are in seconds since the epoch, the same format
+ * used by {@link BlueprintsBase#setProperty(Element, String, java.util.Date)}.
+ *
+ * On transactional graphs changes are collected in a {@link Changes} for
+ * each transaction and applied when it commits, so rolled back elements are
+ * never recorded. Elements changed outside of {@link BlueprintsBase} are not
+ * seen, and engines such as Neo4j reuse the ids of removed elements, so an
+ * id in the index may refer to a different element; callers should check
+ * each element they look up.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class TimeIndex {
+    private final Set<String> properties;
+    private final ConcurrentMap<String, ConcurrentSkipListMap<Long, Set<Object>>> entries;
+
+    public TimeIndex() {
+        properties = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        entries = new ConcurrentHashMap<String, ConcurrentSkipListMap<Long, Set<Object>>>();
+    }
+
+    /**
+     * Declares a property that should be tracked by this index
+     *
+     * @param property name of the date property
+     */
+    public void declareProperty(String property) {
+        properties.add(property);
+    }
+
+    /**
+     * @param property name of the property
+     * @return true if the property is tracked by this index
+     */
+    public boolean isIndexed(String property) {
+        return properties.contains(property);
+    }
+
+    /**
+     * @return the names of all of the properties tracked by this index
+     */
+    public Set<String> getProperties() {
+        return Collections.unmodifiableSet(properties);
+    }
+
+    /**
+     * Records that an element has a time value for a property
+     *
+     * @param elementClass either Vertex or Edge
+     * @param group the type of the vertex or the label of the edge
+     * @param property name of the property
+     * @param seconds the value of the property in seconds since the epoch
+     * @param id the identifier of the element
+     */
+    public void add(Class<? extends Element> elementClass, String group, String property, long seconds, Object id) {
+        ConcurrentSkipListMap<Long, Set<Object>> times = getTimes(elementClass, group, property, true);
+        while (true) {
+            Set<Object> ids = times.get(seconds);
+            if (ids == null) {
+                ids = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+                Set<Object> existing = times.putIfAbsent(seconds, ids);
+                if (existing != null) {
+                    ids = existing;
+                }
+            }
+            ids.add(id);
+            // an empty bucket may have been pruned while the id was added
+            if (times.get(seconds) == ids) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Records that an element has a time value for a property once the
+     * transaction that wrote it commits
+     *
+     * @param changes the changes of the transaction, or null to apply immediately
+     * @see #add(Class, String, String, long, Object)
+     */
+    public void add(Changes changes, Class<? extends Element> elementClass, String group, String property, long seconds, Object id) {
+        if (changes == null) {
+            add(elementClass, group, property, seconds, id);
+        } else {
+            changes.changes.add(new Change(true, elementClass, group, property, seconds, id));
+        }
+    }
+
+    /**
+     * Removes the record of an element from the index
+     *
+     * @param elementClass either Vertex or Edge
+     * @param group the type of the vertex or the label of the edge
+     * @param property name of the property
+     * @param seconds the value of the property in seconds since the epoch
+     * @param id the identifier of the element
+     */
+    public void remove(Class<? extends Element> elementClass, String group, String property, long seconds, Object id) {
+        ConcurrentSkipListMap<Long, Set<Object>> times = getTimes(elementClass, group, property, false);
+        if (times == null) {
+            return;
+        }
+        Set<Object> ids = times.get(seconds);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty() && times.remove(seconds, ids)) {
+                // ids added while the bucket was being pruned are put back
+                for (Object other : ids) {
+                    add(elementClass, group, property, seconds, other);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the record of an element once the transaction that removed it commits
+     *
+     * @param changes the changes of the transaction, or null to apply immediately
+     * @see #remove(Class, String, String, long, Object)
+     */
+    public void remove(Changes changes, Class<? extends Element> elementClass, String group, String property, long seconds, Object id) {
+        if (changes == null) {
+            remove(elementClass, group, property, seconds, id);
+        } else {
+            changes.changes.add(new Change(false, elementClass, group, property, seconds, id));
+        }
+    }
+
+    /**
+     * Applies the changes of a committed transaction and clears them
+     *
+     * @param changes the changes of the transaction
+     */
+    public void apply(Changes changes) {
+        for (Change c : changes.changes) {
+            if (c.add) {
+                add(c.elementClass, c.group, c.property, c.seconds, c.id);
+            } else {
+                remove(c.elementClass, c.group, c.property, c.seconds, c.id);
+            }
+        }
+        changes.clear();
+    }
+
+    /**
+     * Returns the ids of all elements with a property value in the range
+     * [fromSeconds, toSeconds). The ids are returned in time order and
+     * the iteration is lazy and weakly consistent with concurrent updates.
+     *
+     * @param elementClass either Vertex or Edge
+     * @param group the type of the vertex or the label of the edge
+     * @param property name of the property
+     * @param fromSeconds inclusive start of the range
+     * @param toSeconds exclusive end of the range
+     * @return the ids of the matching elements
+     */
+    public Iterable<Object> range(Class<? extends Element> elementClass, String group, String property, long fromSeconds, long toSeconds) {
+        final ConcurrentSkipListMap<Long, Set<Object>> times = getTimes(elementClass, group, property, false);
+        if (times == null || fromSeconds >= toSeconds) {
+            return Collections.emptyList();
+        }
+        final Iterable<Set<Object>> buckets = times.subMap(fromSeconds, true, toSeconds, false).values();
+        return new Iterable<Object>() {
+            public Iterator<Object> iterator() {
+                return new FlatteningIterator(buckets.iterator());
+            }
+        };
+    }
+
+    /**
+     * Removes all entries from the index, but keeps the declared properties
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    private ConcurrentSkipListMap<Long, Set<Object>> getTimes(Class<? extends Element> elementClass, String group, String property, boolean create) {
+        String key = (Edge.class.isAssignableFrom(elementClass) ? "e" : "v") + "\u0000" + group + "\u0000" + property;
+        ConcurrentSkipListMap<Long, Set<Object>> times = entries.get(key);
+        if (times == null && create) {
+            times = new ConcurrentSkipListMap<Long, Set<Object>>();
+            ConcurrentSkipListMap<Long, Set<Object>> existing = entries.putIfAbsent(key, times);
+            if (existing != null) {
+                times = existing;
+            }
+        }
+        return times;
+    }
+
+    /**
+     * Changes to the index made by a transaction that has not committed
+     */
+    public static class Changes {
+        private final List<Change> changes = new ArrayList<Change>();
+
+        /**
+         * @return the number of changes waiting for the commit
+         */
+        public int size() {
+            return changes.size();
+        }
+
+        /**
+         * Drops the changes, as when the transaction is rolled back
+         */
+        public void clear() {
+            changes.clear();
+        }
+    }
+
+    private static class Change {
+        final boolean add;
+        final Class<? extends Element> elementClass;
+        final String group;
+        final String property;
+        final long seconds;
+        final Object id;
+
+        Change(boolean add, Class<? extends Element> elementClass, String group, String property, long seconds, Object id) {
+            this.add = add;
+            this.elementClass = elementClass;
+            this.group = group;
+            this.property = property;
+            this.seconds = seconds;
+            this.id = id;
+        }
+    }
+
+    /**
+     * Walks the sets of ids for each time bucket in order
+     */
+    private static class FlatteningIterator implements Iterator<Object> {
+        private final Iterator<Set<Object>> buckets;
+        private Iterator<Object> current = null;
+
+        FlatteningIterator(Iterator<Set<Object>> buckets) {
+            this.buckets = buckets;
+        }
+
+        public boolean hasNext() {
+            while ((current == null || !current.hasNext()) && buckets.hasNext()) {
+                current = buckets.next().iterator();
+            }
+            return current != null && current.hasNext();
+        }
+
+        public Object next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
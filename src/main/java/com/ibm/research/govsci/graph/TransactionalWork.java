@@ -0,0 +1,44 @@
+/**
+ * TransactionalWork.java
+ * 
+ * A unit of work that is run inside of a transaction by
+ * BlueprintsBase.runInTransaction.
+ * 
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+package com.ibm.research.govsci.graph;
+
+/**
+ * Work passed to {@link BlueprintsBase#runInTransaction(TransactionalWork)}.
+ * 
+ * The work may be run more than once if the transaction conflicts with
+ * another writer, so it should only make changes through the graph it is
+ * given and should look up elements again rather than reuse elements from
+ * an earlier attempt.
+ */
+public interface TransactionalWork<T> {
+    /**
+     * @param graph the graph to use for this attempt, bound to the transaction
+     * @return any result of the work
+     */
+    public T execute(BlueprintsBase graph);
+}
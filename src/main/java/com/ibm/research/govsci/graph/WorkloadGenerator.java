@@ -0,0 +1,158 @@
+/**
+ * WorkloadGenerator.java
+ *
+ * Synthesizes a skewed developer and project ingestion workload.
+ *
+ * Copyright (c) 2012 IBM Corporation
+ *
+ * This library was originally developed for a joint research
+ * project with the University of Nebraska, Lincoln under terms
+ * of the Joint Study Agreement between IBM and UNL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Patrick Wagstrom <patrick@wagstrom.net>
+ */
+
+
+package com.ibm.research.govsci.graph;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+import com.tinkerpop.blueprints.Index;
+import com.tinkerpop.blueprints.Vertex;
+
+/**
+ * Generates an ingestion workload shaped like a developer collaboration graph.
+ *
+ * Each operation records that a developer is a member of a project the way
+ * the loaders do: both vertices are fetched or created with
+ * {@link BlueprintsBase#getOrCreateVertexHelper(String, Object, String, Index)},
+ * a few properties are set and the membership edge is created with
+ * {@link BlueprintsBase#createEdgeIfNotExist(Vertex, Vertex, String)}.
+ * Developers and projects are drawn from Zipf distributions, so a handful of
+ * popular projects and very active developers end up with most of the edges,
+ * and the edge checks on them get slower as the graph grows.
+ *
+ * The generator has no state of its own once {@link #prepare(BlueprintsBase)}
+ * has been called, so any number of threads can call
+ * {@link #apply(BlueprintsBase, Random)}, each with its own random number
+ * generator.
+ *
+ * @author Patrick Wagstrom <pwagstro@us.ibm.com>
+ */
+public class WorkloadGenerator {
+    public static final String DEVELOPER_TYPE = "loadtest_developer";
+    public static final String PROJECT_TYPE = "loadtest_project";
+    public static final String DEVELOPER_INDEX = "loadtest-developer-idx";
+    public static final String PROJECT_INDEX = "loadtest-project-idx";
+    public static final String DEVELOPER_ID = "login";
+    public static final String PROJECT_ID = "name";
+    public static final String MEMBER_LABEL = "loadtest_member";
+    private static final String[] LANGUAGES = new String[] {"Java", "C", "Python", "Ruby", "JavaScript", "Scala"};
+
+    private final int developers;
+    private final int projects;
+    private final double exponent;
+    private final double[] developerCdf;
+    private final double[] projectCdf;
+    private Index<Vertex> developerIndex = null;
+    private Index<Vertex> projectIndex = null;
+
+    /**
+     * @param developers number of distinct developers
+     * @param projects number of distinct projects
+     * @param exponent Zipf exponent of both distributions, 1.0 is typical and
+     *          larger values are more skewed
+     */
+    public WorkloadGenerator(int developers, int projects, double exponent) {
+        if (developers < 1 || projects < 1) {
+            throw new IllegalArgumentException("developers and projects must be positive");
+        }
+        this.developers = developers;
+        this.projects = projects;
+        this.exponent = exponent;
+        developerCdf = zipf(developers, exponent);
+        projectCdf = zipf(projects, exponent);
+    }
+
+    /**
+     * Creates the indexes used by the workload
+     *
+     * @param graph the graph the workload will run against
+     */
+    public void prepare(BlueprintsBase graph) {
+        if (graph.supportsIndexes()) {
+            developerIndex = graph.getOrCreateIndex(DEVELOPER_INDEX);
+            projectIndex = graph.getOrCreateIndex(PROJECT_INDEX);
+        } else if (graph.supportsKeyIndexes()) {
+            graph.createKeyIndex(DEVELOPER_ID);
+            graph.createKeyIndex(PROJECT_ID);
+        }
+    }
+
+    /**
+     * Runs one operation against the graph
+     *
+     * @param graph the graph to write to
+     * @param random source of the developer and project to use
+     */
+    public void apply(BlueprintsBase graph, Random random) {
+        int d = sample(developerCdf, random);
+        int p = sample(projectCdf, random);
+        Vertex developer = graph.getOrCreateVertexHelper(DEVELOPER_ID, "dev" + d, DEVELOPER_TYPE, developerIndex);
+        Vertex project = graph.getOrCreateVertexHelper(PROJECT_ID, "project" + p, PROJECT_TYPE, projectIndex);
+        graph.setPropertyIfNull(project, "language", LANGUAGES[p % LANGUAGES.length]);
+        graph.setProperty(developer, "last_seen", new Date());
+        graph.createEdgeIfNotExist(developer, project, MEMBER_LABEL);
+    }
+
+    public int getDevelopers() {
+        return developers;
+    }
+
+    public int getProjects() {
+        return projects;
+    }
+
+    public double getExponent() {
+        return exponent;
+    }
+
+    /**
+     * @return the cumulative distribution of ranks 0 to n - 1 with weights
+     *          proportional to 1 / (rank + 1)^exponent
+     */
+    private static double[] zipf(int n, double exponent) {
+        double[] cdf = new double[n];
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            total += 1.0 / Math.pow(i + 1, exponent);
+            cdf[i] = total;
+        }
+        for (int i = 0; i < n; i++) {
+            cdf[i] /= total;
+        }
+        return cdf;
+    }
+
+    private static int sample(double[] cdf, Random random) {
+        int idx = Arrays.binarySearch(cdf, random.nextDouble());
+        if (idx < 0) {
+            idx = -idx - 1;
+        }
+        return Math.min(idx, cdf.length - 1);
+    }
+}
@@ -6,6 +6,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.Map;
 
 import org.junit.After;
@@ -19,6 +20,8 @@ import org.junit.runners.Parameterized.Parameters;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
 
+import com.tinkerpop.blueprints.CloseableIterable;
+import com.tinkerpop.blueprints.Direction;
 import com.tinkerpop.blueprints.Edge;
 import com.tinkerpop.blueprints.Index;
 import com.tinkerpop.blueprints.Vertex;
@@ -182,6 +185,95 @@ public class BlueprintsBaseTest {
         b.removeEdge(e1);
     }
 
+    @Test
+    public void testGetEdgesCreatedBetween() {
+        if (dbengine.equals(Engine.NEO4JBATCH)) {
+            return;
+        }
+        b.enableTimeIndex("testDateProperty");
+        Date start = new Date(System.currentTimeMillis() - 60000L);
+        Vertex v1 = b.createNakedVertex(VERTEX_TYPE);
+        Vertex v2 = b.createNakedVertex(VERTEX_TYPE);
+        Edge e1 = b.createEdgeIfNotExist(v1, v2, EDGE_LABEL);
+        commit();
+        Date end = new Date(System.currentTimeMillis() + 60000L);
+        int count = 0;
+        for (Edge e : b.getEdgesCreatedBetween(EDGE_LABEL, start, end)) {
+            assertEquals(e1.getId(), e.getId());
+            count++;
+        }
+        assertEquals(1, count);
+        assertFalse(b.getEdgesCreatedBetween(EDGE_LABEL, end, new Date(end.getTime() + 60000L)).iterator().hasNext());
+
+        b.setProperty(v1, "testDateProperty", new Date(1000000000000L));
+        commit();
+        Iterable<Vertex> vs = b.getVerticesByTime(VERTEX_TYPE, "testDateProperty",
+                new Date(999999999000L), new Date(1000000001000L));
+        assertEquals(v1.getId(), vs.iterator().next().getId());
+
+        // an element whose time was changed behind the index's back is not returned
+        v1.setProperty("testDateProperty", 2000000000L);
+        commit();
+        assertFalse(b.getVerticesByTime(VERTEX_TYPE, "testDateProperty",
+                new Date(999999999000L), new Date(1000000001000L)).iterator().hasNext());
+
+        b.removeEdge(e1);
+        commit();
+        assertFalse(b.getEdgesCreatedBetween(EDGE_LABEL, start, end).iterator().hasNext());
+        assertFalse(b.timeidx.range(Edge.class, EDGE_LABEL, "sys_created_at", 0L, Long.MAX_VALUE)
+                .iterator().hasNext());
+    }
+
+    @Test
+    public void testTimeIndexIgnoresRollback() {
+        if (!b.supportsTransactions()) {
+            return;
+        }
+        b.enableTimeIndex();
+        Vertex v = b.createNakedVertex(VERTEX_TYPE);
+        b.rollbackTransaction();
+        assertFalse(b.timeidx.range(Vertex.class, VERTEX_TYPE, "sys_created_at", 0L, Long.MAX_VALUE)
+                .iterator().hasNext());
+
+        v = b.createNakedVertex(VERTEX_TYPE);
+        Object id = v.getId();
+        assertFalse(b.timeidx.range(Vertex.class, VERTEX_TYPE, "sys_created_at", 0L, Long.MAX_VALUE)
+                .iterator().hasNext());
+        b.stopTransaction();
+        assertEquals(id, b.timeidx.range(Vertex.class, VERTEX_TYPE, "sys_created_at", 0L, Long.MAX_VALUE)
+                .iterator().next());
+    }
+
+    private void commit() {
+        if (b.supportsTransactions()) {
+            b.stopTransaction();
+        }
+    }
+
+    @Test
+    public void testNeighbors() {
+        if (dbengine.equals(Engine.NEO4JBATCH)) {
+            return;
+        }
+        Vertex v1 = b.createNakedVertex(VERTEX_TYPE);
+        Vertex v2 = b.createNakedVertex(VERTEX_TYPE);
+        Vertex v3 = b.createNakedVertex(VERTEX_TYPE);
+        b.setProperty(v3, VERTEX_STRING_PROPERTY, "foo");
+        b.createEdgeIfNotExist(v1, v3, EDGE_LABEL);
+        b.createEdgeIfNotExist(v2, v3, EDGE_LABEL);
+        b.createEdgeIfNotExist(v1, v2, "otherLabel");
+
+        Collection<Vertex> out = b.neighbors(java.util.Arrays.asList(v1, v2, v1), Direction.OUT, EDGE_LABEL);
+        assertEquals(1, out.size());
+        assertEquals(v3.getId(), out.iterator().next().getId());
+        assertEquals(2, b.neighbors(java.util.Arrays.asList(v1), Direction.OUT).size());
+        assertEquals(2, b.neighbors(java.util.Arrays.asList(v3), Direction.BOTH).size());
+
+        Map<Vertex, Map<String, Object>> props = b.neighborsWithProperties(java.util.Arrays.asList(v1),
+                Direction.OUT, java.util.Arrays.asList(VERTEX_STRING_PROPERTY), EDGE_LABEL);
+        assertEquals("foo", props.values().iterator().next().get(VERTEX_STRING_PROPERTY));
+    }
+
     @Test
     public void testCreateNakedVertex() {
         b.createNakedVertex(VERTEX_TYPE);
@@ -241,6 +333,523 @@ public class BlueprintsBaseTest {
         }
     }
 
+    /**
+     * Named so that it looks like a locking exception from an engine
+     */
+    private static class SimulatedLockingException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    @Test
+    public void testRunInTransaction() {
+        if (!b.supportsTransactions()) {
+            return;
+        }
+        b.setRetryPolicy(new RetryPolicy(3, 1L, 5L, 2.0, 0.5));
+        final int[] attempts = new int[1];
+        Object id = b.runInTransaction("testOp", new TransactionalWork<Object>() {
+            public Object execute(BlueprintsBase graph) {
+                attempts[0]++;
+                Vertex v = graph.createNakedVertex(VERTEX_TYPE);
+                if (attempts[0] == 1) {
+                    throw new SimulatedLockingException();
+                }
+                // nested work joins the enclosing transaction
+                graph.runInTransaction(new TransactionalWork<Object>() {
+                    public Object execute(BlueprintsBase inner) {
+                        attempts[0]++;
+                        return null;
+                    }
+                });
+                return v.getId();
+            }
+        });
+        assertEquals(3, attempts[0]);
+        assertNotNull(id);
+        assertEquals(1, b.getConflictMetrics().getStats("testOp").getConflicts());
+        assertEquals(1, b.getConflictMetrics().getStats("testOp").getSuccesses());
+
+        b.setTransactionRetries(1);
+        try {
+            b.runInTransaction("alwaysConflicts", new TransactionalWork<Object>() {
+                public Object execute(BlueprintsBase graph) {
+                    throw new SimulatedLockingException();
+                }
+            });
+            fail("conflicts should be rethrown once retries are exhausted");
+        } catch (SimulatedLockingException e) {
+            assertEquals(2, b.getConflictMetrics().getStats("alwaysConflicts").getAttempts());
+            assertEquals(1, b.getConflictMetrics().getStats("alwaysConflicts").getExhausted());
+        }
+
+        try {
+            b.runInTransaction(new TransactionalWork<Object>() {
+                public Object execute(BlueprintsBase graph) {
+                    throw new IllegalArgumentException();
+                }
+            });
+            fail("non-conflict exceptions should not be retried");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testNestedTransaction() {
+        if (!dbengine.equals(Engine.TITAN)) {
+            return;
+        }
+        BlueprintsBase tx = b.startTransaction();
+        assertSame(tx, b.startTransaction());
+        assertSame(tx, b.currentTransaction());
+        tx.createNakedVertex(VERTEX_TYPE);
+        tx.stopTransaction();
+        assertSame(tx, b.currentTransaction());
+        tx.stopTransaction();
+        assertSame(b, b.currentTransaction());
+
+        b.startTransaction().createNakedVertex(VERTEX_TYPE);
+        assertEquals(1, b.commitAllTransactions());
+        assertSame(b, b.currentTransaction());
+    }
+
+    @Test
+    public void testTransactionSeesParentSettings() {
+        if (!dbengine.equals(Engine.TITAN)) {
+            return;
+        }
+        BlueprintsBase tx = b.startTransaction();
+        b.enableLookupCache(100, 0);
+        b.setEngineProfile(b.getEngineProfile().withCommitBatchSize(7));
+        SlowOperationLog slow = new SlowOperationLog(0, 60000);
+        tx.setSlowOperationLog(slow);
+        assertSame(b.getLookupCache(), tx.getLookupCache());
+        assertEquals(7, tx.getEngineProfile().getCommitBatchSize());
+        assertSame(slow, b.getSlowOperationLog());
+        tx.setTransactionRetries(9);
+        assertEquals(9, b.getRetryPolicy().getMaxRetries());
+        assertSame(b.getRetryPolicy(), tx.getRetryPolicy());
+        tx.stopTransaction();
+    }
+
+    @Test
+    public void testEventsDeliveredAfterCommit() {
+        if (dbengine.equals(Engine.NEO4JBATCH)) {
+            return;
+        }
+        final java.util.List<GraphEvent> received = new java.util.concurrent.CopyOnWriteArrayList<GraphEvent>();
+        b.addEventSink(new GraphEventSink() {
+            public void onEvent(GraphEvent event) {
+                received.add(event);
+            }
+            public void flush() {
+            }
+        });
+        BlueprintsBase tx = b.supportsTransactions() ? b.startTransaction() : b;
+        Vertex v1 = tx.createNakedVertex(VERTEX_TYPE);
+        Vertex v2 = tx.createNakedVertex(VERTEX_TYPE);
+        tx.setProperty(v1, VERTEX_STRING_PROPERTY, "foo");
+        Edge e = tx.createEdgeIfNotExist(v1, v2, EDGE_LABEL);
+        tx.removeEdge(e);
+        b.getEventStream().drain();
+        if (b.supportsTransactions()) {
+            assertEquals(0, received.size());
+            tx.stopTransaction();
+            b.getEventStream().drain();
+        }
+        // two vertices and an edge, each with sys_created_at, plus a property and the removal
+        assertEquals(8, received.size());
+        assertEquals(GraphEvent.Type.VERTEX_CREATED, received.get(0).getType());
+        assertEquals(VERTEX_TYPE, received.get(0).getLabel());
+        assertEquals(GraphEvent.Type.EDGE_REMOVED, received.get(7).getType());
+
+        if (b.supportsTransactions()) {
+            tx = b.startTransaction();
+            tx.createNakedVertex(VERTEX_TYPE);
+            tx.rollbackTransaction();
+            b.getEventStream().drain();
+            assertEquals(8, received.size());
+        }
+    }
+
+    @Test
+    public void testIndexRegistry() {
+        if (!b.supportsIndexes() || dbengine.equals(Engine.NEO4JBATCH)) {
+            return;
+        }
+        Index<Vertex> idx = b.getOrCreateIndex("registry-idx");
+        assertSame(idx, b.getOrCreateIndex("registry-idx"));
+        IndexRegistry.IndexStats stats = b.getIndexRegistry().getStats("registry-idx", Vertex.class);
+        assertEquals(1, stats.getHandleMisses());
+        assertEquals(1, stats.getHandleHits());
+
+        Vertex v1 = b.getOrCreateVertexHelper("testIdCol", "testVal", VERTEX_TYPE, idx);
+        Vertex v2 = b.getOrCreateVertexHelper("testIdCol", "testVal", VERTEX_TYPE, idx);
+        assertEquals(v1, v2);
+        assertEquals(2, stats.getLookups());
+        assertEquals(1, stats.getLookupHits());
+        assertEquals(1, stats.getEntriesAdded());
+
+        b.dropIndex("registry-idx");
+        assertFalse(b.getIndexRegistry().contains("registry-idx", Vertex.class));
+        assertNotNull(b.getOrCreateIndex("registry-idx"));
+        assertEquals(1, b.getIndexRegistry().getStats("registry-idx", Vertex.class).getHandleMisses());
+    }
+
+    /**
+     * Loads a dataset with duplicate ids into an index and returns the time taken
+     */
+    private long loadIds(Index<Vertex> idx, String vertexType, int count) {
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            b.getOrCreateVertexHelper("testIdCol", "id" + (i % (count / 2)), vertexType, idx);
+        }
+        return System.nanoTime() - start;
+    }
+
+    @Test
+    public void testDeferredIndexing() {
+        if (!b.supportsIndexes() || dbengine.equals(Engine.NEO4JBATCH)) {
+            return;
+        }
+        int count = 2000;
+        Index<Vertex> inline = b.getOrCreateIndex("inline-idx");
+        Index<Vertex> deferred = b.getOrCreateIndex("deferred-idx");
+        long inlineNanos = loadIds(inline, "inlineType", count);
+        if (b.supportsTransactions()) {
+            b.stopTransaction();
+        }
+
+        long start = System.nanoTime();
+        b.beginDeferredIndexing(false);
+        assertTrue(b.isDeferringIndexes());
+        long loadNanos = loadIds(deferred, "deferredType", count);
+        assertFalse(deferred.get("testIdCol", "id1").iterator().hasNext());
+        assertEquals(count, b.finishDeferredIndexing());
+        long deferredNanos = System.nanoTime() - start;
+        log.info("{}: inline load {}ms, deferred load {}ms + build {}ms", new Object[] {dbengine,
+                inlineNanos / 1000000, loadNanos / 1000000, (deferredNanos - loadNanos) / 1000000});
+
+        for (int i = 0; i < count / 2; i++) {
+            assertEquals(1, deferred.count("testIdCol", "id" + i));
+            assertEquals(inline.count("testIdCol", "id" + i), deferred.count("testIdCol", "id" + i));
+        }
+        assertEquals(count / 2, b.typeidx.count("_type", "deferredType"));
+        assertFalse(b.isDeferringIndexes());
+    }
+
+    @Test
+    public void testCalibrateEngine() throws IOException {
+        if (dbengine.equals(Engine.NEO4JBATCH)) {
+            return;
+        }
+        assertFalse(b.getEngineProfile().isCalibrated());
+        File cacheDir = folder.newFolder();
+        EngineProfile p = b.calibrateEngine(cacheDir);
+        assertTrue(p.isCalibrated());
+        assertTrue(EngineProfile.cacheFile(cacheDir, b.getDbengine(), b.dburl).isFile());
+        for (Vertex v : b.kigraph.getVertices()) {
+            assertNull(v.getProperty("sys_calibration_id"));
+        }
+        if (b.supportsIndexes()) {
+            assertNull(b.igraph.getIndex("sys-calibration-idx", Vertex.class));
+        }
+        if (b.supportsKeyIndexes()) {
+            assertFalse(b.kigraph.getIndexedKeys(Vertex.class).contains("sys_calibration_id"));
+        }
+
+        EngineProfile cached = b.calibrateEngine(cacheDir);
+        assertNotSame(p, cached);
+        assertEquals(p.getLookupStrategy(), cached.getLookupStrategy());
+        assertEquals(p.getCommitBatchSize(), cached.getCommitBatchSize());
+        assertEquals(p.getDedupeStrategy(), cached.getDedupeStrategy());
+
+        if (b.supportsKeyIndexes()) {
+            b.createKeyIndex("testIdCol");
+            b.setEngineProfile(p.withLookupStrategy(EngineProfile.LookupStrategy.KEY_INDEX));
+            Index<Vertex> idx = b.supportsIndexes() ? b.getOrCreateIndex("test-idx") : null;
+            Vertex v1 = b.getOrCreateVertexHelper("testIdCol", "testVal", VERTEX_TYPE, idx);
+            Vertex v2 = b.getOrCreateVertexHelper("testIdCol", "testVal", VERTEX_TYPE, idx);
+            assertEquals(v1.getId(), v2.getId());
+        }
+        b.setEngineProfile(null);
+        assertFalse(b.getEngineProfile().isCalibrated());
+    }
+
+    @Test
+    public void testUpsertVertex() {
+        if (dbengine.equals(Engine.NEO4JBATCH)) {
+            return;
+        }
+        Index<Vertex> idx = b.supportsIndexes() ? b.getOrCreateIndex("test-idx") : null;
+        Map<String, Object> props = new java.util.HashMap<String, Object>();
+        props.put(VERTEX_STRING_PROPERTY, "  foo ");
+        props.put("testDate", new Date(1000000000L));
+        props.put("testEmpty", " ");
+        Vertex v1 = b.upsertVertex(VERTEX_TYPE, "testIdCol", "testVal", props, MergePolicy.OVERWRITE, idx);
+        assertEquals("foo", v1.getProperty(VERTEX_STRING_PROPERTY));
+        assertEquals(1000000L, ((Number) v1.getProperty("testDate")).longValue());
+        assertNull(v1.getProperty("testEmpty"));
+
+        props.put(VERTEX_STRING_PROPERTY, "bar");
+        Vertex v2 = b.upsertVertex(VERTEX_TYPE, "testIdCol", "testVal", props, MergePolicy.KEEP_EXISTING, idx);
+        assertEquals(v1.getId(), v2.getId());
+        assertEquals("foo", v2.getProperty(VERTEX_STRING_PROPERTY));
+        b.upsertVertex(VERTEX_TYPE, "testIdCol", "testVal", props, MergePolicy.OVERWRITE, idx);
+        assertEquals("bar", v2.getProperty(VERTEX_STRING_PROPERTY));
+
+        java.util.List<Map<String, Object>> rows = new java.util.ArrayList<Map<String, Object>>();
+        for (int i = 0; i < 10; i++) {
+            Map<String, Object> row = new java.util.HashMap<String, Object>();
+            row.put("testIdCol", "row" + i);
+            row.put("testCount", i);
+            rows.add(row);
+        }
+        assertEquals(10, b.upsertVertices(VERTEX_TYPE, "testIdCol", rows, MergePolicy.OVERWRITE, idx));
+        assertEquals(0, b.upsertVertices(VERTEX_TYPE, "testIdCol", rows, MergePolicy.OVERWRITE, idx));
+        rows.get(3).put("testCount", 30);
+        assertEquals(1, b.upsertVertices(VERTEX_TYPE, "testIdCol", rows, MergePolicy.OVERWRITE, idx));
+        assertEquals(0, b.upsertVertices(VERTEX_TYPE, "testIdCol", rows, new MergePolicy() {
+            public Object merge(String key, Object existing, Object requested) {
+                return existing;
+            }
+        }, idx));
+
+        // a new row with only the id still creates a vertex
+        Map<String, Object> idOnly = new java.util.HashMap<String, Object>();
+        idOnly.put("testIdCol", "idOnly");
+        rows.add(idOnly);
+        assertEquals(1, b.upsertVertices(VERTEX_TYPE, "testIdCol", rows, MergePolicy.OVERWRITE, idx));
+        assertEquals(0, b.upsertVertices(VERTEX_TYPE, "testIdCol", rows, MergePolicy.OVERWRITE, idx));
+    }
+
+    @Test
+    public void testUpsertEdge() {
+        if (dbengine.equals(Engine.NEO4JBATCH)) {
+            return;
+        }
+        Vertex v1 = b.createNakedVertex(VERTEX_TYPE);
+        Vertex v2 = b.createNakedVertex(VERTEX_TYPE);
+        Map<String, Object> key2010 = new java.util.HashMap<String, Object>();
+        key2010.put("year", 2010);
+        Map<String, Object> key2011 = new java.util.HashMap<String, Object>();
+        key2011.put("year", 2011);
+        Map<String, Object> props = new java.util.HashMap<String, Object>();
+        props.put("role", " committer ");
+
+        Edge e1 = b.upsertEdge(v1, v2, EDGE_LABEL, key2010, props);
+        assertEquals("committer", e1.getProperty("role"));
+        assertEquals(2010, e1.getProperty("year"));
+        props.put("role", "maintainer");
+        Edge e2 = b.upsertEdge(v1, v2, EDGE_LABEL, key2010, props);
+        assertEquals(e1.getId(), e2.getId());
+        assertEquals("maintainer", e2.getProperty("role"));
+        Edge e3 = b.upsertEdge(v1, v2, EDGE_LABEL, key2011, null);
+        assertFalse(e1.getId().equals(e3.getId()));
+
+        Vertex v3 = b.createNakedVertex(VERTEX_TYPE);
+        java.util.List<EdgeSpec> specs = new java.util.ArrayList<EdgeSpec>();
+        specs.add(new EdgeSpec(v1, v2, EDGE_LABEL, key2010, props));
+        specs.add(new EdgeSpec(v1, v3, EDGE_LABEL, key2010, props));
+        specs.add(new EdgeSpec(v2, v3, EDGE_LABEL, null, props));
+        specs.add(new EdgeSpec(v1, v3, EDGE_LABEL, key2010, props));
+        specs.add(new EdgeSpec(v1, v2, EDGE_LABEL, key2011, props));
+        // two new edges, and the existing 2011 edge gains a role
+        assertEquals(3, b.upsertEdges(specs));
+        assertEquals(0, b.upsertEdges(specs));
+
+        int count = 0;
+        for (Edge e : v1.getEdges(Direction.OUT, EDGE_LABEL)) {
+            assertEquals("maintainer", e.getProperty("role"));
+            count++;
+        }
+        assertEquals(3, count);
+    }
+
+    @Test
+    public void testRemoveVertices() {
+        if (dbengine.equals(Engine.NEO4JBATCH)) {
+            return;
+        }
+        b.setEngineProfile(b.getEngineProfile().withCommitBatchSize(4));
+        Index<Vertex> idx = b.supportsIndexes() ? b.getOrCreateIndex("test-idx") : null;
+        Vertex hub = b.createNakedVertex("hub");
+        for (int i = 0; i < 30; i++) {
+            Vertex v = b.getOrCreateVertexHelper("testIdCol", "val" + i, VERTEX_TYPE, idx);
+            b.setProperty(v, "stale", i % 3 == 0);
+            b.createEdgeIfNotExist(hub, v, EDGE_LABEL);
+            b.createEdgeIfNotExist(v, hub, "other");
+        }
+        if (b.supportsTransactions()) {
+            b.stopTransaction();
+        }
+        final java.util.List<Long> reports = new java.util.ArrayList<Long>();
+        ProgressListener progress = new ProgressListener() {
+            public void progress(String operation, long done, long total) {
+                assertEquals(10, total);
+                reports.add(done);
+            }
+        };
+        long removed = b.removeVertices(VERTEX_TYPE, new ElementFilter<Vertex>() {
+            public boolean accept(Vertex v) {
+                return Boolean.TRUE.equals(v.getProperty("stale"));
+            }
+        }, progress);
+        assertEquals(10, removed);
+        assertEquals(java.util.Arrays.asList(4L, 8L, 10L), reports);
+
+        int remaining = 0;
+        for (Vertex v : b.getVerticesByType(VERTEX_TYPE)) {
+            assertFalse(Boolean.TRUE.equals(v.getProperty("stale")));
+            remaining++;
+        }
+        assertEquals(20, remaining);
+        if (idx != null) {
+            assertEquals(0, idx.count("testIdCol", "val0"));
+            assertEquals(1, idx.count("testIdCol", "val1"));
+        }
+        int out = 0;
+        for (Edge e : hub.getEdges(Direction.OUT, EDGE_LABEL)) {
+            out++;
+        }
+        assertEquals(20, out);
+
+        assertEquals(20, b.removeEdges("other", null));
+        assertFalse(hub.getEdges(Direction.IN, "other").iterator().hasNext());
+        assertEquals(0, b.removeVertices("missingType", null));
+    }
+
+    @Test
+    public void testLookupCache() {
+        if (dbengine.equals(Engine.NEO4JBATCH)) {
+            return;
+        }
+        b.enableLookupCache(100, 0);
+        Index<Vertex> idx = b.supportsIndexes() ? b.getOrCreateIndex("test-idx") : null;
+        Vertex v1 = b.getOrCreateVertexHelper("testIdCol", "val1", VERTEX_TYPE, idx);
+        if (b.supportsTransactions()) {
+            b.stopTransaction();
+        }
+        LookupCache cache = b.getLookupCache();
+        long misses = cache.getMisses();
+        for (int i = 0; i < 5; i++) {
+            assertEquals(v1, b.getOrCreateVertexHelper("testIdCol", "val1", VERTEX_TYPE, idx));
+        }
+        assertEquals(misses + 1, cache.getMisses());
+        assertEquals(4, cache.getHits());
+
+        // a cached empty result is dropped when a vertex is written with the key
+        assertTrue(b.lookupVertices("testIdCol", "val2").isEmpty());
+        Vertex v2 = b.getOrCreateVertexHelper("testIdCol", "val2", VERTEX_TYPE, idx);
+        assertEquals(java.util.Arrays.asList(v2), b.lookupVertices("testIdCol", "val2"));
+        b.setProperty(v2, "testIdCol", "val3");
+        assertTrue(b.lookupVertices("testIdCol", "val2").isEmpty());
+        assertEquals(java.util.Arrays.asList(v2), b.lookupVertices("testIdCol", "val3"));
+
+        if (idx != null) {
+            assertEquals(java.util.Arrays.asList(v1), b.lookup(idx, "testIdCol", "val1"));
+            Vertex v3 = b.createNakedVertex(VERTEX_TYPE);
+            b.indexPut(idx, "testIdCol", "val1", v3);
+            assertEquals(2, b.lookup(idx, "testIdCol", "val1").size());
+            b.removeVertex(v3);
+            assertEquals(java.util.Arrays.asList(v1), b.lookup(idx, "testIdCol", "val1"));
+
+            // hits do not query the index, and misses close the results; a
+            // thread does not cache lookups of its uncommitted writes
+            if (b.supportsTransactions()) {
+                b.stopTransaction();
+            }
+            CountingIndex counting = new CountingIndex(idx);
+            b.getLookupCache().clear();
+            b.lookup(counting, "testIdCol", "val1");
+            assertEquals(1, counting.gets);
+            assertEquals(1, counting.closes);
+            assertEquals(java.util.Arrays.asList(v1), b.lookup(counting, "testIdCol", "val1"));
+            assertEquals(1, counting.gets);
+        }
+        if (b.supportsTransactions()) {
+            b.stopTransaction();
+        }
+        log.info("Lookup cache: {}", cache);
+    }
+
+    @Test
+    public void testIntegrityChecker() {
+        if (dbengine.equals(Engine.NEO4JBATCH)) {
+            return;
+        }
+        Index<Vertex> idx = b.supportsIndexes() ? b.getOrCreateIndex("test-idx") : null;
+        Vertex hub = b.createNakedVertex("hub");
+        Vertex[] vs = new Vertex[10];
+        for (int i = 0; i < vs.length; i++) {
+            vs[i] = b.getOrCreateVertexHelper("testIdCol", "val" + i, VERTEX_TYPE, idx);
+        }
+        // a duplicate of val1 created later, with a property and an edge of its own
+        Vertex dup = b.createNakedVertex(VERTEX_TYPE);
+        dup.setProperty("testIdCol", "val1");
+        dup.setProperty("extra", "x");
+        dup.setProperty("sys_created_at", ((Number) vs[1].getProperty("sys_created_at")).longValue() + 100);
+        // two parallel edges that must both survive the merge
+        Edge dupEdge1 = b.createEdgeIfNotExist(dup, hub, EDGE_LABEL);
+        dupEdge1.setProperty("commit", "a");
+        dupEdge1.setProperty("sys_created_at", 1000L);
+        Edge dupEdge2 = b.kigraph.addEdge(null, dup, hub, EDGE_LABEL);
+        dupEdge2.setProperty("commit", "b");
+        dupEdge2.setProperty("sys_created_at", 2000L);
+        vs[2].removeProperty("sys_created_at");
+        if (idx != null) {
+            vs[3].setProperty("_type", "movedType");
+            vs[4].setProperty("testIdCol", "val4b");
+            idx.put("testIdCol", "val5", vs[6]);
+        }
+        if (b.supportsTransactions()) {
+            b.stopTransaction();
+        }
+
+        GraphIntegrityChecker checker = new GraphIntegrityChecker(b);
+        checker.addKey(VERTEX_TYPE, "testIdCol", idx != null ? "test-idx" : null);
+        checker.setTempDir(folder.getRoot());
+        checker.setMaxLinesInMemory(3);
+        GraphIntegrityChecker.Report report = checker.check();
+        log.info("Integrity check: {}", report);
+        assertEquals(12, report.getVerticesScanned());
+        assertEquals(1, report.getFound(GraphIntegrityChecker.Problem.DUPLICATE_KEY));
+        assertEquals(1, report.getFound(GraphIntegrityChecker.Problem.MISSING_CREATED_AT));
+        assertEquals(idx != null ? 1 : 0, report.getFound(GraphIntegrityChecker.Problem.ORPHAN_TYPE_INDEX));
+        assertEquals(idx != null ? 1 : 0, report.getFound(GraphIntegrityChecker.Problem.MISSING_TYPE_INDEX));
+        assertEquals(idx != null ? 2 : 0, report.getFound(GraphIntegrityChecker.Problem.MISSING_INDEX_ENTRY));
+        assertEquals(idx != null ? 1 : 0, report.getFound(GraphIntegrityChecker.Problem.ORPHAN_INDEX_ENTRY));
+        assertEquals(0, report.getRepaired(GraphIntegrityChecker.Problem.DUPLICATE_KEY));
+        assertNotNull(b.kigraph.getVertex(dup.getId()));
+        if (idx != null && !dbengine.equals(Engine.NEO4J)) {
+            // only the Lucene indexes of neo4j can list every entry
+            assertTrue(report.getIndexesNotListed().contains("type-idx _type"));
+        }
+
+        report = checker.repair();
+        assertEquals(1, report.getRepaired(GraphIntegrityChecker.Problem.DUPLICATE_KEY));
+        assertEquals(1, report.getRepaired(GraphIntegrityChecker.Problem.MISSING_CREATED_AT));
+        assertEquals(idx != null ? 1 : 0, report.getRepaired(GraphIntegrityChecker.Problem.MISSING_INDEX_ENTRY));
+        assertEquals(0, report.getErrors());
+        assertTrue(checker.check().isClean());
+
+        assertNull(b.kigraph.getVertex(dup.getId()));
+        assertEquals("x", vs[1].getProperty("extra"));
+        assertNotNull(vs[2].getProperty("sys_created_at"));
+        Map<Object, Object> moved = new java.util.HashMap<Object, Object>();
+        for (Edge e : vs[1].getEdges(Direction.OUT, EDGE_LABEL)) {
+            assertEquals(hub, e.getVertex(Direction.IN));
+            moved.put(e.getProperty("commit"), e.getProperty("sys_created_at"));
+        }
+        assertEquals(2, moved.size());
+        assertEquals(1000L, moved.get("a"));
+        assertEquals(2000L, moved.get("b"));
+        if (idx != null) {
+            assertEquals(1, idx.count("testIdCol", "val4b"));
+            assertEquals(1, idx.count("testIdCol", "val5"));
+        }
+    }
+
     @Test
     public void testAddToIndexIfNotPresent() {
         if (dbengine.equals(Engine.NEO4JBATCH)) {
@@ -319,4 +928,56 @@ public class BlueprintsBaseTest {
         b.shutdown();
     }
 
+
+    /**
+     * Index wrapper that counts queries and closed results
+     */
+    private static class CountingIndex implements Index<Vertex> {
+        private final Index<Vertex> idx;
+        int gets = 0;
+        int closes = 0;
+
+        CountingIndex(Index<Vertex> idx) {
+            this.idx = idx;
+        }
+
+        public String getIndexName() {
+            return idx.getIndexName();
+        }
+
+        public Class<Vertex> getIndexClass() {
+            return idx.getIndexClass();
+        }
+
+        public void put(String key, Object value, Vertex element) {
+            idx.put(key, value, element);
+        }
+
+        public CloseableIterable<Vertex> get(String key, Object value) {
+            gets++;
+            final CloseableIterable<Vertex> results = idx.get(key, value);
+            return new CloseableIterable<Vertex>() {
+                public Iterator<Vertex> iterator() {
+                    return results.iterator();
+                }
+
+                public void close() {
+                    closes++;
+                    results.close();
+                }
+            };
+        }
+
+        public CloseableIterable<Vertex> query(String key, Object query) {
+            return idx.query(key, query);
+        }
+
+        public long count(String key, Object value) {
+            return idx.count(key, value);
+        }
+
+        public void remove(String key, Object value, Vertex element) {
+            idx.remove(key, value, element);
+        }
+    }
 }
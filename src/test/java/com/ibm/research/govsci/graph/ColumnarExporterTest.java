@@ -0,0 +1,158 @@
+package com.ibm.research.govsci.graph;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.ibm.research.govsci.graph.ColumnarExporter.ColumnType;
+import com.tinkerpop.blueprints.Vertex;
+
+public class ColumnarExporterTest {
+
+    private static final int VERTICES = 2500;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testExportAndRead() throws IOException {
+        BlueprintsBase b = new BlueprintsBase(Engine.TINKERGRAPH, null);
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        long base = 1350000000L;
+        for (int i = 0; i < VERTICES; i++) {
+            Vertex v = b.createNakedVertex("developer");
+            b.setProperty(v, "login", "dev" + i);
+            if (i % 10 != 0) {
+                b.setProperty(v, "commits", i);
+            }
+            b.setProperty(v, "score", i / 4.0);
+            b.setProperty(v, "active", i % 2 == 0);
+            b.setProperty(v, "joined", new Date((base + i) * 1000L));
+            ids.put(v.getId().toString(), i);
+        }
+        Vertex odd = b.createNakedVertex("developer");
+        b.setProperty(odd, "commits", "many");
+        b.createNakedVertex("project");
+
+        ColumnarExporter exporter = new ColumnarExporter(b);
+        exporter.addColumn("login", ColumnType.STRING);
+        exporter.addColumn("commits", ColumnType.LONG);
+        exporter.addColumn("score", ColumnType.DOUBLE);
+        exporter.addColumn("active", ColumnType.BOOLEAN);
+        exporter.addColumn("joined", ColumnType.DATE);
+        exporter.setPartitions(3);
+        exporter.setRowGroupSize(500);
+        File dir = new File(folder.getRoot(), "export");
+        assertEquals(VERTICES + 1, exporter.export("developer", dir));
+        b.shutdown();
+
+        List<File> parts = ColumnarReader.partitions(dir);
+        assertEquals(3, parts.size());
+        int rows = 0;
+        int nullCommits = 0;
+        for (File f : parts) {
+            ColumnarReader r = new ColumnarReader(f);
+            assertEquals(Arrays.asList("_id", "login", "commits", "score", "active", "joined"), r.getColumnNames());
+            int id = r.getColumn("_id");
+            int commits = r.getColumn("commits");
+            assertEquals(ColumnType.LONG, r.getColumnType(commits));
+            while (r.nextRowGroup()) {
+                assertTrue(r.getRowCount() <= 500);
+                for (int row = 0; row < r.getRowCount(); row++) {
+                    rows++;
+                    Integer i = ids.get(r.getString(id, row));
+                    if (r.isNull(commits, row)) {
+                        nullCommits++;
+                    }
+                    if (i == null) {
+                        // the vertex with an unconvertible commit count
+                        assertTrue(r.isNull(r.getColumn("login"), row));
+                        assertTrue(r.isNull(commits, row));
+                        continue;
+                    }
+                    assertEquals("dev" + i, r.getString(r.getColumn("login"), row));
+                    assertEquals(i % 10 == 0, r.isNull(commits, row));
+                    if (i % 10 != 0) {
+                        assertEquals((long) i, r.getLong(commits, row));
+                    }
+                    assertEquals(i / 4.0, r.getDouble(r.getColumn("score"), row), 0.0);
+                    assertEquals(i % 2 == 0, r.getBoolean(r.getColumn("active"), row));
+                    assertEquals(new Date((base + i) * 1000L), r.getDate(r.getColumn("joined"), row));
+                }
+            }
+            assertFalse(r.nextRowGroup());
+            r.close();
+        }
+        assertEquals(VERTICES + 1, rows);
+        assertEquals(VERTICES / 10 + 1, nullCommits);
+    }
+
+    @Test
+    public void testThreadBoundEngineReadsOnCallingThread() throws IOException {
+        BlueprintsBase b = new BlueprintsBase(Engine.ORIENTDB, "memory:columnar");
+        for (int i = 0; i < VERTICES; i++) {
+            Vertex v = b.createNakedVertex("developer");
+            b.setProperty(v, "login", "dev" + i);
+        }
+        b.stopTransaction();
+        final Thread caller = Thread.currentThread();
+        final boolean[] otherThread = new boolean[1];
+        ColumnarExporter exporter = new ColumnarExporter(b);
+        exporter.addColumn("login", ColumnType.STRING);
+        exporter.setPartitions(4);
+        exporter.setProgressListener(new ProgressListener() {
+            public void progress(String operation, long done, long total) {
+                otherThread[0] |= Thread.currentThread() != caller;
+            }
+        });
+        File dir = new File(folder.getRoot(), "orient");
+        assertEquals(VERTICES, exporter.export("developer", dir));
+        assertFalse(otherThread[0]);
+        assertEquals(1, ColumnarReader.partitions(dir).size());
+        b.shutdown();
+    }
+
+    @Test
+    public void testFailedPartitionDoesNotHang() throws Exception {
+        final BlueprintsBase b = new BlueprintsBase(Engine.TINKERGRAPH, null);
+        for (int i = 0; i < 10000; i++) {
+            b.createNakedVertex("developer");
+        }
+        final File dir = new File(folder.getRoot(), "failed");
+        // a directory where a partition file should go makes that partition fail
+        assertTrue(new File(dir, "part-00001.gcol").mkdirs());
+        final ColumnarExporter exporter = new ColumnarExporter(b);
+        exporter.setPartitions(3);
+        exporter.setProgressListener(new ProgressListener() {
+            public void progress(String operation, long done, long total) {
+                try {
+                    // slow partitions let the queue fill up
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        final long[] result = new long[] {0};
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                result[0] = exporter.export("developer", dir);
+            }
+        });
+        t.start();
+        t.join(60000);
+        assertFalse(t.isAlive());
+        assertEquals(-1, result[0]);
+        b.shutdown();
+    }
+}
@@ -0,0 +1,67 @@
+package com.ibm.research.govsci.graph;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ExternalSorterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMergeInRounds() throws IOException {
+        File input = folder.newFile("input.txt");
+        File tempDir = folder.newFolder("temp");
+        List<String> expected = new ArrayList<String>();
+        Random random = new Random(42);
+        BufferedWriter out = ExternalSorter.writer(input);
+        for (int i = 0; i < 1000; i++) {
+            String line = Integer.toString(random.nextInt(100000));
+            expected.add(line);
+            out.write(line);
+            out.write('\n');
+        }
+        out.close();
+        Collections.sort(expected);
+
+        // 100 runs merged three at a time takes several rounds
+        File sorted = new ExternalSorter(tempDir, 10, 3).sort(input);
+        List<String> lines = new ArrayList<String>();
+        BufferedReader in = ExternalSorter.reader(sorted);
+        String line;
+        while ((line = in.readLine()) != null) {
+            lines.add(line);
+        }
+        in.close();
+        assertEquals(expected, lines);
+        // every run and intermediate merge has been removed
+        assertEquals(1, tempDir.listFiles().length);
+        ExternalSorter.delete(sorted);
+        assertEquals(0, tempDir.listFiles().length);
+    }
+
+    @Test
+    public void testEmptyInput() throws IOException {
+        File tempDir = folder.newFolder("temp");
+        File sorted = new ExternalSorter(tempDir, 10, 2).sort(folder.newFile("empty.txt"));
+        assertEquals(0, sorted.length());
+        assertEquals(1, tempDir.listFiles().length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFanInTooSmall() {
+        new ExternalSorter(null, 10, 1);
+    }
+}
@@ -0,0 +1,203 @@
+package com.ibm.research.govsci.graph;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tinkerpop.blueprints.TransactionalGraph;
+import com.tinkerpop.blueprints.Vertex;
+
+public class GraphEventStreamTest {
+
+    private static final Logger log = LoggerFactory.getLogger(GraphEventStreamTest.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Checks that events from each producer arrive complete and in order
+     */
+    private static class OrderingSink implements GraphEventSink {
+        final long[] last;
+        final AtomicLong count = new AtomicLong();
+        boolean ordered = true;
+
+        OrderingSink(int producers) {
+            last = new long[producers];
+        }
+
+        public void onEvent(GraphEvent event) {
+            int producer = (Integer) event.getElementId();
+            long seq = (Long) event.getValue();
+            if (seq != last[producer] + 1) {
+                ordered = false;
+            }
+            last[producer] = seq;
+            count.incrementAndGet();
+        }
+
+        public void flush() {
+        }
+    }
+
+    @Test
+    public void testConcurrentPublish() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 250000;
+        final GraphEventStream stream = new GraphEventStream(1024);
+        OrderingSink sink = new OrderingSink(producers);
+        stream.addSink(sink);
+
+        Thread[] threads = new Thread[producers];
+        long start = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                public void run() {
+                    for (long i = 1; i <= perProducer; i++) {
+                        stream.publish(GraphEvent.propertySet(false, producer, "seq", i));
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        stream.shutdown();
+        long elapsed = System.nanoTime() - start;
+        log.info("Delivered {} events/sec", (long) (producers * perProducer / (elapsed / 1e9)));
+
+        assertEquals(producers * perProducer, sink.count.get());
+        assertEquals(producers * perProducer, stream.getDelivered());
+        assertTrue(sink.ordered);
+    }
+
+    @Test
+    public void testStagedEventsNeedCommit() {
+        GraphEventStream stream = new GraphEventStream(16);
+        OrderingSink sink = new OrderingSink(1);
+        stream.addSink(sink);
+        stream.stage(GraphEvent.propertySet(false, 0, "seq", 1L));
+        stream.discardStaged();
+        stream.stage(GraphEvent.propertySet(false, 0, "seq", 1L));
+        stream.stage(GraphEvent.propertySet(false, 0, "seq", 2L));
+        stream.drain();
+        assertEquals(0, sink.count.get());
+        stream.commitStaged();
+        stream.shutdown();
+        assertEquals(2, sink.count.get());
+        assertTrue(sink.ordered);
+    }
+
+    @Test
+    public void testIdleConsumerSleepsUntilPublish() throws Exception {
+        GraphEventStream stream = new GraphEventStream(16);
+        OrderingSink sink = new OrderingSink(1);
+        stream.addSink(sink);
+        java.lang.reflect.Field f = GraphEventStream.class.getDeclaredField("consumer");
+        f.setAccessible(true);
+        Thread consumer = (Thread) f.get(stream);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (consumer.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Thread.State.WAITING, consumer.getState());
+
+        stream.publish(GraphEvent.propertySet(false, 0, "seq", 1L));
+        stream.drain();
+        assertEquals(1, sink.count.get());
+        Thread.sleep(100);
+        stream.publish(GraphEvent.propertySet(false, 0, "seq", 2L));
+        stream.shutdown();
+        assertEquals(2, sink.count.get());
+        assertTrue(sink.ordered);
+    }
+
+    @Test
+    public void testFailedCommitDropsStagedEvents() throws IOException {
+        BlueprintsBase b = new BlueprintsBase(Engine.NEO4J, folder.newFolder().getAbsolutePath());
+        final TransactionalGraph real = b.tgraph;
+        final boolean[] failNext = {true};
+        b.tgraph = (TransactionalGraph) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {TransactionalGraph.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("stopTransaction")
+                                && args[0] == TransactionalGraph.Conclusion.SUCCESS && failNext[0]) {
+                            failNext[0] = false;
+                            throw new IllegalStateException("commit failed");
+                        }
+                        try {
+                            return method.invoke(real, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+        b.enableTimeIndex();
+        final List<Object> ids = new CopyOnWriteArrayList<Object>();
+        b.addEventSink(new GraphEventSink() {
+            public void onEvent(GraphEvent event) {
+                ids.add(event.getElementId());
+            }
+
+            public void flush() {
+            }
+        });
+
+        Vertex lost = b.createNakedVertex("lost");
+        Object lostId = lost.getId();
+        try {
+            b.stopTransaction();
+            fail("commit should fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertFalse(b.timeidx.range(Vertex.class, "lost", "sys_created_at", 0L, Long.MAX_VALUE).iterator().hasNext());
+        Vertex kept = b.createNakedVertex("kept");
+        Object keptId = kept.getId();
+        b.stopTransaction();
+        b.getEventStream().drain();
+        assertTrue(ids.contains(keptId));
+        assertFalse(lostId.equals(keptId) || ids.contains(lostId));
+        assertTrue(b.timeidx.range(Vertex.class, "kept", "sys_created_at", 0L, Long.MAX_VALUE).iterator().hasNext());
+        b.tgraph = real;
+        b.shutdown();
+    }
+
+    @Test
+    public void testRollingFileSink() throws IOException {
+        File f = new File(folder.newFolder(), "events.log");
+        RollingFileEventSink sink = new RollingFileEventSink(f, 200, 2);
+        for (int i = 0; i < 20; i++) {
+            sink.onEvent(GraphEvent.edgeCreated(i, "knows\tfoo", 1, 2));
+        }
+        sink.shutdown();
+        assertTrue(new File(f.getPath() + ".1").exists());
+        assertTrue(new File(f.getPath() + ".2").exists());
+        assertFalse(new File(f.getPath() + ".3").exists());
+
+        BufferedReader in = new BufferedReader(new FileReader(new File(f.getPath() + ".1")));
+        String[] cols = in.readLine().split("\t", -1);
+        in.close();
+        assertEquals(9, cols.length);
+        assertEquals("EDGE_CREATED", cols[1]);
+        assertEquals("knows\\tfoo", cols[4]);
+    }
+}
@@ -0,0 +1,214 @@
+package com.ibm.research.govsci.graph;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.tinkerpop.blueprints.Vertex;
+
+public class GraphTaskExecutorTest {
+
+    private BlueprintsBase b;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void createGraph() {
+        b = new BlueprintsBase(Engine.TINKERGRAPH, null);
+    }
+
+    @After
+    public void shutdownGraph() {
+        b.shutdown();
+    }
+
+    @Test
+    public void testDefaultConcurrency() {
+        assertEquals(1, GraphTaskExecutor.defaultConcurrency(Engine.TINKERGRAPH));
+        assertEquals(1, GraphTaskExecutor.defaultConcurrency(Engine.ORIENTDB));
+        assertTrue(GraphTaskExecutor.defaultConcurrency(Engine.NEO4J)
+                > GraphTaskExecutor.defaultConcurrency(Engine.TITAN));
+        GraphTaskExecutor e = b.createTaskExecutor();
+        assertEquals(1, e.getMaxConcurrent());
+        assertEquals(GraphTaskExecutor.isVirtualThreadsAvailable(), e.isVirtual());
+        e.shutdown();
+    }
+
+    @Test
+    public void testSubmit() throws Exception {
+        GraphTaskExecutor e = b.createTaskExecutor();
+        List<Future<Vertex>> results = new ArrayList<Future<Vertex>>();
+        for (int i = 0; i < 100; i++) {
+            results.add(e.submit("create", new TransactionalWork<Vertex>() {
+                public Vertex execute(BlueprintsBase graph) {
+                    return graph.createNakedVertex("task");
+                }
+            }));
+        }
+        for (Future<Vertex> f : results) {
+            assertNotNull(f.get());
+        }
+        e.shutdown();
+        int count = 0;
+        for (Vertex v : b.getVerticesByType("task")) {
+            count++;
+        }
+        assertEquals(100, count);
+        assertEquals(1, e.getPeakActive());
+    }
+
+    @Test
+    public void testLimit() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        GraphTaskExecutor e = new GraphTaskExecutor(b, 3, GraphTaskExecutor.virtualThreadFactory());
+        GraphTaskExecutor.Scope scope = e.openScope();
+        for (int i = 0; i < 30; i++) {
+            scope.submit(new TransactionalWork<Object>() {
+                public Object execute(BlueprintsBase graph) {
+                    int now = running.incrementAndGet();
+                    synchronized (peak) {
+                        peak.set(Math.max(peak.get(), now));
+                    }
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                    return null;
+                }
+            });
+        }
+        scope.join();
+        assertTrue(peak.get() <= 3);
+        assertTrue(e.getPeakActive() <= 3);
+        assertEquals(0, e.getActive());
+        e.shutdown();
+    }
+
+    @Test
+    public void testScopeCancelsOnFailure() throws Exception {
+        final CountDownLatch started = new CountDownLatch(2);
+        final AtomicInteger interrupted = new AtomicInteger();
+        GraphTaskExecutor e = new GraphTaskExecutor(b, 4, null);
+        final GraphTaskExecutor.Scope scope = e.openScope();
+        List<Future<Object>> running = new ArrayList<Future<Object>>();
+        for (int i = 0; i < 2; i++) {
+            running.add(scope.submit(new TransactionalWork<Object>() {
+                public Object execute(BlueprintsBase graph) {
+                    started.countDown();
+                    long end = System.currentTimeMillis() + 60000;
+                    while (!scope.isCancelled() && System.currentTimeMillis() < end) {
+                        try {
+                            Thread.sleep(10);
+                        } catch (InterruptedException ex) {
+                            interrupted.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        scope.submit(new TransactionalWork<Object>() {
+            public Object execute(BlueprintsBase graph) {
+                throw new IllegalStateException("boom");
+            }
+        });
+        long start = System.currentTimeMillis();
+        try {
+            scope.join();
+            fail("join should report the failure");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        assertTrue(System.currentTimeMillis() - start < 30000);
+        assertEquals(0, interrupted.get());
+        for (Future<Object> f : running) {
+            try {
+                f.get();
+                fail("work that finished after the scope failed should be cancelled");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof CancellationException);
+            }
+        }
+        try {
+            scope.submit(new TransactionalWork<Object>() {
+                public Object execute(BlueprintsBase graph) {
+                    return null;
+                }
+            });
+            fail("failed scope should not accept tasks");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        e.shutdown();
+    }
+
+    @Test
+    public void testCancelledWorkRollsBackOnNeo4j() throws Exception {
+        BlueprintsBase neo = new BlueprintsBase(Engine.NEO4J, folder.newFolder().getAbsolutePath());
+        GraphTaskExecutor e = new GraphTaskExecutor(neo, 4, null);
+        final GraphTaskExecutor.Scope scope = e.openScope();
+        final CountDownLatch created = new CountDownLatch(1);
+        Future<Object> swallowing = scope.submit(new TransactionalWork<Object>() {
+            public Object execute(BlueprintsBase graph) {
+                graph.createNakedVertex("cancelled");
+                created.countDown();
+                // waits for the failure and ignores any interrupt
+                while (!scope.isCancelled()) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException ex) {
+                        // swallowed
+                    }
+                }
+                return null;
+            }
+        });
+        assertTrue(created.await(10, TimeUnit.SECONDS));
+        scope.submit(new TransactionalWork<Object>() {
+            public Object execute(BlueprintsBase graph) {
+                throw new IllegalStateException("boom");
+            }
+        });
+        try {
+            scope.join();
+            fail("join should report the failure");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        try {
+            swallowing.get();
+            fail("cancelled work should not complete");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof CancellationException);
+        }
+        assertFalse(neo.getVerticesByType("cancelled").iterator().hasNext());
+
+        // the store is still usable after the cancellation
+        e.submit(new TransactionalWork<Object>() {
+            public Object execute(BlueprintsBase graph) {
+                return graph.createNakedVertex("after");
+            }
+        }).get();
+        e.shutdown();
+        assertTrue(neo.getVerticesByType("after").iterator().hasNext());
+        neo.shutdown();
+    }
+}
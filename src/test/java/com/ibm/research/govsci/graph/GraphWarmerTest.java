@@ -0,0 +1,127 @@
+package com.ibm.research.govsci.graph;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.tinkerpop.blueprints.Index;
+import com.tinkerpop.blueprints.Vertex;
+
+public class GraphWarmerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File store;
+    private BlueprintsBase b;
+
+    @Before
+    public void createGraph() throws IOException {
+        store = folder.newFolder("store");
+        b = new BlueprintsBase(Engine.TINKERGRAPH, store.getAbsolutePath());
+    }
+
+    @After
+    public void shutdownGraph() {
+        b.shutdown();
+    }
+
+    @Test
+    public void testWarmUp() throws IOException {
+        byte[] data = new byte[100000];
+        FileOutputStream out = new FileOutputStream(new File(store, "data.bin"));
+        out.write(data);
+        out.close();
+
+        b.enableLookupCache(100, 0);
+        Index<Vertex> idx = b.getOrCreateIndex("test-idx");
+        for (int i = 0; i < 20; i++) {
+            b.getOrCreateVertexHelper("name", "v" + i, "warmType", idx);
+        }
+        for (int i = 0; i < 5; i++) {
+            for (int j = 0; j <= i; j++) {
+                b.lookup(idx, "name", "v" + i);
+            }
+        }
+        b.lookupVertices("name", "v0");
+        File hotSet = folder.newFile("hot.txt");
+        new GraphWarmer(b).saveHotSet(hotSet, Arrays.asList("warmType"), 3);
+
+        b.getLookupCache().clear();
+        long hitsBefore = b.getLookupCache().getHits();
+        b.setHotSetFile(hotSet, 3);
+        final List<String> phases = new ArrayList<String>();
+        GraphWarmer.Report report = b.warmUp(new ProgressListener() {
+            public void progress(String operation, long done, long total) {
+                if (done == total && !phases.contains(operation)) {
+                    phases.add(operation);
+                }
+            }
+        });
+        assertEquals(Arrays.asList("warmup-store", "warmup-types", "warmup-lookups"), phases);
+        assertEquals(1, report.getFiles());
+        assertEquals(data.length, report.getStoreBytes());
+        assertEquals(1, report.getTypes());
+        assertEquals(20, report.getVertices());
+        assertEquals(3, report.getLookups());
+        assertEquals(3, b.getLookupCache().size());
+        // the second pass bypasses the cache, so it measures the store
+        assertEquals(hitsBefore, b.getLookupCache().getHits());
+        // the most used lookup was replayed into the cache
+        long hits = b.getLookupCache().getHits();
+        b.lookup(idx, "name", "v4");
+        assertEquals(hits + 1, b.getLookupCache().getHits());
+    }
+
+    @Test
+    public void testWarmUpNeo4j() throws IOException {
+        b.shutdown();
+        b = new BlueprintsBase(Engine.NEO4J, folder.newFolder("neo4j").getAbsolutePath());
+        b.enableLookupCache(100, 0);
+        Index<Vertex> idx = b.getOrCreateIndex("test-idx");
+        for (int i = 0; i < 20; i++) {
+            b.getOrCreateVertexHelper("name", "v" + i, "warmType", idx);
+        }
+        b.stopTransaction();
+        for (int i = 0; i < 5; i++) {
+            b.lookup(idx, "name", "v" + i);
+        }
+        File hotSet = folder.newFile("neo4j-hot.txt");
+        new GraphWarmer(b).saveHotSet(hotSet, Arrays.asList("warmType"), 5);
+
+        b.getLookupCache().clear();
+        long hits = b.getLookupCache().getHits();
+        GraphWarmer.Report report = new GraphWarmer(b).warmUp(null, hotSet, new ArrayList<String>(), null);
+        assertEquals(1, report.getTypes());
+        assertEquals(20, report.getVertices());
+        assertEquals(5, report.getLookups());
+        assertTrue(report.getSavedMillis() >= 0);
+        assertEquals(5, b.getLookupCache().size());
+        assertEquals(hits, b.getLookupCache().getHits());
+    }
+
+    @Test
+    public void testHotSetSavedOnShutdown() throws IOException {
+        File hotSet = new File(folder.getRoot(), "shutdown.txt");
+        b.setHotSetFile(hotSet, 10);
+        b.warmUp(null, "someType");
+        b.shutdown();
+        assertTrue(hotSet.isFile());
+        b = new BlueprintsBase(Engine.TINKERGRAPH, null);
+        b.setHotSetFile(hotSet, 10);
+        GraphWarmer.Report report = b.warmUp(null);
+        assertEquals(1, report.getTypes());
+        assertEquals(0, report.getFiles());
+    }
+}
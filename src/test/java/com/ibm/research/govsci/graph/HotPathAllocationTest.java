@@ -0,0 +1,125 @@
+package com.ibm.research.govsci.graph;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tinkerpop.blueprints.Vertex;
+
+/**
+ * Checks that the property setters allocate nothing for logging when it is off
+ *
+ * Blueprints stores properties as objects, so primitive values are boxed
+ * once to be written whatever the logging level. The values used here are
+ * outside the Integer and Long caches, and the allocation of the setters is
+ * compared with writing the same boxed values straight to the element, so
+ * only the cost of the logging path is measured.
+ *
+ * Allocation is measured with the per-thread allocation counter of the
+ * HotSpot management bean; the test is skipped on JVMs without it.
+ */
+public class HotPathAllocationTest {
+
+    private static final Logger log = LoggerFactory.getLogger(HotPathAllocationTest.class);
+    private static final int CALLS = 100000;
+    private static final int BASE = 1000000;
+
+    private BlueprintsBase b;
+    private Vertex v;
+
+    @Before
+    public void createGraph() {
+        b = new BlueprintsBase(Engine.TINKERGRAPH, null);
+        v = b.createNakedVertex("record");
+    }
+
+    @After
+    public void shutdownGraph() {
+        b.shutdown();
+    }
+
+    private void setProperties() {
+        for (int i = 0; i < CALLS; i++) {
+            b.setProperty(v, "name", "value");
+            b.setProperty(v, "count", BASE + i);
+            b.setProperty(v, "total", (long) (BASE + i));
+            b.setProperty(v, "flag", true);
+        }
+    }
+
+    private void writeProperties() {
+        for (int i = 0; i < CALLS; i++) {
+            v.setProperty("name", "value");
+            v.setProperty("count", Integer.valueOf(BASE + i));
+            v.setProperty("total", Long.valueOf(BASE + i));
+            v.setProperty("flag", Boolean.TRUE);
+        }
+    }
+
+    private static long allocated(com.sun.management.ThreadMXBean mx, Runnable r) {
+        long tid = Thread.currentThread().getId();
+        long before = mx.getThreadAllocatedBytes(tid);
+        r.run();
+        return mx.getThreadAllocatedBytes(tid) - before;
+    }
+
+    @Test
+    public void testSetPropertyDoesNotAllocate() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (log.isTraceEnabled() || !(bean instanceof com.sun.management.ThreadMXBean)) {
+            log.info("Allocation counters unavailable or trace logging enabled - skipping");
+            return;
+        }
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) bean;
+        Runnable setters = new Runnable() {
+            public void run() {
+                setProperties();
+            }
+        };
+        Runnable direct = new Runnable() {
+            public void run() {
+                writeProperties();
+            }
+        };
+        // warm up so the calls are compiled before they are measured
+        for (int i = 0; i < 5; i++) {
+            setProperties();
+            writeProperties();
+        }
+        long boxed = allocated(mx, direct);
+        long allocated = allocated(mx, setters);
+        log.info("{} bytes allocated by {} setProperty calls, {} by the same writes made directly",
+                new Object[] {allocated, 4 * CALLS, boxed});
+        // the values cannot be stored without boxing them
+        assertTrue(boxed >= 2L * 16 * CALLS);
+        // allow for the measurement itself, but far less than one byte per call
+        assertTrue(allocated - boxed < CALLS / 10);
+    }
+
+    @Test
+    public void testSlowOperationLog() {
+        SlowOperationLog slow = new SlowOperationLog(0, 60000);
+        b.setSlowOperationLog(slow);
+        b.setProperty(v, "name", "value");
+        Vertex other = b.createNakedVertex("record");
+        b.createEdgeIfNotExist(v, other, "knows");
+        // every operation is over a zero threshold, including the creation times
+        // written for the new vertex and the edge
+        assertEquals(4, slow.getSlowCount());
+
+        SlowOperationLog never = new SlowOperationLog(60000, 60000);
+        b.setSlowOperationLog(never);
+        b.setProperty(v, "name", "value");
+        assertEquals(0, never.getSlowCount());
+        assertFalse(never.record("test", System.nanoTime()));
+        assertTrue(slow.record("test", System.nanoTime() - 1000000L));
+        assertEquals(5, slow.getSlowCount());
+    }
+}
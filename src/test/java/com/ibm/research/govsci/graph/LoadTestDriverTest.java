@@ -0,0 +1,131 @@
+package com.ibm.research.govsci.graph;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
+
+public class LoadTestDriverTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testHistogram() {
+        LatencyHistogram h = new LatencyHistogram();
+        long[] before = h.snapshot();
+        for (int i = 1; i <= 100; i++) {
+            h.record(i * 1000L);
+        }
+        long[] interval = LatencyHistogram.difference(h.snapshot(), before);
+        assertEquals(100, LatencyHistogram.count(interval));
+        long p50 = LatencyHistogram.percentile(interval, 50);
+        long p99 = LatencyHistogram.percentile(interval, 99);
+        assertTrue("p50 " + p50, p50 >= 50000 && p50 <= 50000 * 1.125);
+        assertTrue("p99 " + p99, p99 >= 99000 && p99 <= 99000 * 1.125);
+        assertEquals(0, LatencyHistogram.percentile(before, 50));
+        for (long v = 0; v < 100000; v += 7) {
+            assertTrue(LatencyHistogram.upperBound(LatencyHistogram.bucket(v)) >= v);
+        }
+    }
+
+    @Test
+    public void testRun() throws IOException {
+        BlueprintsBase graph = new BlueprintsBase(Engine.TINKERGRAPH, null);
+        try {
+            LoadTestDriver driver = new LoadTestDriver(graph, new WorkloadGenerator(200, 50, 1.2));
+            driver.setOperations(2000);
+            driver.setThreads(4);
+            driver.setSampleInterval(10);
+            LoadTestDriver.Result result = driver.run();
+            assertEquals(1, result.getThreads());
+            assertEquals(2000, result.getOperations());
+            assertEquals(0, result.getErrors());
+            assertFalse(result.getSamples().isEmpty());
+            assertEquals(2000, result.getSamples().get(result.getSamples().size() - 1).getOperations());
+
+            // the most popular project should have far more members than an average one
+            int projects = 0;
+            int totalMembers = 0;
+            int maxMembers = 0;
+            for (Vertex p : graph.getVerticesByType(WorkloadGenerator.PROJECT_TYPE)) {
+                projects++;
+                int members = 0;
+                for (Edge e : p.getEdges(Direction.IN, WorkloadGenerator.MEMBER_LABEL)) {
+                    members++;
+                }
+                totalMembers += members;
+                maxMembers = Math.max(maxMembers, members);
+            }
+            assertTrue(projects <= 50);
+            assertTrue(maxMembers > 3 * totalMembers / projects);
+
+            File csv = folder.newFile("run.csv");
+            File json = folder.newFile("run.json");
+            result.writeCsv(csv);
+            result.writeJson(json);
+            List<String> lines = readLines(csv);
+            assertEquals(result.getSamples().size() + 1, lines.size());
+            assertTrue(lines.get(0).startsWith("engine,threads,elapsed_ms,operations,ops_per_sec,p50_us,p99_us"));
+            String text = readLines(json).get(0);
+            assertTrue(text.startsWith("{\"engine\":\"tinkergraph\",\"threads\":1,\"operations\":2000,"));
+            assertTrue(text.contains("\"samples\":[{\"elapsed_ms\":"));
+        } finally {
+            graph.shutdown();
+        }
+    }
+
+    @Test
+    public void testOperationsCountedOnCommit() throws IOException {
+        BlueprintsBase graph = new BlueprintsBase(Engine.NEO4J, folder.newFolder("neo4j").getAbsolutePath());
+        try {
+            WorkloadGenerator failing = new WorkloadGenerator(200, 50, 1.2) {
+                private int applied = 0;
+
+                @Override
+                public void apply(BlueprintsBase graph, Random random) {
+                    if (++applied == 25) {
+                        throw new IllegalStateException("failed operation");
+                    }
+                    super.apply(graph, random);
+                }
+            };
+            LoadTestDriver driver = new LoadTestDriver(graph, failing);
+            driver.setOperations(100);
+            driver.setThreads(1);
+            driver.setCommitEvery(10);
+            LoadTestDriver.Result result = driver.run();
+            // the failure rolls back the four operations before it in its batch
+            assertEquals(95, result.getOperations());
+            assertEquals(5, result.getErrors());
+        } finally {
+            graph.shutdown();
+        }
+    }
+
+    private static List<String> readLines(File f) throws IOException {
+        List<String> rv = new ArrayList<String>();
+        BufferedReader in = ExternalSorter.reader(f);
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                rv.add(line);
+            }
+        } finally {
+            in.close();
+        }
+        return rv;
+    }
+}
@@ -0,0 +1,107 @@
+package com.ibm.research.govsci.graph;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.tinkerpop.blueprints.Vertex;
+
+public class LookupCacheTest {
+
+    private static LookupCache.Key key(Object value) {
+        return new LookupCache.Key("idx", Vertex.class, "name", value);
+    }
+
+    @Test
+    public void testGetPutInvalidate() {
+        LookupCache cache = new LookupCache(10, 0, false);
+        assertNull(cache.get(key("a")));
+        cache.put(key("a"), new Object[] {1L, 2L}, cache.stamp(key("a")));
+        assertEquals(Arrays.asList(1L, 2L), Arrays.asList(cache.get(key("a"))));
+        assertNull(cache.get(new LookupCache.Key(null, Vertex.class, "name", "a")));
+        cache.invalidate("idx", Vertex.class, "name", "a");
+        assertNull(cache.get(key("a")));
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+        assertEquals(1, cache.getInvalidations());
+    }
+
+    @Test
+    public void testRacingInvalidation() {
+        LookupCache cache = new LookupCache(10, 0, false);
+        long stamp = cache.stamp(key("a"));
+        // a write lands between the lookup and caching its result
+        cache.invalidate(key("a"));
+        cache.put(key("a"), new Object[] {1L}, stamp);
+        assertNull(cache.get(key("a")));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testEviction() {
+        LookupCache cache = new LookupCache(5, 0, false);
+        for (int i = 0; i < 20; i++) {
+            cache.put(key(i), new Object[] {i}, cache.stamp(key(i)));
+        }
+        assertEquals(5, cache.size());
+        assertEquals(15, cache.getEvictions());
+        assertNull(cache.get(key(0)));
+        assertNotNull(cache.get(key(19)));
+        // churn on a single key must not leave the cache over its limit
+        for (int i = 0; i < 100; i++) {
+            cache.invalidate(key("hot"));
+            cache.put(key("hot"), new Object[] {i}, cache.stamp(key("hot")));
+        }
+        assertTrue(cache.size() <= 5);
+        assertNotNull(cache.get(key("hot")));
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        LookupCache cache = new LookupCache(10, 20, false);
+        cache.put(key("a"), new Object[] {1L}, cache.stamp(key("a")));
+        assertNotNull(cache.get(key("a")));
+        Thread.sleep(50);
+        assertNull(cache.get(key("a")));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testSettle() throws InterruptedException {
+        final LookupCache cache = new LookupCache(10, 0, true);
+        cache.invalidate(key("a"));
+        // another thread caches the state from before the commit
+        Thread other = new Thread() {
+            public void run() {
+                cache.put(key("a"), new Object[] {1L}, cache.stamp(key("a")));
+            }
+        };
+        other.start();
+        other.join();
+        assertNotNull(cache.get(key("a")));
+        cache.settle();
+        assertNull(cache.get(key("a")));
+    }
+
+    @Test
+    public void testUncommittedWriteNotCached() {
+        LookupCache cache = new LookupCache(10, 0, true);
+        cache.invalidate(key("a"));
+        // the writing thread sees its own uncommitted write
+        cache.put(key("a"), new Object[] {1L}, cache.stamp(key("a")));
+        assertNull(cache.get(key("a")));
+        cache.settle();
+        cache.put(key("a"), new Object[] {1L}, cache.stamp(key("a")));
+        assertNotNull(cache.get(key("a")));
+    }
+
+    @Test
+    public void testMaxIdsPerEntry() {
+        LookupCache cache = new LookupCache(10, 0, false);
+        cache.setMaxIdsPerEntry(2);
+        cache.put(key("a"), new Object[] {1L, 2L, 3L}, cache.stamp(key("a")));
+        assertNull(cache.get(key("a")));
+    }
+}
@@ -0,0 +1,172 @@
+package com.ibm.research.govsci.graph;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Date;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Index;
+import com.tinkerpop.blueprints.Vertex;
+
+public class OperationJournalTest {
+
+    private static final String VERTEX_TYPE = "dummyType";
+    private static final String EDGE_LABEL = "dummyLabel";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReplayToLastCheckpoint() throws IOException {
+        File f = new File(folder.newFolder(), "journal.log");
+        BlueprintsBase b = new BlueprintsBase(Engine.TINKERGRAPH, null);
+        b.setJournal(new OperationJournal(f, 10, 0L));
+        Index<Vertex> idx = b.getOrCreateIndex("test-idx");
+        Vertex v1 = b.getOrCreateVertexHelper("testIdCol", "one", VERTEX_TYPE, idx);
+        Vertex v2 = b.getOrCreateVertexHelper("testIdCol", "two", VERTEX_TYPE, idx);
+        b.setProperty(v1, "name", "first");
+        b.setProperty(v2, "when", new Date(1000000000000L));
+        Edge e = b.createEdgeIfNotExist(v1, v2, EDGE_LABEL);
+        b.setProperty(e, "weight", 2.5);
+        b.checkpoint("row-2");
+
+        // not covered by a checkpoint, so not replayed
+        b.createNakedVertex(VERTEX_TYPE);
+        b.getJournal().shutdown();
+
+        assertEquals("row-2", OperationJournal.lastCheckpoint(f));
+
+        BlueprintsBase restored = new BlueprintsBase(Engine.TINKERGRAPH, null);
+        OperationJournal.ReplayResult result = OperationJournal.replay(f, restored);
+        assertEquals("row-2", result.getLastMarker());
+        assertEquals(0, result.getSkipped());
+
+        Index<Vertex> ridx = restored.getOrCreateIndex("test-idx");
+        Vertex r1 = ridx.get("testIdCol", "one").iterator().next();
+        assertEquals("first", r1.getProperty("name"));
+        assertEquals(VERTEX_TYPE, r1.getProperty("_type"));
+        Edge re = r1.getEdges(com.tinkerpop.blueprints.Direction.OUT, EDGE_LABEL).iterator().next();
+        assertEquals(2.5, (Double) re.getProperty("weight"), 0.0001);
+        Vertex r2 = re.getVertex(com.tinkerpop.blueprints.Direction.IN);
+        assertEquals(1000000000L, r2.getProperty("when"));
+
+        int count = 0;
+        for (Vertex v : restored.getOrCreateIndex("type-idx").get("_type", VERTEX_TYPE)) {
+            count++;
+        }
+        assertEquals(2, count);
+        b.shutdown();
+        restored.shutdown();
+    }
+
+    @Test
+    public void testTornWriteIsTruncated() throws IOException {
+        File f = new File(folder.newFolder(), "journal.log");
+        OperationJournal j = new OperationJournal(f, 1, 0L);
+        j.checkpoint("a", true);
+        j.checkpoint("b", false);
+        j.shutdown();
+        long length = f.length();
+
+        FileOutputStream out = new FileOutputStream(f, true);
+        out.write(new byte[] {0, 0, 0, 40, 7, 1, 2});
+        out.close();
+        assertEquals("b", OperationJournal.lastCheckpoint(f));
+
+        j = new OperationJournal(f, 1, 0L);
+        assertEquals(length, f.length());
+        assertEquals(2, j.getSequence());
+        j.checkpoint("c", true);
+        j.shutdown();
+        assertEquals("c", OperationJournal.lastCheckpoint(f));
+    }
+
+    @Test
+    public void testRollbackIsNotJournaled() throws IOException {
+        File dir = folder.newFolder();
+        File f = new File(dir, "journal.log");
+        BlueprintsBase b = new BlueprintsBase(Engine.NEO4J, new File(dir, "db").getAbsolutePath());
+        b.setJournal(new OperationJournal(f, 10, 0L));
+        b.createNakedVertex("rolledBack");
+        b.rollbackTransaction();
+        b.createNakedVertex(VERTEX_TYPE);
+        b.checkpoint("row-1");
+        b.shutdown();
+
+        BlueprintsBase restored = new BlueprintsBase(Engine.TINKERGRAPH, null);
+        OperationJournal.ReplayResult result = OperationJournal.replay(f, restored);
+        assertEquals("row-1", result.getLastMarker());
+        assertFalse(restored.getVerticesByType("rolledBack").iterator().hasNext());
+        assertTrue(restored.getVerticesByType(VERTEX_TYPE).iterator().hasNext());
+        restored.shutdown();
+    }
+
+    @Test
+    public void testValueTypes() throws IOException {
+        File f = new File(folder.newFolder(), "journal.log");
+        BlueprintsBase b = new BlueprintsBase(Engine.TINKERGRAPH, null);
+        b.setJournal(new OperationJournal(f, 10, 0L));
+        Vertex v = b.createNakedVertex(VERTEX_TYPE);
+        b.setProperty(v, "names", (Object) new String[] {"a", "b"});
+        b.setProperty(v, "small", (Object) Short.valueOf((short) 3));
+        try {
+            b.setProperty(v, "bad", new Object());
+            fail("a value that cannot be journalled should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertNull(v.getProperty("bad"));
+        b.checkpoint("done");
+        b.shutdown();
+
+        BlueprintsBase restored = new BlueprintsBase(Engine.TINKERGRAPH, null);
+        OperationJournal.replay(f, restored);
+        Vertex r = restored.getVerticesByType(VERTEX_TYPE).iterator().next();
+        assertArrayEquals(new String[] {"a", "b"}, (String[]) r.getProperty("names"));
+        assertEquals(Short.valueOf((short) 3), r.getProperty("small"));
+        restored.shutdown();
+    }
+
+    @Test
+    public void testReplayWithIdsOutOfMemory() throws IOException {
+        File f = new File(folder.newFolder(), "journal.log");
+        BlueprintsBase b = new BlueprintsBase(Engine.TINKERGRAPH, null);
+        b.setJournal(new OperationJournal(f, 10, 0L));
+        Vertex prev = null;
+        for (int i = 0; i < 20; i++) {
+            Vertex v = b.createNakedVertex(VERTEX_TYPE);
+            b.setProperty(v, "n", i);
+            if (prev != null) {
+                b.createEdgeIfNotExist(prev, v, EDGE_LABEL);
+            }
+            prev = v;
+        }
+        b.checkpoint("done");
+        b.shutdown();
+
+        BlueprintsBase restored = new BlueprintsBase(Engine.TINKERGRAPH, null);
+        OperationJournal.ReplayResult result = OperationJournal.replay(f, restored, 4);
+        assertEquals(0, result.getSkipped());
+        int vertices = 0;
+        for (Vertex v : restored.getVerticesByType(VERTEX_TYPE)) {
+            assertNull(v.getProperty(OperationJournal.PROPERTY_JOURNAL_ID));
+            assertNotNull(v.getProperty("n"));
+            vertices++;
+        }
+        assertEquals(20, vertices);
+        int edges = 0;
+        for (Edge e : restored.kigraph.getEdges()) {
+            assertNull(e.getProperty(OperationJournal.PROPERTY_JOURNAL_ID));
+            edges++;
+        }
+        assertEquals(19, edges);
+        restored.shutdown();
+    }
+}
@@ -0,0 +1,63 @@
+package com.ibm.research.govsci.graph;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void testBackoffGrowsAndIsBounded() {
+        RetryPolicy p = new RetryPolicy(10, 10L, 100L, 2.0, 0.0);
+        Random r = new Random(1);
+        assertEquals(10L, p.backoffMillis(0, r));
+        assertEquals(20L, p.backoffMillis(1, r));
+        assertEquals(40L, p.backoffMillis(2, r));
+        assertEquals(100L, p.backoffMillis(8, r));
+    }
+
+    @Test
+    public void testJitterStaysInRange() {
+        RetryPolicy p = new RetryPolicy(10, 100L, 1000L, 2.0, 0.5);
+        Random r = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            long b = p.backoffMillis(1, r);
+            assertTrue(b >= 100L && b <= 200L);
+        }
+    }
+
+    @Test
+    public void testIsRetryable() {
+        RetryPolicy p = RetryPolicy.DEFAULT;
+        assertFalse(p.isRetryable(new RuntimeException()));
+        assertTrue(p.isRetryable(new RuntimeException(new FakeLockingException())));
+        assertFalse(p.withMaxRetries(2).isRetryable(new IllegalStateException()));
+        assertEquals(2, p.withMaxRetries(2).getMaxRetries());
+    }
+
+    @Test
+    public void testWithMaxRetriesKeepsSubclass() {
+        RetryPolicy p = new RetryPolicy(1, 1L, 1L, 1.0, 0.0) {
+            @Override
+            public boolean isRetryable(Throwable t) {
+                return t instanceof IllegalStateException;
+            }
+        };
+        RetryPolicy copy = p.withMaxRetries(7);
+        assertEquals(7, copy.getMaxRetries());
+        assertEquals(1, p.getMaxRetries());
+        assertTrue(copy.isRetryable(new IllegalStateException()));
+        assertSame(p.getClass(), copy.getClass());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidJitter() {
+        new RetryPolicy(1, 1L, 1L, 1.0, 2.0);
+    }
+
+    private static class FakeLockingException extends Exception {
+        private static final long serialVersionUID = 1L;
+    }
+}
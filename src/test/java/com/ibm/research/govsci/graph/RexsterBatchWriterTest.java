@@ -0,0 +1,432 @@
+package com.ibm.research.govsci.graph;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests the batch writer against a small embedded server standing in for
+ * Rexster. Like Neo4j, the server ignores the ids the caller chose and
+ * gives every element its own.
+ */
+public class RexsterBatchWriterTest {
+
+    private static final String GRAPH_PATH = "/graphs/test";
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private String graphUrl;
+    private List<String> scripts;
+    private List<String> events;
+    /** properties of the vertices and edges on the server, by server id */
+    private Map<Object, Map<String, Object>> vertices;
+    private Map<Object, Map<String, Object>> edges;
+    private int nextId = 0;
+    private volatile int status = 200;
+    private volatile int failures = 0;
+    private volatile long delayFirst = 0;
+
+    @Before
+    public void startServer() throws IOException {
+        scripts = new CopyOnWriteArrayList<String>();
+        events = new CopyOnWriteArrayList<String>();
+        vertices = new HashMap<Object, Map<String, Object>>();
+        edges = new HashMap<Object, Map<String, Object>>();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext(GRAPH_PATH + "/tp/gremlin", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                String body = read(exchange);
+                int code = status;
+                synchronized (RexsterBatchWriterTest.this) {
+                    if (failures > 0) {
+                        failures--;
+                        code = 500;
+                    }
+                }
+                String name = body.contains("\"a\":\"addEdge\"") ? "edges" : "vertices";
+                events.add("start " + name);
+                String response = "{\"success\":false}";
+                if (code == 200) {
+                    List<Object> results = run(body);
+                    if (results == null) {
+                        code = 500;
+                    } else {
+                        StringBuilder sb = new StringBuilder();
+                        RexsterBatchWriter.appendJson(sb, results);
+                        response = "{\"success\":true,\"results\":" + sb + "}";
+                        scripts.add(body);
+                    }
+                    if (scripts.size() == 1 && delayFirst > 0) {
+                        try {
+                            Thread.sleep(delayFirst);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+                events.add("end " + name);
+                respond(exchange, code, response);
+            }
+        });
+        serverExecutor = Executors.newFixedThreadPool(4);
+        server.setExecutor(serverExecutor);
+        server.start();
+        graphUrl = "http://127.0.0.1:" + server.getAddress().getPort() + GRAPH_PATH;
+    }
+
+    /**
+     * Applies the operations of a request the way the write script does
+     *
+     * @return the server id of each element created or changed, or null if
+     *          the script would have failed
+     */
+    @SuppressWarnings("unchecked")
+    private synchronized List<Object> run(String body) throws IOException {
+        Map<String, Object> request = (Map<String, Object>) RexsterBatchWriter.parseJson(body);
+        assertEquals(RexsterBatchWriter.WRITE_SCRIPT, request.get("script"));
+        List<Map<String, Object>> ops = (List<Map<String, Object>>) ((Map<String, Object>) request.get("params")).get("ops");
+        List<Object> results = new ArrayList<Object>();
+        Map<Object, Map<String, Object>> v = new HashMap<Object, Map<String, Object>>(vertices);
+        Map<Object, Map<String, Object>> e = new HashMap<Object, Map<String, Object>>(edges);
+        for (Map<String, Object> op : ops) {
+            String action = (String) op.get("a");
+            Object id = null;
+            boolean found = false;
+            if (action.equals(RexsterBatchWriter.GET_OR_CREATE_VERTEX)) {
+                for (Map.Entry<Object, Map<String, Object>> vertex : v.entrySet()) {
+                    if (op.get("value").equals(vertex.getValue().get(op.get("key")))) {
+                        id = vertex.getKey();
+                        found = true;
+                    }
+                }
+                if (!found) {
+                    id = "v" + (++nextId);
+                    v.put(id, new HashMap<String, Object>());
+                    v.get(id).put((String) op.get("key"), op.get("value"));
+                }
+            } else if (action.equals(RexsterBatchWriter.CREATE_EDGE_IF_NOT_EXIST)) {
+                Object out = find(op, "out", results, v);
+                Object in = find(op, "in", results, v);
+                if (out == null || in == null) {
+                    return null;
+                }
+                for (Map.Entry<Object, Map<String, Object>> edge : e.entrySet()) {
+                    Map<String, Object> p = edge.getValue();
+                    if (out.equals(p.get("out")) && in.equals(p.get("in")) && op.get("label").equals(p.get("label"))) {
+                        id = edge.getKey();
+                        found = true;
+                    }
+                }
+                if (!found) {
+                    id = "e" + (++nextId);
+                    Map<String, Object> edge = new HashMap<String, Object>();
+                    edge.put("out", out);
+                    edge.put("in", in);
+                    edge.put("label", op.get("label"));
+                    e.put(id, edge);
+                }
+            } else if (action.equals(RexsterBatchWriter.ADD_VERTEX)) {
+                id = "v" + (++nextId);
+                v.put(id, new HashMap<String, Object>());
+            } else if (action.equals(RexsterBatchWriter.ADD_EDGE)) {
+                Object out = find(op, "out", results, v);
+                Object in = find(op, "in", results, v);
+                if (out == null || in == null) {
+                    return null;
+                }
+                id = "e" + (++nextId);
+                Map<String, Object> edge = new HashMap<String, Object>();
+                edge.put("out", out);
+                edge.put("in", in);
+                edge.put("label", op.get("label"));
+                e.put(id, edge);
+            } else {
+                boolean edge = action.equals(RexsterBatchWriter.REMOVE_EDGE);
+                Object target = find(op, "id", results, edge ? e : v);
+                if (target == null) {
+                    return null;
+                }
+                if (action.equals(RexsterBatchWriter.UPDATE_VERTEX)) {
+                    id = target;
+                } else {
+                    (edge ? e : v).remove(target);
+                }
+            }
+            if (id != null && !found) {
+                Map<String, Object> element = v.containsKey(id) ? v.get(id) : e.get(id);
+                element.putAll((Map<String, Object>) op.get("props"));
+                if (op.get("type") != null) {
+                    element.put("_type", op.get("type"));
+                }
+            }
+            results.add(id);
+        }
+        vertices = v;
+        edges = e;
+        return results;
+    }
+
+    private static Object find(Map<String, Object> op, String field, List<Object> results,
+            Map<Object, Map<String, Object>> elements) {
+        Object id = op.containsKey(field + "Ref")
+                ? results.get(((Long) op.get(field + "Ref")).intValue()) : op.get(field);
+        return elements.containsKey(id) ? id : null;
+    }
+
+    private static String read(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        byte[] b = new byte[4096];
+        int n;
+        while ((n = in.read(b)) != -1) {
+            buf.write(b, 0, n);
+        }
+        return buf.toString("UTF-8");
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] response = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(code, response.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(response);
+        out.close();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+        serverExecutor.shutdown();
+    }
+
+    @Test
+    public void testBatching() {
+        RexsterBatchWriter w = new RexsterBatchWriter(graphUrl, 10, 3);
+        for (int i = 0; i < 25; i++) {
+            Map<String, Object> props = new HashMap<String, Object>();
+            props.put("name", "vertex \"" + i + "\"");
+            w.addVertex(i, props);
+        }
+        w.addEdge(null, 1, 2, "knows", null);
+        w.shutdown();
+
+        assertEquals(3, w.getRequestsSent());
+        assertEquals(26, w.getOperationsSent());
+        assertEquals(0, w.getFailedBatches());
+        assertEquals(3, scripts.size());
+        assertEquals(25, vertices.size());
+        assertEquals(1, edges.size());
+        Map<String, Object> edge = edges.values().iterator().next();
+        assertEquals(w.getServerId(1), edge.get("out"));
+        assertEquals(w.getServerId(2), edge.get("in"));
+        assertEquals("knows", edge.get("label"));
+        Map<String, Object> v = vertices.get(w.getServerId(3));
+        assertEquals("vertex \"3\"", v.get("name"));
+        assertTrue(v.containsKey("sys_created_at"));
+    }
+
+    @Test
+    public void testServerIds() {
+        RexsterBatchWriter w = new RexsterBatchWriter(graphUrl, 2, 2);
+        w.addVertex("a", null);
+        w.addVertex("b", null);
+        w.addVertex("c", null);
+        w.addEdge(null, "b", "c", "knows", null);
+        w.flushAndWait();
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put("name", "alice");
+        w.addEdge("ab", "a", "b", "knows", null);
+        w.updateVertex("a", props);
+        w.removeEdge("ab");
+        w.shutdown();
+
+        assertEquals(0, w.getFailedBatches());
+        assertFalse("a".equals(w.getServerId("a")));
+        assertEquals(3, vertices.size());
+        assertEquals("alice", vertices.get(w.getServerId("a")).get("name"));
+        assertEquals(1, edges.size());
+        Map<String, Object> edge = edges.values().iterator().next();
+        assertEquals(w.getServerId("b"), edge.get("out"));
+        assertEquals(w.getServerId("c"), edge.get("in"));
+        // "c" and the edge to it were created in the same batch
+        assertTrue(scripts.get(1).contains("\"inRef\":0"));
+        assertTrue(scripts.get(1).contains("\"out\":\"" + w.getServerId("b") + "\""));
+    }
+
+    @Test
+    public void testGetOrCreate() {
+        RexsterBatchWriter w = new RexsterBatchWriter(graphUrl, 3, 2);
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put("name", "alice");
+        w.getOrCreateVertex("a", "login", "alice", "developer", "developer-idx", props);
+        w.getOrCreateVertex("b", "login", "bob", null, "developer-idx", null);
+        w.createEdgeIfNotExist(null, "a", "b", "knows", null);
+        w.flushAndWait();
+        props.put("name", "changed");
+        w.getOrCreateVertex("a2", "login", "alice", "developer", "developer-idx", props);
+        w.createEdgeIfNotExist("ab", "a2", "b", "knows", null);
+        w.createEdgeIfNotExist(null, "b", "a2", "knows", null);
+        w.shutdown();
+
+        assertEquals(0, w.getFailedBatches());
+        assertEquals(2, vertices.size());
+        assertEquals(w.getServerId("a"), w.getServerId("a2"));
+        Map<String, Object> alice = vertices.get(w.getServerId("a"));
+        assertEquals("alice", alice.get("name"));
+        assertEquals("developer", alice.get("_type"));
+        assertEquals(2, edges.size());
+        assertTrue(scripts.get(0).contains("\"key\":\"login\",\"value\":\"alice\",\"index\":\"developer-idx\""));
+        // both ends of the first edge were looked up earlier in the batch
+        assertTrue(scripts.get(0).contains("\"outRef\":0"));
+        assertTrue(scripts.get(0).contains("\"inRef\":1"));
+    }
+
+    @Test
+    public void testRemovedVertex() {
+        RexsterBatchWriter w = new RexsterBatchWriter(graphUrl, 10, 1);
+        w.addVertex(1, null);
+        w.flushAndWait();
+        w.removeVertex(1);
+        w.flushAndWait();
+        assertNull(w.getServerId(1));
+        w.updateVertex(1, null);
+        w.shutdown();
+
+        assertEquals(1, w.getFailedBatches());
+        assertEquals(2, scripts.size());
+        assertTrue(vertices.isEmpty());
+    }
+
+    @Test
+    public void testEdgeWaitsForVertices() {
+        delayFirst = 300;
+        RexsterBatchWriter w = new RexsterBatchWriter(graphUrl, 2, 3);
+        w.addVertex(1, null);
+        w.addVertex(2, null);
+        w.addEdge(null, 1, 2, "knows", null);
+        w.flush();
+        w.shutdown();
+
+        assertEquals(0, w.getFailedBatches());
+        assertEquals(4, events.size());
+        assertEquals("end vertices", events.get(1));
+        assertEquals("start edges", events.get(2));
+        assertEquals(1, edges.size());
+    }
+
+    @Test
+    public void testVertexTypes() {
+        RexsterBatchWriter w = new RexsterBatchWriter(graphUrl, 10, 2);
+        w.addVertex(1, "developer", null);
+        w.addVertex(2, null);
+        w.shutdown();
+
+        assertEquals(0, w.getFailedBatches());
+        assertEquals(1, w.getRequestsSent());
+        assertTrue(scripts.get(0).contains("\"type\":\"developer\""));
+        assertEquals("developer", vertices.get(w.getServerId(1)).get("_type"));
+        assertNull(vertices.get(w.getServerId(2)).get("_type"));
+    }
+
+    @Test
+    public void testRetry() {
+        failures = 1;
+        RexsterBatchWriter w = new RexsterBatchWriter(graphUrl, 10, 1);
+        w.addVertex(1, null);
+        w.flushAndWait();
+        assertEquals(0, w.getFailedBatches());
+        assertEquals(1, w.getOperationsSent());
+
+        failures = 3;
+        w.setMaxRetries(0);
+        w.addVertex(2, null);
+        w.flush();
+        w.addEdge(null, 1, 2, "knows", null);
+        w.flushAndWait();
+        assertEquals(2, w.getFailedBatches());
+        assertEquals(2, w.getFailedOperations().size());
+        assertEquals(1, scripts.size());
+        assertNull(w.getServerId(2));
+
+        failures = 0;
+        assertEquals(2, w.retryFailed());
+        w.shutdown();
+        assertEquals(0, w.getFailedOperations().size());
+        assertEquals(3, w.getOperationsSent());
+        assertEquals(2, scripts.size());
+        assertEquals(1, edges.size());
+        assertEquals(w.getServerId(2), edges.values().iterator().next().get("in"));
+    }
+
+    @Test
+    public void testFailedBatch() {
+        status = 500;
+        RexsterBatchWriter w = new RexsterBatchWriter(graphUrl, 5, 2);
+        for (int i = 0; i < 10; i++) {
+            w.removeVertex(i);
+        }
+        w.flushAndWait();
+        assertEquals(2, w.getFailedBatches());
+        assertEquals(0, w.getRequestsSent());
+        assertEquals(2, w.getErrors().size());
+        w.shutdown();
+    }
+
+    @Test
+    public void testReservedProperty() {
+        RexsterBatchWriter w = new RexsterBatchWriter(graphUrl, 10, 1);
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put("_type", "developer");
+        try {
+            w.addVertex(1, props);
+            fail("_type should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        w.shutdown();
+        assertEquals(0, w.getOperationsSent());
+    }
+
+    @Test
+    public void testParseJson() throws IOException {
+        Object value = RexsterBatchWriter.parseJson(" {\"a\":[1,-2.5,\"x\\\"\\u0041\",true,null],\"b\":{}} ");
+        Map<?, ?> map = (Map<?, ?>) value;
+        List<?> list = (List<?>) map.get("a");
+        assertEquals(Long.valueOf(1), list.get(0));
+        assertEquals(Double.valueOf(-2.5), list.get(1));
+        assertEquals("x\"A", list.get(2));
+        assertEquals(Boolean.TRUE, list.get(3));
+        assertNull(list.get(4));
+        assertTrue(((Map<?, ?>) map.get("b")).isEmpty());
+        try {
+            RexsterBatchWriter.parseJson("[1,");
+            fail("truncated JSON should be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCreateFromBlueprintsBase() {
+        BlueprintsBase b = new BlueprintsBase(Engine.TINKERGRAPH, null);
+        assertNull(b.createRexsterBatchWriter(10, 2));
+        b.shutdown();
+    }
+}
@@ -0,0 +1,116 @@
+package com.ibm.research.govsci.graph;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.tinkerpop.blueprints.Direction;
+
+public class ShardedBlueprintsBaseTest {
+
+    private static final String INDEX = "test-idx";
+    private static final String ID = "testIdCol";
+    private static final String PERSON = "person";
+    private static final String KNOWS = "knows";
+    private static final int SHARDS = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ShardedBlueprintsBase g;
+
+    @Before
+    public void createShards() throws IOException {
+        List<String> urls = new ArrayList<String>();
+        for (int i = 0; i < SHARDS; i++) {
+            urls.add(folder.newFolder().getAbsolutePath());
+        }
+        g = new ShardedBlueprintsBase(Engine.TINKERGRAPH, urls, null);
+    }
+
+    @After
+    public void shutdownShards() {
+        g.shutdown();
+    }
+
+    @Test
+    public void testPartitioning() {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < 300; i++) {
+            ids.add(i);
+        }
+        List<ShardedVertex> vertices = g.getOrCreateVertices(INDEX, ID, ids, PERSON);
+        assertEquals(300, vertices.size());
+        int[] counts = new int[SHARDS];
+        for (int i = 0; i < vertices.size(); i++) {
+            ShardedVertex v = vertices.get(i);
+            assertEquals(i, v.getProperty(ID));
+            assertEquals(g.shardFor(PERSON, i), v.getShard());
+            counts[v.getShard()]++;
+        }
+        for (int c : counts) {
+            assertTrue(c > 50);
+        }
+        assertEquals(vertices.get(7), g.getOrCreateVertex(INDEX, ID, 7, PERSON));
+        assertEquals(vertices.get(8), g.getVertex(INDEX, ID, 8, PERSON));
+        assertNull(g.getVertex(INDEX, ID, 1000, PERSON));
+        assertEquals(300, g.getVerticesByType(PERSON).size());
+    }
+
+    @Test
+    public void testWithoutIndex() {
+        ShardedVertex v = g.getOrCreateVertex(null, ID, 1, PERSON);
+        assertNull(v.getProperty("sys_shard_index"));
+        assertEquals(v, g.getOrCreateVertex(null, ID, 1, PERSON));
+        assertEquals(v, g.getVertex(null, ID, 1, PERSON));
+    }
+
+    @Test
+    public void testCrossShardEdges() {
+        ShardedVertex a = g.getOrCreateVertex(INDEX, ID, 0, PERSON);
+        ShardedVertex b = null;
+        ShardedVertex c = null;
+        int created = 1;
+        while (b == null || c == null) {
+            ShardedVertex v = g.getOrCreateVertex(INDEX, ID, created++, PERSON);
+            if (v.getShard() != a.getShard() && b == null) {
+                b = v;
+            } else if (v.getShard() == a.getShard() && c == null) {
+                c = v;
+            }
+        }
+        g.createEdgeIfNotExist(a, b, KNOWS);
+        g.createEdgeIfNotExist(a, b, KNOWS);
+        g.createEdgeIfNotExist(a, c, KNOWS);
+        g.createEdgeIfNotExist(b, c, KNOWS);
+        assertEquals(3, g.countEdges());
+
+        Set<ShardedVertex> out = new HashSet<ShardedVertex>(g.neighbors(a, Direction.OUT, KNOWS));
+        assertEquals(2, out.size());
+        assertTrue(out.contains(b));
+        assertTrue(out.contains(c));
+
+        List<ShardedVertex> in = g.neighbors(b, Direction.IN, KNOWS);
+        assertEquals(1, in.size());
+        assertEquals(a, in.get(0));
+        assertEquals(0, in.get(0).getIdValue());
+
+        Set<ShardedVertex> both = new HashSet<ShardedVertex>(g.neighbors(c, Direction.BOTH));
+        assertEquals(2, both.size());
+        assertTrue(both.contains(a));
+        assertTrue(both.contains(b));
+
+        assertEquals(0, g.getVertices("_type", ShardedBlueprintsBase.GHOST_TYPE).size());
+        assertEquals(created, g.getVerticesByType(PERSON).size());
+    }
+}
@@ -0,0 +1,103 @@
+package com.ibm.research.govsci.graph;
+
+import static org.junit.Assert.*;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tinkerpop.blueprints.Vertex;
+
+public class StringInternerTest {
+
+    private static final Logger log = LoggerFactory.getLogger(StringInternerTest.class);
+    private static final String[] PROPERTIES = new String[] {"company", "license", "location"};
+    private static final int[] DISTINCT = new int[] {500, 10, 200};
+
+    @Test
+    public void testIntern() {
+        StringInterner interner = new StringInterner(1024, 16);
+        String a = new String("IBM Corporation");
+        String b = new String("IBM Corporation");
+        assertSame(a, interner.intern(a));
+        assertSame(a, interner.intern(b));
+        assertEquals(1, interner.getHits());
+        assertEquals(1, interner.getMisses());
+        assertEquals(b.length(), interner.getSavedChars());
+
+        String longer = new String("a string longer than sixteen characters");
+        assertSame(longer, interner.intern(longer));
+        assertNull(interner.intern(null));
+
+        interner.clear();
+        assertSame(b, interner.intern(b));
+        assertEquals(0, interner.getHits());
+    }
+
+    @Test
+    public void testBounded() {
+        StringInterner interner = new StringInterner(16, 64);
+        for (int i = 0; i < 10000; i++) {
+            String s = "value-" + i;
+            assertEquals(s, interner.intern(s));
+        }
+        assertEquals(10000, interner.getMisses());
+        assertTrue(interner.toString().contains("slots=16"));
+    }
+
+    /**
+     * Counts the distinct string objects held as property values, which is what
+     * the String and char[] rows of a heap histogram would attribute to them
+     */
+    private long[] histogram(BlueprintsBase b) {
+        Map<Object, Boolean> seen = new IdentityHashMap<Object, Boolean>();
+        long bytes = 0;
+        for (Vertex v : b.kigraph.getVertices()) {
+            for (String prop : PROPERTIES) {
+                Object value = v.getProperty(prop);
+                if (value instanceof String && seen.put(value, Boolean.TRUE) == null) {
+                    // String header and fields plus the char[] header and contents
+                    bytes += 24 + 16 + 2 * ((((String) value).length() + 3) & ~3);
+                }
+            }
+        }
+        return new long[] {seen.size(), bytes};
+    }
+
+    private long[] load(StringInterner interner, int records) {
+        BlueprintsBase b = new BlueprintsBase(Engine.TINKERGRAPH, null);
+        b.setStringInterner(interner);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < records; i++) {
+            Vertex v = b.createNakedVertex("record");
+            for (int p = 0; p < PROPERTIES.length; p++) {
+                // build a fresh copy of each value the way a parser would
+                sb.setLength(0);
+                sb.append(' ').append(PROPERTIES[p]).append(" value ").append((i * 31 + p) % DISTINCT[p]).append(' ');
+                b.setProperty(v, PROPERTIES[p], sb.toString());
+            }
+        }
+        long[] rv = histogram(b);
+        b.shutdown();
+        return rv;
+    }
+
+    @Test
+    public void testMemorySaved() {
+        int records = 20000;
+        long[] plain = load(null, records);
+        StringInterner interner = new StringInterner();
+        long[] interned = load(interner, records);
+        log.info("property strings without interning: {} instances, {} bytes", plain[0], plain[1]);
+        log.info("property strings with interning: {} instances, {} bytes", interned[0], interned[1]);
+        log.info("{}", interner);
+
+        assertEquals(records * PROPERTIES.length, plain[0]);
+        assertTrue(interned[0] < 2 * (DISTINCT[0] + DISTINCT[1] + DISTINCT[2]));
+        assertTrue(interned[1] * 50 < plain[1]);
+        assertEquals(records * PROPERTIES.length, interner.getHits() + interner.getMisses());
+    }
+}